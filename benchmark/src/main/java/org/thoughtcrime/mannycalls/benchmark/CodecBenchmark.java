@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.thoughtcrime.mannycalls.codec.AudioCodec;
+import org.thoughtcrime.mannycalls.codec.G711AudioCodec;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * G.711 u-law encode and decode of one 20ms frame.  The Speex codec is
+ * native and covered by media_benchmark in the host build instead.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class CodecBenchmark {
+
+  private G711AudioCodec codec;
+  private short[]        samples;
+  private byte[]         encoded;
+  private short[]        decoded;
+
+  @Setup
+  public void setup() {
+    codec   = new G711AudioCodec();
+    samples = new short[AudioCodec.SAMPLES_PER_FRAME];
+    encoded = new byte[codec.encodedPacketSize()];
+    decoded = new short[AudioCodec.SAMPLES_PER_FRAME];
+
+    for (int i=0;i<samples.length;i++) {
+      samples[i] = (short)(8000 * Math.sin(2 * Math.PI * 440 * i / AudioCodec.SAMPLE_RATE));
+    }
+
+    codec.encode(samples, encoded, samples.length);
+  }
+
+  @Benchmark
+  public byte[] encode() {
+    codec.encode(samples, encoded, samples.length);
+    return encoded;
+  }
+
+  @Benchmark
+  public short[] decode() {
+    codec.decode(encoded, decoded, encoded.length);
+    return decoded;
+  }
+
+}
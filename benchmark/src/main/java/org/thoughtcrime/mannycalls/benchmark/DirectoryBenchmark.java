@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.thoughtcrime.mannycalls.directory.BloomFilter;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Directory lookups, which run once per contact when the contact list is
+ * filtered down to RedPhone users.  A hit costs every hash; a miss stops
+ * at the first clear bit, so the fill ratio decides the average.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class DirectoryBenchmark {
+
+  private static final int FILTER_BYTES = 1024 * 1024;
+
+  @Param({"0.0", "0.5", "1.0"})
+  public double fill;
+
+  @Param({"20"})
+  public int hashCount;
+
+  private BloomFilter filter;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(42);
+    byte[] bytes  = new byte[FILTER_BYTES];
+
+    for (int i=0;i<bytes.length * 8;i++) {
+      if (random.nextDouble() < fill) {
+        bytes[i / 8] |= (1 << (i % 8));
+      }
+    }
+
+    filter = new BloomFilter(bytes, hashCount);
+  }
+
+  @Benchmark
+  public boolean contains() {
+    return filter.contains("+14155550100");
+  }
+
+}
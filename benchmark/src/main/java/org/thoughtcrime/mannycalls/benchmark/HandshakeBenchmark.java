@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.benchmark;
+
+import org.thoughtcrime.mannycalls.crypto.zrtp.HandshakePacket;
+import org.thoughtcrime.mannycalls.crypto.zrtp.ZRTPHandshake;
+import org.thoughtcrime.mannycalls.crypto.zrtp.ZRTPMessageType;
+import org.thoughtcrime.mannycalls.network.ImpairmentProfile;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+/**
+ * Complete ZRTP handshakes, end to end, through HandshakeHarness, for
+ * each KA type, preshared mode and multistream mode (the reconnect of
+ * an established call), over a clean and an impaired path:
+ *
+ *   ./gradlew :benchmark:handshakeBenchmark [-Pruns=200]
+ *
+ * Reports handshakes per second of CPU (time on the path is simulated,
+ * so this is the cost of both sides together), p50 and p99 completion
+ * time, which adds the path to that, and bytes allocated per handshake
+ * on the handshake thread.  Key pairs come from KeyPairPool as they do
+ * in the app, so back-to-back handshakes mostly generate them inline,
+ * while the pool's refills allocate on its own thread.
+ *
+ * Then each mode again with the responder's first Conf2ACK lost, which
+ * must still complete: the initiator resends Confirm2 until a
+ * Conf2ACK arrives, and the responder, although complete, answers it.
+ *
+ * Then, for a call answered after ringing for a while, the time from
+ * answer to keys with the responder starting the handshake on answer,
+ * and with it exchanging Hellos while it rings.
+ */
+public class HandshakeBenchmark {
+
+  private static final String[] MODE_NAMES = {"X255", "EC25", "DH3K", "Prsh", "Mult"};
+  private static final int[]    KA_TYPES   = {ZRTPHandshake.KA_TYPE_X255, ZRTPHandshake.KA_TYPE_EC25,
+                                              ZRTPHandshake.KA_TYPE_DH3K, ZRTPHandshake.KA_TYPE_X255,
+                                              ZRTPHandshake.KA_TYPE_X255};
+
+  private static final String[] PROFILES = {"", "delay=50,jitter=10", "delay=50,jitter=10,loss=0.05",
+                                            "delay=50,jitter=10,loss=0.3"};
+
+  private static final String LOST_CONF_ACK_PROFILE = "delay=50,jitter=10";
+
+  private static final int WARMUP_RUNS = 20;
+
+  private static final long ANSWER_MICROS = 5000000;
+
+  public static void main(String[] args) {
+    int runs = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+
+    System.out.printf("%-5s %-30s %10s %9s %9s %12s %9s%n", "mode", "path", "hs/s", "p50_ms",
+                      "p99_ms", "alloc/hs", "failures");
+
+    for (int mode=0;mode<MODE_NAMES.length;mode++) {
+      for (String profile : PROFILES) {
+        report(mode, profile, runs);
+      }
+    }
+
+    System.out.printf("%n%-5s %-30s %9s %9s%n", "mode", "first Conf2ACK lost", "p50_ms", "failures");
+
+    int lostConfAckFailures = 0;
+
+    for (int mode=0;mode<MODE_NAMES.length;mode++) {
+      lostConfAckFailures += reportLostConfAck(mode, runs);
+    }
+
+    System.out.printf("%n%-36s %14s %14s%n", "answer to keys, X255", "on_answer_ms", "preconnect_ms");
+
+    for (String profile : PROFILES) {
+      System.out.printf("%-36s %14.1f %14.1f%n", profile.length() == 0 ? "clean" : profile,
+                        getAnswerToKeys(profile, false, runs) / 1000.0,
+                        getAnswerToKeys(profile, true, runs) / 1000.0);
+    }
+
+    if (lostConfAckFailures != 0) {
+      throw new AssertionError(lostConfAckFailures + " handshakes failed on a lost Conf2ACK!");
+    }
+  }
+
+  private static int reportLostConfAck(int mode, int runs) {
+    HandshakeHarness harness    = newHarness(mode);
+    long[]           completion = new long[runs];
+    int              completed  = 0;
+
+    for (int i=0;i<runs;i++) {
+      harness.setPacketFilter(new DropFirstConfAckFilter());
+      HandshakeHarness.Result result = harness.run(getProfile(LOST_CONF_ACK_PROFILE, i));
+
+      if (result.isComplete() && result.isKeysMatch()) {
+        completion[completed++] = result.getCompletionMicros();
+      }
+    }
+
+    long[] times = Arrays.copyOf(completion, completed);
+    Arrays.sort(times);
+
+    System.out.printf("%-5s %-30s %9.1f %9d%n", MODE_NAMES[mode], LOST_CONF_ACK_PROFILE,
+                      percentile(times, 0.50) / 1000.0, runs - completed);
+
+    return runs - completed;
+  }
+
+  private static HandshakeHarness newHarness(int mode) {
+    HandshakeHarness harness = new HandshakeHarness(KA_TYPES[mode], MODE_NAMES[mode].equals("Prsh"));
+
+    if (MODE_NAMES[mode].equals("Mult") && !harness.establishSession(getProfile("", 0)).isComplete()) {
+      throw new AssertionError("Couldn't establish a session to reconnect!");
+    }
+
+    return harness;
+  }
+
+  // p50, in micros.
+  private static long getAnswerToKeys(String profile, boolean preconnect, int runs) {
+    HandshakeHarness harness    = new HandshakeHarness(ZRTPHandshake.KA_TYPE_X255, false);
+    long[]           completion = new long[runs];
+    int              completed  = 0;
+
+    harness.setAnswerMicros(ANSWER_MICROS, preconnect);
+
+    for (int i=0;i<runs;i++) {
+      HandshakeHarness.Result result = harness.run(getProfile(profile, i));
+
+      if (result.isComplete()) {
+        completion[completed++] = result.getCompletionMicros() - ANSWER_MICROS;
+      }
+    }
+
+    long[] times = Arrays.copyOf(completion, completed);
+    Arrays.sort(times);
+
+    return percentile(times, 0.50);
+  }
+
+  private static void report(int mode, String profile, int runs) {
+    HandshakeHarness harness = newHarness(mode);
+
+    for (int i=0;i<WARMUP_RUNS;i++) {
+      harness.run(getProfile(profile, i));
+    }
+
+    long[] completion = new long[runs];
+    int    completed  = 0;
+    int    mismatched = 0;
+
+    long startAllocated = getAllocatedBytes();
+    long startNanos     = System.nanoTime();
+
+    for (int i=0;i<runs;i++) {
+      HandshakeHarness.Result result = harness.run(getProfile(profile, WARMUP_RUNS + i));
+
+      if (!result.isComplete())  continue;
+      if (!result.isKeysMatch()) mismatched++;
+
+      completion[completed++] = result.getCompletionMicros();
+    }
+
+    long elapsedNanos = System.nanoTime() - startNanos;
+    long allocated    = startAllocated < 0 ? -1 : getAllocatedBytes() - startAllocated;
+
+    if (mismatched != 0) {
+      throw new AssertionError(mismatched + " " + MODE_NAMES[mode] + " handshakes derived different keys!");
+    }
+
+    long[] times = Arrays.copyOf(completion, completed);
+    Arrays.sort(times);
+
+    System.out.printf("%-5s %-30s %10.1f %9.1f %9.1f %12s %9d%n", MODE_NAMES[mode],
+                      profile.length() == 0 ? "clean" : profile,
+                      runs * 1e9 / elapsedNanos,
+                      percentile(times, 0.50) / 1000.0, percentile(times, 0.99) / 1000.0,
+                      allocated < 0 ? "-" : String.valueOf(allocated / runs),
+                      runs - completed);
+  }
+
+  private static ImpairmentProfile getProfile(String profile, int seed) {
+    return ImpairmentProfile.parse(profile.length() == 0 ? "" : "seed=" + seed + "," + profile);
+  }
+
+  private static long percentile(long[] sorted, double fraction) {
+    if (sorted.length == 0) return 0;
+    return sorted[Math.min(sorted.length - 1, (int)(fraction * sorted.length))];
+  }
+
+  // The per-thread allocation counter is a HotSpot extension.
+  private static long getAllocatedBytes() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    return -1;
+  }
+
+  private static class DropFirstConfAckFilter implements HandshakeHarness.PacketFilter {
+    private boolean dropped;
+
+    @Override
+    public HandshakePacket filter(HandshakePacket packet, boolean fromInitiator) {
+      if (!dropped && !fromInitiator && packet.getMessageType() == ZRTPMessageType.CONF2_ACK) {
+        dropped = true;
+        return null;
+      }
+
+      return packet;
+    }
+  }
+
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.benchmark;
+
+import org.thoughtcrime.mannycalls.crypto.zrtp.HandshakePacket;
+import org.thoughtcrime.mannycalls.crypto.zrtp.ZRTPHandshake;
+import org.thoughtcrime.mannycalls.crypto.zrtp.ZRTPMessageType;
+import org.thoughtcrime.mannycalls.network.ImpairmentProfile;
+import org.thoughtcrime.mannycalls.network.RtpPacket;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Runs ZRTP handshakes through HandshakeHarness with one packet in five
+ * mangled on the way: bits flipped, bytes overwritten, truncated, extended, length
+ * and type fields rewritten, and old packets replayed, mostly with a
+ * CRC recomputed so that they reach the packet parsers.
+ *
+ *   ./gradlew :benchmark:handshakeFuzz [-Pruns=2000] [-Pseed=0]
+ *
+ * A handshake may fail, but it must fail with a NegotiationFailedException
+ * rather than anything escaping the handshake, and if both sides complete
+ * they must have the same keys.  Each run is reproducible from its seed.
+ *
+ * fuzzerTestOneInput() drives the same thing from a byte array, in the
+ * form coverage-guided fuzzers such as Jazzer expect.
+ */
+public class HandshakeFuzzer {
+
+  private static final int[] KA_TYPES = {ZRTPHandshake.KA_TYPE_X255, ZRTPHandshake.KA_TYPE_EC25,
+                                         ZRTPHandshake.KA_TYPE_DH3K};
+
+  private static final int LENGTH_OFFSET = 14;
+  private static final int TYPE_OFFSET   = 16;
+  private static final int MAX_LENGTH    = 1024;
+
+  public static void main(String[] args) {
+    int  runs = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    long seed = args.length > 1 ? Long.parseLong(args[1]) : 0;
+
+    Map<String, Integer> outcomes = new TreeMap<String, Integer>();
+    int                  crashes  = 0;
+
+    for (int i=0;i<runs;i++) {
+      try {
+        String outcome = fuzz(new RandomSource(new Random(seed + i)));
+        Integer count  = outcomes.get(outcome);
+
+        outcomes.put(outcome, count == null ? 1 : count + 1);
+      } catch (Throwable t) {
+        System.out.println("Seed " + (seed + i) + ":");
+        t.printStackTrace(System.out);
+        crashes++;
+      }
+    }
+
+    for (Map.Entry<String, Integer> outcome : outcomes.entrySet()) {
+      System.out.printf("%8d %s%n", outcome.getValue(), outcome.getKey());
+    }
+
+    System.out.printf("%8d crashes%n", crashes);
+
+    if (crashes != 0) System.exit(1);
+  }
+
+  public static void fuzzerTestOneInput(byte[] data) {
+    fuzz(new DataSource(data));
+  }
+
+  /**
+   * @return how the handshake ended, for the summary.
+   */
+  private static String fuzz(Source source) {
+    boolean          preshared   = source.nextInt(4) == 0;
+    boolean          multistream = !preshared && source.nextInt(4) == 0;
+    int              kaType      = KA_TYPES[source.nextInt(KA_TYPES.length)];
+    HandshakeHarness harness     = new HandshakeHarness(kaType, preshared);
+
+    if (multistream && !harness.establishSession(ImpairmentProfile.NONE).isComplete()) {
+      throw new AssertionError("Couldn't establish a session for multistream!");
+    }
+
+    harness.setPacketFilter(new Mangler(source));
+
+    HandshakeHarness.Result result = harness.run(ImpairmentProfile.NONE);
+
+    if (!result.isComplete()) {
+      return "failed: " + result.getFailure();
+    }
+
+    if (!result.isKeysMatch()) {
+      throw new AssertionError("Both sides completed with different keys!");
+    }
+
+    return "completed";
+  }
+
+  private static class Mangler implements HandshakeHarness.PacketFilter {
+    private final Source                source;
+    private final List<HandshakePacket> history = new ArrayList<HandshakePacket>();
+
+    Mangler(Source source) {
+      this.source = source;
+    }
+
+    @Override
+    public HandshakePacket filter(HandshakePacket packet, boolean fromInitiator) {
+      history.add(packet);
+
+      if (source.nextInt(5) != 4) {
+        return packet;
+      }
+
+      // Like a packet off the socket, the buffer may be longer than it.
+      byte[] data   = Arrays.copyOf(packet.getPacket(), MAX_LENGTH);
+      int    length = packet.getPacketLength();
+
+      switch (source.nextInt(7)) {
+      case 0:
+        for (int i=source.nextInt(4);i>=0;i--) {
+          data[source.nextInt(length)] ^= 1 << source.nextInt(8);
+        }
+        break;
+      case 1:
+        data[source.nextInt(length)] = (byte)source.nextInt(256);
+        break;
+      case 2:
+        length = source.nextInt(length);
+        break;
+      case 3:
+        int extended = Math.min(MAX_LENGTH, length + 1 + source.nextInt(64));
+        for (int i=length;i<extended;i++) data[i] = (byte)source.nextInt(256);
+        length = extended;
+        break;
+      case 4:
+        if (length >= LENGTH_OFFSET + 2) {
+          data[LENGTH_OFFSET]     = (byte)source.nextInt(256);
+          data[LENGTH_OFFSET + 1] = (byte)source.nextInt(256);
+        }
+        break;
+      case 5:
+        if (length >= TYPE_OFFSET + 8) {
+          ZRTPMessageType[] types = ZRTPMessageType.values();
+          String            type  = types[source.nextInt(types.length)].getType();
+          System.arraycopy(type.getBytes(), 0, data, TYPE_OFFSET, type.length());
+        }
+        break;
+      case 6:
+        return history.get(source.nextInt(history.size()));
+      }
+
+      HandshakePacket mangled = new HandshakePacket(new RtpPacket(data, length));
+
+      if (length >= 4 && source.nextInt(10) != 0) {
+        mangled.setCRC();
+      }
+
+      return mangled;
+    }
+  }
+
+  private interface Source {
+    int nextInt(int bound);
+  }
+
+  private static class RandomSource implements Source {
+    private final Random random;
+
+    RandomSource(Random random) {
+      this.random = random;
+    }
+
+    @Override
+    public int nextInt(int bound) {
+      return bound <= 0 ? 0 : random.nextInt(bound);
+    }
+  }
+
+  // Once the input runs out, every choice is 0: leave the packet alone.
+  private static class DataSource implements Source {
+    private final byte[] data;
+    private int          offset;
+
+    DataSource(byte[] data) {
+      this.data = data;
+    }
+
+    @Override
+    public int nextInt(int bound) {
+      if (bound <= 0 || offset + 2 > data.length) return 0;
+
+      int value = ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+      offset += 2;
+
+      return value % bound;
+    }
+  }
+
+}
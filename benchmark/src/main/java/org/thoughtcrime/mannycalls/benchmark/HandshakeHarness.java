@@ -0,0 +1,413 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.benchmark;
+
+import org.thoughtcrime.mannycalls.crypto.zrtp.HandshakePacket;
+import org.thoughtcrime.mannycalls.crypto.zrtp.InitiatorHandshake;
+import org.thoughtcrime.mannycalls.crypto.zrtp.MasterSecret;
+import org.thoughtcrime.mannycalls.crypto.zrtp.NegotiationFailedException;
+import org.thoughtcrime.mannycalls.crypto.zrtp.ResponderHandshake;
+import org.thoughtcrime.mannycalls.crypto.zrtp.ZRTPHandshake;
+import org.thoughtcrime.mannycalls.crypto.zrtp.retained.RetainedSecrets;
+import org.thoughtcrime.mannycalls.crypto.zrtp.retained.RetainedSecretsStore;
+import org.thoughtcrime.mannycalls.network.ImpairmentModel;
+import org.thoughtcrime.mannycalls.network.ImpairmentProfile;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Runs complete ZRTP handshakes between an InitiatorHandshake and a
+ * ResponderHandshake in one process, with no sockets or Android Context:
+ * packets travel over a simulated path from the impairment model, and
+ * retained secrets are kept in memory.
+ *
+ * Time is simulated.  Packets arrive and timers fire on a simulated
+ * clock, and the real time each side spends handling an event is added
+ * to that side's clock, so completion time counts the key agreement as
+ * well as the path.
+ *
+ * A PacketFilter sees every packet as it is sent, and can drop or
+ * rewrite it, which is how HandshakeFuzzer gets malformed packets
+ * in front of each side.
+ *
+ * After establishSession(), each run is a multistream handshake keyed
+ * from that first handshake's session, as a reconnect would be.
+ *
+ * With setAnswerMicros(), the responder's phone rings until then: it
+ * either starts the handshake when answered, or exchanges Hellos
+ * straight away and leaves everything after in its receive buffer until
+ * answered, as ResponderCallManager does.
+ */
+public class HandshakeHarness {
+
+  public interface PacketFilter {
+    /**
+     * @return the packet to put on the path in place of this one, or
+     * null to drop it.
+     */
+    HandshakePacket filter(HandshakePacket packet, boolean fromInitiator);
+  }
+
+  private static final byte[] INITIATOR_ZID = {'i', 'n', 'i', 't', 'i', 'a', 't', 'o', 'r', 'z', 'i', 'd'};
+  private static final byte[] RESPONDER_ZID = {'r', 'e', 's', 'p', 'o', 'n', 'd', 'e', 'r', 'z', 'i', 'd'};
+
+  private final int                kaType;
+  private final MemorySecretsStore initiatorSecrets;
+  private final MemorySecretsStore responderSecrets;
+
+  private PacketFilter filter;
+  private MasterSecret initiatorSession;
+  private MasterSecret responderSession;
+  private long         answerMicros;
+  private boolean      preconnect;
+
+  /**
+   * @param kaType the ZRTPHandshake.KA_TYPE_* the initiator picks for DH
+   * mode handshakes, as it would with a peer that offers only that type.
+   * @param preshared whether both sides start with a retained secret from
+   * an earlier call, so that the initiator uses preshared mode.  Each run
+   * then retains a new secret for the next, as a call would; without
+   * preshared, nothing is retained and every run is in DH mode.
+   */
+  public HandshakeHarness(int kaType, boolean preshared) {
+    this.kaType           = kaType;
+    this.initiatorSecrets = new MemorySecretsStore(preshared);
+    this.responderSecrets = new MemorySecretsStore(preshared);
+
+    if (preshared) {
+      byte[] rs1 = new byte[32];
+      Arrays.fill(rs1, (byte)0x42);
+
+      initiatorSecrets.setRetainedSecret("responder", RESPONDER_ZID, rs1, Long.MAX_VALUE, false);
+      responderSecrets.setRetainedSecret("initiator", INITIATOR_ZID, rs1, Long.MAX_VALUE, false);
+    }
+  }
+
+  public void setPacketFilter(PacketFilter filter) {
+    this.filter = filter;
+  }
+
+  public Result run(ImpairmentProfile profile) {
+    return new Run(profile).complete();
+  }
+
+  /**
+   * @param answerMicros when the responder's user answers the call.
+   * @param preconnect whether the responder exchanges Hellos while its
+   * phone rings.
+   */
+  public void setAnswerMicros(long answerMicros, boolean preconnect) {
+    this.answerMicros = answerMicros;
+    this.preconnect   = preconnect;
+  }
+
+  /**
+   * Runs one handshake in the configured mode, and keys every run after
+   * it in multistream mode from its session.
+   *
+   * @return the result of that first handshake.
+   */
+  public Result establishSession(ImpairmentProfile profile) {
+    initiatorSession = null;
+    responderSession = null;
+
+    Run    run    = new Run(profile);
+    Result result = run.complete();
+
+    if (result.isComplete()) {
+      initiatorSession = run.initiator.handshake.getMasterSecret();
+      responderSession = run.responder.handshake.getMasterSecret();
+    }
+
+    return result;
+  }
+
+  public static class Result {
+    private final boolean complete;
+    private final boolean keysMatch;
+    private final long    completionMicros;
+    private final int     packets;
+    private final String  failure;
+
+    private Result(boolean complete, boolean keysMatch, long completionMicros,
+                   int packets, String failure)
+    {
+      this.complete         = complete;
+      this.keysMatch        = keysMatch;
+      this.completionMicros = completionMicros;
+      this.packets          = packets;
+      this.failure          = failure;
+    }
+
+    public boolean isComplete() {
+      return complete;
+    }
+
+    /**
+     * @return whether both sides derived the same SAS and SRTP keys.
+     * Only meaningful if isComplete().
+     */
+    public boolean isKeysMatch() {
+      return keysMatch;
+    }
+
+    public long getCompletionMicros() {
+      return completionMicros;
+    }
+
+    public int getPackets() {
+      return packets;
+    }
+
+    /**
+     * @return why the handshake didn't complete, or null if it did.
+     */
+    public String getFailure() {
+      return failure;
+    }
+  }
+
+  private static class Event implements Comparable<Event> {
+    final long            micros;
+    final long            order;
+    final Party           party;
+    final HandshakePacket packet;
+    final int             timerGeneration;
+
+    Event(long micros, long order, Party party, HandshakePacket packet, int timerGeneration) {
+      this.micros          = micros;
+      this.order           = order;
+      this.party           = party;
+      this.packet          = packet;
+      this.timerGeneration = timerGeneration;
+    }
+
+    @Override
+    public int compareTo(Event other) {
+      if (micros != other.micros) return micros < other.micros ? -1 : 1;
+      return order < other.order ? -1 : (order == other.order ? 0 : 1);
+    }
+  }
+
+  private class Party implements ZRTPHandshake.Output {
+    final ZRTPHandshake   handshake;
+    final ImpairmentModel outbound;
+    final boolean         initiator;
+    Party                 peer;
+
+    final List<HandshakePacket> sent = new ArrayList<HandshakePacket>();
+
+    long    busyUntilMicros;
+    long    timerDeadlineMillis = -1;
+    int     timerGeneration;
+    String  failure;
+
+    Party(ZRTPHandshake handshake, ImpairmentModel outbound, boolean initiator) {
+      this.handshake = handshake;
+      this.outbound  = outbound;
+      this.initiator = initiator;
+    }
+
+    @Override
+    public void sendPacket(HandshakePacket packet) {
+      sent.add(new HandshakePacket(packet, true));
+    }
+
+    @Override
+    public void setTimer(long deadlineMillis) {
+      timerDeadlineMillis = deadlineMillis;
+      timerGeneration++;
+    }
+
+    @Override
+    public void cancelTimer() {
+      timerDeadlineMillis = -1;
+      timerGeneration++;
+    }
+  }
+
+  private class Run {
+    private final PriorityQueue<Event> events = new PriorityQueue<Event>();
+    private final Party                initiator;
+    private final Party                responder;
+
+    private long order;
+    private int  packets;
+
+    Run(ImpairmentProfile profile) {
+      initiator = new Party(new ForcedKaInitiatorHandshake(INITIATOR_ZID, "responder", initiatorSecrets, kaType),
+                            new ImpairmentModel(profile, 0), true);
+      responder = new Party(new ResponderHandshake(RESPONDER_ZID, "initiator", false, responderSecrets),
+                            new ImpairmentModel(profile, 1), false);
+
+      initiator.peer = responder;
+      responder.peer = initiator;
+
+      if (initiatorSession != null) {
+        initiator.handshake.setMultistreamSession(initiatorSession);
+        responder.handshake.setMultistreamSession(responderSession);
+      }
+    }
+
+    Result complete() {
+      if (!preconnect) {
+        responder.busyUntilMicros = answerMicros;
+      }
+
+      start(responder);
+      start(initiator);
+
+      while (!events.isEmpty() && !isDone()) {
+        Event event = events.poll();
+        Party party = event.party;
+
+        if (event.packet == null && event.timerGeneration != party.timerGeneration) {
+          continue;
+        }
+
+        if (party == responder && isRinging(event.micros)) {
+          events.add(new Event(answerMicros, event.order, party, event.packet, event.timerGeneration));
+          continue;
+        }
+
+        long startMicros = Math.max(event.micros, party.busyUntilMicros);
+        long startNanos  = System.nanoTime();
+
+        try {
+          if (event.packet != null) party.handshake.receive(event.packet, startMicros / 1000);
+          else                      party.handshake.timeout(startMicros / 1000);
+        } catch (NegotiationFailedException e) {
+          party.failure = (party.initiator ? "initiator: " : "responder: ") + e.getMessage();
+        }
+
+        party.busyUntilMicros = startMicros + (System.nanoTime() - startNanos) / 1000;
+        dispatch(party);
+      }
+
+      return getResult();
+    }
+
+    private void start(Party party) {
+      party.handshake.start(party, party.busyUntilMicros / 1000);
+      dispatch(party);
+    }
+
+    // A pre-connected responder stops reading once it has the initiator's Hello.
+    private boolean isRinging(long micros) {
+      return micros < answerMicros && responder.handshake.getState() != ZRTPHandshake.EXPECTING_HELLO;
+    }
+
+    private boolean isDone() {
+      return initiator.failure != null || responder.failure != null ||
+             (initiator.handshake.isFinished() && responder.handshake.isFinished());
+    }
+
+    // Puts whatever the party sent while handling an event on the path,
+    // and schedules its timer, as of when it finished handling it.
+    private void dispatch(Party party) {
+      for (HandshakePacket packet : party.sent) {
+        HandshakePacket filtered = filter == null ? packet : filter.filter(packet, party.initiator);
+        packets++;
+
+        if (filtered == null) continue;
+
+        for (long delivery : party.outbound.schedule(party.busyUntilMicros, filtered.getPacketLength())) {
+          events.add(new Event(delivery, order++, party.peer, filtered, 0));
+        }
+      }
+
+      party.sent.clear();
+
+      if (party.timerDeadlineMillis >= 0) {
+        events.add(new Event(party.timerDeadlineMillis * 1000, order++, party, null, party.timerGeneration));
+        party.timerDeadlineMillis = -1;
+      }
+    }
+
+    private Result getResult() {
+      boolean complete = initiator.handshake.isComplete() && responder.handshake.isComplete();
+      long    micros   = Math.max(initiator.busyUntilMicros, responder.busyUntilMicros);
+
+      if (!complete) {
+        String failure = initiator.failure != null ? initiator.failure :
+                         responder.failure != null ? responder.failure : "stalled";
+
+        return new Result(false, false, micros, packets, failure);
+      }
+
+      MasterSecret initiatorSecret = initiator.handshake.getMasterSecret();
+      MasterSecret responderSecret = responder.handshake.getMasterSecret();
+
+      boolean keysMatch = Arrays.equals(initiatorSecret.getSAS(), responderSecret.getSAS()) &&
+                          Arrays.equals(initiatorSecret.getInitiatorSrtpKey(),
+                                        responderSecret.getInitiatorSrtpKey()) &&
+                          Arrays.equals(initiatorSecret.getResponderSrtpKey(),
+                                        responderSecret.getResponderSrtpKey());
+
+      return new Result(true, keysMatch, micros, packets, null);
+    }
+  }
+
+  // Stands in for a peer that only offers one KA type.  Preshared and
+  // multistream modes don't consult this.
+  private static class ForcedKaInitiatorHandshake extends InitiatorHandshake {
+    private final int kaType;
+
+    ForcedKaInitiatorHandshake(byte[] localZid, String foreignNumber,
+                               RetainedSecretsStore retainedSecretsStore, int kaType)
+    {
+      super(localZid, foreignNumber, retainedSecretsStore);
+      this.kaType = kaType;
+    }
+
+    @Override
+    protected int getKeyAgreementType() {
+      return kaType;
+    }
+  }
+
+  private static class MemorySecretsStore implements RetainedSecretsStore {
+    private final boolean retaining;
+
+    private byte[] rs1;
+    private byte[] rs2;
+
+    MemorySecretsStore(boolean retaining) {
+      this.retaining = retaining;
+    }
+
+    @Override
+    public RetainedSecrets getRetainedSecrets(String number, byte[] zid) {
+      return new RetainedSecrets(rs1, rs2);
+    }
+
+    @Override
+    public void setRetainedSecret(String number, byte[] zid, byte[] rs1,
+                                  long expiration, boolean continuity)
+    {
+      if (retaining) {
+        this.rs2 = this.rs1;
+        this.rs1 = rs1;
+      }
+    }
+  }
+
+}
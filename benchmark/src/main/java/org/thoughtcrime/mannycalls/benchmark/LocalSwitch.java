@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.benchmark;
+
+import org.thoughtcrime.mannycalls.signaling.SessionDescriptor;
+import org.thoughtcrime.mannycalls.signaling.SignalFrame;
+import org.thoughtcrime.mannycalls.signaling.SignalParser;
+import org.thoughtcrime.mannycalls.signaling.SignalingException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A stand-in for the switch's end of one signaling connection, with no
+ * sockets: the bytes a client writes go in through receive(), and what
+ * the switch writes back comes out.  It speaks text, or frames once the
+ * client has offered them, and answers the requests a call makes: call
+ * initiation, RING, BUSY, hangup, and the directory.  Authorization
+ * isn't checked.  The client's answers to pushed signals are kept, for
+ * takePushStatus().
+ */
+public class LocalSwitch {
+
+  public static final int DIRECTORY_HASH_COUNT = 20;
+
+  private final SignalParser parser = new SignalParser();
+  private final boolean      acceptFrames;
+  private final byte[]       directory;
+
+  private final LinkedBlockingQueue<Integer> pushStatuses = new LinkedBlockingQueue<Integer>();
+
+  private boolean frames;
+  private long    nextSessionId = 1000;
+
+  /**
+   * @param acceptFrames whether to take up a client's offer of frames.
+   * @param directory the filter to answer directory requests with.
+   */
+  public LocalSwitch(boolean acceptFrames, byte[] directory) {
+    this.acceptFrames = acceptFrames;
+    this.directory    = directory;
+  }
+
+  public boolean isSendingFrames() {
+    return frames;
+  }
+
+  /**
+   * @return the responses to every request completed by these bytes.
+   */
+  public byte[] receive(byte[] data) throws SignalingException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    parser.write(data, 0, data.length);
+
+    while (parser.next()) {
+      if (parser.isResponse()) {
+        pushStatuses.add(parser.getStatusCode());
+        continue;
+      }
+
+      if (!frames && acceptFrames && SignalFrame.OFFER_VALUE.equals(parser.getHeader(SignalFrame.OFFER_HEADER)))
+        frames = true;
+
+      write(out, respond());
+    }
+
+    return out.toByteArray();
+  }
+
+  /**
+   * @return a signal from the switch, such as "RING" to "/session/1000".
+   */
+  public byte[] push(String method, String target) {
+    if (frames) {
+      return SignalFrame.encodeRequest(method, target, null, null, null, -1, null);
+    }
+
+    return getBytes(method + " " + target + " HTTP/1.0\r\nContent-Length: 0\r\n\r\n");
+  }
+
+  /**
+   * @return the status the client answered the oldest unclaimed pushed
+   * signal with, or null if none arrives in time.
+   */
+  public Integer takePushStatus(long timeoutMillis) throws InterruptedException {
+    return pushStatuses.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private byte[] respond() {
+    String target = parser.getTarget();
+
+    if (parser.isMethod("GET") && target.startsWith("/session/1/")) {
+      SessionDescriptor session = new SessionDescriptor("relay1", 31340, nextSessionId++, 1);
+
+      if (frames) return SignalFrame.encodeResponse(200, null, null, session);
+      else        return textResponse(200, "OK", null, getBytes(toJson(session)));
+    }
+
+    if (parser.isMethod("GET") && target.equals("/users/directory")) {
+      Map<String, String> headers = new HashMap<String, String>();
+      headers.put("X-Hash-Count", String.valueOf(DIRECTORY_HASH_COUNT));
+
+      if (frames) return SignalFrame.encodeResponse(200, headers, directory, null);
+      else        return textResponse(200, "OK", headers, directory);
+    }
+
+    if (target.startsWith("/session/") || target.startsWith("/gcm/")) {
+      if (frames) return SignalFrame.encodeResponse(200, null, null, null);
+      else        return textResponse(200, "OK", null, null);
+    }
+
+    if (frames) return SignalFrame.encodeResponse(404, null, null, null);
+    else        return textResponse(404, "Not Found", null, null);
+  }
+
+  private static byte[] textResponse(int status, String reason, Map<String, String> headers, byte[] body) {
+    StringBuilder response = new StringBuilder();
+    response.append("HTTP/1.0 ").append(status).append(' ').append(reason).append("\r\n");
+
+    if (headers != null) {
+      for (Map.Entry<String, String> header : headers.entrySet()) {
+        response.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+      }
+    }
+
+    response.append("Content-Length: ").append(body == null ? 0 : body.length).append("\r\n\r\n");
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    write(out, getBytes(response.toString()));
+
+    if (body != null) write(out, body);
+
+    return out.toByteArray();
+  }
+
+  // What the switch's JSON encoder writes for a SessionDescriptor.
+  private static String toJson(SessionDescriptor session) {
+    return "{\"relayPort\":" + session.relayPort + "," +
+           "\"sessionId\":" + session.sessionId + "," +
+           "\"serverName\":\"" + session.serverName + "\"," +
+           "\"version\":" + session.version + "}";
+  }
+
+  private static void write(ByteArrayOutputStream out, byte[] bytes) {
+    out.write(bytes, 0, bytes.length);
+  }
+
+  private static byte[] getBytes(String value) {
+    try {
+      return value.getBytes("UTF8");
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.benchmark;
+
+import android.content.Context;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.thoughtcrime.mannycalls.signaling.OtpCounterProvider;
+import org.thoughtcrime.mannycalls.signaling.SignalingException;
+import org.thoughtcrime.mannycalls.signaling.signals.RingingSignal;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the OTP counter adds to call setup: each side puts one counted
+ * signal on the critical path (initiate for the caller, ringing for the
+ * callee), and this builds the callee's.  commitMillis is how long a
+ * durable SharedPreferences write takes, from fast storage to slow,
+ * worn flash.  A lease size of one is a commit per signal; sampling
+ * shows both the typical signal and the one in each block that commits.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class OtpCounterBenchmark {
+
+  @Param({"1", "64"})
+  public int leaseSize;
+
+  @Param({"0", "10", "50"})
+  public long commitMillis;
+
+  private Context            context;
+  private OtpCounterProvider counterProvider;
+
+  @Setup
+  public void setup() {
+    context         = new Context(commitMillis);
+    counterProvider = new OtpCounterProvider(leaseSize);
+  }
+
+  @Benchmark
+  public String ringingSignal() throws SignalingException {
+    return new RingingSignal("+14155550100", "password",
+                             counterProvider.getOtpCounter(context), 1000).serialize();
+  }
+
+}
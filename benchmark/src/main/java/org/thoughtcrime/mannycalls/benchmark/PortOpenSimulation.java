@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.benchmark;
+
+import org.thoughtcrime.mannycalls.network.ImpairmentModel;
+import org.thoughtcrime.mannycalls.network.ImpairmentProfile;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Time to open the relay port, from the first hello signal to the first
+ * 200, over simulated paths from the impairment model across a range of
+ * round trip times and loss rates:
+ *
+ *   ./gradlew :benchmark:portOpenSimulation
+ *
+ * "sequential" is one socket at a time, each waiting 1, 2, 4, 8 then 10
+ * seconds for its answer before the next starts, as NetworkConnector
+ * used to.  "parallel" is NetworkConnector's three sockets, each
+ * resending on a timeout doubling from 1 to 4 seconds and taking any 200
+ * that arrives while it waits, the next joining in when the last one's
+ * first signal times out.  Both give up after 25 seconds.  "sockets" is
+ * how many sockets the relay could have bound before the first 200.
+ */
+public class PortOpenSimulation {
+
+  private static final int[]    RTT_MILLIS      = {50, 150, 300};
+  private static final double[] LOSS            = {0, 0.05, 0.15, 0.3};
+  private static final int      RUNS            = 2000;
+  private static final int      PROBE_LENGTH    = 60;
+  private static final int      RESPONSE_LENGTH = 40;
+
+  private static final int[] SEQUENTIAL_TIMEOUT_MILLIS = {1000, 2000, 4000, 8000, 10000};
+
+  private static final int SOCKET_COUNT         = 3;
+  private static final int FIRST_TIMEOUT_MILLIS = 1000;
+  private static final int MAX_TIMEOUT_MILLIS   = 4000;
+  private static final int OPEN_TIMEOUT_MILLIS  = 25000;
+
+  public static void main(String[] args) {
+    System.out.printf("%8s %6s %-10s %9s %9s %9s %9s %9s %9s%n", "rtt_ms", "loss", "probes",
+                      "mean_ms", "p50_ms", "p95_ms", "sent", "sockets", "failures");
+
+    for (int rtt : RTT_MILLIS) {
+      for (double loss : LOSS) {
+        for (boolean parallel : new boolean[] {false, true}) {
+          report(rtt, loss, parallel);
+        }
+      }
+    }
+  }
+
+  private static void report(int rtt, double loss, boolean parallel) {
+    long[] opened    = new long[RUNS];
+    int    completed = 0;
+    long   sent      = 0;
+    long   sockets   = 0;
+
+    for (int seed=0;seed<RUNS;seed++) {
+      String spec = "seed=" + seed + ",delay=" + (rtt / 2) + ",jitter=" + (rtt / 10) + ",loss=" + loss;
+      Path   path = new Path(ImpairmentProfile.parse(spec));
+
+      long millis = parallel ? openParallel(path) : openSequential(path);
+      sent    += path.sent;
+      sockets += path.sockets;
+
+      if (millis >= 0) opened[completed++] = millis;
+    }
+
+    long[] times = Arrays.copyOf(opened, completed);
+    Arrays.sort(times);
+
+    long sum = 0;
+    for (long time : times) sum += time;
+
+    System.out.printf("%8d %6.2f %-10s %9.1f %9d %9d %9.2f %9.2f %9d%n", rtt, loss,
+                      parallel ? "parallel" : "sequential",
+                      completed == 0 ? 0.0 : (double)sum / completed,
+                      percentile(times, 0.50), percentile(times, 0.95),
+                      (double)sent / RUNS, (double)sockets / RUNS, RUNS - completed);
+  }
+
+  // Milliseconds to the first 200, or -1 if every attempt timed out.
+  private static long openSequential(Path path) {
+    long start = 0;
+
+    for (int timeout : SEQUENTIAL_TIMEOUT_MILLIS) {
+      long answered = path.probe(start);
+      path.sockets++;
+
+      if (answered < start + timeout) return answered;
+
+      start += timeout;
+    }
+
+    return -1;
+  }
+
+  // Every socket's first timeout is FIRST_TIMEOUT_MILLIS, so the next one
+  // joins in that long after the last started.
+  private static long openParallel(Path path) {
+    List<Long> probes = new ArrayList<Long>();
+
+    for (int socket=0;socket<SOCKET_COUNT;socket++) {
+      long time    = socket * FIRST_TIMEOUT_MILLIS;
+      int  timeout = FIRST_TIMEOUT_MILLIS;
+
+      while (time < OPEN_TIMEOUT_MILLIS) {
+        probes.add(time);
+        time   += timeout;
+        timeout = Math.min(timeout * 2, MAX_TIMEOUT_MILLIS);
+      }
+    }
+
+    Collections.sort(probes);
+
+    long answered = Long.MAX_VALUE;
+
+    for (long time : probes) {
+      if (time >= answered) break;
+      answered = Math.min(answered, path.probe(time));
+    }
+
+    for (int socket=0;socket<SOCKET_COUNT;socket++) {
+      if (socket * FIRST_TIMEOUT_MILLIS < answered) path.sockets++;
+    }
+
+    return answered < OPEN_TIMEOUT_MILLIS ? answered : -1;
+  }
+
+  private static long percentile(long[] sorted, double fraction) {
+    if (sorted.length == 0) return 0;
+    return sorted[Math.min(sorted.length - 1, (int)(fraction * sorted.length))];
+  }
+
+  private static class Path {
+    private final ImpairmentModel outbound;
+    private final ImpairmentModel inbound;
+
+    int sent;
+    int sockets;
+
+    Path(ImpairmentProfile profile) {
+      this.outbound = new ImpairmentModel(profile, 0);
+      this.inbound  = new ImpairmentModel(profile, 1);
+    }
+
+    // When the first 200 to a hello signal sent at millis arrives, if ever.
+    long probe(long millis) {
+      long answered = Long.MAX_VALUE;
+
+      sent++;
+
+      for (long delivery : outbound.schedule(millis * 1000, PROBE_LENGTH)) {
+        for (long response : inbound.schedule(delivery, RESPONSE_LENGTH)) {
+          answered = Math.min(answered, response / 1000);
+        }
+      }
+
+      return answered;
+    }
+  }
+}
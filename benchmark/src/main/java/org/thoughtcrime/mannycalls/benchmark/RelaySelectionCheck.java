@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.benchmark;
+
+import org.thoughtcrime.mannycalls.network.ImpairmentProfile;
+import org.thoughtcrime.mannycalls.network.ImpairmentProxy;
+import org.thoughtcrime.mannycalls.signaling.RelayProber;
+import org.thoughtcrime.mannycalls.signaling.SignalParser;
+import org.thoughtcrime.mannycalls.signaling.SignalingException;
+import org.thoughtcrime.mannycalls.signaling.signals.Signal;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs RelayProber against local stand-in relays, each an echo of the
+ * ping signal behind an ImpairmentProxy, and checks that it ranks them
+ * as their paths deserve:
+ *
+ *   ./gradlew :benchmark:relaySelectionCheck
+ *
+ * "near" and "far" differ only in delay, "lossy" is as near as "near" but
+ * drops a third of the datagrams each way, and "dead" has nothing
+ * listening.  "new" is listed by the switch as a candidate after the
+ * probing, so it ranks after every relay that answered and before one
+ * that didn't.
+ * The check also makes sure the initiator's relay preference gets to the
+ * switch in both signaling protocols.
+ */
+public class RelaySelectionCheck {
+
+  private static final String[][] RELAYS = {{"near",  "seed=1,delay=10,jitter=4"},
+                                            {"far",   "seed=2,delay=60,jitter=10"},
+                                            {"lossy", "seed=3,delay=10,jitter=4,loss=0.33"}};
+
+  private static final int ROUNDS = 3;
+
+  private static final byte[] PONG = "HTTP/1.0 200 OK\r\nContent-Length: 0\r\n\r\n".getBytes();
+
+  public static void main(String[] args) throws IOException, SignalingException {
+    final Map<String, InetSocketAddress> addresses = new HashMap<String, InetSocketAddress>();
+    List<StandInRelay>                   standIns  = new LinkedList<StandInRelay>();
+    List<ImpairmentProxy>                proxies   = new LinkedList<ImpairmentProxy>();
+
+    for (String[] relay : RELAYS) {
+      StandInRelay    standIn = new StandInRelay();
+      ImpairmentProxy proxy   = new ImpairmentProxy(standIn.getAddress(),
+                                                    ImpairmentProfile.parse(relay[1]));
+
+      standIn.start();
+      proxy.start();
+
+      standIns.add(standIn);
+      proxies.add(proxy);
+      addresses.put(relay[0], new InetSocketAddress("127.0.0.1", proxy.getLocalPort()));
+    }
+
+    DatagramSocket closed = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+    addresses.put("dead", (InetSocketAddress)closed.getLocalSocketAddress());
+    closed.close();
+
+    RelayProber prober = new RelayProber() {
+      @Override
+      protected InetSocketAddress getProbeAddress(String serverName) {
+        return addresses.get(serverName);
+      }
+    };
+
+    for (String serverName : new String[] {"dead", "lossy", "far", "near"}) {
+      prober.addRelay(serverName);
+    }
+
+    for (int i=0;i<ROUNDS;i++) {
+      prober.probeAll();
+    }
+
+    prober.addRelays("dead, new,lossy");
+
+    List<String> sorted = prober.getRanking();
+
+    System.out.printf("%-8s %9s%n", "relay", "score_ms");
+
+    for (String serverName : sorted) {
+      double score = prober.getScore(serverName);
+      System.out.printf("%-8s %9s%n", serverName, score < 0 ? "-" : String.format("%.1f", score));
+    }
+
+    for (ImpairmentProxy proxy : proxies) proxy.stop();
+    for (StandInRelay standIn : standIns) standIn.stop();
+
+    String preference = prober.getPreference();
+    System.out.println("Preference: " + preference);
+
+    boolean passed = true;
+
+    passed &= check("ranking", sorted.toString(), "[near, far, lossy, new, dead]");
+    passed &= check("preference", preference, "near,far,lossy");
+    passed &= check("text header", getTextPreference(preference), preference);
+    passed &= check("frame header", getFramePreference(preference), preference);
+
+    if (!passed) System.exit(1);
+  }
+
+  private static boolean check(String name, String actual, String expected) {
+    if (expected.equals(actual)) return true;
+
+    System.out.println("FAILED " + name + ": " + actual + ", expected " + expected);
+    return false;
+  }
+
+  private static String getTextPreference(String preference) throws SignalingException {
+    SignalParser parser = new SignalParser();
+    byte[]       signal = new PreferenceSignal(preference).serialize().getBytes();
+
+    parser.write(signal, 0, signal.length);
+    parser.next();
+
+    return parser.getHeader(RelayProber.RELAY_PREFERENCE_HEADER);
+  }
+
+  private static String getFramePreference(String preference) throws SignalingException {
+    SignalParser parser = new SignalParser();
+    byte[]       signal = new PreferenceSignal(preference).serializeFrame();
+
+    parser.write(signal, 0, signal.length);
+    parser.next();
+
+    return parser.getHeader(RelayProber.RELAY_PREFERENCE_HEADER);
+  }
+
+  /**
+   * The headers of an InitiateSignal with a relay preference, without its
+   * number formatting, which needs libphonenumber.
+   */
+  private static class PreferenceSignal extends Signal {
+
+    private final String preference;
+
+    PreferenceSignal(String preference) {
+      super("+14155550100", "password", 1234);
+      this.preference = preference;
+    }
+
+    @Override
+    protected String getMethod() {
+      return "GET";
+    }
+
+    @Override
+    protected String getLocation() {
+      return "/session/1/+14155550101";
+    }
+
+    @Override
+    protected String getBody() {
+      return null;
+    }
+
+    @Override
+    protected Map<String, String> getHeaders() {
+      return Collections.singletonMap(RelayProber.RELAY_PREFERENCE_HEADER, preference);
+    }
+  }
+
+  private static class StandInRelay implements Runnable {
+    private final DatagramSocket socket;
+    private final Thread         thread;
+
+    public StandInRelay() throws IOException {
+      this.socket = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+      this.thread = new Thread(this, "StandInRelay");
+    }
+
+    public InetSocketAddress getAddress() {
+      return (InetSocketAddress)socket.getLocalSocketAddress();
+    }
+
+    public void start() {
+      thread.start();
+    }
+
+    public void stop() {
+      socket.close();
+    }
+
+    @Override
+    public void run() {
+      byte[] buffer = new byte[1024];
+
+      try {
+        while (true) {
+          DatagramPacket ping = new DatagramPacket(buffer, buffer.length);
+          socket.receive(ping);
+          socket.send(new DatagramPacket(PONG, PONG.length, ping.getSocketAddress()));
+        }
+      } catch (IOException e) {
+        // Stopped.
+      }
+    }
+  }
+}
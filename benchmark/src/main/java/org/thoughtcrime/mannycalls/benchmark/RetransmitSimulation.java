@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.benchmark;
+
+import org.thoughtcrime.mannycalls.crypto.zrtp.RetransmitTimer;
+import org.thoughtcrime.mannycalls.network.ImpairmentModel;
+import org.thoughtcrime.mannycalls.network.ImpairmentProfile;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * Compares ZRTP handshake completion time with the fixed and the
+ * RTT-adaptive retransmit timer, over simulated paths from the impairment
+ * model across a range of round trip times and loss rates:
+ *
+ *   ./gradlew :benchmark:retransmitSimulation
+ *
+ * The handshake is modelled as its message chain, each message sent by
+ * one side on receiving the previous one from the other, with each side
+ * retransmitting its last message on timeout just as ZRTPSocket does.
+ * It completes when the responder receives Confirm2, at which point both
+ * sides have keys.  Key agreement costs each side KEY_AGREEMENT_MILLIS
+ * before it can send DH Part 2 or Confirm1.
+ *
+ * A retransmit counts as spurious when an earlier copy of the same
+ * message reached the peer anyway, so it only cost bandwidth.
+ */
+public class RetransmitSimulation {
+
+  private static final String[] MESSAGES = {"Hello(R)", "Hello(I)", "HelloACK", "Commit",
+                                            "DHPart1", "DHPart2", "Confirm1", "Confirm2"};
+
+  private static final int[]    RTT_MILLIS           = {20, 100, 300, 600};
+  private static final double[] LOSS                 = {0, 0.05, 0.15};
+  private static final int      RUNS                 = 500;
+  private static final int      KEY_AGREEMENT_MILLIS = 20;
+  private static final int      MAX_RETRANSMIT_COUNT = 45;
+  private static final int      PACKET_LENGTH        = 200;
+
+  public static void main(String[] args) {
+    System.out.printf("%8s %6s %-8s %9s %9s %9s %12s %9s %9s%n", "rtt_ms", "loss", "timer",
+                      "mean_ms", "p50_ms", "p95_ms", "retransmits", "spurious", "failures");
+
+    for (int rtt : RTT_MILLIS) {
+      for (double loss : LOSS) {
+        for (boolean adaptive : new boolean[] {false, true}) {
+          report(rtt, loss, adaptive);
+        }
+      }
+    }
+  }
+
+  private static void report(int rtt, double loss, boolean adaptive) {
+    long[] completion  = new long[RUNS];
+    int    completed   = 0;
+    long   retransmits = 0;
+    long   spurious    = 0;
+
+    for (int seed=0;seed<RUNS;seed++) {
+      String spec = "seed=" + seed + ",delay=" + (rtt / 2) + ",jitter=" + (rtt / 10) + ",loss=" + loss;
+      Run    run  = new Run(ImpairmentProfile.parse(spec), adaptive);
+
+      long millis = run.complete();
+      retransmits += run.retransmits;
+      spurious    += run.spurious;
+
+      if (millis >= 0) completion[completed++] = millis;
+    }
+
+    long[] times = Arrays.copyOf(completion, completed);
+    Arrays.sort(times);
+
+    long sum = 0;
+    for (long time : times) sum += time;
+
+    System.out.printf("%8d %6.2f %-8s %9.1f %9d %9d %12.2f %9.2f %9d%n", rtt, loss,
+                      adaptive ? "adaptive" : "fixed",
+                      completed == 0 ? 0.0 : (double)sum / completed,
+                      percentile(times, 0.50), percentile(times, 0.95),
+                      (double)retransmits / RUNS, (double)spurious / RUNS, RUNS - completed);
+  }
+
+  private static long percentile(long[] sorted, double fraction) {
+    if (sorted.length == 0) return 0;
+    return sorted[Math.min(sorted.length - 1, (int)(fraction * sorted.length))];
+  }
+
+  private static class Event implements Comparable<Event> {
+    final long    micros;
+    final long    order;
+    final Party   party;
+    final int     message;
+    final int     timerGeneration;
+
+    Event(long micros, long order, Party party, int message, int timerGeneration) {
+      this.micros          = micros;
+      this.order           = order;
+      this.party           = party;
+      this.message         = message;
+      this.timerGeneration = timerGeneration;
+    }
+
+    @Override
+    public int compareTo(Event other) {
+      if (micros != other.micros) return micros < other.micros ? -1 : 1;
+      return order < other.order ? -1 : (order == other.order ? 0 : 1);
+    }
+  }
+
+  private static class Party {
+    final RetransmitTimer timer;
+    final ImpairmentModel outbound;
+    Party                 peer;
+
+    int     expected;
+    int     lastSent        = -1;
+    int     retransmitCount;
+    int     timerGeneration;
+    boolean lastDelivered;
+
+    Party(RetransmitTimer timer, ImpairmentModel outbound, int expected) {
+      this.timer    = timer;
+      this.outbound = outbound;
+      this.expected = expected;
+    }
+  }
+
+  private static class Run {
+    private final PriorityQueue<Event> events = new PriorityQueue<Event>();
+    private final Party                responder;
+    private final Party                initiator;
+
+    private long order;
+    int          retransmits;
+    int          spurious;
+
+    Run(ImpairmentProfile profile, boolean adaptive) {
+      responder      = new Party(new RetransmitTimer(adaptive), new ImpairmentModel(profile, 0), 1);
+      initiator      = new Party(new RetransmitTimer(adaptive), new ImpairmentModel(profile, 1), 0);
+      responder.peer = initiator;
+      initiator.peer = responder;
+    }
+
+    /**
+     * @return the completion time in milliseconds, or -1 if a side gave up.
+     */
+    long complete() {
+      send(responder, 0, 0, false);
+
+      while (!events.isEmpty()) {
+        Event event = events.poll();
+        Party party = event.party;
+
+        if (event.message >= 0) {
+          if (event.message != party.expected) continue;
+
+          if (isImmediateResponse(event.message)) {
+            party.timer.acknowledged(event.micros / 1000);
+          }
+
+          if (event.message == MESSAGES.length - 1) {
+            return event.micros / 1000;
+          }
+
+          long processing = isAfterKeyAgreement(event.message + 1) ? KEY_AGREEMENT_MILLIS * 1000L : 0;
+
+          party.expected += 2;
+          send(party, event.message + 1, event.micros + processing, false);
+        } else if (event.timerGeneration == party.timerGeneration) {
+          if (party.retransmitCount++ > MAX_RETRANSMIT_COUNT) return -1;
+
+          retransmits++;
+          if (party.lastDelivered) spurious++;
+
+          send(party, party.lastSent, event.micros, true);
+        }
+      }
+
+      return -1;
+    }
+
+    private void send(Party party, int message, long micros, boolean retransmit) {
+      if (retransmit) {
+        party.timer.retransmitted(micros / 1000);
+      } else {
+        party.timer.sent(micros / 1000);
+        party.retransmitCount = 0;
+        party.lastDelivered   = false;
+      }
+
+      party.lastSent = message;
+
+      for (long delivery : party.outbound.schedule(micros, PACKET_LENGTH)) {
+        events.add(new Event(delivery, order++, party.peer, message, 0));
+        party.lastDelivered = true;
+      }
+
+      events.add(new Event(micros + party.timer.getInterval() * 1000L, order++, party, -1,
+                           ++party.timerGeneration));
+    }
+
+    // Mirrors ZRTPHandshake.isImmediateResponse()
+    private static boolean isImmediateResponse(int message) {
+      return !isAfterKeyAgreement(message);
+    }
+
+    private static boolean isAfterKeyAgreement(int message) {
+      return MESSAGES[message].equals("DHPart2") || MESSAGES[message].equals("Confirm1");
+    }
+  }
+
+}
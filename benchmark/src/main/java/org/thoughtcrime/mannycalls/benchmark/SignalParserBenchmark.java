@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.thoughtcrime.mannycalls.signaling.SignalParser;
+import org.thoughtcrime.mannycalls.signaling.SignalingException;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing what the switch sends down the signaling connection: a large
+ * directory response arriving a TLS record at a time, and a burst of
+ * signals that were queued behind each other while the connection was
+ * busy.  One parser is reused throughout, as it is for the life of a
+ * connection.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class SignalParserBenchmark {
+
+  private static final int RECORD_BYTES = 16 * 1024;
+
+  @Param({"65536", "1048576"})
+  public int directoryBytes;
+
+  @Param({"100"})
+  public int signalCount;
+
+  private final SignalParser parser = new SignalParser();
+
+  private byte[] directoryResponse;
+  private byte[] signalBurst;
+
+  @Setup
+  public void setup() throws Exception {
+    byte[] filter = new byte[directoryBytes];
+    new Random(42).nextBytes(filter);
+
+    ByteArrayOutputStream response = new ByteArrayOutputStream();
+    response.write(("HTTP/1.0 200 OK\r\n" +
+                    "X-Hash-Count: 20\r\n" +
+                    "Content-Length: " + filter.length + "\r\n" +
+                    "\r\n").getBytes("UTF8"));
+    response.write(filter);
+
+    directoryResponse = response.toByteArray();
+
+    ByteArrayOutputStream burst = new ByteArrayOutputStream();
+
+    for (int i=0;i<signalCount;i++) {
+      String signal = (i % 2 == 0 ? "RING /session/" + (1000 + i) : "GET /keepalive") + " HTTP/1.0\r\n" +
+                      "Content-Length: 0\r\n" +
+                      "\r\n";
+
+      burst.write(signal.getBytes("UTF8"));
+    }
+
+    signalBurst = burst.toByteArray();
+  }
+
+  @Benchmark
+  public byte[] directoryResponse() throws SignalingException {
+    for (int i=0;i<directoryResponse.length;i+=RECORD_BYTES) {
+      parser.write(directoryResponse, i, Math.min(RECORD_BYTES, directoryResponse.length - i));
+    }
+
+    if (!parser.next() || parser.getStatusCode() != 200 || parser.getHeader("X-Hash-Count") == null)
+      throw new AssertionError("Bad directory response");
+
+    return parser.getBody();
+  }
+
+  @Benchmark
+  public int pipelinedSignals() throws SignalingException {
+    int rings = 0;
+
+    parser.write(signalBurst, 0, signalBurst.length);
+
+    while (parser.next()) {
+      if (parser.isMethod("RING")) {
+        rings++;
+        parser.getTarget();
+      }
+    }
+
+    return rings;
+  }
+
+}
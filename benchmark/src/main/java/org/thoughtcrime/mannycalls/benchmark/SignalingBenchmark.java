@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.benchmark;
+
+import android.content.Context;
+import android.preference.PreferenceManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.thoughtcrime.mannycalls.Constants;
+import org.thoughtcrime.mannycalls.crypto.EncryptedSignalMessage;
+import org.thoughtcrime.mannycalls.crypto.InvalidEncryptedSignalException;
+import org.thoughtcrime.mannycalls.signaling.SignalParser;
+import org.thoughtcrime.mannycalls.signaling.SignalingException;
+import org.thoughtcrime.mannycalls.signaling.signals.RingingSignal;
+import org.thoughtcrime.mannycalls.signaling.signals.Signal;
+import org.thoughtcrime.mannycalls.sms.WirePrefix;
+import org.thoughtcrime.mannycalls.util.Base64;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The work done on an incoming call before any network I/O: recognizing
+ * and decrypting the push message, and building and parsing the signals
+ * exchanged with the switch.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class SignalingBenchmark {
+
+  private static final String RESPONSE = "HTTP/1.0 200 OK\r\n" +
+                                         "Content-Length: 0\r\n" +
+                                         "\r\n";
+
+  private String callMessage;
+  private byte[] pushBytes;
+  private String pushMessage;
+  private byte[] responseBytes;
+  private Signal signal;
+
+  private EncryptedSignalMessage encryptedSignal;
+
+  @Setup
+  public void setup() throws Exception {
+    SecureRandom random      = new SecureRandom();
+    byte[]       combinedKey = new byte[40];
+    byte[]       cipherKey   = new byte[16];
+    byte[]       macKey      = new byte[20];
+    byte[]       iv          = new byte[16];
+
+    random.nextBytes(combinedKey);
+    random.nextBytes(iv);
+
+    System.arraycopy(combinedKey, 0, cipherKey, 0, cipherKey.length);
+    System.arraycopy(combinedKey, cipherKey.length, macKey, 0, macKey.length);
+
+    pushBytes   = new byte[120];
+    random.nextBytes(pushBytes);
+    pushMessage = Base64.encodeBytes(pushBytes);
+    callMessage = WirePrefix.calculateCallPrefix(pushMessage) + pushMessage;
+
+    Context context = new Context();
+    PreferenceManager.getDefaultSharedPreferences(context).edit()
+                     .putString(Constants.KEY_PREFERENCE, Base64.encodeBytes(combinedKey))
+                     .commit();
+
+    encryptedSignal = new EncryptedSignalMessage(context, encrypt(cipherKey, macKey, iv, pushBytes));
+    responseBytes   = RESPONSE.getBytes("UTF8");
+    signal          = new RingingSignal("+14155550100", "password", 1234, 5678);
+  }
+
+  // The inverse of EncryptedSignalMessage: version, IV, AES-CBC ciphertext,
+  // and the trailing 10 bytes of an HMAC-SHA1 over all of that.
+  private static String encrypt(byte[] cipherKey, byte[] macKey, byte[] iv, byte[] plaintext)
+      throws Exception
+  {
+    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
+
+    byte[] ciphertext = cipher.doFinal(plaintext);
+    byte[] message    = new byte[1 + iv.length + ciphertext.length + 10];
+
+    System.arraycopy(iv, 0, message, 1, iv.length);
+    System.arraycopy(ciphertext, 0, message, 1 + iv.length, ciphertext.length);
+
+    Mac mac = Mac.getInstance("HmacSHA1");
+    mac.init(new SecretKeySpec(macKey, "HmacSHA1"));
+    mac.update(message, 0, message.length - 10);
+
+    System.arraycopy(mac.doFinal(), 10, message, message.length - 10, 10);
+
+    return Base64.encodeBytes(message);
+  }
+
+  @Benchmark
+  public boolean wirePrefixIsCall() {
+    return WirePrefix.isCall(callMessage);
+  }
+
+  @Benchmark
+  public byte[] encryptedSignalPlaintext() throws InvalidEncryptedSignalException {
+    return encryptedSignal.getPlaintext();
+  }
+
+  @Benchmark
+  public String base64Encode() {
+    return Base64.encodeBytes(pushBytes);
+  }
+
+  @Benchmark
+  public byte[] base64Decode() throws IOException {
+    return Base64.decode(pushMessage);
+  }
+
+  @Benchmark
+  public String signalSerialize() {
+    return signal.serialize();
+  }
+
+  @Benchmark
+  public int signalParserResponse() throws SignalingException {
+    SignalParser parser = new SignalParser();
+    parser.write(responseBytes, 0, responseBytes.length);
+    parser.next();
+
+    return parser.getStatusCode();
+  }
+
+}
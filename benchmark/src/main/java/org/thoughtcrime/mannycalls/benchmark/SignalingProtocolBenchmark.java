@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.benchmark;
+
+import com.google.thoughtcrimegson.Gson;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.thoughtcrime.mannycalls.signaling.SessionDescriptor;
+import org.thoughtcrime.mannycalls.signaling.SignalParser;
+import org.thoughtcrime.mannycalls.signaling.SignalingException;
+import org.thoughtcrime.mannycalls.signaling.signals.RingingSignal;
+import org.thoughtcrime.mannycalls.signaling.signals.ServerSignal;
+import org.thoughtcrime.mannycalls.signaling.signals.Signal;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The text signaling protocol against the binary one, per signal: what a
+ * client spends encoding a request, and parsing the switch's response to
+ * a call initiation (through to a SessionDescriptor), a plain 200, and a
+ * signal the switch pushes.  The switch's bytes come from LocalSwitch.
+ * SignalingProtocolComparison prints the bytes each takes on the wire.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class SignalingProtocolBenchmark {
+
+  @Param({"text", "frames"})
+  public String protocol;
+
+  private final SignalParser parser = new SignalParser();
+  private final Gson         gson   = new Gson();
+
+  private boolean frames;
+  private Signal  ringing;
+  private byte[]  initiateResponse;
+  private byte[]  okResponse;
+  private byte[]  pushedSignal;
+
+  @Setup
+  public void setup() throws Exception {
+    frames = protocol.equals("frames");
+
+    LocalSwitch localSwitch = new LocalSwitch(true, new byte[0]);
+    Signal      initiate    = new SignalingProtocolComparison.TestInitiateSignal("+14155550100");
+
+    ringing          = new RingingSignal("+14155550100", "password", 1234, 1000);
+    initiateResponse = localSwitch.receive(initiate.serialize(frames).getBytes());
+    okResponse       = localSwitch.receive(serialize(ringing));
+    pushedSignal     = localSwitch.push("RING", "/session/1000");
+  }
+
+  private byte[] serialize(Signal signal) {
+    return frames ? signal.serializeFrame() : signal.serialize().getBytes();
+  }
+
+  @Benchmark
+  public byte[] encodeRequest() {
+    return serialize(ringing);
+  }
+
+  @Benchmark
+  public SessionDescriptor parseInitiateResponse() throws SignalingException {
+    parser.write(initiateResponse, 0, initiateResponse.length);
+    parser.next();
+
+    SessionDescriptor session = parser.getSessionDescriptor();
+
+    if (session == null) {
+      session = gson.fromJson(new String(parser.getBody()), SessionDescriptor.class);
+    }
+
+    return session;
+  }
+
+  @Benchmark
+  public int parseOkResponse() throws SignalingException {
+    parser.write(okResponse, 0, okResponse.length);
+    parser.next();
+
+    return parser.getStatusCode();
+  }
+
+  @Benchmark
+  public ServerSignal parsePushedSignal() throws SignalingException {
+    parser.write(pushedSignal, 0, pushedSignal.length);
+    parser.next();
+
+    return new ServerSignal(parser.getMethod(), parser.getTarget(), parser.getBody());
+  }
+
+}
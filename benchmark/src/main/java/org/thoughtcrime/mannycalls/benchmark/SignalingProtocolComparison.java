@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.benchmark;
+
+import com.google.thoughtcrimegson.Gson;
+
+import org.thoughtcrime.mannycalls.signaling.SessionDescriptor;
+import org.thoughtcrime.mannycalls.signaling.SignalFrame;
+import org.thoughtcrime.mannycalls.signaling.SignalParser;
+import org.thoughtcrime.mannycalls.signaling.SignalingException;
+import org.thoughtcrime.mannycalls.signaling.signals.DirectoryRequestSignal;
+import org.thoughtcrime.mannycalls.signaling.signals.HangupSignal;
+import org.thoughtcrime.mannycalls.signaling.signals.RingingSignal;
+import org.thoughtcrime.mannycalls.signaling.signals.Signal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runs the signaling for one call, and a directory fetch, against a
+ * LocalSwitch in the text protocol and again offering the binary one,
+ * checks that the client sees the same thing both times, and prints the
+ * bytes each exchange put on the wire in each direction.
+ *
+ * The client here encodes and decodes the way SignalingConnection does,
+ * less the TLS, which costs the same either way.
+ */
+public class SignalingProtocolComparison {
+
+  private static final String LOCAL_NUMBER  = "+14155550100";
+  private static final String REMOTE_NUMBER = "+14155550101";
+  private static final String PASSWORD      = "password";
+
+  /**
+   * InitiateSignal without its number formatting, which needs
+   * libphonenumber.
+   */
+  static class TestInitiateSignal extends Signal {
+
+    private final String remoteNumber;
+
+    TestInitiateSignal(String remoteNumber) {
+      super(LOCAL_NUMBER, PASSWORD, 1234);
+      this.remoteNumber = remoteNumber;
+    }
+
+    @Override
+    protected String getMethod() {
+      return "GET";
+    }
+
+    @Override
+    protected String getLocation() {
+      return "/session/1/" + remoteNumber;
+    }
+
+    @Override
+    protected String getBody() {
+      return null;
+    }
+  }
+
+  private static class Client {
+
+    private static final byte[] OK_RESPONSE = "HTTP/1.0 200 OK\r\nContent-Length: 0\r\n\r\n".getBytes();
+    private static final byte[] OK_FRAME    = SignalFrame.encodeResponse(200, null, null, null);
+
+    private final SignalParser parser = new SignalParser();
+    private final Gson         gson   = new Gson();
+    private final boolean      offerFrames;
+
+    private boolean frames;
+
+    Client(boolean offerFrames) {
+      this.offerFrames = offerFrames;
+    }
+
+    byte[] serialize(Signal signal) {
+      return frames ? signal.serializeFrame() : signal.serialize(offerFrames).getBytes();
+    }
+
+    /**
+     * Records what each message means to the client in outcomes, and
+     * returns the client's answers to any signals among them.
+     */
+    byte[] receive(byte[] data, List<String> outcomes) throws SignalingException {
+      byte[] answers = new byte[0];
+
+      parser.write(data, 0, data.length);
+
+      while (parser.next()) {
+        if (offerFrames && parser.isFrame()) frames = true;
+
+        if (parser.isResponse()) {
+          outcomes.add(describeResponse());
+        } else {
+          outcomes.add(parser.getMethod() + " " + parser.getTarget());
+          answers = concat(answers, frames ? OK_FRAME : OK_RESPONSE);
+        }
+      }
+
+      return answers;
+    }
+
+    private String describeResponse() {
+      byte[]            body    = parser.getBody();
+      SessionDescriptor session = parser.getSessionDescriptor();
+
+      if (session == null && body.length > 0 && body[0] == '{') {
+        session = gson.fromJson(new String(body), SessionDescriptor.class);
+      }
+
+      if (session != null) {
+        return parser.getStatusCode() + " session " + session.serverName + ":" + session.relayPort +
+               " id " + session.sessionId + " v" + session.version;
+      }
+
+      String hashCount = parser.getHeader("X-Hash-Count");
+
+      return parser.getStatusCode() + (hashCount == null ? "" : " X-Hash-Count " + hashCount) +
+             (body.length == 0 ? "" : " body " + body.length);
+    }
+  }
+
+  private static class Transcript {
+    final List<String> exchanges = new ArrayList<String>();
+    final List<int[]>  bytes     = new ArrayList<int[]>();
+    final List<String> outcomes  = new ArrayList<String>();
+  }
+
+  private static Transcript run(boolean offerFrames, byte[] directory) throws SignalingException {
+    Transcript  transcript  = new Transcript();
+    Client      client      = new Client(offerFrames);
+    LocalSwitch localSwitch = new LocalSwitch(true, directory);
+
+    request(transcript, "initiate", client, localSwitch, new TestInitiateSignal(REMOTE_NUMBER));
+    push(transcript, "pushed RING", client, localSwitch, "RING", "/session/1000");
+    push(transcript, "pushed keepalive", client, localSwitch, "GET", "/keepalive");
+    request(transcript, "hangup", client, localSwitch, new HangupSignal(LOCAL_NUMBER, PASSWORD, 1235, 1000));
+    request(transcript, "ringing (callee)", client, localSwitch, new RingingSignal(LOCAL_NUMBER, PASSWORD, 1236, 1000));
+    request(transcript, "directory", client, localSwitch, new DirectoryRequestSignal(LOCAL_NUMBER, PASSWORD));
+
+    return transcript;
+  }
+
+  private static void request(Transcript transcript, String name, Client client,
+                              LocalSwitch localSwitch, Signal signal)
+      throws SignalingException
+  {
+    byte[] request  = client.serialize(signal);
+    byte[] response = localSwitch.receive(request);
+
+    client.receive(response, transcript.outcomes);
+
+    transcript.exchanges.add(name);
+    transcript.bytes.add(new int[] {request.length, response.length});
+  }
+
+  private static void push(Transcript transcript, String name, Client client,
+                           LocalSwitch localSwitch, String method, String target)
+      throws SignalingException
+  {
+    byte[] signal = localSwitch.push(method, target);
+    byte[] answer = client.receive(signal, transcript.outcomes);
+
+    localSwitch.receive(answer);
+
+    transcript.exchanges.add(name);
+    transcript.bytes.add(new int[] {answer.length, signal.length});
+  }
+
+  private static byte[] concat(byte[] first, byte[] second) {
+    byte[] joined = new byte[first.length + second.length];
+    System.arraycopy(first, 0, joined, 0, first.length);
+    System.arraycopy(second, 0, joined, first.length, second.length);
+
+    return joined;
+  }
+
+  public static void main(String[] args) throws Exception {
+    byte[] directory = new byte[64 * 1024];
+    new Random(42).nextBytes(directory);
+
+    Transcript text   = run(false, directory);
+    Transcript frames = run(true, directory);
+
+    if (!text.outcomes.equals(frames.outcomes)) {
+      throw new AssertionError("Protocols disagree:\n" + text.outcomes + "\n" + frames.outcomes);
+    }
+
+    System.out.println("Bytes on the wire, client to switch / switch to client (TLS records not included):");
+    System.out.println();
+    System.out.println(String.format("%-20s %15s %15s", "", "text", "frames"));
+
+    int[] textTotal   = new int[2];
+    int[] framesTotal = new int[2];
+
+    for (int i=0;i<text.exchanges.size();i++) {
+      int[] textBytes   = text.bytes.get(i);
+      int[] framesBytes = frames.bytes.get(i);
+
+      System.out.println(String.format("%-20s %7d / %-5d %7d / %-5d", text.exchanges.get(i),
+                                       textBytes[0], textBytes[1], framesBytes[0], framesBytes[1]));
+
+      if (!text.exchanges.get(i).equals("directory")) {
+        textTotal[0]   += textBytes[0];
+        textTotal[1]   += textBytes[1];
+        framesTotal[0] += framesBytes[0];
+        framesTotal[1] += framesBytes[1];
+      }
+    }
+
+    System.out.println(String.format("%-20s %7d / %-5d %7d / %-5d", "call total",
+                                     textTotal[0], textTotal[1], framesTotal[0], framesTotal[1]));
+    System.out.println();
+    System.out.println("The client saw the same responses and signals both ways:");
+
+    for (String outcome : frames.outcomes) {
+      System.out.println("  " + outcome);
+    }
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.benchmark;
+
+import org.thoughtcrime.mannycalls.crypto.zrtp.X25519;
+
+import java.security.PrivateKey;
+
+/**
+ * Checks X25519 against the test vectors in RFC 7748:
+ *
+ *   ./gradlew :benchmark:x25519Check
+ *
+ * The two scalar multiplications of section 5.2, whose input
+ * u-coordinates have the top bit set and so also check that it's
+ * ignored, the same section's iterated vector after 1 and 1000 rounds,
+ * and the Diffie-Hellman exchange between Alice and Bob in section 6.1.
+ */
+public class X25519Check {
+
+  private static final String[][] VECTORS = {
+    {"a546e36bf0527c9d3b16154b82465edd62144c0ac1fc5a18506a2244ba449ac4",
+     "e6db6867583030db3594c1a424b15f7c726624ec26b3353b10a903a6d0ab1c4c",
+     "c3da55379de9c6908e94ea4df28d084f32eccf03491c71f754b4075577a28552"},
+    {"4b66e9d4d1b4673c5ad22691957d6af5c11b6421e0ea01d42ca4169e7918ba0d",
+     "e5210f12786811d3f4b7959d0538ae2c31dbe7106fc03c3efc4cd549c715a493",
+     "95cbde9476e8907d7aade45cb4b873f88b595a68799fa152e6f8f7647aac7957"}
+  };
+
+  private static final String AFTER_ONE      = "422c8e7a6227d7bca1350b3e2bb7279f7897b87bb6854b783c60e80311ae3079";
+  private static final String AFTER_THOUSAND = "684cf59ba83309552800ef566f2f4d3c1c3887c49360e3875f2eb94d99532c51";
+
+  private static final String ALICE_PRIVATE = "77076d0a7318a57d3c16c17251b26645df4c2f87ebc0992ab177fba51db92c2a";
+  private static final String ALICE_PUBLIC  = "8520f0098930a754748b7ddcb43ef75a0dbf3a0d26381af4eba4a98eaa9b4e6a";
+  private static final String BOB_PRIVATE   = "5dab087e624a8a4b79e17f8b83800ee66f3bb1292618b6fd1c2f8b27ff88e0eb";
+  private static final String BOB_PUBLIC    = "de9edb7d7b7dc1b4d35b61c2ece435373f8343c85b78674dadfc7e146f882b4f";
+  private static final String SHARED_SECRET = "4a5d9d5ba4ce2de1728e3bf480350f25e07e21c947d19e3376f09b3c1e161742";
+
+  public static void main(String[] args) {
+    boolean passed = true;
+
+    for (int i=0;i<VECTORS.length;i++) {
+      byte[] output = X25519.scalarMult(fromHex(VECTORS[i][0]), fromHex(VECTORS[i][1]));
+      passed &= check("vector " + (i + 1), toHex(output), VECTORS[i][2]);
+    }
+
+    byte[] k = basePoint();
+    byte[] u = basePoint();
+
+    for (int i=1;i<=1000;i++) {
+      byte[] result = X25519.scalarMult(k, u);
+      u = k;
+      k = result;
+
+      if      (i == 1)    passed &= check("1 iteration", toHex(k), AFTER_ONE);
+      else if (i == 1000) passed &= check("1000 iterations", toHex(k), AFTER_THOUSAND);
+    }
+
+    byte[] alicePrivate = fromHex(ALICE_PRIVATE);
+    byte[] bobPrivate   = fromHex(BOB_PRIVATE);
+
+    passed &= check("Alice's public key", toHex(X25519.scalarMult(alicePrivate, basePoint())), ALICE_PUBLIC);
+    passed &= check("Bob's public key", toHex(X25519.scalarMult(bobPrivate, basePoint())), BOB_PUBLIC);
+    passed &= check("Alice's shared secret",
+                    toHex(X25519.calculateAgreement(new RawPrivateKey(alicePrivate), fromHex(BOB_PUBLIC))),
+                    SHARED_SECRET);
+    passed &= check("Bob's shared secret",
+                    toHex(X25519.calculateAgreement(new RawPrivateKey(bobPrivate), fromHex(ALICE_PUBLIC))),
+                    SHARED_SECRET);
+
+    if (!passed) System.exit(1);
+    System.out.println("All RFC 7748 vectors match.");
+  }
+
+  private static boolean check(String name, String actual, String expected) {
+    if (expected.equals(actual)) return true;
+
+    System.out.println("FAILED " + name + ": " + actual + ", expected " + expected);
+    return false;
+  }
+
+  private static byte[] basePoint() {
+    byte[] point = new byte[X25519.KEY_LENGTH];
+    point[0] = 9;
+    return point;
+  }
+
+  private static byte[] fromHex(String hex) {
+    byte[] bytes = new byte[hex.length() / 2];
+
+    for (int i=0;i<bytes.length;i++) {
+      bytes[i] = (byte)Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+    }
+
+    return bytes;
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder builder = new StringBuilder();
+
+    for (byte b : bytes) {
+      builder.append(String.format("%02x", b & 0xff));
+    }
+
+    return builder.toString();
+  }
+
+  private static class RawPrivateKey implements PrivateKey {
+    private static final long serialVersionUID = 1L;
+
+    private final byte[] key;
+
+    public RawPrivateKey(byte[] key) {
+      this.key = key;
+    }
+
+    @Override
+    public String getAlgorithm() {
+      return "X25519";
+    }
+
+    @Override
+    public String getFormat() {
+      return "RAW";
+    }
+
+    @Override
+    public byte[] getEncoded() {
+      return key;
+    }
+  }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.spongycastle.jce.interfaces.ECPublicKey;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.spongycastle.math.ec.ECPoint;
+import org.thoughtcrime.mannycalls.crypto.zrtp.DH3KSecretCalculator;
+import org.thoughtcrime.mannycalls.crypto.zrtp.EC25SecretCalculator;
+import org.thoughtcrime.mannycalls.crypto.zrtp.HandshakePacket;
+import org.thoughtcrime.mannycalls.crypto.zrtp.HashChain;
+import org.thoughtcrime.mannycalls.crypto.zrtp.HelloPacket;
+import org.thoughtcrime.mannycalls.crypto.zrtp.InvalidPacketException;
+import org.thoughtcrime.mannycalls.crypto.zrtp.MasterSecret;
+import org.thoughtcrime.mannycalls.crypto.zrtp.PresharedSecretCalculator;
+import org.thoughtcrime.mannycalls.crypto.zrtp.SecretCalculator;
+import org.thoughtcrime.mannycalls.crypto.zrtp.X25519;
+import org.thoughtcrime.mannycalls.crypto.zrtp.X255SecretCalculator;
+import org.thoughtcrime.mannycalls.crypto.zrtp.ZRTPMessageType;
+import org.thoughtcrime.mannycalls.util.Conversions;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.spec.ECGenParameterSpec;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.interfaces.DHPublicKey;
+import javax.crypto.spec.DHParameterSpec;
+
+/**
+ * The per-handshake costs of ZRTP: building, parsing, and checking the MAC
+ * and CRC on a handshake packet, the s0 hash, the master secret KDF, and the three
+ * key agreements, and generating the key pairs that KeyPairPool keeps
+ * off the call setup path.
+ *
+ * presharedSecret is everything a preshared mode handshake does in
+ * place of a key generation, key agreement and sharedSecret.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class ZrtpBenchmark {
+
+  private SecureRandom random;
+  private HashChain    hashChain;
+  private byte[]       zid;
+  private HelloPacket  hello;
+
+  private byte[] dhResult;
+  private byte[] totalHash;
+  private byte[] s1;
+  private byte[] zidr;
+  private byte[] sharedSecret;
+
+  private PresharedSecretCalculator presharedCalculator;
+
+  private KeyPairGenerator dh3kGenerator;
+  private SecretCalculator dh3kCalculator;
+  private KeyPair          dh3kKeyPair;
+  private byte[]           dh3kRemotePublicKey;
+
+  private KeyPairGenerator ec25Generator;
+  private SecretCalculator ec25Calculator;
+  private KeyPair          ec25KeyPair;
+  private byte[]           ec25RemotePublicKey;
+
+  private SecretCalculator x255Calculator;
+  private KeyPair          x255KeyPair;
+  private byte[]           x255RemotePublicKey;
+
+  @Setup
+  public void setup() throws Exception {
+    Security.addProvider(new BouncyCastleProvider());
+
+    random = new SecureRandom();
+
+    hashChain = new HashChain();
+    zid       = randomBytes(random, 12);
+    zidr      = randomBytes(random, 12);
+    hello     = new HelloPacket(hashChain, zid, false);
+    hello.setCRC();
+
+    dhResult     = randomBytes(random, 384);
+    totalHash    = randomBytes(random, 32);
+    s1           = randomBytes(random, 32);
+    sharedSecret = new DH3KSecretCalculator().calculateSharedSecret(dhResult, totalHash, s1,
+                                                                    zid, zidr);
+
+    presharedCalculator = new PresharedSecretCalculator();
+
+    dh3kGenerator = KeyPairGenerator.getInstance("DH");
+    dh3kGenerator.initialize(new DHParameterSpec(DH3KSecretCalculator.PRIME,
+                                                 DH3KSecretCalculator.GENERATOR));
+
+    dh3kCalculator      = new DH3KSecretCalculator();
+    dh3kKeyPair         = dh3kGenerator.generateKeyPair();
+    dh3kRemotePublicKey = new byte[384];
+    Conversions.bigIntegerToByteArray(dh3kRemotePublicKey,
+                                      ((DHPublicKey)dh3kGenerator.generateKeyPair().getPublic()).getY());
+
+    ec25Generator = KeyPairGenerator.getInstance("ECDH", "SC");
+    ec25Generator.initialize(new ECGenParameterSpec("secp256r1"));
+
+    ECPoint remotePoint = ((ECPublicKey)ec25Generator.generateKeyPair().getPublic()).getQ();
+    byte[]  x           = new byte[32];
+    byte[]  y           = new byte[32];
+
+    Conversions.bigIntegerToByteArray(x, remotePoint.getX().toBigInteger());
+    Conversions.bigIntegerToByteArray(y, remotePoint.getY().toBigInteger());
+
+    ec25Calculator      = new EC25SecretCalculator();
+    ec25KeyPair         = ec25Generator.generateKeyPair();
+    ec25RemotePublicKey = Conversions.combine(x, y);
+
+    x255Calculator      = new X255SecretCalculator();
+    x255KeyPair         = X25519.generateKeyPair(random);
+    x255RemotePublicKey = X25519.generateKeyPair(random).getPublic().getEncoded();
+  }
+
+  private static byte[] randomBytes(SecureRandom random, int length) {
+    byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  @Benchmark
+  public HelloPacket helloCreate() {
+    HelloPacket packet = new HelloPacket(hashChain, zid, false);
+    packet.setCRC();
+    return packet;
+  }
+
+  @Benchmark
+  public ZRTPMessageType helloParse() {
+    return new HandshakePacket(hello, false).getMessageType();
+  }
+
+  @Benchmark
+  public HelloPacket helloVerifyMac() throws InvalidPacketException {
+    hello.verifyMac(hashChain.getH2());
+    return hello;
+  }
+
+  @Benchmark
+  public void helloSetCrc() {
+    hello.setCRC();
+  }
+
+  @Benchmark
+  public boolean helloVerifyCrc() {
+    return hello.verifyCRC();
+  }
+
+  @Benchmark
+  public byte[] sharedSecret() {
+    return dh3kCalculator.calculateSharedSecret(dhResult, totalHash, s1, zid, zidr);
+  }
+
+  @Benchmark
+  public byte[] presharedSecret(Blackhole blackhole) {
+    byte[] presharedKey = presharedCalculator.calculatePresharedKey(s1);
+    blackhole.consume(presharedCalculator.calculateKeyId(presharedKey));
+
+    return presharedCalculator.calculateSharedSecret(presharedKey, totalHash, zid, zidr);
+  }
+
+  @Benchmark
+  public MasterSecret masterSecretKdf() {
+    return new MasterSecret(sharedSecret, totalHash, zid, zidr);
+  }
+
+  @Benchmark
+  public KeyPair dh3kKeyGeneration() {
+    return dh3kGenerator.generateKeyPair();
+  }
+
+  @Benchmark
+  public KeyPair ec25KeyGeneration() {
+    return ec25Generator.generateKeyPair();
+  }
+
+  @Benchmark
+  public KeyPair x255KeyGeneration() {
+    return X25519.generateKeyPair(random);
+  }
+
+  @Benchmark
+  public byte[] dh3kKeyAgreement() throws InvalidPacketException {
+    return dh3kCalculator.calculateKeyAgreement(dh3kKeyPair, dh3kRemotePublicKey);
+  }
+
+  @Benchmark
+  public byte[] ec25KeyAgreement() throws InvalidPacketException {
+    return ec25Calculator.calculateKeyAgreement(ec25KeyPair, ec25RemotePublicKey);
+  }
+
+  @Benchmark
+  public byte[] x255KeyAgreement() throws InvalidPacketException {
+    return x255Calculator.calculateKeyAgreement(x255KeyPair, x255RemotePublicKey);
+  }
+
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.signaling;
+
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.thoughtcrime.mannycalls.benchmark.LocalSwitch;
+import org.thoughtcrime.mannycalls.signaling.signals.ServerSignal;
+import org.thoughtcrime.mannycalls.signaling.signals.Signal;
+import org.thoughtcrime.mannycalls.util.CallTrace;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.TrustManagerFactory;
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Runs SignalingConnection against a local TLS switch, a LocalSwitch
+ * behind an SSLServerSocket with a self-signed certificate:
+ *
+ *   ./gradlew :benchmark:signalingConnectionCheck
+ *
+ * It checks that a request is answered, that a signal the switch pushes
+ * reaches the listener, or is refused with a 503 while there's none, and
+ * that the switch closing the connection is reported.  Then CONNECTIONS connections handshake at once while one
+ * that's already open keeps sending requests.  Handshakes hand their
+ * SSLEngine tasks to a thread of their own, so those requests shouldn't
+ * wait behind them on the shared I/O thread.
+ *
+ * The class sits in the signaling package because SignalingConnection
+ * isn't public.
+ */
+public class SignalingConnectionCheck {
+
+  private static final String HOST        = "localhost";
+  private static final int    CONNECTIONS = 16;
+  private static final long   SESSION_ID  = 1000;
+
+  public static void main(String[] args) throws Exception {
+    Security.addProvider(new BouncyCastleProvider());
+
+    KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+    keyPairGenerator.initialize(2048);
+
+    KeyPair         keyPair     = keyPairGenerator.generateKeyPair();
+    X509Certificate certificate = createCertificate(keyPair);
+    TlsSwitch       server      = new TlsSwitch(createServerContext(keyPair, certificate));
+    SSLContext      client      = createClientContext(certificate);
+
+    final InetAddress[] addresses = {InetAddress.getByName("127.0.0.1")};
+    final int           port      = server.getPort();
+
+    server.start();
+
+    boolean passed = true;
+
+    SignalingConnection connection = SignalingConnection.open(client, HOST, port, addresses, false, CallTrace.NONE);
+    RecordingListener   listener   = new RecordingListener();
+
+    passed &= check("request", String.valueOf(connection.send(new SessionSignal()).get().getStatusCode()), "200");
+
+    server.getLastConnection().push("RING", "/session/" + SESSION_ID);
+    passed &= check("unheard signal status", String.valueOf(server.getLastConnection().takePushStatus()), "503");
+
+    server.getLastConnection().push("GET", "/keepalive");
+    passed &= check("keep-alive status", String.valueOf(server.getLastConnection().takePushStatus()), "200");
+
+    connection.setListener(listener);
+
+    server.getLastConnection().push("RING", "/session/" + SESSION_ID);
+    passed &= check("pushed signal", listener.poll(), "ringing");
+    passed &= check("pushed signal status", String.valueOf(server.getLastConnection().takePushStatus()), "200");
+
+    server.getLastConnection().close();
+    passed &= check("switch closed", listener.poll(), "closed");
+
+    final SSLContext     concurrentClient = createClientContext(certificate);
+    final List<Long>     handshakes       = Collections.synchronizedList(new ArrayList<Long>());
+    final AtomicInteger  answered         = new AtomicInteger();
+    final CountDownLatch start            = new CountDownLatch(1);
+    final CountDownLatch finished         = new CountDownLatch(CONNECTIONS);
+
+    SignalingConnection pinger = SignalingConnection.open(client, HOST, port, addresses, false, CallTrace.NONE);
+    List<Long>          pings  = new ArrayList<Long>();
+
+    for (int i=0;i<CONNECTIONS;i++) {
+      new Thread("SignalingConnectionCheck " + i) {
+        @Override
+        public void run() {
+          try {
+            start.await();
+
+            SignalingConnection connection = SignalingConnection.open(concurrentClient, HOST, port,
+                                                                      addresses, false, CallTrace.NONE);
+            handshakes.add(connection.getHandshakeMillis());
+
+            if (connection.send(new SessionSignal()).get().getStatusCode() == 200)
+              answered.incrementAndGet();
+
+            connection.close();
+          } catch (Exception e) {
+            e.printStackTrace();
+          } finally {
+            finished.countDown();
+          }
+        }
+      }.start();
+    }
+
+    start.countDown();
+
+    while (finished.getCount() > 0) {
+      long startTime = System.nanoTime();
+      pinger.send(new SessionSignal()).get();
+      pings.add((System.nanoTime() - startTime) / 1000);
+    }
+
+    pinger.close();
+    server.stop();
+
+    Collections.sort(handshakes);
+    Collections.sort(pings);
+
+    System.out.printf("%-24s %9s %9s %9s%n", "", "count", "p50_ms", "max_ms");
+    System.out.printf("%-24s %9d %9d %9d%n", "concurrent handshakes", handshakes.size(),
+                      percentile(handshakes, 0.5), percentile(handshakes, 1));
+    System.out.printf("%-24s %9d %9.2f %9.2f%n", "requests meanwhile", pings.size(),
+                      percentile(pings, 0.5) / 1000.0, percentile(pings, 1) / 1000.0);
+
+    passed &= check("concurrent requests", String.valueOf(answered.get()), String.valueOf(CONNECTIONS));
+
+    if (!passed) System.exit(1);
+  }
+
+  private static boolean check(String name, String actual, String expected) {
+    if (expected.equals(actual)) return true;
+
+    System.out.println("FAILED " + name + ": expected " + expected + ", got " + actual);
+    return false;
+  }
+
+  private static long percentile(List<Long> sorted, double fraction) {
+    if (sorted.isEmpty()) return 0;
+    return sorted.get(Math.min(sorted.size() - 1, (int)(fraction * sorted.size())));
+  }
+
+  @SuppressWarnings("deprecation")
+  private static X509Certificate createCertificate(KeyPair keyPair) throws GeneralSecurityException {
+    org.spongycastle.x509.X509V3CertificateGenerator generator = new org.spongycastle.x509.X509V3CertificateGenerator();
+
+    X500Principal subject = new X500Principal("CN=" + HOST);
+    long          now     = System.currentTimeMillis();
+
+    generator.setSerialNumber(BigInteger.ONE);
+    generator.setIssuerDN(subject);
+    generator.setSubjectDN(subject);
+    generator.setNotBefore(new Date(now - 60 * 1000));
+    generator.setNotAfter(new Date(now + 24 * 60 * 60 * 1000));
+    generator.setPublicKey(keyPair.getPublic());
+    generator.setSignatureAlgorithm("SHA256WithRSAEncryption");
+    generator.addExtension(org.spongycastle.asn1.x509.X509Extensions.BasicConstraints, true,
+                           new org.spongycastle.asn1.x509.BasicConstraints(true));
+
+    return generator.generate(keyPair.getPrivate(), "SC");
+  }
+
+  private static SSLContext createServerContext(KeyPair keyPair, X509Certificate certificate)
+      throws GeneralSecurityException, IOException
+  {
+    char[]   password = "password".toCharArray();
+    KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+
+    keyStore.load(null, null);
+    keyStore.setKeyEntry("switch", keyPair.getPrivate(), password, new X509Certificate[] {certificate});
+
+    KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    keyManagerFactory.init(keyStore, password);
+
+    SSLContext context = SSLContext.getInstance("TLS");
+    context.init(keyManagerFactory.getKeyManagers(), null, null);
+
+    return context;
+  }
+
+  // Trusts only the local switch, as the app trusts only its own store.
+  private static SSLContext createClientContext(X509Certificate certificate)
+      throws GeneralSecurityException, IOException
+  {
+    KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+
+    trustStore.load(null, null);
+    trustStore.setCertificateEntry("switch", certificate);
+
+    TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    trustManagerFactory.init(trustStore);
+
+    SSLContext context = SSLContext.getInstance("TLS");
+    context.init(null, trustManagerFactory.getTrustManagers(), null);
+
+    return context;
+  }
+
+  private static class SessionSignal extends Signal {
+
+    SessionSignal() {
+      super("+14155550100", "password", 1234);
+    }
+
+    @Override
+    protected String getMethod() {
+      return "BUSY";
+    }
+
+    @Override
+    protected String getLocation() {
+      return "/session/" + SESSION_ID;
+    }
+
+    @Override
+    protected String getBody() {
+      return null;
+    }
+  }
+
+  private static class RecordingListener implements ServerSignalListener {
+    private final LinkedBlockingQueue<String> events = new LinkedBlockingQueue<String>();
+
+    @Override
+    public void onServerSignal(ServerSignal signal) {
+      events.add(signal.isRinging(SESSION_ID) ? "ringing" : "other");
+    }
+
+    @Override
+    public void onSignalingClosed(IOException reason) {
+      events.add("closed");
+    }
+
+    public String poll() throws InterruptedException {
+      return events.poll(5, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * A LocalSwitch for each connection accepted on a TLS server socket.
+   */
+  private static class TlsSwitch implements Runnable {
+    private final SSLServerSocket serverSocket;
+    private final Thread          thread;
+
+    private volatile SwitchConnection lastConnection;
+
+    public TlsSwitch(SSLContext context) throws IOException {
+      this.serverSocket = (SSLServerSocket)context.getServerSocketFactory()
+                                                  .createServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+      this.thread       = new Thread(this, "TlsSwitch");
+      this.thread.setDaemon(true);
+    }
+
+    public int getPort() {
+      return serverSocket.getLocalPort();
+    }
+
+    public SwitchConnection getLastConnection() {
+      return lastConnection;
+    }
+
+    public void start() {
+      thread.start();
+    }
+
+    public void stop() throws IOException {
+      serverSocket.close();
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          SwitchConnection connection = new SwitchConnection(serverSocket.accept());
+          lastConnection = connection;
+          Thread connectionThread = new Thread(connection, "TlsSwitch Connection");
+          connectionThread.setDaemon(true);
+          connectionThread.start();
+        }
+      } catch (IOException e) {
+        // Stopped.
+      }
+    }
+  }
+
+  private static class SwitchConnection implements Runnable {
+    private final Socket      socket;
+    private final LocalSwitch localSwitch = new LocalSwitch(true, new byte[0]);
+
+    public SwitchConnection(Socket socket) {
+      this.socket = socket;
+    }
+
+    public void push(String method, String target) throws IOException {
+      write(localSwitch.push(method, target));
+    }
+
+    public Integer takePushStatus() throws InterruptedException {
+      return localSwitch.takePushStatus(5000);
+    }
+
+    public void close() throws IOException {
+      socket.close();
+    }
+
+    private synchronized void write(byte[] data) throws IOException {
+      OutputStream out = socket.getOutputStream();
+      out.write(data);
+      out.flush();
+    }
+
+    @Override
+    public void run() {
+      byte[] buffer = new byte[4096];
+
+      try {
+        InputStream in = socket.getInputStream();
+        int         read;
+
+        while ((read = in.read(buffer)) != -1) {
+          byte[] data = new byte[read];
+          System.arraycopy(buffer, 0, data, 0, read);
+
+          byte[] responses = localSwitch.receive(data);
+
+          if (responses.length > 0) write(responses);
+        }
+      } catch (IOException e) {
+        // Closed.
+      } catch (SignalingException e) {
+        e.printStackTrace();
+      } finally {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          // Already closed.
+        }
+      }
+    }
+  }
+}
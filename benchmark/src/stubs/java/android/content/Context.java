@@ -0,0 +1,48 @@
+package android.content;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+
+/**
+ * Host stand-in for android.content.Context, carrying only the default
+ * SharedPreferences that EncryptedSignalMessage reads its key from and
+ * OtpCounterProvider keeps its counter in, and the app files CallTrace
+ * saves to, here in the temporary directory.
+ */
+public class Context {
+
+  public static final int MODE_PRIVATE = 0;
+
+  private final SharedPreferences preferences;
+
+  public Context() {
+    this(0);
+  }
+
+  /**
+   * @param commitMillis how long each commit() blocks, as it would
+   * writing to slow flash.
+   */
+  public Context(long commitMillis) {
+    this.preferences = new MapSharedPreferences(commitMillis);
+  }
+
+  public Context getApplicationContext() {
+    return this;
+  }
+
+  public SharedPreferences getDefaultSharedPreferences() {
+    return preferences;
+  }
+
+  public FileInputStream openFileInput(String name) throws FileNotFoundException {
+    return new FileInputStream(new File(System.getProperty("java.io.tmpdir"), name));
+  }
+
+  public FileOutputStream openFileOutput(String name, int mode) throws FileNotFoundException {
+    return new FileOutputStream(new File(System.getProperty("java.io.tmpdir"), name));
+  }
+
+}
@@ -0,0 +1,63 @@
+package android.content;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class MapSharedPreferences implements SharedPreferences {
+
+  private final Map<String, String> values = new HashMap<String, String>();
+  private final long                commitMillis;
+
+  MapSharedPreferences(long commitMillis) {
+    this.commitMillis = commitMillis;
+  }
+
+  @Override
+  public synchronized String getString(String key, String defValue) {
+    String value = values.get(key);
+    return value == null ? defValue : value;
+  }
+
+  @Override
+  public long getLong(String key, long defValue) {
+    String value = getString(key, null);
+    return value == null ? defValue : Long.parseLong(value);
+  }
+
+  @Override
+  public Editor edit() {
+    return new Editor() {
+      private final Map<String, String> pending = new HashMap<String, String>();
+
+      @Override
+      public Editor putString(String key, String value) {
+        pending.put(key, value);
+        return this;
+      }
+
+      @Override
+      public Editor putLong(String key, long value) {
+        return putString(key, String.valueOf(value));
+      }
+
+      @Override
+      public boolean commit() {
+        synchronized (MapSharedPreferences.this) {
+          values.putAll(pending);
+        }
+
+        // Stands in for the write and fsync of the preferences file.
+        if (commitMillis > 0) {
+          try {
+            Thread.sleep(commitMillis);
+          } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+          }
+        }
+
+        return true;
+      }
+    };
+  }
+
+}
@@ -0,0 +1,20 @@
+package android.content;
+
+/**
+ * Host stand-in for android.content.SharedPreferences (strings and longs).
+ */
+public interface SharedPreferences {
+
+  public String getString(String key, String defValue);
+
+  public long getLong(String key, long defValue);
+
+  public Editor edit();
+
+  public interface Editor {
+    public Editor putString(String key, String value);
+    public Editor putLong(String key, long value);
+    public boolean commit();
+  }
+
+}
@@ -0,0 +1,16 @@
+package android.os;
+
+/**
+ * Host stand-in for android.os.Parcel.  Nothing on the host parcels
+ * anything, so these are never called.
+ */
+public final class Parcel {
+
+  public int readInt()                   { throw new UnsupportedOperationException(); }
+  public long readLong()                 { throw new UnsupportedOperationException(); }
+  public String readString()             { throw new UnsupportedOperationException(); }
+  public void writeInt(int value)        { throw new UnsupportedOperationException(); }
+  public void writeLong(long value)      { throw new UnsupportedOperationException(); }
+  public void writeString(String value)  { throw new UnsupportedOperationException(); }
+
+}
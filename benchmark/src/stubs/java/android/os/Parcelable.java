@@ -0,0 +1,17 @@
+package android.os;
+
+/**
+ * Host stand-in for android.os.Parcelable, which SessionDescriptor
+ * implements.
+ */
+public interface Parcelable {
+
+  public int describeContents();
+  public void writeToParcel(Parcel dest, int flags);
+
+  public interface Creator<T> {
+    public T createFromParcel(Parcel source);
+    public T[] newArray(int size);
+  }
+
+}
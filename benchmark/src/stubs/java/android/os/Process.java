@@ -0,0 +1,17 @@
+package android.os;
+
+/**
+ * Host stand-in for android.os.Process, which KeyPairPool and
+ * AddressCache lower their background threads' priority with.  Thread
+ * priorities aren't part of what the benchmarks measure, so this ignores
+ * them.
+ */
+public final class Process {
+
+  public static final int THREAD_PRIORITY_BACKGROUND = 10;
+
+  private Process() {}
+
+  public static void setThreadPriority(int priority) {}
+
+}
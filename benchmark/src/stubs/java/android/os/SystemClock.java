@@ -0,0 +1,15 @@
+package android.os;
+
+/**
+ * Host stand-in for android.os.SystemClock, which AddressCache ages its
+ * entries by.
+ */
+public final class SystemClock {
+
+  private SystemClock() {}
+
+  public static long elapsedRealtime() {
+    return System.nanoTime() / 1000000;
+  }
+
+}
@@ -0,0 +1,15 @@
+package android.preference;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Host stand-in for android.preference.PreferenceManager.
+ */
+public class PreferenceManager {
+
+  public static SharedPreferences getDefaultSharedPreferences(Context context) {
+    return context.getDefaultSharedPreferences();
+  }
+
+}
@@ -0,0 +1,24 @@
+package android.util;
+
+/**
+ * Host stand-in for android.util.Log.  The benchmarked code logs on some
+ * of its hot paths, so this discards everything rather than paying for
+ * console output that wouldn't happen on a device with logging off.
+ */
+public final class Log {
+
+  private Log() {}
+
+  public static int v(String tag, String msg)              { return 0; }
+  public static int v(String tag, String msg, Throwable t) { return 0; }
+  public static int d(String tag, String msg)              { return 0; }
+  public static int d(String tag, String msg, Throwable t) { return 0; }
+  public static int i(String tag, String msg)              { return 0; }
+  public static int i(String tag, String msg, Throwable t) { return 0; }
+  public static int w(String tag, String msg)              { return 0; }
+  public static int w(String tag, Throwable t)             { return 0; }
+  public static int w(String tag, String msg, Throwable t) { return 0; }
+  public static int e(String tag, String msg)              { return 0; }
+  public static int e(String tag, String msg, Throwable t) { return 0; }
+
+}
@@ -0,0 +1,23 @@
+package org.apache.http.conn.ssl;
+
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.SSLException;
+
+/**
+ * Host stand-in for the Apache HttpClient class Android bundles, which
+ * SignalingConnection checks the switch's certificate with.  Only the
+ * subject's common name is matched, which is all the local switch's
+ * certificate has.
+ */
+public class SSLSocketFactory {
+
+  public static final X509HostnameVerifier STRICT_HOSTNAME_VERIFIER = new X509HostnameVerifier() {
+    @Override
+    public void verify(String host, X509Certificate certificate) throws SSLException {
+      if (!certificate.getSubjectX500Principal().getName().equals("CN=" + host))
+        throw new SSLException("Certificate doesn't match " + host);
+    }
+  };
+
+}
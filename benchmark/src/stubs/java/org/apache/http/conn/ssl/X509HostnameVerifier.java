@@ -0,0 +1,15 @@
+package org.apache.http.conn.ssl;
+
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.SSLException;
+
+/**
+ * Host stand-in for the Apache HttpClient interface Android bundles,
+ * with only the method SignalingConnection calls.
+ */
+public interface X509HostnameVerifier {
+
+  public void verify(String host, X509Certificate certificate) throws SSLException;
+
+}
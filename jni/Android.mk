@@ -37,7 +37,8 @@ $(JNI_DIR)/redphone/JitterBuffer.cpp \
 $(JNI_DIR)/redphone/CallAudioManager.cpp \
 $(JNI_DIR)/redphone/WebRtcJitterBuffer.cpp \
 $(JNI_DIR)/redphone/SrtpStream.cpp \
-$(JNI_DIR)/redphone/NetworkUtil.cpp
+$(JNI_DIR)/redphone/NetworkUtil.cpp \
+$(JNI_DIR)/redphone/LatencyProbe.cpp
 
 LOCAL_STATIC_LIBRARIES := \
 libspeex \
@@ -0,0 +1,238 @@
+/*
+ * Replays packet arrival traces through WebRtcJitterBuffer once per
+ * jitter buffer profile, and reports the delay each profile adds
+ * against how much audio it has to conceal.
+ *
+ *   jitter_replay <trace> [<trace> ...]
+ *
+ * A trace is one packet per line: "<arrival_ms> <sequence> <timestamp>",
+ * in arrival order.  Lost packets are simply absent.  Lines starting
+ * with '#' are ignored.
+ *
+ * A trace argument of the form "sim:<spec>" instead synthesizes a
+ * trace by sending packets through the impairment model, using the same
+ * spec format as impairment_proxy (e.g. "sim:seed=3,loss=0.02,jitter=60").
+ */
+
+#include "redphone/AudioCodec.h"
+#include "redphone/RtpPacket.h"
+#include "redphone/WebRtcJitterBuffer.h"
+#include "sim/ImpairmentModel.h"
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <math.h>
+
+#include <algorithm>
+#include <vector>
+
+#define TICK_MILLIS      10
+#define SAMPLES_PER_MS   (SPEEX_SAMPLE_RATE / 1000)
+#define FRAMES_PER_PACKET 2
+#define DRAIN_MILLIS     1000
+#define PACKET_MILLIS    40
+#define SIMULATED_MILLIS 20000
+#define SIMULATED_PACKET_LEN 52
+
+typedef struct _TraceEntry {
+  uint32_t arrivalMs;
+  uint16_t sequence;
+  uint32_t timestamp;
+} TraceEntry;
+
+typedef struct _NamedProfile {
+  const char *name;
+  JitterBufferProfile profile;
+} NamedProfile;
+
+// Keep in sync with org.thoughtcrime.redphone.audio.JitterBufferProfile
+static NamedProfile profiles[] = {
+  {"default",          JitterBufferProfile(0,  2000, 50,  webrtc::NetEq::kBgnOff,  webrtc::kPlayoutOn)},
+  {"wifi-low-latency", JitterBufferProfile(0,  200,  20,  webrtc::NetEq::kBgnOff,  webrtc::kPlayoutOn)},
+  {"cellular-robust",  JitterBufferProfile(80, 1000, 100, webrtc::NetEq::kBgnFade, webrtc::kPlayoutOn)},
+};
+
+static bool compareArrival(const TraceEntry &lh, const TraceEntry &rh) {
+  return lh.arrivalMs < rh.arrivalMs;
+}
+
+static int loadTrace(const char *path, std::vector<TraceEntry> &trace) {
+  FILE *file = fopen(path, "r");
+  char line[256];
+
+  if (file == NULL) {
+    fprintf(stderr, "Unable to open trace: %s\n", path);
+    return -1;
+  }
+
+  while (fgets(line, sizeof(line), file) != NULL) {
+    unsigned int arrivalMs, sequence, timestamp;
+
+    if (line[0] == '#' || line[0] == '\n') continue;
+
+    if (sscanf(line, "%u %u %u", &arrivalMs, &sequence, &timestamp) != 3) {
+      fprintf(stderr, "Malformed trace line in %s: %s", path, line);
+      fclose(file);
+      return -1;
+    }
+
+    TraceEntry entry = {arrivalMs, (uint16_t)sequence, timestamp};
+    trace.push_back(entry);
+  }
+
+  fclose(file);
+  return 0;
+}
+
+static int synthesizeTrace(const char *spec, std::vector<TraceEntry> &trace) {
+  ImpairmentProfile profile;
+
+  if (profile.parse(spec) != 0) {
+    fprintf(stderr, "Invalid impairment spec: %s\n", spec);
+    return -1;
+  }
+
+  ImpairmentModel model(profile, 0);
+
+  for (int i=0;i<SIMULATED_MILLIS/PACKET_MILLIS;i++) {
+    int64_t deliveries[2];
+    int     copies = model.schedule(i * PACKET_MILLIS * 1000LL, SIMULATED_PACKET_LEN, deliveries);
+
+    for (int j=0;j<copies;j++) {
+      TraceEntry entry = {(uint32_t)(deliveries[j] / 1000), (uint16_t)i,
+                          (uint32_t)(i * PACKET_MILLIS * SAMPLES_PER_MS)};
+      trace.push_back(entry);
+    }
+  }
+
+  std::stable_sort(trace.begin(), trace.end(), compareArrival);
+  return 0;
+}
+
+static int encodePayload(AudioCodec &codec, char *payload, int maxPayloadLen) {
+  short frame[SPEEX_FRAME_SIZE];
+  int   payloadLen = 0;
+
+  for (int i=0;i<SPEEX_FRAME_SIZE;i++) {
+    frame[i] = (short)(8000 * sin(2 * M_PI * 440 * i / SPEEX_SAMPLE_RATE));
+  }
+
+  for (int i=0;i<FRAMES_PER_PACKET;i++) {
+    payloadLen += codec.encode(frame, payload + payloadLen, maxPayloadLen - payloadLen);
+  }
+
+  return payloadLen;
+}
+
+static double percentile(std::vector<int> &values, double fraction) {
+  if (values.empty()) return 0;
+
+  std::sort(values.begin(), values.end());
+  return values[(size_t)(fraction * (values.size() - 1))];
+}
+
+static double q14ToPercent(uint16_t value) {
+  return value * 100.0 / (1 << 14);
+}
+
+static int replay(const char *traceName, std::vector<TraceEntry> &trace, NamedProfile &namedProfile) {
+  AudioCodec         codec;
+  WebRtcJitterBuffer jitterBuffer(codec);
+
+  if (codec.init() != 0) {
+    fprintf(stderr, "Codec failed to initialize!\n");
+    return -1;
+  }
+
+  jitterBuffer.setProfile(namedProfile.profile);
+
+  if (jitterBuffer.init() != 0) {
+    fprintf(stderr, "Jitter buffer failed to initialize!\n");
+    return -1;
+  }
+
+  char  payload[256];
+  int   payloadLen = encodePayload(codec, payload, sizeof(payload));
+  short output[SPEEX_FRAME_SIZE];
+
+  std::vector<int> waitingTimes;
+
+  size_t   next   = 0;
+  uint32_t endMs  = trace.back().arrivalMs + DRAIN_MILLIS;
+
+  for (uint32_t nowMs = 0; nowMs <= endMs; nowMs += TICK_MILLIS) {
+    while (next < trace.size() && trace[next].arrivalMs <= nowMs) {
+      RtpPacket packet(payload, payloadLen, trace[next].sequence, trace[next].timestamp);
+      jitterBuffer.addAudio(&packet, nowMs * SAMPLES_PER_MS);
+      next++;
+    }
+
+    jitterBuffer.getAudio(output, SPEEX_FRAME_SIZE);
+
+    if (nowMs % 1000 == 0) {
+      std::vector<int> recent;
+      jitterBuffer.getWaitingTimes(&recent);
+      waitingTimes.insert(waitingTimes.end(), recent.begin(), recent.end());
+    }
+  }
+
+  std::vector<int> recent;
+  jitterBuffer.getWaitingTimes(&recent);
+  waitingTimes.insert(waitingTimes.end(), recent.begin(), recent.end());
+
+  webrtc::NetEqNetworkStatistics stats;
+  jitterBuffer.getNetworkStatistics(&stats);
+  jitterBuffer.stop();
+
+  double meanWait = 0;
+
+  for (size_t i=0;i<waitingTimes.size();i++) {
+    meanWait += waitingTimes[i];
+  }
+
+  if (!waitingTimes.empty()) meanWait /= waitingTimes.size();
+
+  printf("%-24s %-18s %10.1f %10.1f %10.2f %10.2f %10.2f %10.2f\n",
+         traceName, namedProfile.name,
+         meanWait, percentile(waitingTimes, 0.95),
+         q14ToPercent(stats.expand_rate), q14ToPercent(stats.packet_loss_rate),
+         q14ToPercent(stats.accelerate_rate), q14ToPercent(stats.preemptive_rate));
+
+  return 0;
+}
+
+static const char* baseName(const char *path) {
+  const char *slash = strrchr(path, '/');
+  return slash == NULL ? path : slash + 1;
+}
+
+int main(int argc, char **argv) {
+  if (argc < 2) {
+    fprintf(stderr, "Usage: %s <trace> [<trace> ...]\n", argv[0]);
+    return 1;
+  }
+
+  printf("%-24s %-18s %10s %10s %10s %10s %10s %10s\n",
+         "trace", "profile", "wait_ms", "p95_ms", "expand%", "loss%", "accel%", "preempt%");
+
+  for (int i=1;i<argc;i++) {
+    std::vector<TraceEntry> trace;
+
+    if (strncmp(argv[i], "sim:", 4) == 0) {
+      if (synthesizeTrace(argv[i] + 4, trace) != 0) return 1;
+    } else {
+      if (loadTrace(argv[i], trace) != 0) return 1;
+    }
+
+    if (trace.empty()) continue;
+
+    const char *traceName = strncmp(argv[i], "sim:", 4) == 0 ? argv[i] : baseName(argv[i]);
+
+    for (size_t j=0;j<sizeof(profiles)/sizeof(NamedProfile);j++) {
+      if (replay(traceName, trace, profiles[j]) != 0) return 1;
+    }
+  }
+
+  return 0;
+}
@@ -0,0 +1,233 @@
+/*
+ * Runs the call audio pipeline in loopback on a host, with the OpenSL
+ * recorder and player replaced by threads on the same cadence, and prints the LatencyProbe report: a per-stage latency breakdown and
+ * a histogram of total mouth-to-ear delay.
+ *
+ *   latency_loopback <seconds> [<impairment spec>]
+ *
+ * With an impairment spec (see impairment_proxy) the loopback runs
+ * through an ImpairmentProxy, so the network stage is simulated rather
+ * than a local socket hop.
+ */
+
+#include "redphone/AudioCodec.h"
+#include "redphone/Clock.h"
+#include "redphone/LatencyProbe.h"
+#include "redphone/RtpAudioReceiver.h"
+#include "redphone/RtpAudioSender.h"
+#include "redphone/WebRtcJitterBuffer.h"
+#include "sim/ImpairmentProxy.h"
+
+#include <arpa/inet.h>
+#include <math.h>
+#include <pthread.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/socket.h>
+#include <time.h>
+#include <unistd.h>
+
+#define CAPTURE_SAMPLES (2 * SPEEX_FRAME_SIZE)
+#define PLAYOUT_SAMPLES SPEEX_FRAME_SIZE
+
+typedef struct _Loopback {
+  volatile int       running;
+  AudioCodec         *codec;
+  Clock              *clock;
+  RtpAudioSender     *sender;
+  RtpAudioReceiver   *receiver;
+  WebRtcJitterBuffer *jitterBuffer;
+  LatencyProbe       *probe;
+} Loopback;
+
+static void sleepUntil(struct timespec *deadline, long periodNanos) {
+  deadline->tv_nsec += periodNanos;
+
+  while (deadline->tv_nsec >= 1000000000) {
+    deadline->tv_nsec -= 1000000000;
+    deadline->tv_sec++;
+  }
+
+  clock_nanosleep(CLOCK_MONOTONIC, TIMER_ABSTIME, deadline, NULL);
+}
+
+// Mirrors MicrophoneReader::recorderCallback()
+static void* capture(void *context) {
+  Loopback        *loopback = (Loopback*)context;
+  short           input[CAPTURE_SAMPLES];
+  char            encoded[1024];
+  struct timespec deadline;
+
+  for (int i=0;i<CAPTURE_SAMPLES;i++) {
+    input[i] = (short)(8000 * sin(2 * M_PI * 440 * i / SPEEX_SAMPLE_RATE));
+  }
+
+  clock_gettime(CLOCK_MONOTONIC, &deadline);
+
+  while (loopback->running) {
+    sleepUntil(&deadline, CAPTURE_SAMPLES * (1000000000L / SPEEX_SAMPLE_RATE));
+
+    int64_t capturedAt = LatencyProbe::now();
+    int     encodedLen = loopback->codec->encode(input, encoded, sizeof(encoded));
+    encodedLen += loopback->codec->encode(input + SPEEX_FRAME_SIZE, encoded + encodedLen,
+                                          sizeof(encoded) - encodedLen);
+
+    uint32_t timestamp = loopback->clock->tick(2);
+
+    loopback->probe->captured(timestamp, capturedAt);
+    loopback->probe->encoded(timestamp, LatencyProbe::now());
+
+    loopback->sender->send(timestamp, encoded, encodedLen);
+
+    loopback->probe->sent(timestamp, LatencyProbe::now());
+  }
+
+  return NULL;
+}
+
+// Mirrors AudioPlayer::playerCallback(), where the player asks for more
+// as soon as the buffer it is playing runs out.
+static void* playout(void *context) {
+  Loopback        *loopback     = (Loopback*)context;
+  int             queuedSamples = PLAYOUT_SAMPLES;
+  short           output[PLAYOUT_SAMPLES];
+  struct timespec deadline;
+
+  clock_gettime(CLOCK_MONOTONIC, &deadline);
+
+  while (loopback->running) {
+    sleepUntil(&deadline, queuedSamples * (1000000000L / SPEEX_SAMPLE_RATE));
+
+    int64_t  decodeStart = LatencyProbe::now();
+    int      samples     = loopback->jitterBuffer->getAudio(output, PLAYOUT_SAMPLES);
+    uint32_t playoutTimestamp;
+
+    if (loopback->jitterBuffer->getPlayoutTimestamp(&playoutTimestamp)) {
+      loopback->probe->played(playoutTimestamp, decodeStart, LatencyProbe::now(), queuedSamples);
+    }
+
+    queuedSamples = samples > 0 ? samples : PLAYOUT_SAMPLES;
+  }
+
+  return NULL;
+}
+
+// Mirrors the receive loop in CallAudioManager::start()
+static void* receive(void *context) {
+  Loopback *loopback = (Loopback*)context;
+  char     buffer[4096];
+
+  while (loopback->running) {
+    RtpPacket *packet = loopback->receiver->receive(buffer, sizeof(buffer));
+
+    if (packet != NULL) {
+      loopback->probe->received(packet->getTimestamp(), LatencyProbe::now());
+      loopback->jitterBuffer->addAudio(packet, loopback->clock->getTickCount());
+      delete packet;
+    }
+  }
+
+  return NULL;
+}
+
+static SrtpStreamParameters* createLoopbackParameters() {
+  uint8_t cipherKey[SRTP_AES_KEY_SIZE];
+  uint8_t macKey[SRTP_MAC_KEY_SIZE];
+  uint8_t salt[SRTP_SALT_SIZE];
+
+  memset(cipherKey, 0, sizeof(cipherKey));
+  memset(macKey, 0, sizeof(macKey));
+  memset(salt, 0, sizeof(salt));
+
+  return new SrtpStreamParameters(cipherKey, macKey, salt);
+}
+
+int main(int argc, char **argv) {
+  if (argc < 2 || argc > 3) {
+    fprintf(stderr, "Usage: %s <seconds> [<impairment spec>]\n", argv[0]);
+    return 1;
+  }
+
+  int seconds = atoi(argv[1]);
+
+  int                socketFd   = socket(AF_INET, SOCK_DGRAM, 0);
+  struct sockaddr_in local;
+  socklen_t          localLen   = sizeof(local);
+
+  memset(&local, 0, sizeof(local));
+  local.sin_family      = AF_INET;
+  local.sin_addr.s_addr = htonl(INADDR_LOOPBACK);
+
+  if (bind(socketFd, (struct sockaddr*)&local, sizeof(local)) != 0 ||
+      getsockname(socketFd, (struct sockaddr*)&local, &localLen) != 0)
+  {
+    perror("bind");
+    return 1;
+  }
+
+  struct timeval timeout = {0, 100000};
+  setsockopt(socketFd, SOL_SOCKET, SO_RCVTIMEO, &timeout, sizeof(timeout));
+
+  struct sockaddr_in remote = local;
+  ImpairmentProfile  impairment;
+  ImpairmentProxy    *proxy = NULL;
+
+  if (argc == 3) {
+    if (impairment.parse(argv[2]) != 0) {
+      fprintf(stderr, "Invalid impairment spec: %s\n", argv[2]);
+      return 1;
+    }
+
+    proxy = new ImpairmentProxy(local, impairment);
+
+    if (proxy->init(0) != 0 || proxy->start() != 0) {
+      fprintf(stderr, "Failed to start impairment proxy!\n");
+      return 1;
+    }
+
+    remote.sin_port = htons(proxy->getLocalPort());
+  }
+
+  AudioCodec         codec;
+  Clock              clock;
+  RtpAudioSender     sender(socketFd, (struct sockaddr*)&remote, sizeof(remote), createLoopbackParameters());
+  RtpAudioReceiver   receiver(socketFd, createLoopbackParameters());
+  WebRtcJitterBuffer jitterBuffer(codec);
+  LatencyProbe       probe(SPEEX_SAMPLE_RATE, CAPTURE_SAMPLES);
+
+  if (codec.init() != 0 || sender.init() != 0 || receiver.init() != 0 || jitterBuffer.init() != 0) {
+    fprintf(stderr, "Failed to initialize audio pipeline!\n");
+    return 1;
+  }
+
+  Loopback  loopback = {1, &codec, &clock, &sender, &receiver, &jitterBuffer, &probe};
+  pthread_t threads[3];
+
+  pthread_create(&threads[0], NULL, receive, &loopback);
+  pthread_create(&threads[1], NULL, playout, &loopback);
+  pthread_create(&threads[2], NULL, capture, &loopback);
+
+  sleep(seconds);
+
+  loopback.running = 0;
+
+  for (int i=0;i<3;i++) {
+    pthread_join(threads[i], NULL);
+  }
+
+  jitterBuffer.stop();
+
+  if (proxy != NULL) {
+    proxy->stop();
+    delete proxy;
+  }
+
+  close(socketFd);
+
+  char report[16384];
+  probe.getReport(report, sizeof(report));
+  fputs(report, stdout);
+
+  return 0;
+}
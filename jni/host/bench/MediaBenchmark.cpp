@@ -0,0 +1,238 @@
+/*
+ * Microbenchmarks for the per-packet work in the media engine: SRTP,
+ * RTP framing, the Speex/AECM codec, the jitter buffer and sequence
+ * number extension.  Each "op" is one 40ms packet's worth of work
+ * unless the name says otherwise.
+ *
+ *   media_benchmark [--benchmark_filter=Srtp] [--benchmark_format=json]
+ */
+
+#include "MicroBenchmark.h"
+
+#include "redphone/AudioCodec.h"
+#include "redphone/RtpPacket.h"
+#include "redphone/SequenceCounter.h"
+#include "redphone/SrtpStream.h"
+#include "redphone/WebRtcJitterBuffer.h"
+
+#include <arpa/inet.h>
+#include <math.h>
+#include <string.h>
+
+#define FRAMES_PER_PACKET  2
+#define SAMPLES_PER_PACKET (FRAMES_PER_PACKET * SPEEX_FRAME_SIZE)
+#define PLAYOUT_SAMPLES    80
+
+static void generateTone(short *samples, int count) {
+  for (int i=0;i<count;i++) {
+    samples[i] = (short)(8000 * sin(2 * M_PI * 440 * i / SPEEX_SAMPLE_RATE));
+  }
+}
+
+static int encodePacket(AudioCodec &codec, short *samples, char *encoded, int encodedLen) {
+  int length = 0;
+
+  for (int i=0;i<FRAMES_PER_PACKET;i++) {
+    length += codec.encode(samples + i * SPEEX_FRAME_SIZE, encoded + length, encodedLen - length);
+  }
+
+  return length;
+}
+
+static SrtpStreamParameters* createParameters() {
+  uint8_t cipherKey[SRTP_AES_KEY_SIZE];
+  uint8_t macKey[SRTP_MAC_KEY_SIZE];
+  uint8_t salt[SRTP_SALT_SIZE];
+
+  for (int i=0;i<SRTP_AES_KEY_SIZE;i++) cipherKey[i] = i;
+  for (int i=0;i<SRTP_MAC_KEY_SIZE;i++) macKey[i]    = i * 3;
+  for (int i=0;i<SRTP_SALT_SIZE;i++)    salt[i]      = i * 7;
+
+  return new SrtpStreamParameters(cipherKey, macKey, salt);
+}
+
+static void BM_SrtpEncrypt(BenchmarkState &state) {
+  SrtpStream srtpStream(createParameters());
+  char       payload[SPEEX_ENCODED_FRAME_SIZE * FRAMES_PER_PACKET];
+  int64_t    sequence = 0;
+
+  srtpStream.init();
+  memset(payload, 0x55, sizeof(payload));
+
+  RtpPacket packet(payload, sizeof(payload), 0, 0);
+
+  while (state.KeepRunning()) {
+    srtpStream.encrypt(packet, sequence++);
+    packet.setPayloadLen(sizeof(payload));
+  }
+
+  state.SetBytesProcessed(state.getIterations() * sizeof(payload));
+}
+BENCHMARK(BM_SrtpEncrypt);
+
+static void BM_SrtpDecrypt(BenchmarkState &state) {
+  SrtpStream sender(createParameters());
+  SrtpStream receiver(createParameters());
+  char       payload[SPEEX_ENCODED_FRAME_SIZE * FRAMES_PER_PACKET];
+
+  sender.init();
+  receiver.init();
+  memset(payload, 0x55, sizeof(payload));
+
+  RtpPacket plaintext(payload, sizeof(payload), 0, 0);
+  sender.encrypt(plaintext, 0);
+
+  int  ciphertextLen = plaintext.getSerializedPacketLen();
+  char ciphertext[ciphertextLen];
+  memcpy(ciphertext, plaintext.getSerializedPacket(), ciphertextLen);
+
+  RtpPacket packet(ciphertext, ciphertextLen);
+
+  // Decryption happens in place, so restore the ciphertext each time.
+  while (state.KeepRunning()) {
+    memcpy(packet.getSerializedPacket(), ciphertext, ciphertextLen);
+    packet.setPayloadLen(ciphertextLen - sizeof(RtpHeader));
+
+    if (receiver.decrypt(packet, 0) != 0) abort();
+  }
+
+  state.SetBytesProcessed(state.getIterations() * sizeof(payload));
+}
+BENCHMARK(BM_SrtpDecrypt);
+
+static void BM_RtpPacketBuild(BenchmarkState &state) {
+  char     payload[SPEEX_ENCODED_FRAME_SIZE * FRAMES_PER_PACKET];
+  uint16_t sequence = 0;
+
+  memset(payload, 0x55, sizeof(payload));
+
+  while (state.KeepRunning()) {
+    RtpPacket packet(payload, sizeof(payload), sequence, sequence * SAMPLES_PER_PACKET);
+    DoNotOptimize(packet.getSerializedPacket());
+    sequence++;
+  }
+}
+BENCHMARK(BM_RtpPacketBuild);
+
+static void BM_RtpPacketParse(BenchmarkState &state) {
+  char payload[SPEEX_ENCODED_FRAME_SIZE * FRAMES_PER_PACKET];
+
+  memset(payload, 0x55, sizeof(payload));
+
+  RtpPacket source(payload, sizeof(payload), 1234, 5678);
+
+  while (state.KeepRunning()) {
+    RtpPacket packet(source.getSerializedPacket(), source.getSerializedPacketLen());
+    DoNotOptimize(packet.getSequenceNumber() + packet.getTimestamp() + packet.getPayloadLen());
+  }
+}
+BENCHMARK(BM_RtpPacketParse);
+
+static void BM_AudioCodecEncode(BenchmarkState &state) {
+  AudioCodec codec;
+  short      samples[SAMPLES_PER_PACKET];
+  char       encoded[1024];
+
+  codec.init();
+  generateTone(samples, SAMPLES_PER_PACKET);
+
+  while (state.KeepRunning()) {
+    DoNotOptimize(encodePacket(codec, samples, encoded, sizeof(encoded)));
+  }
+}
+BENCHMARK(BM_AudioCodecEncode);
+
+static void BM_AudioCodecDecode(BenchmarkState &state) {
+  AudioCodec codec;
+  short      samples[SAMPLES_PER_PACKET];
+  char       encoded[1024];
+
+  codec.init();
+  generateTone(samples, SAMPLES_PER_PACKET);
+
+  int encodedLen = encodePacket(codec, samples, encoded, sizeof(encoded));
+
+  while (state.KeepRunning()) {
+    DoNotOptimize(codec.decode(encoded, encodedLen, samples));
+  }
+}
+BENCHMARK(BM_AudioCodecDecode);
+
+static void BM_AudioCodecConceal(BenchmarkState &state) {
+  AudioCodec codec;
+  short      samples[SAMPLES_PER_PACKET];
+
+  codec.init();
+
+  while (state.KeepRunning()) {
+    DoNotOptimize(codec.conceal(FRAMES_PER_PACKET, samples));
+  }
+}
+BENCHMARK(BM_AudioCodecConceal);
+
+/*
+ * Steady state: one packet in, and the four 10ms pulls that play it
+ * out.  The insert and get benchmarks below split that same cycle.
+ */
+static void runJitterBuffer(BenchmarkState &state, int timeInsert, int timeGet) {
+  AudioCodec         codec;
+  WebRtcJitterBuffer jitterBuffer(codec);
+  short              samples[SAMPLES_PER_PACKET];
+  char               encoded[1024];
+
+  codec.init();
+  jitterBuffer.init();
+  generateTone(samples, SAMPLES_PER_PACKET);
+
+  int       encodedLen = encodePacket(codec, samples, encoded, sizeof(encoded));
+  uint16_t  sequence   = 0;
+  RtpPacket packet(encoded, encodedLen, 0, 0);
+  RtpHeader *header    = (RtpHeader*)packet.getSerializedPacket();
+
+  while (state.KeepRunning()) {
+    header->sequenceNumber = htons(sequence);
+    packet.setTimestamp(sequence * SAMPLES_PER_PACKET);
+
+    if (!timeInsert) state.PauseTiming();
+    jitterBuffer.addAudio(&packet, sequence * SAMPLES_PER_PACKET);
+    if (!timeInsert) state.ResumeTiming();
+
+    if (!timeGet) state.PauseTiming();
+    for (int i=0;i<SAMPLES_PER_PACKET / PLAYOUT_SAMPLES;i++) {
+      DoNotOptimize(jitterBuffer.getAudio(samples, PLAYOUT_SAMPLES));
+    }
+    if (!timeGet) state.ResumeTiming();
+
+    sequence++;
+  }
+
+  jitterBuffer.stop();
+}
+
+static void BM_JitterBufferInsertAndGet(BenchmarkState &state) {
+  runJitterBuffer(state, 1, 1);
+}
+BENCHMARK(BM_JitterBufferInsertAndGet);
+
+static void BM_JitterBufferInsert(BenchmarkState &state) {
+  runJitterBuffer(state, 1, 0);
+}
+BENCHMARK(BM_JitterBufferInsert);
+
+static void BM_JitterBufferGet(BenchmarkState &state) {
+  runJitterBuffer(state, 0, 1);
+}
+BENCHMARK(BM_JitterBufferGet);
+
+static void BM_SequenceCounterConvert(BenchmarkState &state) {
+  SequenceCounter counter;
+  uint16_t        sequence = 0;
+
+  while (state.KeepRunning()) {
+    DoNotOptimize(counter.convertNext(sequence));
+    sequence += 7;
+  }
+}
+BENCHMARK(BM_SequenceCounterConvert);
+
+BENCHMARK_MAIN();
@@ -0,0 +1,211 @@
+#include "MicroBenchmark.h"
+
+#include <regex.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#include <string>
+#include <vector>
+
+#define MAX_ITERATIONS 1000000000LL
+
+typedef struct _Benchmark {
+  const char        *name;
+  BenchmarkFunction function;
+} Benchmark;
+
+typedef struct _BenchmarkResult {
+  const char *name;
+  int64_t    iterations;
+  double     nanosPerOp;
+  double     cpuNanosPerOp;
+  double     bytesPerSecond;
+} BenchmarkResult;
+
+static std::vector<Benchmark>& getBenchmarks() {
+  static std::vector<Benchmark> benchmarks;
+  return benchmarks;
+}
+
+static int64_t readClock(clockid_t clock) {
+  struct timespec time;
+  clock_gettime(clock, &time);
+
+  return (int64_t)time.tv_sec * 1000000000LL + time.tv_nsec;
+}
+
+BenchmarkState::BenchmarkState(int64_t maxIterations) :
+  maxIterations(maxIterations), iterations(0), startNanos(0), startCpuNanos(0),
+  elapsedNanos(0), elapsedCpuNanos(0), bytesProcessed(0), running(0)
+{}
+
+void BenchmarkState::startTimer() {
+  startNanos    = readClock(CLOCK_MONOTONIC);
+  startCpuNanos = readClock(CLOCK_PROCESS_CPUTIME_ID);
+  running       = 1;
+}
+
+void BenchmarkState::stopTimer() {
+  if (!running) return;
+
+  elapsedNanos    += readClock(CLOCK_MONOTONIC) - startNanos;
+  elapsedCpuNanos += readClock(CLOCK_PROCESS_CPUTIME_ID) - startCpuNanos;
+  running          = 0;
+}
+
+void BenchmarkState::PauseTiming() {
+  stopTimer();
+}
+
+void BenchmarkState::ResumeTiming() {
+  startTimer();
+}
+
+void BenchmarkState::SetBytesProcessed(int64_t bytes) {
+  bytesProcessed = bytes;
+}
+
+int64_t BenchmarkState::getIterations() {
+  return iterations - 1;
+}
+
+int64_t BenchmarkState::getElapsedNanos() {
+  return elapsedNanos;
+}
+
+int64_t BenchmarkState::getElapsedCpuNanos() {
+  return elapsedCpuNanos;
+}
+
+int64_t BenchmarkState::getBytesProcessed() {
+  return bytesProcessed;
+}
+
+BenchmarkRegistration::BenchmarkRegistration(const char *name, BenchmarkFunction function) {
+  Benchmark benchmark = {name, function};
+  getBenchmarks().push_back(benchmark);
+}
+
+/*
+ * Like Google Benchmark, grow the iteration count until a run takes at
+ * least the minimum time, predicting the count from the last run with
+ * some headroom, and report that final run.
+ */
+static BenchmarkResult runBenchmark(Benchmark &benchmark, double minTimeSeconds) {
+  int64_t iterations = 1;
+  int64_t minNanos   = (int64_t)(minTimeSeconds * 1e9);
+
+  while (true) {
+    BenchmarkState state(iterations);
+    benchmark.function(state);
+
+    int64_t elapsed = state.getElapsedNanos();
+
+    if (elapsed >= minNanos || iterations >= MAX_ITERATIONS) {
+      BenchmarkResult result;
+      result.name           = benchmark.name;
+      result.iterations     = state.getIterations();
+      result.nanosPerOp     = (double)elapsed / result.iterations;
+      result.cpuNanosPerOp  = (double)state.getElapsedCpuNanos() / result.iterations;
+      result.bytesPerSecond = state.getBytesProcessed() == 0 || elapsed == 0 ? 0 :
+                              state.getBytesProcessed() * 1e9 / elapsed;
+      return result;
+    }
+
+    double multiplier = elapsed <= minNanos / 100 ? 10 : 1.4 * minNanos / elapsed;
+    int64_t next      = (int64_t)(iterations * multiplier);
+
+    iterations = next > iterations ? next : iterations + 1;
+    if (iterations > MAX_ITERATIONS) iterations = MAX_ITERATIONS;
+  }
+}
+
+static void printConsole(std::vector<BenchmarkResult> &results) {
+  printf("%-40s %14s %14s %12s\n", "Benchmark", "Time", "CPU", "Iterations");
+  printf("%s\n", std::string(83, '-').c_str());
+
+  for (size_t i=0;i<results.size();i++) {
+    printf("%-40s %11.0f ns %11.0f ns %12lld", results[i].name,
+           results[i].nanosPerOp, results[i].cpuNanosPerOp, (long long)results[i].iterations);
+
+    if (results[i].bytesPerSecond != 0) {
+      printf(" %8.1fMB/s", results[i].bytesPerSecond / (1024 * 1024));
+    }
+
+    printf("\n");
+  }
+}
+
+static void printJson(std::vector<BenchmarkResult> &results) {
+  char      date[64];
+  time_t    now = time(NULL);
+  struct tm local;
+
+  strftime(date, sizeof(date), "%Y-%m-%d %H:%M:%S", localtime_r(&now, &local));
+
+  printf("{\n  \"context\": {\n    \"date\": \"%s\"\n  },\n  \"benchmarks\": [\n", date);
+
+  for (size_t i=0;i<results.size();i++) {
+    printf("    {\n");
+    printf("      \"name\": \"%s\",\n", results[i].name);
+    printf("      \"iterations\": %lld,\n", (long long)results[i].iterations);
+    printf("      \"real_time\": %.2f,\n", results[i].nanosPerOp);
+    printf("      \"cpu_time\": %.2f,\n", results[i].cpuNanosPerOp);
+
+    if (results[i].bytesPerSecond != 0) {
+      printf("      \"bytes_per_second\": %.0f,\n", results[i].bytesPerSecond);
+    }
+
+    printf("      \"time_unit\": \"ns\"\n");
+    printf("    }%s\n", i + 1 < results.size() ? "," : "");
+  }
+
+  printf("  ]\n}\n");
+}
+
+int RunBenchmarks(int argc, char **argv) {
+  const char *filter  = ".";
+  const char *format  = "console";
+  double      minTime = 0.5;
+
+  for (int i=1;i<argc;i++) {
+    if      (strncmp(argv[i], "--benchmark_filter=", 19) == 0)   filter  = argv[i] + 19;
+    else if (strncmp(argv[i], "--benchmark_format=", 19) == 0)   format  = argv[i] + 19;
+    else if (strncmp(argv[i], "--benchmark_min_time=", 21) == 0) minTime = atof(argv[i] + 21);
+    else {
+      fprintf(stderr, "Usage: %s [--benchmark_filter=<regex>] [--benchmark_min_time=<seconds>] "
+                      "[--benchmark_format=<console|json>]\n", argv[0]);
+      return 1;
+    }
+  }
+
+  if (strcmp(format, "console") != 0 && strcmp(format, "json") != 0) {
+    fprintf(stderr, "Unknown format: %s\n", format);
+    return 1;
+  }
+
+  regex_t pattern;
+
+  if (regcomp(&pattern, filter, REG_EXTENDED | REG_NOSUB) != 0) {
+    fprintf(stderr, "Invalid filter: %s\n", filter);
+    return 1;
+  }
+
+  std::vector<Benchmark>       &benchmarks = getBenchmarks();
+  std::vector<BenchmarkResult> results;
+
+  for (size_t i=0;i<benchmarks.size();i++) {
+    if (regexec(&pattern, benchmarks[i].name, 0, NULL, 0) == 0) {
+      results.push_back(runBenchmark(benchmarks[i], minTime));
+    }
+  }
+
+  regfree(&pattern);
+
+  if (strcmp(format, "json") == 0) printJson(results);
+  else                             printConsole(results);
+
+  return 0;
+}
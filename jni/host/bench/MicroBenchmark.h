@@ -0,0 +1,78 @@
+#ifndef __MICRO_BENCHMARK_H__
+#define __MICRO_BENCHMARK_H__
+
+/*
+ * A small stand-in for Google Benchmark, so the host build has no
+ * dependencies beyond a compiler.  Benchmarks are written the same way:
+ *
+ *   static void BM_Something(BenchmarkState &state) {
+ *     ...setup...
+ *     while (state.KeepRunning()) {
+ *       ...operation under test...
+ *     }
+ *   }
+ *   BENCHMARK(BM_Something);
+ *
+ * and the runner accepts the familiar --benchmark_filter=<regex>,
+ * --benchmark_min_time=<seconds> and --benchmark_format=<console|json>.
+ */
+
+#include <stdint.h>
+
+class BenchmarkState {
+
+private:
+  int64_t maxIterations;
+  int64_t iterations;
+  int64_t startNanos;
+  int64_t startCpuNanos;
+  int64_t elapsedNanos;
+  int64_t elapsedCpuNanos;
+  int64_t bytesProcessed;
+  int     running;
+
+  void startTimer();
+  void stopTimer();
+
+public:
+  BenchmarkState(int64_t maxIterations);
+
+  bool KeepRunning() {
+    if (iterations == 0)                startTimer();
+    if (iterations++ < maxIterations)   return true;
+
+    stopTimer();
+    return false;
+  }
+
+  void PauseTiming();
+  void ResumeTiming();
+  void SetBytesProcessed(int64_t bytes);
+
+  int64_t getIterations();
+  int64_t getElapsedNanos();
+  int64_t getElapsedCpuNanos();
+  int64_t getBytesProcessed();
+};
+
+typedef void (*BenchmarkFunction)(BenchmarkState &state);
+
+class BenchmarkRegistration {
+public:
+  BenchmarkRegistration(const char *name, BenchmarkFunction function);
+};
+
+int RunBenchmarks(int argc, char **argv);
+
+// Keeps the optimizer from discarding a result we never otherwise use.
+template <class T> inline void DoNotOptimize(T const &value) {
+  asm volatile("" : : "r,m"(value) : "memory");
+}
+
+#define BENCHMARK(function) \
+  static BenchmarkRegistration benchmark_registration_##function(#function, function)
+
+#define BENCHMARK_MAIN() \
+  int main(int argc, char **argv) { return RunBenchmarks(argc, argv); }
+
+#endif
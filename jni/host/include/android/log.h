@@ -0,0 +1,25 @@
+#ifndef __HOST_ANDROID_LOG_H__
+#define __HOST_ANDROID_LOG_H__
+
+/*
+ * Stand-in for the NDK logging header so the media engine can be built
+ * and benchmarked on a plain Linux host.  Warnings go to stderr only
+ * when REDPHONE_HOST_LOG is defined, to keep benchmark output clean.
+ */
+
+#include <stdio.h>
+
+#define ANDROID_LOG_VERBOSE 2
+#define ANDROID_LOG_DEBUG   3
+#define ANDROID_LOG_INFO    4
+#define ANDROID_LOG_WARN    5
+#define ANDROID_LOG_ERROR   6
+
+#ifdef REDPHONE_HOST_LOG
+#define __android_log_print(priority, tag, ...) \
+  ((void)(fprintf(stderr, "%s: ", tag), fprintf(stderr, __VA_ARGS__), fprintf(stderr, "\n")))
+#else
+#define __android_log_print(priority, tag, ...) ((void)0)
+#endif
+
+#endif
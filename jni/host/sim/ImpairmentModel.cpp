@@ -0,0 +1,123 @@
+#include "ImpairmentModel.h"
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+ImpairmentProfile::ImpairmentProfile() :
+  seed(0), lossProbability(0), burstEnterProbability(0), burstExitProbability(1),
+  burstLossProbability(1), delayMillis(0), jitterMillis(0), reorderProbability(0),
+  duplicateProbability(0), kilobitsPerSecond(0)
+{}
+
+static int parseProbability(const char *value, double *result) {
+  char *end;
+  *result = strtod(value, &end);
+  return (end == value || *result < 0 || *result > 1) ? -1 : 0;
+}
+
+int ImpairmentProfile::parse(const char *spec) {
+  char *copy = strdup(spec);
+  char *saveptr;
+  int   result = 0;
+
+  for (char *parameter = strtok_r(copy, ",", &saveptr); parameter != NULL && result == 0;
+       parameter = strtok_r(NULL, ",", &saveptr))
+  {
+    char *value = strchr(parameter, '=');
+
+    if (value == NULL) {
+      fprintf(stderr, "Bad impairment parameter: %s\n", parameter);
+      result = -1;
+      break;
+    }
+
+    *value++ = '\0';
+
+    if      (!strcmp(parameter, "seed"))      seed              = strtoll(value, NULL, 10);
+    else if (!strcmp(parameter, "loss"))      result            = parseProbability(value, &lossProbability);
+    else if (!strcmp(parameter, "burstloss")) result            = parseProbability(value, &burstLossProbability);
+    else if (!strcmp(parameter, "delay"))     delayMillis       = atoi(value);
+    else if (!strcmp(parameter, "jitter"))    jitterMillis      = atoi(value);
+    else if (!strcmp(parameter, "reorder"))   result            = parseProbability(value, &reorderProbability);
+    else if (!strcmp(parameter, "duplicate")) result            = parseProbability(value, &duplicateProbability);
+    else if (!strcmp(parameter, "kbps"))      kilobitsPerSecond = atoi(value);
+    else if (!strcmp(parameter, "burst")) {
+      char *exit = strchr(value, '/');
+
+      if (exit == NULL) {
+        result = -1;
+      } else {
+        *exit++ = '\0';
+        result  = parseProbability(value, &burstEnterProbability);
+        if (result == 0) result = parseProbability(exit, &burstExitProbability);
+      }
+    } else {
+      fprintf(stderr, "Unknown impairment parameter: %s\n", parameter);
+      result = -1;
+    }
+  }
+
+  free(copy);
+  return result;
+}
+
+ImpairmentModel::ImpairmentModel(ImpairmentProfile &profile, int stream) :
+  profile(profile), state(profile.seed ^ ((uint64_t)stream * 0xD1B54A32D192ED03ULL)),
+  burst(0), linkFreeAtMicros(0), lastDeliveryMicros(0)
+{}
+
+uint64_t ImpairmentModel::nextLong() {
+  uint64_t z = (state += 0x9E3779B97F4A7C15ULL);
+  z = (z ^ (z >> 30)) * 0xBF58476D1CE4E5B9ULL;
+  z = (z ^ (z >> 27)) * 0x94D049BB133111EBULL;
+  return z ^ (z >> 31);
+}
+
+double ImpairmentModel::nextDouble() {
+  return (nextLong() >> 11) * (1.0 / (double)(1ULL << 53));
+}
+
+int ImpairmentModel::schedule(int64_t sentMicros, int length, int64_t *deliveryMicros) {
+  double transition = nextDouble();
+  double loss       = nextDouble();
+  double jitter     = nextDouble();
+  double reorder    = nextDouble();
+  double duplicate  = nextDouble();
+
+  if (burst) burst = transition >= profile.burstExitProbability;
+  else       burst = transition <  profile.burstEnterProbability;
+
+  double lossProbability = burst ? profile.burstLossProbability : profile.lossProbability;
+
+  if (loss < lossProbability) {
+    return 0;
+  }
+
+  int64_t departureMicros = sentMicros;
+
+  if (profile.kilobitsPerSecond > 0) {
+    departureMicros  = sentMicros > linkFreeAtMicros ? sentMicros : linkFreeAtMicros;
+    departureMicros += ((int64_t)length * 8 * 1000) / profile.kilobitsPerSecond;
+    linkFreeAtMicros = departureMicros;
+  }
+
+  int64_t delivery = departureMicros + profile.delayMillis * 1000LL +
+                     (int64_t)(jitter * profile.jitterMillis * 1000LL);
+
+  if (reorder < profile.reorderProbability) {
+    delivery += (profile.jitterMillis + 20) * 1000LL;
+  } else {
+    if (delivery < lastDeliveryMicros) delivery = lastDeliveryMicros;
+    lastDeliveryMicros = delivery;
+  }
+
+  deliveryMicros[0] = delivery;
+
+  if (duplicate < profile.duplicateProbability) {
+    deliveryMicros[1] = delivery + 1000;
+    return 2;
+  }
+
+  return 1;
+}
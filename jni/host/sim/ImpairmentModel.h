@@ -0,0 +1,51 @@
+#ifndef __IMPAIRMENT_MODEL_H__
+#define __IMPAIRMENT_MODEL_H__
+
+#include <stdint.h>
+
+/*
+ * Port of org.thoughtcrime.mannycalls.network.ImpairmentProfile and
+ * ImpairmentModel.  The spec format, draw order and arithmetic match
+ * the Java side exactly, so a seed reproduces the same packet fates on
+ * device and on the host.
+ */
+
+class ImpairmentProfile {
+
+public:
+  uint64_t seed;
+  double   lossProbability;
+  double   burstEnterProbability;
+  double   burstExitProbability;
+  double   burstLossProbability;
+  int      delayMillis;
+  int      jitterMillis;
+  double   reorderProbability;
+  double   duplicateProbability;
+  int      kilobitsPerSecond;
+
+  ImpairmentProfile();
+
+  int parse(const char *spec);
+};
+
+class ImpairmentModel {
+
+private:
+  ImpairmentProfile profile;
+  uint64_t          state;
+  int               burst;
+  int64_t           linkFreeAtMicros;
+  int64_t           lastDeliveryMicros;
+
+  uint64_t nextLong();
+  double   nextDouble();
+
+public:
+  ImpairmentModel(ImpairmentProfile &profile, int stream);
+
+  // Writes up to two delivery times, returns how many copies are delivered.
+  int schedule(int64_t sentMicros, int length, int64_t *deliveryMicros);
+};
+
+#endif
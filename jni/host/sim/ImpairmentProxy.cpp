@@ -0,0 +1,161 @@
+#include "ImpairmentProxy.h"
+
+#include <arpa/inet.h>
+#include <errno.h>
+#include <poll.h>
+#include <stdio.h>
+#include <string.h>
+#include <sys/socket.h>
+#include <time.h>
+#include <unistd.h>
+
+#define MAX_DATAGRAM   4096
+#define IDLE_POLL_MILLIS 100
+
+ImpairmentProxy::ImpairmentProxy(struct sockaddr_in &target, ImpairmentProfile &profile) :
+  socketFd(-1), running(0), target(target), haveClient(0),
+  outboundModel(profile, 0), returnModel(profile, 1),
+  epochMicros(0), order(0), received(0), delivered(0)
+{
+  memset(&client, 0, sizeof(client));
+  epochMicros = nowMicros();
+}
+
+ImpairmentProxy::~ImpairmentProxy() {
+  while (!pending.empty()) {
+    delete pending.top();
+    pending.pop();
+  }
+
+  if (socketFd != -1) close(socketFd);
+}
+
+int64_t ImpairmentProxy::nowMicros() {
+  struct timespec now;
+  clock_gettime(CLOCK_MONOTONIC, &now);
+  return (int64_t)now.tv_sec * 1000000 + now.tv_nsec / 1000 - epochMicros;
+}
+
+int ImpairmentProxy::init(int localPort) {
+  struct sockaddr_in local;
+
+  if ((socketFd = socket(AF_INET, SOCK_DGRAM, 0)) == -1) {
+    perror("socket");
+    return -1;
+  }
+
+  memset(&local, 0, sizeof(local));
+  local.sin_family      = AF_INET;
+  local.sin_port        = htons(localPort);
+  local.sin_addr.s_addr = htonl(INADDR_LOOPBACK);
+
+  if (bind(socketFd, (struct sockaddr*)&local, sizeof(local)) == -1) {
+    perror("bind");
+    return -1;
+  }
+
+  return 0;
+}
+
+int ImpairmentProxy::getLocalPort() {
+  struct sockaddr_in local;
+  socklen_t          localLen = sizeof(local);
+
+  if (getsockname(socketFd, (struct sockaddr*)&local, &localLen) == -1) {
+    return -1;
+  }
+
+  return ntohs(local.sin_port);
+}
+
+static int sameAddress(struct sockaddr_in &a, struct sockaddr_in &b) {
+  return a.sin_port == b.sin_port && a.sin_addr.s_addr == b.sin_addr.s_addr;
+}
+
+void ImpairmentProxy::receive() {
+  char               buffer[MAX_DATAGRAM];
+  struct sockaddr_in source;
+  socklen_t          sourceLen = sizeof(source);
+  int                length    = recvfrom(socketFd, buffer, sizeof(buffer), 0,
+                                          (struct sockaddr*)&source, &sourceLen);
+
+  if (length < 0) return;
+
+  int outbound = !(sameAddress(source, target) && haveClient);
+
+  if (outbound) {
+    client     = source;
+    haveClient = 1;
+  }
+
+  int64_t deliveries[2];
+  int     copies = (outbound ? outboundModel : returnModel).schedule(nowMicros(), length, deliveries);
+
+  received++;
+
+  for (int i=0;i<copies;i++) {
+    PendingDatagram *datagram = new PendingDatagram();
+    datagram->deliveryMicros  = deliveries[i];
+    datagram->order           = order++;
+    datagram->destination     = outbound ? target : client;
+    datagram->data.assign(buffer, buffer + length);
+
+    pending.push(datagram);
+  }
+}
+
+void ImpairmentProxy::deliver() {
+  int64_t now = nowMicros();
+
+  while (!pending.empty() && pending.top()->deliveryMicros <= now) {
+    PendingDatagram *datagram = pending.top();
+    pending.pop();
+
+    if (sendto(socketFd, &datagram->data[0], datagram->data.size(), 0,
+               (struct sockaddr*)&datagram->destination, sizeof(datagram->destination)) != -1)
+    {
+      delivered++;
+    }
+
+    delete datagram;
+  }
+}
+
+void ImpairmentProxy::run() {
+  struct pollfd descriptor;
+  descriptor.fd     = socketFd;
+  descriptor.events = POLLIN;
+
+  while (running) {
+    int timeoutMillis = IDLE_POLL_MILLIS;
+
+    if (!pending.empty()) {
+      int64_t wait  = pending.top()->deliveryMicros - nowMicros();
+      timeoutMillis = wait <= 0 ? 0 : (int)((wait + 999) / 1000);
+      if (timeoutMillis > IDLE_POLL_MILLIS) timeoutMillis = IDLE_POLL_MILLIS;
+    }
+
+    if (poll(&descriptor, 1, timeoutMillis) > 0 && (descriptor.revents & POLLIN)) {
+      receive();
+    }
+
+    deliver();
+  }
+}
+
+void* ImpairmentProxy::run(void *context) {
+  static_cast<ImpairmentProxy*>(context)->run();
+  return NULL;
+}
+
+int ImpairmentProxy::start() {
+  running = 1;
+  return pthread_create(&thread, NULL, &ImpairmentProxy::run, this) == 0 ? 0 : -1;
+}
+
+void ImpairmentProxy::stop() {
+  if (running) {
+    running = 0;
+    pthread_join(thread, NULL);
+  }
+}
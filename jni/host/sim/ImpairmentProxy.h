@@ -0,0 +1,72 @@
+#ifndef __IMPAIRMENT_PROXY_H__
+#define __IMPAIRMENT_PROXY_H__
+
+#include "ImpairmentModel.h"
+
+#include <netinet/in.h>
+#include <pthread.h>
+#include <stdint.h>
+
+#include <queue>
+#include <vector>
+
+/*
+ * Host-side counterpart of org.thoughtcrime.mannycalls.network.ImpairmentProxy.
+ * Datagrams from the target go to the last client to send to us, and
+ * everything else goes to the target, each direction through its own
+ * ImpairmentModel.
+ */
+
+typedef struct _PendingDatagram {
+  int64_t            deliveryMicros;
+  uint64_t           order;
+  struct sockaddr_in destination;
+  std::vector<char>  data;
+} PendingDatagram;
+
+class ComparePendingDatagram {
+  public:
+    bool operator()(const PendingDatagram *lh, const PendingDatagram *rh) {
+      if (lh->deliveryMicros != rh->deliveryMicros) return lh->deliveryMicros > rh->deliveryMicros;
+      return lh->order > rh->order;
+    }
+};
+
+class ImpairmentProxy {
+
+private:
+  int                socketFd;
+  volatile int       running;
+  struct sockaddr_in target;
+  struct sockaddr_in client;
+  int                haveClient;
+  ImpairmentModel    outboundModel;
+  ImpairmentModel    returnModel;
+  int64_t            epochMicros;
+  uint64_t           order;
+  pthread_t          thread;
+
+  std::priority_queue<PendingDatagram*, std::vector<PendingDatagram*>, ComparePendingDatagram> pending;
+
+  int64_t nowMicros();
+  void receive();
+  void deliver();
+
+public:
+  uint64_t received;
+  uint64_t delivered;
+
+  ImpairmentProxy(struct sockaddr_in &target, ImpairmentProfile &profile);
+  ~ImpairmentProxy();
+
+  int init(int localPort);
+  int getLocalPort();
+
+  int start();
+  void run();
+  void stop();
+
+  static void* run(void *context);
+};
+
+#endif
@@ -0,0 +1,70 @@
+/*
+ * Standalone impairment proxy, for running host-side tools or a device
+ * (through "adb reverse") over a reproducibly bad network.
+ *
+ *   impairment_proxy <listen_port> <target_ip> <target_port> <spec>
+ *
+ * <spec> uses the same format as the "Loopback network impairment" debug
+ * preference, e.g. "seed=1,loss=0.02,burst=0.01/0.3,delay=60,jitter=30".
+ */
+
+#include "ImpairmentProxy.h"
+
+#include <arpa/inet.h>
+#include <signal.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+
+static volatile int interrupted = 0;
+
+static void handleSignal(int signal) {
+  interrupted = 1;
+}
+
+int main(int argc, char **argv) {
+  if (argc != 5) {
+    fprintf(stderr, "Usage: %s <listen_port> <target_ip> <target_port> <spec>\n", argv[0]);
+    return 1;
+  }
+
+  ImpairmentProfile  profile;
+  struct sockaddr_in target;
+
+  if (profile.parse(argv[4]) != 0) {
+    fprintf(stderr, "Invalid impairment spec: %s\n", argv[4]);
+    return 1;
+  }
+
+  memset(&target, 0, sizeof(target));
+  target.sin_family = AF_INET;
+  target.sin_port   = htons(atoi(argv[3]));
+
+  if (inet_aton(argv[2], &target.sin_addr) == 0) {
+    fprintf(stderr, "Invalid target address: %s\n", argv[2]);
+    return 1;
+  }
+
+  ImpairmentProxy proxy(target, profile);
+
+  if (proxy.init(atoi(argv[1])) != 0 || proxy.start() != 0) {
+    return 1;
+  }
+
+  signal(SIGINT, handleSignal);
+  signal(SIGTERM, handleSignal);
+
+  fprintf(stderr, "Relaying 127.0.0.1:%d -> %s:%s\n", proxy.getLocalPort(), argv[2], argv[3]);
+
+  while (!interrupted) {
+    sleep(1);
+  }
+
+  proxy.stop();
+
+  fprintf(stderr, "Relayed %llu datagrams for %llu received\n",
+          (unsigned long long)proxy.delivered, (unsigned long long)proxy.received);
+
+  return 0;
+}
@@ -0,0 +1,206 @@
+/*
+ * Host tests for the impairment simulator: the model must agree with the
+ * Java implementation draw for draw, behave as configured in aggregate,
+ * and the UDP proxy must deliver exactly what the model decides.
+ */
+
+#include "sim/ImpairmentModel.h"
+#include "sim/ImpairmentProxy.h"
+
+#include <arpa/inet.h>
+#include <stdio.h>
+#include <string.h>
+#include <sys/socket.h>
+#include <sys/time.h>
+#include <unistd.h>
+
+static int failures = 0;
+
+#define CHECK(condition) do {                                              \
+    if (!(condition)) {                                                    \
+      fprintf(stderr, "%s:%d: CHECK failed: %s\n", __FILE__, __LINE__, #condition); \
+      failures++;                                                          \
+    }                                                                      \
+  } while (0)
+
+#define GOLDEN_SPEC "seed=42,loss=0.1,burst=0.05/0.5,delay=40,jitter=20,reorder=0.05,duplicate=0.05,kbps=64"
+
+// Produced by org.thoughtcrime.mannycalls.network.ImpairmentModel for GOLDEN_SPEC,
+// stream 0, one 60 byte packet every 20ms.
+static const int64_t golden[][3] = {
+  {2, 53072LL, 54072LL},
+  {1, 83512LL},
+  {1, 97767LL},
+  {1, 117409LL},
+  {0},
+  {1, 163209LL},
+  {1, 180441LL},
+  {0},
+  {1, 212961LL},
+  {0},
+  {2, 250586LL, 251586LL},
+  {2, 278619LL, 279619LL},
+  {1, 339690LL},
+  {1, 313670LL},
+  {1, 330777LL},
+  {0},
+};
+
+static void testMatchesJavaModel() {
+  ImpairmentProfile profile;
+  CHECK(profile.parse(GOLDEN_SPEC) == 0);
+
+  ImpairmentModel model(profile, 0);
+
+  for (size_t i=0;i<sizeof(golden)/sizeof(golden[0]);i++) {
+    int64_t deliveries[2];
+    int     copies = model.schedule(i * 20000LL, 60, deliveries);
+
+    CHECK(copies == golden[i][0]);
+
+    for (int j=0;j<copies && j<golden[i][0];j++) {
+      CHECK(deliveries[j] == golden[i][j + 1]);
+    }
+  }
+}
+
+static void testRandomLossRate() {
+  ImpairmentProfile profile;
+  CHECK(profile.parse("seed=7,loss=0.05") == 0);
+
+  ImpairmentModel model(profile, 0);
+  int             lost = 0;
+
+  for (int i=0;i<100000;i++) {
+    int64_t deliveries[2];
+    if (model.schedule(i * 20000LL, 60, deliveries) == 0) lost++;
+  }
+
+  CHECK(lost > 4700 && lost < 5300);
+}
+
+static void testBurstLength() {
+  ImpairmentProfile profile;
+  CHECK(profile.parse("seed=9,burst=0.02/0.25") == 0);
+
+  ImpairmentModel model(profile, 0);
+  int bursts = 0, lost = 0, inBurst = 0;
+
+  for (int i=0;i<200000;i++) {
+    int64_t deliveries[2];
+    int     dropped = model.schedule(i * 20000LL, 60, deliveries) == 0;
+
+    if (dropped && !inBurst) bursts++;
+    if (dropped)             lost++;
+    inBurst = dropped;
+  }
+
+  double meanBurst = (double)lost / bursts;
+  CHECK(meanBurst > 3.6 && meanBurst < 4.4);  // 1/r
+}
+
+static void testJitterPreservesOrder() {
+  ImpairmentProfile profile;
+  CHECK(profile.parse("seed=3,delay=50,jitter=80") == 0);
+
+  ImpairmentModel model(profile, 0);
+  int64_t         last = 0;
+
+  for (int i=0;i<10000;i++) {
+    int64_t deliveries[2];
+    CHECK(model.schedule(i * 20000LL, 60, deliveries) == 1);
+    CHECK(deliveries[0] >= last);
+    CHECK(deliveries[0] >= i * 20000LL + 50000);
+    last = deliveries[0];
+  }
+}
+
+static void testBandwidthCap() {
+  ImpairmentProfile profile;
+  CHECK(profile.parse("kbps=8") == 0);
+
+  ImpairmentModel model(profile, 0);
+  int64_t         deliveries[2];
+
+  // 100 bytes at 8kbps is 100ms on the wire, so back-to-back packets queue.
+  model.schedule(0, 100, deliveries);
+  CHECK(deliveries[0] == 100000);
+  model.schedule(0, 100, deliveries);
+  CHECK(deliveries[0] == 200000);
+}
+
+static int openSocket(struct sockaddr_in *address) {
+  int       fd         = socket(AF_INET, SOCK_DGRAM, 0);
+  socklen_t addressLen = sizeof(*address);
+
+  memset(address, 0, sizeof(*address));
+  address->sin_family      = AF_INET;
+  address->sin_addr.s_addr = htonl(INADDR_LOOPBACK);
+
+  bind(fd, (struct sockaddr*)address, sizeof(*address));
+  getsockname(fd, (struct sockaddr*)address, &addressLen);
+
+  struct timeval timeout = {0, 300000};
+  setsockopt(fd, SOL_SOCKET, SO_RCVTIMEO, &timeout, sizeof(timeout));
+
+  return fd;
+}
+
+static void testProxyDeliversModelDecisions() {
+  const char        *spec = "seed=5,loss=0.1,duplicate=0.05";
+  struct sockaddr_in senderAddress, receiverAddress, proxyAddress;
+  int                sender   = openSocket(&senderAddress);
+  int                receiver = openSocket(&receiverAddress);
+
+  ImpairmentProfile profile;
+  CHECK(profile.parse(spec) == 0);
+
+  ImpairmentProxy proxy(receiverAddress, profile);
+  CHECK(proxy.init(0) == 0);
+  CHECK(proxy.start() == 0);
+
+  memset(&proxyAddress, 0, sizeof(proxyAddress));
+  proxyAddress.sin_family      = AF_INET;
+  proxyAddress.sin_port        = htons(proxy.getLocalPort());
+  proxyAddress.sin_addr.s_addr = htonl(INADDR_LOOPBACK);
+
+  ImpairmentModel expectedModel(profile, 0);
+  int             expected = 0;
+  char            packet[60];
+
+  memset(packet, 0, sizeof(packet));
+
+  for (int i=0;i<200;i++) {
+    int64_t deliveries[2];
+    expected += expectedModel.schedule(0, sizeof(packet), deliveries);
+    sendto(sender, packet, sizeof(packet), 0, (struct sockaddr*)&proxyAddress, sizeof(proxyAddress));
+    usleep(200);
+  }
+
+  int  received = 0;
+  char buffer[128];
+
+  while (recv(receiver, buffer, sizeof(buffer), 0) > 0) {
+    received++;
+  }
+
+  proxy.stop();
+
+  CHECK(proxy.received == 200);
+  CHECK(received == expected);
+
+  close(sender);
+  close(receiver);
+}
+
+int main(int argc, char **argv) {
+  testMatchesJavaModel();
+  testRandomLossRate();
+  testBurstLength();
+  testJitterPreservesOrder();
+  testBandwidthCap();
+  testProxyDeliversModelDecisions();
+
+  if (failures == 0) printf("ImpairmentTest: all tests passed\n");
+  return failures == 0 ? 0 : 1;
+}
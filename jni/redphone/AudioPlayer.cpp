@@ -7,7 +7,7 @@
 #define TAG "AudioPlayer"
 
 AudioPlayer::AudioPlayer(WebRtcJitterBuffer &webRtcJitterBuffer, AudioCodec &audioCodec) :
-  webRtcJitterBuffer(webRtcJitterBuffer), audioCodec(audioCodec),
+  webRtcJitterBuffer(webRtcJitterBuffer), audioCodec(audioCodec), latencyProbe(NULL), queuedSamples(0),
   bqPlayerObject(NULL), bqPlayerPlay(NULL), outputMixObject(NULL), bqPlayerBufferQueue(NULL)
 {
 }
@@ -21,11 +21,28 @@ void AudioPlayer::playerCallback(SLAndroidSimpleBufferQueueItf bufferQueue, void
 }
 
 void AudioPlayer::playerCallback(SLAndroidSimpleBufferQueueItf bufferQueue) {
-  int samples = webRtcJitterBuffer.getAudio(outputBuffer, FRAME_SIZE);
+  int64_t decodeStart = latencyProbe != NULL ? LatencyProbe::now() : 0;
+  int     samples     = webRtcJitterBuffer.getAudio(outputBuffer, FRAME_SIZE);
+
+  if (latencyProbe != NULL) {
+    uint32_t playoutTimestamp;
+
+    if (webRtcJitterBuffer.getPlayoutTimestamp(&playoutTimestamp)) {
+      latencyProbe->played(playoutTimestamp, decodeStart, LatencyProbe::now(), queuedSamples);
+    }
+  }
+
+  // With two buffers in the queue, what we enqueue now plays after this one.
+  queuedSamples = samples;
+
 //  __android_log_print(ANDROID_LOG_WARN, TAG, "Jitter gave me: %d samples", samples);
   (*bufferQueue)->Enqueue(bufferQueue, outputBuffer, samples * sizeof(short));
 }
 
+void AudioPlayer::setLatencyProbe(LatencyProbe *latencyProbe) {
+  this->latencyProbe = latencyProbe;
+}
+
 int AudioPlayer::start(SLEngineItf *engineEnginePtr) {
   SLEngineItf engineEngine = *engineEnginePtr;
 
@@ -96,6 +113,7 @@ int AudioPlayer::start(SLEngineItf *engineEnginePtr) {
   }
 
   memset(outputBuffer, 0, FRAME_SIZE * sizeof(short));
+  queuedSamples = FRAME_SIZE;
 
   if ((*bqPlayerBufferQueue)->Enqueue(bqPlayerBufferQueue, outputBuffer, FRAME_SIZE * sizeof(short)) != SL_RESULT_SUCCESS) {
     __android_log_print(ANDROID_LOG_WARN, TAG, "Player enqueue failed!");
@@ -8,6 +8,7 @@
 #include "WebRtcJitterBuffer.h"
 #include "AudioCodec.h"
 #include "JitterBuffer.h"
+#include "LatencyProbe.h"
 
 #define SAMPLE_RATE 8000
 #define FRAME_RATE  50
@@ -19,6 +20,8 @@ private:
 // JitterBuffer &jitterBuffer;
  WebRtcJitterBuffer &webRtcJitterBuffer;
  AudioCodec &audioCodec;
+ LatencyProbe *latencyProbe;
+ int queuedSamples;
 
 // int sampleRate;
 // int bufferFrames;
@@ -37,6 +40,7 @@ public:
 
   int start(SLEngineItf *engineEngine);
   void stop();
+  void setLatencyProbe(LatencyProbe *latencyProbe);
 
   static void playerCallback(SLAndroidSimpleBufferQueueItf bufferQueue, void *context);
   void playerCallback(SLAndroidSimpleBufferQueueItf bufferQueue);
@@ -19,6 +19,8 @@
 
 #define TAG "CallAudioManager"
 
+#define LATENCY_REPORT_SIZE 16384
+
 CallAudioManager::CallAudioManager(int androidSdkVersion, int socketFd,
                                    struct sockaddr *sockAddr, int sockAddrLen,
                                    SrtpStreamParameters *senderParameters, SrtpStreamParameters *receiverParameters)
@@ -27,7 +29,7 @@ CallAudioManager::CallAudioManager(int androidSdkVersion, int socketFd,
     audioReceiver(socketFd, receiverParameters),
     webRtcJitterBuffer(audioCodec), clock(),
     microphoneReader(androidSdkVersion, audioCodec, audioSender, clock),
-    audioPlayer(webRtcJitterBuffer, audioCodec),
+    audioPlayer(webRtcJitterBuffer, audioCodec), latencyProbe(NULL),
     sockAddr(sockAddr)
 {
 }
@@ -57,6 +59,10 @@ CallAudioManager::~CallAudioManager() {
     free(sockAddr);
   }
 
+  if (latencyProbe != NULL) {
+    delete latencyProbe;
+  }
+
   if (engineObject != NULL) {
     (*engineObject)->Destroy(engineObject);
   }
@@ -124,6 +130,10 @@ int CallAudioManager::start() {
 
     if (packet != NULL) {
 
+      if (latencyProbe != NULL) {
+        latencyProbe->received(packet->getTimestamp(), LatencyProbe::now());
+      }
+
       if (packet->getTimestamp() == 0) {
         packet->setTimestamp(clock.getImprovisedTimestamp(packet->getPayloadLen()));
       }
@@ -165,6 +175,32 @@ void CallAudioManager::setMute(int muteEnabled) {
   microphoneReader.setMute(muteEnabled);
 }
 
+void CallAudioManager::setJitterBufferProfile(JitterBufferProfile &profile) {
+  webRtcJitterBuffer.setProfile(profile);
+}
+
+/*
+ * Must be called before start(), since the audio callbacks don't
+ * synchronize on the probe pointer.
+ */
+void CallAudioManager::enableLatencyProbe() {
+  if (latencyProbe != NULL) return;
+
+  latencyProbe = new LatencyProbe(SPEEX_SAMPLE_RATE, 2 * SPEEX_FRAME_SIZE);
+
+  microphoneReader.setLatencyProbe(latencyProbe);
+  audioPlayer.setLatencyProbe(latencyProbe);
+}
+
+int CallAudioManager::getLatencyReport(char *buffer, int bufferLen) {
+  if (latencyProbe == NULL) {
+    buffer[0] = '\0';
+    return 0;
+  }
+
+  return latencyProbe->getReport(buffer, bufferLen);
+}
+
 static void constructSockAddr(JNIEnv *env, jstring serverIpString, jint serverPort,
                               struct sockaddr** result, int *resultLen)
 {
@@ -277,6 +313,34 @@ void JNICALL Java_org_thoughtcrime_redphone_audio_CallAudioManager_setMute
   manager->setMute(muteEnabled);
 }
 
+void JNICALL Java_org_thoughtcrime_redphone_audio_CallAudioManager_setJitterBufferProfile
+(JNIEnv *env, jobject obj, jlong handle, jint minDelayMs, jint maxDelayMs, jint maxPacketsInBuffer,
+ jint backgroundNoiseMode, jint playoutMode)
+{
+  CallAudioManager    *manager = reinterpret_cast<CallAudioManager *>(handle);
+  JitterBufferProfile profile(minDelayMs, maxDelayMs, maxPacketsInBuffer, backgroundNoiseMode, playoutMode);
+
+  manager->setJitterBufferProfile(profile);
+}
+
+void JNICALL Java_org_thoughtcrime_redphone_audio_CallAudioManager_enableLatencyProbe
+(JNIEnv *env, jobject obj, jlong handle)
+{
+  CallAudioManager *manager = reinterpret_cast<CallAudioManager*>(handle);
+  manager->enableLatencyProbe();
+}
+
+jstring JNICALL Java_org_thoughtcrime_redphone_audio_CallAudioManager_getLatencyReport
+(JNIEnv *env, jobject obj, jlong handle)
+{
+  CallAudioManager *manager = reinterpret_cast<CallAudioManager*>(handle);
+  char             report[LATENCY_REPORT_SIZE];
+
+  manager->getLatencyReport(report, sizeof(report));
+
+  return env->NewStringUTF(report);
+}
+
 void JNICALL Java_org_thoughtcrime_redphone_audio_CallAudioManager_stop
 (JNIEnv *env, jobject obj, jlong handle)
 {
@@ -10,6 +10,7 @@
 
 #include "SrtpStream.h"
 #include "Clock.h"
+#include "LatencyProbe.h"
 
 class CallAudioManager {
 
@@ -25,6 +26,7 @@ private:
   Clock              clock;
   MicrophoneReader   microphoneReader;
   AudioPlayer        audioPlayer;
+  LatencyProbe       *latencyProbe;
   struct sockaddr    *sockAddr;
   pthread_cond_t     condition;
   pthread_mutex_t    mutex;
@@ -40,6 +42,9 @@ public:
   void stop();
 
   void setMute(int muteEnabled);
+  void setJitterBufferProfile(JitterBufferProfile &profile);
+  void enableLatencyProbe();
+  int getLatencyReport(char *buffer, int bufferLen);
   int isFinished();
 };
 
@@ -62,6 +67,15 @@ JNIEXPORT void JNICALL Java_org_thoughtcrime_redphone_audio_CallAudioManager_sto
 JNIEXPORT void JNICALL Java_org_thoughtcrime_redphone_audio_CallAudioManager_setMute
   (JNIEnv *, jobject, jlong, jboolean);
 
+JNIEXPORT void JNICALL Java_org_thoughtcrime_redphone_audio_CallAudioManager_setJitterBufferProfile
+  (JNIEnv *, jobject, jlong, jint, jint, jint, jint, jint);
+
+JNIEXPORT void JNICALL Java_org_thoughtcrime_redphone_audio_CallAudioManager_enableLatencyProbe
+  (JNIEnv *, jobject, jlong);
+
+JNIEXPORT jstring JNICALL Java_org_thoughtcrime_redphone_audio_CallAudioManager_getLatencyReport
+  (JNIEnv *, jobject, jlong);
+
 JNIEXPORT void JNICALL Java_org_thoughtcrime_redphone_audio_CallAudioManager_dispose
   (JNIEnv *, jobject, jlong);
 
@@ -0,0 +1,231 @@
+#include "LatencyProbe.h"
+
+#include <stdio.h>
+#include <string.h>
+#include <time.h>
+
+static const char* stageNames[kStageCount] = {
+  "capture_queue", "encode", "send", "network", "jitter_wait", "decode", "playout_queue", "total"
+};
+
+LatencyHistogram::LatencyHistogram() :
+  count(0), sumMicros(0), maxMicros(0)
+{
+  memset(buckets, 0, sizeof(buckets));
+}
+
+void LatencyHistogram::add(int64_t micros) {
+  if (micros < 0) micros = 0;
+
+  int64_t index = micros / (LATENCY_HISTOGRAM_WIDTH_MS * 1000);
+
+  if (index > LATENCY_HISTOGRAM_BUCKETS) index = LATENCY_HISTOGRAM_BUCKETS;
+
+  buckets[index]++;
+  count++;
+  sumMicros += micros;
+
+  if (micros > maxMicros) maxMicros = micros;
+}
+
+uint32_t LatencyHistogram::getCount() {
+  return count;
+}
+
+uint32_t LatencyHistogram::getBucket(int index) {
+  return buckets[index];
+}
+
+double LatencyHistogram::getMeanMillis() {
+  if (count == 0) return 0;
+  return sumMicros / 1000.0 / count;
+}
+
+double LatencyHistogram::getMaxMillis() {
+  return maxMicros / 1000.0;
+}
+
+/*
+ * Resolution is the bucket width: this reports the upper edge of the
+ * bucket the percentile falls in, capped at the observed maximum.
+ */
+double LatencyHistogram::getPercentileMillis(double fraction) {
+  if (count == 0) return 0;
+
+  uint32_t target     = (uint32_t)(fraction * count);
+  uint32_t cumulative = 0;
+
+  for (int i=0;i<=LATENCY_HISTOGRAM_BUCKETS;i++) {
+    cumulative += buckets[i];
+
+    if (cumulative > target) {
+      double upperEdge = (i + 1) * LATENCY_HISTOGRAM_WIDTH_MS;
+      return upperEdge < getMaxMillis() ? upperEdge : getMaxMillis();
+    }
+  }
+
+  return getMaxMillis();
+}
+
+LatencyProbe::LatencyProbe(int sampleRate, int samplesPerFrame) :
+  sampleRate(sampleRate), samplesPerFrame(samplesPerFrame),
+  captureQueueMicros((int64_t)samplesPerFrame * 1000000 / sampleRate),
+  nextPlayout(0), playoutStarted(0)
+{
+  memset(frames, 0, sizeof(frames));
+  pthread_mutex_init(&lock, NULL);
+}
+
+LatencyProbe::~LatencyProbe() {
+  pthread_mutex_destroy(&lock);
+}
+
+int64_t LatencyProbe::now() {
+  struct timespec time;
+  clock_gettime(CLOCK_MONOTONIC, &time);
+
+  return (int64_t)time.tv_sec * 1000000 + time.tv_nsec / 1000;
+}
+
+LatencyProbe::Frame* LatencyProbe::getFrame(uint32_t timestamp) {
+  return &frames[(timestamp / samplesPerFrame) % LATENCY_PROBE_SLOTS];
+}
+
+void LatencyProbe::captured(uint32_t timestamp, int64_t micros) {
+  pthread_mutex_lock(&lock);
+
+  Frame *frame = getFrame(timestamp);
+  memset(frame, 0, sizeof(Frame));
+
+  frame->timestamp = timestamp;
+  frame->captured  = micros;
+
+  pthread_mutex_unlock(&lock);
+}
+
+void LatencyProbe::encoded(uint32_t timestamp, int64_t micros) {
+  pthread_mutex_lock(&lock);
+
+  Frame *frame = getFrame(timestamp);
+  if (frame->timestamp == timestamp) frame->encoded = micros;
+
+  pthread_mutex_unlock(&lock);
+}
+
+void LatencyProbe::sent(uint32_t timestamp, int64_t micros) {
+  pthread_mutex_lock(&lock);
+
+  Frame *frame = getFrame(timestamp);
+  if (frame->timestamp == timestamp) frame->sent = micros;
+
+  pthread_mutex_unlock(&lock);
+}
+
+void LatencyProbe::received(uint32_t timestamp, int64_t micros) {
+  pthread_mutex_lock(&lock);
+
+  Frame *frame = getFrame(timestamp);
+
+  if (frame->timestamp == timestamp && frame->received == 0) {
+    frame->received = micros;
+
+    if (!playoutStarted) {
+      nextPlayout    = timestamp;
+      playoutStarted = 1;
+    }
+  }
+
+  pthread_mutex_unlock(&lock);
+}
+
+/*
+ * Called after each pull from the jitter buffer with the RTP timestamp
+ * it has now played out to, and how much audio is queued for playback
+ * ahead of what was just pulled.  Every frame at or before that point
+ * that we saw arrive is complete; frames that never arrived, or arrived
+ * too late to be played, are simply not counted.
+ */
+void LatencyProbe::played(uint32_t playoutTimestamp, int64_t decodeStart, int64_t decodeEnd,
+                          int queuedSamples)
+{
+  int64_t playoutQueueMicros = (int64_t)queuedSamples * 1000000 / sampleRate;
+
+  pthread_mutex_lock(&lock);
+
+  if (playoutStarted) {
+    int32_t behind = (int32_t)(playoutTimestamp - nextPlayout) / samplesPerFrame;
+
+    if (behind >= LATENCY_PROBE_SLOTS) {
+      nextPlayout += (behind - LATENCY_PROBE_SLOTS + 1) * samplesPerFrame;
+    }
+
+    while ((int32_t)(playoutTimestamp - nextPlayout) >= 0) {
+      Frame *frame = getFrame(nextPlayout);
+
+      if (frame->timestamp == nextPlayout && frame->received != 0) {
+        complete(frame, decodeStart, decodeEnd, playoutQueueMicros);
+        memset(frame, 0, sizeof(Frame));
+      }
+
+      nextPlayout += samplesPerFrame;
+    }
+  }
+
+  pthread_mutex_unlock(&lock);
+}
+
+void LatencyProbe::complete(Frame *frame, int64_t decodeStart, int64_t decodeEnd,
+                            int64_t playoutQueueMicros)
+{
+  if (frame->encoded == 0 || frame->sent == 0) return;
+
+  histograms[kStageCaptureQueue].add(captureQueueMicros);
+  histograms[kStageEncode].add(frame->encoded - frame->captured);
+  histograms[kStageSend].add(frame->sent - frame->encoded);
+  histograms[kStageNetwork].add(frame->received - frame->sent);
+  histograms[kStageJitterWait].add(decodeStart - frame->received);
+  histograms[kStageDecode].add(decodeEnd - decodeStart);
+  histograms[kStagePlayoutQueue].add(playoutQueueMicros);
+  histograms[kStageTotal].add(captureQueueMicros + (decodeEnd - frame->captured) + playoutQueueMicros);
+}
+
+/*
+ * A plain-text report: a per-stage summary table followed by the total
+ * latency histogram, one "<bucket_start_ms> <count>" line per non-empty
+ * bucket, which is easy to diff or plot from one build to the next.
+ */
+int LatencyProbe::getReport(char *buffer, int bufferLen) {
+  int offset = 0;
+
+  pthread_mutex_lock(&lock);
+
+  offset += snprintf(buffer + offset, bufferLen - offset, "%-14s %8s %8s %8s %8s %8s %8s\n",
+                     "stage", "count", "mean_ms", "p50_ms", "p95_ms", "p99_ms", "max_ms");
+
+  for (int i=0;i<kStageCount && offset < bufferLen;i++) {
+    LatencyHistogram &histogram = histograms[i];
+
+    offset += snprintf(buffer + offset, bufferLen - offset,
+                       "%-14s %8u %8.1f %8.1f %8.1f %8.1f %8.1f\n",
+                       stageNames[i], histogram.getCount(), histogram.getMeanMillis(),
+                       histogram.getPercentileMillis(0.50), histogram.getPercentileMillis(0.95),
+                       histogram.getPercentileMillis(0.99), histogram.getMaxMillis());
+  }
+
+  if (offset < bufferLen) {
+    offset += snprintf(buffer + offset, bufferLen - offset, "\n# total_ms count\n");
+  }
+
+  for (int i=0;i<=LATENCY_HISTOGRAM_BUCKETS && offset < bufferLen;i++) {
+    uint32_t count = histograms[kStageTotal].getBucket(i);
+
+    if (count != 0) {
+      offset += snprintf(buffer + offset, bufferLen - offset, "%d %u\n",
+                         i * LATENCY_HISTOGRAM_WIDTH_MS, count);
+    }
+  }
+
+  pthread_mutex_unlock(&lock);
+
+  return offset < bufferLen ? offset : bufferLen - 1;
+}
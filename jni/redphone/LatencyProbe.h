@@ -0,0 +1,91 @@
+#ifndef __LATENCY_PROBE_H__
+#define __LATENCY_PROBE_H__
+
+#include <stdint.h>
+#include <pthread.h>
+
+#define LATENCY_PROBE_SLOTS        256
+#define LATENCY_HISTOGRAM_BUCKETS  1000
+#define LATENCY_HISTOGRAM_WIDTH_MS 1
+
+enum LatencyStage {
+  kStageCaptureQueue = 0,
+  kStageEncode,
+  kStageSend,
+  kStageNetwork,
+  kStageJitterWait,
+  kStageDecode,
+  kStagePlayoutQueue,
+  kStageTotal,
+  kStageCount
+};
+
+class LatencyHistogram {
+
+private:
+  uint32_t buckets[LATENCY_HISTOGRAM_BUCKETS + 1];
+  uint32_t count;
+  int64_t  sumMicros;
+  int64_t  maxMicros;
+
+public:
+  LatencyHistogram();
+
+  void add(int64_t micros);
+  uint32_t getCount();
+  uint32_t getBucket(int index);
+  double getMeanMillis();
+  double getMaxMillis();
+  double getPercentileMillis(double fraction);
+};
+
+/*
+ * Follows each outgoing frame, by RTP timestamp, through capture, encode,
+ * SRTP/send, the network, the jitter buffer, decode and playout.  This only
+ * works where we receive our own stream back, which is to say on loopback
+ * calls.
+ *
+ * The OpenSL capture and playout queues don't report when a sample was
+ * actually recorded or played, so those two stages are the duration of
+ * the audio buffered in them rather than a measurement.
+ */
+class LatencyProbe {
+
+private:
+  typedef struct _Frame {
+    uint32_t timestamp;
+    int64_t  captured;
+    int64_t  encoded;
+    int64_t  sent;
+    int64_t  received;
+  } Frame;
+
+  pthread_mutex_t  lock;
+  Frame            frames[LATENCY_PROBE_SLOTS];
+  LatencyHistogram histograms[kStageCount];
+
+  int      sampleRate;
+  int      samplesPerFrame;
+  int64_t  captureQueueMicros;
+  uint32_t nextPlayout;
+  int      playoutStarted;
+
+  Frame* getFrame(uint32_t timestamp);
+  void   complete(Frame *frame, int64_t decodeStart, int64_t decodeEnd, int64_t playoutQueueMicros);
+
+public:
+  LatencyProbe(int sampleRate, int samplesPerFrame);
+  ~LatencyProbe();
+
+  static int64_t now();
+
+  void captured(uint32_t timestamp, int64_t micros);
+  void encoded(uint32_t timestamp, int64_t micros);
+  void sent(uint32_t timestamp, int64_t micros);
+  void received(uint32_t timestamp, int64_t micros);
+  void played(uint32_t playoutTimestamp, int64_t decodeStart, int64_t decodeEnd, int queuedSamples);
+
+  int getReport(char *buffer, int bufferLen);
+};
+
+#endif
@@ -13,7 +13,7 @@
 
 MicrophoneReader::MicrophoneReader(int androidSdkVersion, AudioCodec &audioCodec, RtpAudioSender &rtpAudioSender, Clock &clock) :
   androidSdkVersion(androidSdkVersion), muteEnabled(0),
-  audioCodec(audioCodec), rtpAudioSender(rtpAudioSender), clock(clock),
+  audioCodec(audioCodec), rtpAudioSender(rtpAudioSender), clock(clock), latencyProbe(NULL),
   recorderObject(NULL), recorderRecord(NULL), recorderBufferQueue(NULL)
 {
 }
@@ -28,6 +28,8 @@ void MicrophoneReader::recorderCallback(SLAndroidSimpleBufferQueueItf bufferQueu
 
 void MicrophoneReader::recorderCallback(SLAndroidSimpleBufferQueueItf bufferQueue)
 {
+  int64_t capturedAt = latencyProbe != NULL ? LatencyProbe::now() : 0;
+
   if (muteEnabled) {
     memset(inputBuffer, 0, FRAME_SIZE * 2 * sizeof(short));
   }
@@ -35,7 +37,18 @@ void MicrophoneReader::recorderCallback(SLAndroidSimpleBufferQueueItf bufferQueu
   int encodedAudioLen = audioCodec.encode(inputBuffer, encodedAudio, sizeof(encodedAudio));
   encodedAudioLen += audioCodec.encode(inputBuffer + FRAME_SIZE, encodedAudio + encodedAudioLen, sizeof(encodedAudio) - encodedAudioLen);
 
-  rtpAudioSender.send(clock.tick(2), encodedAudio, encodedAudioLen);
+  uint32_t timestamp = clock.tick(2);
+
+  if (latencyProbe != NULL) {
+    latencyProbe->captured(timestamp, capturedAt);
+    latencyProbe->encoded(timestamp, LatencyProbe::now());
+  }
+
+  rtpAudioSender.send(timestamp, encodedAudio, encodedAudioLen);
+
+  if (latencyProbe != NULL) {
+    latencyProbe->sent(timestamp, LatencyProbe::now());
+  }
 
   (*bufferQueue)->Enqueue(bufferQueue, inputBuffer, FRAME_SIZE * 2 * sizeof(short));
 }
@@ -44,6 +57,10 @@ void MicrophoneReader::setMute(int muteEnabled) {
   this->muteEnabled = muteEnabled;
 }
 
+void MicrophoneReader::setLatencyProbe(LatencyProbe *latencyProbe) {
+  this->latencyProbe = latencyProbe;
+}
+
 int MicrophoneReader::start(SLEngineItf *engineEnginePtr) {
   SLEngineItf engineEngine = *engineEnginePtr;
 
@@ -4,6 +4,7 @@
 #include "AudioCodec.h"
 #include "RtpAudioSender.h"
 #include "Clock.h"
+#include "LatencyProbe.h"
 
 #include <jni.h>
 
@@ -23,6 +24,7 @@ class MicrophoneReader {
     AudioCodec &audioCodec;
     RtpAudioSender &rtpAudioSender;
     Clock &clock;
+    LatencyProbe *latencyProbe;
 
     short inputBuffer[FRAME_SIZE * 2];
     char encodedAudio[1024];
@@ -41,6 +43,7 @@ class MicrophoneReader {
     void stop();
 
     void setMute(int muteEnabled);
+    void setLatencyProbe(LatencyProbe *latencyProbe);
 
     void recorderCallback(SLAndroidSimpleBufferQueueItf bufferQueue);
     static void recorderCallback(SLAndroidSimpleBufferQueueItf bufferQueue, void* context);
@@ -2,6 +2,7 @@
 #define __RTP_PACKET_H__
 
 #include <sys/types.h>
+#include <stdint.h>
 
 typedef struct _RtpHeader {
   uint16_t flags;
@@ -3,8 +3,13 @@
 
 #include <stdint.h>
 
+#ifndef INT16_MAX
 #define 	INT16_MAX   0x7fff
+#endif
+
+#ifndef INT16_MIN
 #define 	INT16_MIN   (-INT16_MAX - 1)
+#endif
 
 const int64_t ShortRange = ((int64_t)1) << 16;
 
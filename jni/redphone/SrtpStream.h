@@ -3,6 +3,7 @@
 
 #include <openssl/aes.h>
 #include <openssl/hmac.h>
+#include <string.h>
 
 #define SRTP_AES_KEY_SIZE 16
 #define SRTP_SALT_SIZE    14
@@ -5,24 +5,55 @@
 static volatile int running = 0;
 
 WebRtcJitterBuffer::WebRtcJitterBuffer(AudioCodec &codec) :
-  neteq(NULL), webRtcCodec(codec)
+  neteq(NULL), webRtcCodec(codec), profile()
 {
   running = 1;
+  pthread_mutex_init(&lock, NULL);
 }
 
-int WebRtcJitterBuffer::init() {
+webrtc::NetEq* WebRtcJitterBuffer::createNetEq(JitterBufferProfile &profile) {
   webrtc::NetEq::Config config;
-  config.sample_rate_hz = 8000;
+  config.sample_rate_hz        = 8000;
+  config.max_delay_ms          = profile.maxDelayMs;
+  config.max_packets_in_buffer = profile.maxPacketsInBuffer;
+  config.background_noise_mode = profile.backgroundNoiseMode;
 
-  neteq = webrtc::NetEq::Create(config);
+  webrtc::NetEq *instance = webrtc::NetEq::Create(config);
 
-  if (neteq == NULL) {
+  if (instance == NULL) {
     __android_log_print(ANDROID_LOG_WARN, TAG, "Failed to construct NetEq!");
-    return -1;
+    return NULL;
   }
 
-  if (neteq->RegisterExternalDecoder(&webRtcCodec, webrtc::kDecoderPCMu, 0) != 0) {
+  if (instance->RegisterExternalDecoder(&webRtcCodec, webrtc::kDecoderPCMu, 0) != 0) {
     __android_log_print(ANDROID_LOG_WARN, TAG, "Failed to register external codec!");
+    delete instance;
+    return NULL;
+  }
+
+  applyRuntimeSettings(instance, profile);
+
+  return instance;
+}
+
+void WebRtcJitterBuffer::applyRuntimeSettings(webrtc::NetEq *instance, JitterBufferProfile &profile) {
+  if (!instance->SetMaximumDelay(profile.maxDelayMs)) {
+    __android_log_print(ANDROID_LOG_WARN, TAG, "Failed to set maximum delay: %d", profile.maxDelayMs);
+  }
+
+  if (!instance->SetMinimumDelay(profile.minDelayMs)) {
+    __android_log_print(ANDROID_LOG_WARN, TAG, "Failed to set minimum delay: %d", profile.minDelayMs);
+  }
+
+  instance->SetPlayoutMode(profile.playoutMode);
+}
+
+int WebRtcJitterBuffer::init() {
+  pthread_mutex_lock(&lock);
+  neteq = createNetEq(profile);
+  pthread_mutex_unlock(&lock);
+
+  if (neteq == NULL) {
     return -1;
   }
 
@@ -36,6 +67,41 @@ WebRtcJitterBuffer::~WebRtcJitterBuffer() {
   if (neteq != NULL) {
     delete neteq;
   }
+
+  pthread_mutex_destroy(&lock);
+}
+
+/*
+ * The packet limit and background noise mode are fixed when NetEq is
+ * constructed, and a new instance would throw away the buffered audio,
+ * so once audio is running only the delay bounds and playout mode change.
+ * The rest waits for the next jitter buffer, built from the new profile
+ * for the next call or a reconnect, which restarts audio anyway.
+ */
+void WebRtcJitterBuffer::setProfile(JitterBufferProfile &nextProfile) {
+  pthread_mutex_lock(&lock);
+
+  if (neteq == NULL) {
+    profile = nextProfile;
+  } else {
+    if (nextProfile.maxPacketsInBuffer  != profile.maxPacketsInBuffer ||
+        nextProfile.backgroundNoiseMode != profile.backgroundNoiseMode)
+    {
+      __android_log_print(ANDROID_LOG_DEBUG, TAG, "Packet limit and background noise deferred to the next call");
+    }
+
+    profile.minDelayMs  = nextProfile.minDelayMs;
+    profile.maxDelayMs  = nextProfile.maxDelayMs;
+    profile.playoutMode = nextProfile.playoutMode;
+
+    applyRuntimeSettings(neteq, profile);
+  }
+
+  pthread_mutex_unlock(&lock);
+
+  __android_log_print(ANDROID_LOG_DEBUG, TAG, "Jitter profile: min=%d max=%d packets=%d bgn=%d playout=%d",
+                      profile.minDelayMs, profile.maxDelayMs, profile.maxPacketsInBuffer,
+                      profile.backgroundNoiseMode, profile.playoutMode);
 }
 
 void WebRtcJitterBuffer::addAudio(RtpPacket *packet, uint32_t tick) {
@@ -48,30 +114,64 @@ void WebRtcJitterBuffer::addAudio(RtpPacket *packet, uint32_t tick) {
   uint8_t *payload = (uint8_t*)malloc(packet->getPayloadLen());
   memcpy(payload, packet->getPayload(), packet->getPayloadLen());
 
+  pthread_mutex_lock(&lock);
+
   if (neteq->InsertPacket(header, payload, packet->getPayloadLen(), tick) != 0) {
     __android_log_print(ANDROID_LOG_WARN, TAG, "neteq->InsertPacket() failed!");
   }
+
+  pthread_mutex_unlock(&lock);
 }
 
 int WebRtcJitterBuffer::getAudio(short *rawData, int maxRawData) {
   int samplesPerChannel = 0;
   int numChannels       = 0;
 
+  pthread_mutex_lock(&lock);
+
   if (neteq->GetAudio(maxRawData, rawData, &samplesPerChannel, &numChannels, NULL) != 0) {
     __android_log_print(ANDROID_LOG_WARN, TAG, "neteq->GetAudio() failed!");
   }
 
+  pthread_mutex_unlock(&lock);
+
   return samplesPerChannel;
 }
 
+void WebRtcJitterBuffer::getNetworkStatistics(webrtc::NetEqNetworkStatistics *stats) {
+  pthread_mutex_lock(&lock);
+  neteq->NetworkStatistics(stats);
+  pthread_mutex_unlock(&lock);
+}
+
+void WebRtcJitterBuffer::getWaitingTimes(std::vector<int> *waitingTimes) {
+  pthread_mutex_lock(&lock);
+  neteq->WaitingTimes(waitingTimes);
+  pthread_mutex_unlock(&lock);
+}
+
+bool WebRtcJitterBuffer::getPlayoutTimestamp(uint32_t *timestamp) {
+  pthread_mutex_lock(&lock);
+  bool result = neteq->GetPlayoutTimestamp(timestamp);
+  pthread_mutex_unlock(&lock);
+
+  return result;
+}
+
 void WebRtcJitterBuffer::stop() {
   running = 0;
 }
 
 void WebRtcJitterBuffer::collectStats() {
   while (running) {
+    sleep(30);
+
+    if (!running) {
+      break;
+    }
+
     webrtc::NetEqNetworkStatistics stats;
-    neteq->NetworkStatistics(&stats);
+    getNetworkStatistics(&stats);
 
     __android_log_print(ANDROID_LOG_WARN, "WebRtcJitterBuffer",
                         "Jitter Stats:\n{\n" \
@@ -96,7 +196,6 @@ void WebRtcJitterBuffer::collectStats() {
                         stats.accelerate_rate,
                         stats.clockdrift_ppm,
                         stats.added_zero_samples);
-    sleep(30);
   }
 }
 
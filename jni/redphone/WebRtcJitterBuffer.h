@@ -12,19 +12,52 @@
 #include <modules/audio_coding/neteq/interface/neteq.h>
 #include <modules/interface/module_common_types.h>
 
+class JitterBufferProfile {
+
+public:
+  int minDelayMs;
+  int maxDelayMs;
+  int maxPacketsInBuffer;
+  webrtc::NetEq::BackgroundNoiseMode backgroundNoiseMode;
+  webrtc::NetEqPlayoutMode playoutMode;
+
+  JitterBufferProfile() :
+    minDelayMs(0), maxDelayMs(2000), maxPacketsInBuffer(50),
+    backgroundNoiseMode(webrtc::NetEq::kBgnOff), playoutMode(webrtc::kPlayoutOn)
+  {}
+
+  JitterBufferProfile(int minDelayMs, int maxDelayMs, int maxPacketsInBuffer,
+                      int backgroundNoiseMode, int playoutMode) :
+    minDelayMs(minDelayMs), maxDelayMs(maxDelayMs), maxPacketsInBuffer(maxPacketsInBuffer),
+    backgroundNoiseMode((webrtc::NetEq::BackgroundNoiseMode)backgroundNoiseMode),
+    playoutMode((webrtc::NetEqPlayoutMode)playoutMode)
+  {}
+
+};
+
 class WebRtcJitterBuffer {
 
 private:
   webrtc::NetEq *neteq;
   WebRtcCodec webRtcCodec;
+  JitterBufferProfile profile;
+  pthread_mutex_t lock;
+
+  webrtc::NetEq* createNetEq(JitterBufferProfile &profile);
+  void applyRuntimeSettings(webrtc::NetEq *neteq, JitterBufferProfile &profile);
 
 public:
   WebRtcJitterBuffer(AudioCodec &codec);
   ~WebRtcJitterBuffer();
   int init();
 
+  void setProfile(JitterBufferProfile &profile);
+
   void addAudio(RtpPacket *packet, uint32_t tick);
   int getAudio(short *rawData, int maxRawData);
+  void getNetworkStatistics(webrtc::NetEqNetworkStatistics *stats);
+  void getWaitingTimes(std::vector<int> *waitingTimes);
+  bool getPlayoutTimestamp(uint32_t *timestamp);
   void stop();
   void collectStats();
   static void* collectStats(void *context);
@@ -32,4 +65,4 @@ public:
 
 
 
-#endif
\ No newline at end of file
+#endif
@@ -18,10 +18,14 @@
 package org.thoughtcrime.mannycalls;
 
 import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.media.AudioManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
@@ -39,24 +43,36 @@ import org.thoughtcrime.mannycalls.call.LockManager;
 import org.thoughtcrime.mannycalls.call.ResponderCallManager;
 import org.thoughtcrime.mannycalls.codec.CodecSetupException;
 import org.thoughtcrime.mannycalls.contacts.PersonInfo;
+import org.thoughtcrime.mannycalls.crypto.CryptoPrimitives;
+import org.thoughtcrime.mannycalls.crypto.zrtp.KeyPairPool;
 import org.thoughtcrime.mannycalls.crypto.zrtp.SASInfo;
 import org.thoughtcrime.mannycalls.gcm.GCMRegistrarHelper;
+import org.thoughtcrime.mannycalls.network.AddressCache;
 import org.thoughtcrime.mannycalls.pstn.CallStateView;
 import org.thoughtcrime.mannycalls.pstn.IncomingPstnCallListener;
 import org.thoughtcrime.mannycalls.signaling.OtpCounterProvider;
+import org.thoughtcrime.mannycalls.signaling.RelayProber;
 import org.thoughtcrime.mannycalls.signaling.SessionDescriptor;
+import org.thoughtcrime.mannycalls.signaling.SignalingConnectionPool;
 import org.thoughtcrime.mannycalls.signaling.SignalingException;
 import org.thoughtcrime.mannycalls.signaling.SignalingSocket;
+import org.thoughtcrime.mannycalls.ui.ApplicationPreferencesActivity;
 import org.thoughtcrime.mannycalls.ui.NotificationBarManager;
 import org.thoughtcrime.mannycalls.util.Base64;
 import org.thoughtcrime.mannycalls.util.CallLogger;
+import org.thoughtcrime.mannycalls.util.LinuxUtils;
 import org.thoughtcrime.mannycalls.util.UncaughtExceptionHandlerManager;
 
 import java.io.IOException;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Enumeration;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 
 /**
  * The major entry point for all of the heavy lifting associated with
@@ -97,6 +113,8 @@ public class RedPhoneService extends Service implements CallStateListener, CallS
   private Handler handler;
   private CallLogger.CallRecord currentCallRecord;
   private IncomingPstnCallListener pstnCallListener;
+  private NetworkChangeListener networkChangeListener;
+  private PreferenceChangeListener preferenceChangeListener;
 
   @Override
   public void onCreate() {
@@ -108,7 +126,13 @@ public class RedPhoneService extends Service implements CallStateListener, CallS
     initializeApplicationContext();
     initializeRingers();
     initializePstnCallListener();
+    initializeNetworkChangeListener();
+    initializePreferenceChangeListener();
     registerUncaughtExceptionHandler();
+
+    KeyPairPool.getInstance().prefill();
+    AddressCache.getInstance().prefetch(Release.RELAY_SERVER_HOST);
+    RelayProber.getInstance().start();
   }
 
   @Override
@@ -129,6 +153,9 @@ public class RedPhoneService extends Service implements CallStateListener, CallS
   public void onDestroy() {
     super.onDestroy();
     unregisterReceiver(pstnCallListener);
+    unregisterReceiver(networkChangeListener);
+    PreferenceManager.getDefaultSharedPreferences(this)
+                     .unregisterOnSharedPreferenceChangeListener(preferenceChangeListener);
     NotificationBarManager.setCallEnded(this);
     uncaughtExceptionHandlerManager.unregister();
   }
@@ -158,6 +185,17 @@ public class RedPhoneService extends Service implements CallStateListener, CallS
     registerReceiver(pstnCallListener, new IntentFilter("android.intent.action.PHONE_STATE"));
   }
 
+  private void initializeNetworkChangeListener() {
+    networkChangeListener = new NetworkChangeListener();
+    registerReceiver(networkChangeListener, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+  }
+
+  private void initializePreferenceChangeListener() {
+    preferenceChangeListener = new PreferenceChangeListener();
+    PreferenceManager.getDefaultSharedPreferences(this)
+                     .registerOnSharedPreferenceChangeListener(preferenceChangeListener);
+  }
+
   private void initializeApplicationContext() {
     ApplicationContext context = ApplicationContext.getInstance();
     context.setContext(this);
@@ -323,17 +361,13 @@ public class RedPhoneService extends Service implements CallStateListener, CallS
   private byte[] setZID() {
     SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
 
-    try {
-      byte[] zid        = new byte[12];
-      SecureRandom.getInstance("SHA1PRNG").nextBytes(zid);
-      String encodedZid = Base64.encodeBytes(zid);
+    byte[] zid        = new byte[12];
+    CryptoPrimitives.getSecureRandom().nextBytes(zid);
+    String encodedZid = Base64.encodeBytes(zid);
 
-      preferences.edit().putString("ZID", encodedZid).commit();
+    preferences.edit().putString("ZID", encodedZid).commit();
 
-      return zid;
-    } catch (NoSuchAlgorithmException e) {
-      throw new IllegalArgumentException(e);
-    }
+    return zid;
   }
 
   private String extractRemoteNumber(Intent i) {
@@ -542,6 +576,14 @@ public class RedPhoneService extends Service implements CallStateListener, CallS
 
   public void notifyWaitingForResponder() {}
 
+  public void notifyReconnectRequested() {
+    Log.w("RedPhoneService", "Remote network changed, reconnecting media...");
+    CallManager callManager = currentCallManager;
+
+    if (callManager != null)
+      callManager.reconnect(false);
+  }
+
   private void sendMessage(int code, Object extra) {
     Message message = Message.obtain();
     message.what    = code;
@@ -585,6 +627,132 @@ public class RedPhoneService extends Service implements CallStateListener, CallS
     }
   }
 
+  /**
+   * Moves an established call's media to the new network when the active
+   * network changes, rather than letting it time out on the old one.  A
+   * network is told apart by its type, its extra info (the SSID or APN)
+   * and the addresses we have on it, so that moving between two Wi-Fi
+   * networks, or getting a new address on the same one, counts too.
+   */
+  private class NetworkChangeListener extends BroadcastReceiver {
+    private String activeNetworkIdentity;
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+      if (intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false))
+        return;
+
+      ConnectivityManager connectivityManager = (ConnectivityManager)getSystemService(Context.CONNECTIVITY_SERVICE);
+      NetworkInfo         activeNetwork       = connectivityManager.getActiveNetworkInfo();
+
+      if (activeNetwork == null || !activeNetwork.isConnected())
+        return;
+
+      String  identity      = getNetworkIdentity(activeNetwork);
+      boolean changed       = activeNetworkIdentity != null && !activeNetworkIdentity.equals(identity);
+      activeNetworkIdentity = identity;
+
+      if (changed) {
+        SignalingConnectionPool.getInstance().evictAll();
+        AddressCache.getInstance().clear();
+        AddressCache.getInstance().prefetch(Release.RELAY_SERVER_HOST);
+        RelayProber.getInstance().reset();
+      }
+
+      CallManager callManager = currentCallManager;
+
+      // An automatic profile follows the network, and a reconnect builds its audio from it.
+      if (changed && callManager != null)
+        callManager.setJitterBufferProfile(ApplicationPreferencesActivity.getJitterBufferProfile(RedPhoneService.this));
+
+      if (changed && state == RedPhone.STATE_CONNECTED && callManager != null) {
+        Log.w("RedPhoneService", "Network changed to " + activeNetwork.getTypeName() + ", reconnecting media...");
+        callManager.reconnect(true);
+      }
+    }
+
+    // The type and extra info (SSID or APN), and the addresses of the interface
+    // with the default route.  Other interfaces, like a mobile radio left up
+    // beside wifi, don't carry our media, and a VPN's point-to-point tun runs
+    // over the network rather than being one, so they're left out.  IPv6
+    // addresses count only by their /64 prefix, since temporary addresses
+    // rotate within it.  Without a default route to go by, only the type and
+    // extra info count.
+    private String getNetworkIdentity(NetworkInfo network) {
+      StringBuilder identity = new StringBuilder();
+      identity.append(network.getType()).append('/').append(network.getExtraInfo());
+
+      try {
+        NetworkInterface networkInterface = getDefaultRouteInterface();
+
+        if (networkInterface == null)
+          return identity.toString();
+
+        Set<String>              prefixes  = new TreeSet<String>();
+        Enumeration<InetAddress> addresses = networkInterface.getInetAddresses();
+
+        while (addresses.hasMoreElements()) {
+          InetAddress address = addresses.nextElement();
+
+          if (address.isLinkLocalAddress() || address.isLoopbackAddress())
+            continue;
+
+          if (address instanceof Inet6Address) prefixes.add(getPrefix64(address));
+          else                                 prefixes.add(address.getHostAddress());
+        }
+
+        identity.append('/').append(networkInterface.getName());
+
+        for (String prefix : prefixes) {
+          identity.append('/').append(prefix);
+        }
+      } catch (SocketException e) {
+        Log.w("RedPhoneService", e);
+      }
+
+      return identity.toString();
+    }
+
+    private NetworkInterface getDefaultRouteInterface() throws SocketException {
+      for (String interfaceName : LinuxUtils.readDefaultRouteInterfaces()) {
+        NetworkInterface networkInterface = NetworkInterface.getByName(interfaceName);
+
+        if (networkInterface != null && networkInterface.isUp() &&
+            !networkInterface.isLoopback() && !networkInterface.isPointToPoint())
+        {
+          return networkInterface;
+        }
+      }
+
+      return null;
+    }
+
+    private String getPrefix64(InetAddress address) {
+      byte[]        bytes  = address.getAddress();
+      StringBuilder prefix = new StringBuilder();
+
+      for (int i=0;i<8;i+=2) {
+        prefix.append(Integer.toHexString(((bytes[i] & 0xff) << 8) | (bytes[i + 1] & 0xff))).append(':');
+      }
+
+      return prefix.append(":/64").toString();
+    }
+  }
+
+  /**
+   * Applies a jitter buffer profile chosen in the settings to the call
+   * in progress, rather than only to the next one.
+   */
+  private class PreferenceChangeListener implements SharedPreferences.OnSharedPreferenceChangeListener {
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences preferences, String key) {
+      CallManager callManager = currentCallManager;
+
+      if (ApplicationPreferencesActivity.JITTER_BUFFER_PROFILE.equals(key) && callManager != null)
+        callManager.setJitterBufferProfile(ApplicationPreferencesActivity.getJitterBufferProfile(RedPhoneService.this));
+    }
+  }
+
   private static class ProximityLockRelease implements Thread.UncaughtExceptionHandler {
     private final LockManager lockManager;
 
@@ -32,4 +32,5 @@ public interface Release {
   public static final String RELAY_SERVER_HOST        = "relay.whispersystems.org";
   public static final String DATA_COLLECTION_SERVER_HOST = "redphone-call-metrics.herokuapp.com";
   public static final int     SERVER_PORT             = 31337;
+  public static final int     RELAY_PROBE_PORT        = 31338;
 }
@@ -23,16 +23,26 @@ import android.util.Log;
 
 import org.thoughtcrime.redphone.audio.AudioException;
 import org.thoughtcrime.redphone.audio.CallAudioManager;
+import org.thoughtcrime.redphone.audio.JitterBufferProfile;
 import org.thoughtcrime.mannycalls.crypto.SecureRtpSocket;
 import org.thoughtcrime.mannycalls.crypto.zrtp.MasterSecret;
 import org.thoughtcrime.mannycalls.crypto.zrtp.NegotiationFailedException;
 import org.thoughtcrime.mannycalls.crypto.zrtp.RecipientUnavailableException;
 import org.thoughtcrime.mannycalls.crypto.zrtp.SASInfo;
 import org.thoughtcrime.mannycalls.crypto.zrtp.ZRTPSocket;
+import org.thoughtcrime.mannycalls.network.ImpairmentProfile;
+import org.thoughtcrime.mannycalls.network.ImpairmentProxy;
+import org.thoughtcrime.mannycalls.network.RtpSocket;
+import org.thoughtcrime.mannycalls.signaling.NetworkConnector;
+import org.thoughtcrime.mannycalls.signaling.RelayProber;
 import org.thoughtcrime.mannycalls.signaling.SessionDescriptor;
+import org.thoughtcrime.mannycalls.signaling.SessionInitiationFailureException;
+import org.thoughtcrime.mannycalls.signaling.SignalingException;
 import org.thoughtcrime.mannycalls.signaling.SignalingSocket;
 import org.thoughtcrime.mannycalls.ui.ApplicationPreferencesActivity;
 import org.thoughtcrime.mannycalls.util.AudioUtils;
+import org.thoughtcrime.mannycalls.util.CallTrace;
+import org.thoughtcrime.mannycalls.util.LogUtil;
 
 import java.io.IOException;
 import java.net.DatagramSocket;
@@ -63,6 +73,15 @@ public abstract class CallManager extends Thread {
   private   SASInfo          sasInfo;
   private   boolean          muteEnabled;
   private   boolean          callConnected;
+  private   ImpairmentProxy  impairmentProxy;
+  private   boolean          latencyProbeEnabled;
+  private   MasterSecret     sessionSecret;
+  private   volatile boolean reconnecting;
+  private   boolean          reconnectSupported;
+
+  protected volatile JitterBufferProfile jitterBufferProfile;
+
+  protected final CallTrace trace;
 
   protected SessionDescriptor sessionDescriptor;
   protected ZRTPSocket        zrtpSocket;
@@ -78,6 +97,8 @@ public abstract class CallManager extends Thread {
     this.terminated        = false;
     this.context           = context;
     this.loopbackMode      = ApplicationPreferencesActivity.getLoopbackEnabled(context);
+    this.jitterBufferProfile = ApplicationPreferencesActivity.getJitterBufferProfile(context);
+    this.trace               = new CallTrace(threadName);
 
     AudioUtils.resetConfiguration(context);
   }
@@ -90,21 +111,26 @@ public abstract class CallManager extends Thread {
       Log.d( "CallManager", "negotiating..." );
       if (!terminated) {
         zrtpSocket.negotiateStart();
+        trace.mark("peer in handshake");
       }
 
       if (!terminated) {
         callStateListener.notifyPerformingHandshake();
         zrtpSocket.negotiateFinish();
+        trace.mark("handshake complete");
       }
 
       if (!terminated) {
         sasInfo = zrtpSocket.getSasInfo();
         callStateListener.notifyCallConnected(sasInfo);
+        trace.mark("connected shown");
       }
 
       if (!terminated) {
         Log.d("CallManager", "Finished handshake, calling run() on CallAudioManager...");
+        sessionSecret = zrtpSocket.getMasterSecret();
         callConnected = true;
+        trace.mark("starting audio");
         runAudio(zrtpSocket.getDatagramSocket(), zrtpSocket.getRemoteIp(),
                  zrtpSocket.getRemotePort(), zrtpSocket.getMasterSecret(), muteEnabled);
       }
@@ -125,16 +151,29 @@ public abstract class CallManager extends Thread {
   }
 
   public void terminate() {
-    this.terminated = true;
+    synchronized (this) {
+      this.terminated = true;
 
-    if (callAudioManager != null)
-      callAudioManager.terminate();
+      if (callAudioManager != null && latencyProbeEnabled) {
+        String report = callAudioManager.getLatencyReport();
+        Log.w("CallManager", "Loopback latency:\n" + report);
+        LogUtil.appendLatencyReport(context, report);
+      }
 
-    if (signalManager != null)
-      signalManager.terminate();
+      if (callAudioManager != null)
+        callAudioManager.terminate();
 
-    if (zrtpSocket != null)
-      zrtpSocket.close();
+      if (signalManager != null)
+        signalManager.terminate();
+
+      if (zrtpSocket != null)
+        zrtpSocket.close();
+    }
+
+    if (impairmentProxy != null)
+      impairmentProxy.stop();
+
+    trace.save(context);
   }
 
   public SessionDescriptor getSessionDescriptor() {
@@ -150,9 +189,164 @@ public abstract class CallManager extends Thread {
       zrtpSocket.setSasVerified();
   }
 
+  /**
+   * Re-establishes the media path after a network change, on a fresh relay
+   * port for this session.  The new stream is keyed from the first
+   * handshake's session key in ZRTP multistream mode, so there's no DH,
+   * the SAS already shown still holds, and audio resumes one round trip
+   * after the responder's Hello.
+   *
+   * Both sides have to do this: the side whose network changed calls it
+   * with notifyPeer set, and sends the peer a reconnect signal over a new
+   * signaling connection, since the old one went with the old network.
+   * The other side calls it when that signal arrives.  Until the new
+   * path is up, losing the signaling connection doesn't end the call; a
+   * reconnect that fails does.
+   *
+   * Does nothing unless the switch said it relays reconnect signals when
+   * the call was set up; without that, the call ends with its network as
+   * it always has.
+   */
+  public void reconnect(final boolean notifyPeer) {
+    if (terminated || !callConnected || reconnecting)
+      return;
+
+    if (!reconnectSupported) {
+      Log.w("CallManager", "Switch doesn't relay reconnects, not reconnecting...");
+      return;
+    }
+
+    setReconnecting(true);
+
+    new Thread("CallManager Reconnect Thread") {
+      @Override
+      public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        runReconnect(notifyPeer);
+      }
+    }.start();
+  }
+
+  private void runReconnect(boolean notifyPeer) {
+    long startTime = System.currentTimeMillis();
+
+    try {
+      if (notifyPeer) {
+        SignalingSocket reconnectSignalingSocket = openSignalingSocket(sessionDescriptor.getFullServerName());
+
+        synchronized (this) {
+          if (terminated) {
+            reconnectSignalingSocket.close();
+            return;
+          }
+
+          signalingSocket = reconnectSignalingSocket;
+          signalManager.sendReconnectSignal(reconnectSignalingSocket);
+        }
+      }
+
+      synchronized (this) {
+        if (terminated) return;
+
+        if (callAudioManager != null) {
+          callAudioManager.terminate();
+          callAudioManager = null;
+        }
+
+        zrtpSocket.close();
+      }
+
+      SecureRtpSocket reconnectSecureSocket = openMediaSocket();
+      ZRTPSocket      reconnectZrtpSocket   = createZrtpSocket(reconnectSecureSocket);
+      reconnectZrtpSocket.setMultistreamSession(sessionSecret);
+
+      synchronized (this) {
+        if (terminated) {
+          reconnectZrtpSocket.close();
+          return;
+        }
+
+        secureSocket = reconnectSecureSocket;
+        zrtpSocket   = reconnectZrtpSocket;
+      }
+
+      // terminate() closes the socket, which ends the handshake.
+      reconnectZrtpSocket.negotiateStart();
+      reconnectZrtpSocket.negotiateFinish();
+
+      if (terminated) return;
+
+      // A peer that couldn't do multistream has run a full handshake, with a new SAS.
+      if (!reconnectZrtpSocket.isMultistream()) {
+        sessionSecret = reconnectZrtpSocket.getMasterSecret();
+        sasInfo       = reconnectZrtpSocket.getSasInfo();
+        callStateListener.notifyCallConnected(sasInfo);
+      }
+
+      Log.w("CallManager", "Reconnected in " + (System.currentTimeMillis() - startTime) + "ms" +
+                           (reconnectZrtpSocket.isMultistream() ? " (multistream)" : " (full handshake)"));
+
+      setReconnecting(false);
+
+      runAudio(reconnectZrtpSocket.getDatagramSocket(), reconnectZrtpSocket.getRemoteIp(),
+               reconnectZrtpSocket.getRemotePort(), reconnectZrtpSocket.getMasterSecret(), muteEnabled);
+    } catch (SignalingException e) {
+      Log.w("CallManager", e);
+      if (!terminated) callStateListener.notifyCallDisconnected();
+    } catch (SessionInitiationFailureException e) {
+      Log.w("CallManager", e);
+      if (!terminated) callStateListener.notifyCallDisconnected();
+    } catch (NegotiationFailedException nfe) {
+      Log.w("CallManager", nfe);
+      if (!terminated) callStateListener.notifyHandshakeFailed();
+    } catch (AudioException e) {
+      Log.w("CallManager", e);
+      callStateListener.notifyClientError(e.getClientMessage());
+    } catch (IOException e) {
+      Log.w("CallManager", e);
+      if (!terminated) callStateListener.notifyCallDisconnected();
+    }
+  }
+
+  /**
+   * Opens a UDP flow to this session's relay port, as both sides do to
+   * start the call and again to reconnect it.
+   */
+  protected SecureRtpSocket openMediaSocket()
+      throws SessionInitiationFailureException, SocketException
+  {
+    // Resolved once, for every port-open attempt and the RTP socket.
+    InetSocketAddress relayAddress = new InetSocketAddress(sessionDescriptor.getFullServerName(),
+                                                           sessionDescriptor.relayPort);
+
+    DatagramSocket socket = new NetworkConnector(sessionDescriptor.sessionId, relayAddress, trace).makeConnection();
+
+    RelayProber.getInstance().addRelay(sessionDescriptor.serverName);
+
+    trace.mark("relay port open");
+
+    return new SecureRtpSocket(new RtpSocket(socket, relayAddress));
+  }
+
+  private void setReconnecting(boolean reconnecting) {
+    this.reconnecting = reconnecting;
+
+    if (signalManager != null)
+      signalManager.setReconnecting(reconnecting);
+  }
+
+  protected boolean isTerminated() {
+    return terminated;
+  }
+
+  protected abstract SignalingSocket openSignalingSocket(String host) throws SignalingException;
+
+  protected abstract ZRTPSocket createZrtpSocket(SecureRtpSocket socket);
+
   protected void processSignals() {
     Log.w("CallManager", "Starting signal processing loop...");
-    this.signalManager = new SignalManager(callStateListener, signalingSocket, sessionDescriptor);
+    this.reconnectSupported = signalingSocket.isReconnectSupported();
+    this.signalManager      = new SignalManager(callStateListener, signalingSocket, sessionDescriptor, trace);
   }
 
   protected abstract void runAudio(DatagramSocket datagramSocket, String remoteIp, int remotePort,
@@ -167,6 +361,21 @@ public abstract class CallManager extends Thread {
     }
   }
 
+  /**
+   * Switch the jitter buffer profile.  If audio is already running, its
+   * delay bounds and playout mode take effect immediately; the packet
+   * limit and background noise mode would mean dropping the buffered
+   * audio, so they wait for the next call or a reconnect.  Called when the
+   * preference changes, and when the network does for the automatic
+   * profile.
+   */
+  public synchronized void setJitterBufferProfile(JitterBufferProfile profile) {
+    jitterBufferProfile = profile;
+    if (callAudioManager != null && !terminated) {
+      callAudioManager.setJitterBufferProfile(profile);
+    }
+  }
+
   /**
    * Did this call ever successfully complete SRTP setup
    * @return true if the call connected
@@ -179,12 +388,28 @@ public abstract class CallManager extends Thread {
   // Methods below are SOA's loopback and testing shims.
   //For loopback operation
   public void doLoopback() throws AudioException, IOException {
-    DatagramSocket socket = new DatagramSocket(2222);
-    socket.connect(new InetSocketAddress("127.0.0.1", 2222));
+    ImpairmentProfile impairment = ApplicationPreferencesActivity.getLoopbackImpairment(context);
+    DatagramSocket    socket     = new DatagramSocket(2222);
+    int               remotePort = 2222;
+
+    if (impairment.isImpaired()) {
+      Log.w("CallManager", "Loopback through impairment proxy: " + impairment);
+      impairmentProxy = new ImpairmentProxy(new InetSocketAddress("127.0.0.1", 2222), impairment);
+      impairmentProxy.start();
+      remotePort = impairmentProxy.getLocalPort();
+    }
 
-    this.callAudioManager = new CallAudioManager(socket, "127.0.0.1", 2222,
+    socket.connect(new InetSocketAddress("127.0.0.1", remotePort));
+
+    this.callAudioManager = new CallAudioManager(socket, "127.0.0.1", remotePort,
+                                                 new byte[16], new byte[20], new byte[14],
                                                  new byte[16], new byte[20], new byte[14],
-                                                 new byte[16], new byte[20], new byte[14]);
+                                                 jitterBufferProfile);
+
+    if (ApplicationPreferencesActivity.getLoopbackLatencyEnabled(context)) {
+      this.latencyProbeEnabled = true;
+      this.callAudioManager.enableLatencyProbe();
+    }
 
     this.callAudioManager.start();
   }
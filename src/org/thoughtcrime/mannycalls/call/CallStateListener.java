@@ -51,4 +51,5 @@ public interface CallStateListener {
   public void notifyClientError(int msgId);
   public void notifyClientError(String message);
   public void notifyCallConnecting();
+  public void notifyReconnectRequested();
 }
@@ -23,11 +23,11 @@ import org.thoughtcrime.mannycalls.Release;
 import org.thoughtcrime.redphone.audio.AudioException;
 import org.thoughtcrime.redphone.audio.CallAudioManager;
 import org.thoughtcrime.mannycalls.crypto.SecureRtpSocket;
+import org.thoughtcrime.mannycalls.crypto.zrtp.InitiatorHandshake;
 import org.thoughtcrime.mannycalls.crypto.zrtp.MasterSecret;
 import org.thoughtcrime.mannycalls.crypto.zrtp.ZRTPInitiatorSocket;
-import org.thoughtcrime.mannycalls.network.RtpSocket;
+import org.thoughtcrime.mannycalls.crypto.zrtp.ZRTPSocket;
 import org.thoughtcrime.mannycalls.signaling.LoginFailedException;
-import org.thoughtcrime.mannycalls.signaling.NetworkConnector;
 import org.thoughtcrime.mannycalls.signaling.NoSuchUserException;
 import org.thoughtcrime.mannycalls.signaling.OtpCounterProvider;
 import org.thoughtcrime.mannycalls.signaling.ServerMessageException;
@@ -37,13 +37,20 @@ import org.thoughtcrime.mannycalls.signaling.SignalingSocket;
 import org.thoughtcrime.mannycalls.ui.ApplicationPreferencesActivity;
 
 import java.net.DatagramSocket;
-import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * Call Manager for the coordination of outgoing calls.  It initiates
  * signaling, negotiates ZRTP, and kicks off the call audio manager.
  *
+ * Setup overlaps what doesn't depend on the server: the ZRTP handshake
+ * and its key pair are made while signaling connects, and signals are
+ * handled while the relay port opens, so that the ring isn't held up
+ * behind it.
+ *
  * @author Moxie Marlinspike
  *
  */
@@ -75,24 +82,25 @@ public class InitiatingCallManager extends CallManager {
     try {
       callStateListener.notifyCallConnecting();
 
-      signalingSocket = new SignalingSocket(context, Release.RELAY_SERVER_HOST,
-                                            Release.SERVER_PORT, localNumber, password,
-                                            OtpCounterProvider.getInstance());
+      FutureTask<InitiatorHandshake> handshake = prepareHandshake();
 
-      sessionDescriptor = signalingSocket.initiateConnection(remoteNumber);
+      signalingSocket = openSignalingSocket(Release.RELAY_SERVER_HOST);
 
-      int localPort = new NetworkConnector(sessionDescriptor.sessionId,
-                                           sessionDescriptor.getFullServerName(),
-                                           sessionDescriptor.relayPort).makeConnection();
+      sessionDescriptor = signalingSocket.initiateConnection(remoteNumber);
 
-      InetSocketAddress remoteAddress = new InetSocketAddress(sessionDescriptor.getFullServerName(),
-                                                              sessionDescriptor.relayPort);
+      trace.mark("session initiated");
 
-      secureSocket  = new SecureRtpSocket(new RtpSocket(localPort, remoteAddress));
+      processSignals();
 
-      zrtpSocket    = new ZRTPInitiatorSocket(context, secureSocket, zid, remoteNumber);
+      secureSocket  = openMediaSocket();
+      zrtpSocket    = new ZRTPInitiatorSocket(context, secureSocket, remoteNumber,
+                                              getPreparedHandshake(handshake));
+      zrtpSocket.setTrace(trace);
 
-      processSignals();
+      if (isTerminated()) {
+        zrtpSocket.close();
+        return;
+      }
 
       callStateListener.notifyWaitingForResponder();
 
@@ -122,20 +130,69 @@ public class InitiatingCallManager extends CallManager {
     }
   }
 
+  private FutureTask<InitiatorHandshake> prepareHandshake() {
+    FutureTask<InitiatorHandshake> task = new FutureTask<InitiatorHandshake>(new Callable<InitiatorHandshake>() {
+      @Override
+      public InitiatorHandshake call() {
+        InitiatorHandshake handshake = ZRTPInitiatorSocket.prepareHandshake(context, zid, remoteNumber);
+        trace.mark("handshake prepared");
+        return handshake;
+      }
+    });
+
+    new Thread(task, "InitiatingCallManager Handshake Thread").start();
+    return task;
+  }
+
+  private InitiatorHandshake getPreparedHandshake(FutureTask<InitiatorHandshake> task) {
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+      else                                          throw new AssertionError(e.getCause());
+    }
+  }
+
+  @Override
+  protected ZRTPSocket createZrtpSocket(SecureRtpSocket socket) {
+    ZRTPSocket zrtpSocket = new ZRTPInitiatorSocket(context, socket, zid, remoteNumber);
+    zrtpSocket.setTrace(trace);
+
+    return zrtpSocket;
+  }
+
+  @Override
+  protected SignalingSocket openSignalingSocket(String host) throws SignalingException {
+    return new SignalingSocket(context, host, Release.SERVER_PORT, localNumber, password,
+                               OtpCounterProvider.getInstance(), trace);
+  }
+
   @Override
   protected void runAudio(DatagramSocket socket, String remoteIp, int remotePort,
                           MasterSecret masterSecret, boolean muteEnabled)
       throws SocketException, AudioException
   {
-    this.callAudioManager = new CallAudioManager(socket, remoteIp, remotePort,
-                                                 masterSecret.getInitiatorSrtpKey(),
-                                                 masterSecret.getInitiatorMacKey(),
-                                                 masterSecret.getInitiatorSrtpSalt(),
-                                                 masterSecret.getResponderSrtpKey(),
-                                                 masterSecret.getResponderMacKey(),
-                                                 masterSecret.getResponderSrtpSailt());
-    this.callAudioManager.setMute(muteEnabled);
-    this.callAudioManager.start();
+    CallAudioManager audioManager;
+
+    synchronized (this) {
+      if (isTerminated()) return;
+
+      audioManager = new CallAudioManager(socket, remoteIp, remotePort,
+                                          masterSecret.getInitiatorSrtpKey(),
+                                          masterSecret.getInitiatorMacKey(),
+                                          masterSecret.getInitiatorSrtpSalt(),
+                                          masterSecret.getResponderSrtpKey(),
+                                          masterSecret.getResponderMacKey(),
+                                          masterSecret.getResponderSrtpSailt(),
+                                          jitterBufferProfile);
+      audioManager.setMute(muteEnabled);
+
+      this.callAudioManager = audioManager;
+    }
+
+    audioManager.start();
   }
 
   //***************************
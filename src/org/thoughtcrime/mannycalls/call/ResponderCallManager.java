@@ -25,10 +25,10 @@ import org.thoughtcrime.redphone.audio.AudioException;
 import org.thoughtcrime.redphone.audio.CallAudioManager;
 import org.thoughtcrime.mannycalls.crypto.SecureRtpSocket;
 import org.thoughtcrime.mannycalls.crypto.zrtp.MasterSecret;
+import org.thoughtcrime.mannycalls.crypto.zrtp.NegotiationFailedException;
 import org.thoughtcrime.mannycalls.crypto.zrtp.ZRTPResponderSocket;
-import org.thoughtcrime.mannycalls.network.RtpSocket;
+import org.thoughtcrime.mannycalls.crypto.zrtp.ZRTPSocket;
 import org.thoughtcrime.mannycalls.signaling.LoginFailedException;
-import org.thoughtcrime.mannycalls.signaling.NetworkConnector;
 import org.thoughtcrime.mannycalls.signaling.OtpCounterProvider;
 import org.thoughtcrime.mannycalls.signaling.SessionDescriptor;
 import org.thoughtcrime.mannycalls.signaling.SessionInitiationFailureException;
@@ -37,12 +37,15 @@ import org.thoughtcrime.mannycalls.signaling.SignalingException;
 import org.thoughtcrime.mannycalls.signaling.SignalingSocket;
 
 import java.net.DatagramSocket;
-import java.net.InetSocketAddress;
 import java.net.SocketException;
 
 /**
  * CallManager responsible for coordinating incoming calls.
  *
+ * While the phone rings, it opens the relay port and exchanges ZRTP
+ * Hellos with the initiator, so that answering leaves only the key
+ * agreement and Confirms to do.
+ *
  * @author Moxie Marlinspike
  *
  */
@@ -52,7 +55,8 @@ public class ResponderCallManager extends CallManager {
   private final String password;
   private final byte[] zid;
 
-  private int answer = 0;
+  private int  answer = 0;
+  private long answerTime;
 
   public ResponderCallManager(Context context, CallStateListener callStateListener,
                               String remoteNumber, String localNumber,
@@ -69,30 +73,27 @@ public class ResponderCallManager extends CallManager {
   @Override
   public void run() {
     try {
-      signalingSocket = new SignalingSocket(context,
-                                            sessionDescriptor.getFullServerName(),
-                                            Release.SERVER_PORT,
-                                            localNumber, password,
-                                            OtpCounterProvider.getInstance());
+      signalingSocket = openSignalingSocket(sessionDescriptor.getFullServerName());
 
       signalingSocket.setRinging(sessionDescriptor.sessionId);
       callStateListener.notifyCallFresh();
 
+      trace.mark("ringing");
+
       processSignals();
+      preconnect();
 
       if (!waitForAnswer()) {
+        if (zrtpSocket != null) zrtpSocket.close();
         return;
       }
 
-      int localPort = new NetworkConnector(sessionDescriptor.sessionId,
-                                           sessionDescriptor.getFullServerName(),
-                                           sessionDescriptor.relayPort).makeConnection();
-
-      InetSocketAddress remoteAddress = new InetSocketAddress(sessionDescriptor.getFullServerName(),
-                                                              sessionDescriptor.relayPort);
+      trace.mark("answered");
 
-      secureSocket  = new SecureRtpSocket(new RtpSocket(localPort, remoteAddress));
-      zrtpSocket    = new ZRTPResponderSocket(context, secureSocket, zid, remoteNumber, sessionDescriptor.version <= 0);
+      if (zrtpSocket == null) {
+        secureSocket  = openMediaSocket();
+        zrtpSocket    = createZrtpSocket(secureSocket);
+      }
 
       callStateListener.notifyConnectingtoInitiator();
 
@@ -120,10 +121,49 @@ public class ResponderCallManager extends CallManager {
   }
 
   public synchronized void answer(boolean answer) {
-    this.answer = (answer ? 1 : 2);
+    this.answer     = (answer ? 1 : 2);
+    this.answerTime = System.currentTimeMillis();
     notifyAll();
   }
 
+  // The initiator's Commit waits in the socket's receive buffer until
+  // the call is answered, and the initiator retransmits it for as long as
+  // it would otherwise wait for our Hello.  If this fails, it's all done
+  // again once the call is answered.
+  private void preconnect() {
+    long startTime = System.currentTimeMillis();
+
+    try {
+      secureSocket = openMediaSocket();
+      zrtpSocket   = createZrtpSocket(secureSocket);
+
+      // Answered or declined while opening the port: run() takes it from here.
+      if (!isRinging()) return;
+
+      zrtpSocket.negotiateStart();
+
+      trace.mark("pre-connected");
+      Log.w("ResponderCallManager", "Pre-connected while ringing in " +
+                                    (System.currentTimeMillis() - startTime) + "ms");
+      return;
+    } catch (SessionInitiationFailureException e) {
+      Log.w("ResponderCallManager", e);
+    } catch (SocketException e) {
+      Log.w("ResponderCallManager", e);
+    } catch (NegotiationFailedException e) {
+      Log.w("ResponderCallManager", e);
+    }
+
+    if (zrtpSocket != null) {
+      zrtpSocket.close();
+      zrtpSocket = null;
+    }
+  }
+
+  private synchronized boolean isRinging() {
+    return answer == 0;
+  }
+
   private synchronized boolean waitForAnswer() {
     try {
       while (answer == 0)
@@ -146,20 +186,47 @@ public class ResponderCallManager extends CallManager {
     super.terminate();
   }
 
+  @Override
+  protected ZRTPSocket createZrtpSocket(SecureRtpSocket socket) {
+    ZRTPSocket zrtpSocket = new ZRTPResponderSocket(context, socket, zid, remoteNumber,
+                                                    sessionDescriptor.version <= 0);
+    zrtpSocket.setTrace(trace);
+
+    return zrtpSocket;
+  }
+
+  @Override
+  protected SignalingSocket openSignalingSocket(String host) throws SignalingException {
+    return new SignalingSocket(context, host, Release.SERVER_PORT, localNumber, password,
+                               OtpCounterProvider.getInstance(), trace);
+  }
+
   @Override
   protected void runAudio(DatagramSocket socket, String remoteIp, int remotePort,
                           MasterSecret masterSecret, boolean muteEnabled)
       throws SocketException, AudioException
   {
-    this.callAudioManager = new CallAudioManager(socket, remoteIp, remotePort,
-                                                 masterSecret.getResponderSrtpKey(),
-                                                 masterSecret.getResponderMacKey(),
-                                                 masterSecret.getResponderSrtpSailt(),
-                                                 masterSecret.getInitiatorSrtpKey(),
-                                                 masterSecret.getInitiatorMacKey(),
-                                                 masterSecret.getInitiatorSrtpSalt());
-    this.callAudioManager.setMute(muteEnabled);
-    this.callAudioManager.start();
+    CallAudioManager audioManager;
+
+    synchronized (this) {
+      if (isTerminated()) return;
+
+      audioManager = new CallAudioManager(socket, remoteIp, remotePort,
+                                          masterSecret.getResponderSrtpKey(),
+                                          masterSecret.getResponderMacKey(),
+                                          masterSecret.getResponderSrtpSailt(),
+                                          masterSecret.getInitiatorSrtpKey(),
+                                          masterSecret.getInitiatorMacKey(),
+                                          masterSecret.getInitiatorSrtpSalt(),
+                                          jitterBufferProfile);
+      audioManager.setMute(muteEnabled);
+
+      this.callAudioManager = audioManager;
+    }
+
+    Log.w("ResponderCallManager", "Answer to audio: " + (System.currentTimeMillis() - answerTime) + "ms");
+
+    audioManager.start();
   }
 
 }
@@ -2,33 +2,41 @@ package org.thoughtcrime.mannycalls.call;
 
 import android.util.Log;
 
+import org.thoughtcrime.mannycalls.signaling.ServerSignalListener;
 import org.thoughtcrime.mannycalls.signaling.SessionDescriptor;
 import org.thoughtcrime.mannycalls.signaling.SignalingException;
 import org.thoughtcrime.mannycalls.signaling.SignalingSocket;
 import org.thoughtcrime.mannycalls.signaling.signals.ServerSignal;
+import org.thoughtcrime.mannycalls.util.CallTrace;
 
+import java.io.IOException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 public class SignalManager {
 
   private final ExecutorService queue = Executors.newSingleThreadExecutor();
 
-  private final SignalingSocket signalingSocket;
   private final SessionDescriptor sessionDescriptor;
   private final CallStateListener callStateListener;
+  private final CallTrace         trace;
 
-  private volatile boolean interrupted = false;
+  private volatile SignalingSocket signalingSocket;
+  private volatile boolean         interrupted  = false;
+  private volatile boolean         reconnecting = false;
 
   public SignalManager(CallStateListener callStateListener,
                        SignalingSocket signalingSocket,
-                       SessionDescriptor sessionDescriptor)
+                       SessionDescriptor sessionDescriptor,
+                       CallTrace trace)
   {
     this.callStateListener = callStateListener;
     this.signalingSocket   = signalingSocket;
     this.sessionDescriptor = sessionDescriptor;
+    this.trace             = trace;
 
-    this.queue.execute(new SignalListenerTask());
+    this.signalingSocket.setServerSignalListener(new SignalListener(signalingSocket));
   }
 
 //  public void sendBusySignal(String remoteNumber, final long sessionId) {
@@ -47,6 +55,52 @@ public class SignalManager {
 //    interrupted = true;
 //  }
 
+  /**
+   * While set, losing the signaling connection doesn't end the call, as
+   * the media path is being moved to a new network.
+   */
+  public void setReconnecting(boolean reconnecting) {
+    this.reconnecting = reconnecting;
+  }
+
+  /**
+   * Sends the reconnect signal on reconnectSocket, a connection made on the
+   * new network, which carries this call's signals from then on.  If it
+   * doesn't get to the peer, the peer will never reconnect, so the call is
+   * over.
+   */
+  public void sendReconnectSignal(final SignalingSocket reconnectSocket) {
+    Log.w("SignalManager", "Queuing reconnect signal...");
+
+    try {
+      queue.execute(new Runnable() {
+        public void run() {
+          if (interrupted) {
+            reconnectSocket.close();
+            return;
+          }
+
+          SignalingSocket previousSocket = signalingSocket;
+
+          signalingSocket = reconnectSocket;
+          signalingSocket.setServerSignalListener(new SignalListener(reconnectSocket));
+          previousSocket.close();
+
+          try {
+            Log.w("SignalManager", "Sending reconnect signal...");
+            signalingSocket.setReconnect(sessionDescriptor.sessionId);
+          } catch (SignalingException se) {
+            Log.w("SignalManager", se);
+            callStateListener.notifyCallDisconnected();
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      Log.w("SignalManager", e);
+      reconnectSocket.close();
+    }
+  }
+
   public void terminate() {
     Log.w("SignalManager", "Queuing hangup signal...");
     queue.execute(new Runnable() {
@@ -61,35 +115,55 @@ public class SignalManager {
     interrupted = true;
   }
 
-  private class SignalListenerTask implements Runnable {
-    public void run() {
-      Log.w("SignalManager", "Running Signal Listener...");
+  // Signals arrive on the signaling I/O thread, and are handled in order on the queue.
+  private class SignalListener implements ServerSignalListener {
+    private final SignalingSocket socket;
 
-      try {
-        while (!interrupted) {
-          if (signalingSocket.waitForSignal())
-            break;
-        }
+    public SignalListener(SignalingSocket socket) {
+      this.socket = socket;
+    }
+
+    @Override
+    public void onServerSignal(final ServerSignal signal) {
+      execute(new Runnable() {
+        public void run() {
+          long sessionId = sessionDescriptor.sessionId;
 
-        Log.w("SignalManager", "Signal Listener Running, interrupted: " + interrupted);
+          if (signal.isRinging(sessionId)) trace.mark("remote ringing");
+
+          if      (signal.isHangup(sessionId))    callStateListener.notifyCallDisconnected();
+          else if (signal.isRinging(sessionId))   callStateListener.notifyCallRinging();
+          else if (signal.isBusy(sessionId))      callStateListener.notifyBusy();
+          else if (signal.isReconnect(sessionId)) callStateListener.notifyReconnectRequested();
+          else if (signal.isKeepAlive())          Log.w("CallManager", "Received keep-alive...");
+        }
+      });
+    }
 
-        if (!interrupted) {
-          ServerSignal signal = signalingSocket.readSignal();
-          long sessionId      = sessionDescriptor.sessionId;
+    @Override
+    public void onSignalingClosed(final IOException reason) {
+      execute(new Runnable() {
+        public void run() {
+          Log.w("CallManager", reason);
 
-          if      (signal.isHangup(sessionId))  callStateListener.notifyCallDisconnected();
-          else if (signal.isRinging(sessionId)) callStateListener.notifyCallRinging();
-          else if (signal.isBusy(sessionId))    callStateListener.notifyBusy();
-          else if (signal.isKeepAlive())        Log.w("CallManager", "Received keep-alive...");
+          // A connection we've moved off, or one lost with the network we're moving from.
+          if (socket != signalingSocket || reconnecting) {
+            Log.w("SignalManager", "Signaling closed while reconnecting, ignoring...");
+            return;
+          }
 
-          signalingSocket.sendOkResponse();
+          callStateListener.notifyCallDisconnected();
         }
+      });
+    }
 
-        interrupted = false;
-        queue.execute(this);
-      } catch (SignalingException e) {
-        Log.w("CallManager", e);
-        callStateListener.notifyCallDisconnected();
+    private void execute(Runnable task) {
+      if (interrupted) return;
+
+      try {
+        queue.execute(task);
+      } catch (RejectedExecutionException e) {
+        Log.w("SignalManager", e);
       }
     }
   }
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.crypto;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+
+/**
+ * Mac and MessageDigest instances cached per thread, and one shared
+ * SecureRandom, so that the handshake and signaling paths aren't doing
+ * a provider lookup and a fresh allocation for every MAC and hash.
+ *
+ * A Mac from getMac() has to be init()ed by the caller, which also
+ * resets it; a MessageDigest from getMessageDigest() is already reset.
+ * Either one belongs to the calling thread, and must be finished with
+ * before anything on that thread asks for the same algorithm again.
+ */
+public class CryptoPrimitives {
+
+  private static final ThreadLocal<Map<String, Mac>> macs = new ThreadLocal<Map<String, Mac>>() {
+    @Override
+    protected Map<String, Mac> initialValue() {
+      return new HashMap<String, Mac>();
+    }
+  };
+
+  private static final ThreadLocal<Map<String, MessageDigest>> digests = new ThreadLocal<Map<String, MessageDigest>>() {
+    @Override
+    protected Map<String, MessageDigest> initialValue() {
+      return new HashMap<String, MessageDigest>();
+    }
+  };
+
+  public static Mac getMac(String algorithm) throws NoSuchAlgorithmException {
+    Map<String, Mac> cache = macs.get();
+    Mac              mac   = cache.get(algorithm);
+
+    if (mac == null) {
+      mac = Mac.getInstance(algorithm);
+      cache.put(algorithm, mac);
+    }
+
+    return mac;
+  }
+
+  public static MessageDigest getMessageDigest(String algorithm) throws NoSuchAlgorithmException {
+    Map<String, MessageDigest> cache = digests.get();
+    MessageDigest              md    = cache.get(algorithm);
+
+    if (md == null) {
+      md = MessageDigest.getInstance(algorithm);
+      cache.put(algorithm, md);
+    } else {
+      md.reset();
+    }
+
+    return md;
+  }
+
+  /**
+   * @return A SecureRandom shared by every caller.  It is created on first
+   * use, which is after ApplicationListener has applied PRNGFixes.
+   */
+  public static SecureRandom getSecureRandom() {
+    return SecureRandomHolder.instance;
+  }
+
+  private static class SecureRandomHolder {
+    private static final SecureRandom instance = createSecureRandom();
+
+    private static SecureRandom createSecureRandom() {
+      try {
+        return SecureRandom.getInstance("SHA1PRNG");
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+
+}
@@ -105,7 +105,7 @@ public class EncryptedSignalMessage {
   {
     byte[] macKey     = getMacKey();
     SecretKeySpec key = new SecretKeySpec(macKey, "HmacSHA1");
-    Mac mac           = Mac.getInstance("HmacSHA1");
+    Mac mac           = CryptoPrimitives.getMac("HmacSHA1");
 
     mac.init(key);
     mac.update(messageBytes, 0, messageBytes.length-MAC_LENGTH);
@@ -36,7 +36,7 @@ public class Otp {
   public static String calculateOtp(String password, long counter) {
     try {
       SecretKeySpec key = new SecretKeySpec(password.getBytes(), "HmacSHA1");
-      Mac mac           = Mac.getInstance("HmacSHA1");
+      Mac mac           = CryptoPrimitives.getMac("HmacSHA1");
       mac.init(key);
 
       return Base64.encodeBytes(mac.doFinal((counter+"").getBytes()));
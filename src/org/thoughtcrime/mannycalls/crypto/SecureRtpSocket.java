@@ -40,6 +40,8 @@ import java.net.DatagramSocket;
 
 public class SecureRtpSocket {
 
+  private static final byte[] SIGNAL_RESPONSE_PREFIX = {'H', 'T', 'T', 'P', '/'};
+
   private final RtpSocket socket;
 
   public SecureRtpSocket(RtpSocket socket) {
@@ -63,7 +65,6 @@ public class SecureRtpSocket {
   }
 
   public void send(HandshakePacket packet) throws IOException {
-    packet.setCRC();
     socket.send(packet);
   }
 
@@ -73,6 +74,11 @@ public class SecureRtpSocket {
     if (barePacket == null)
       return null;
 
+    if (isSignalResponse(barePacket)) {
+      Log.w("SecureRedPhoneSocket", "Dropping late signal response.");
+      return null;
+    }
+
     HandshakePacket handshakePacket = new HandshakePacket(barePacket);
 
     if (!verifyCRC || handshakePacket.verifyCRC()) {
@@ -86,4 +92,21 @@ public class SecureRtpSocket {
   public void setTimeout(int timeoutMillis) {
     socket.setTimeout(timeoutMillis);
   }
+
+  // A 200 to one of NetworkConnector's hello signals can arrive after the
+  // socket is handed over, and ZRTP reads anything without its prefix as a
+  // Conf2ACK.
+  private boolean isSignalResponse(RtpPacket packet) {
+    byte[] data = packet.getPacket();
+
+    if (packet.getPacketLength() < SIGNAL_RESPONSE_PREFIX.length)
+      return false;
+
+    for (int i=0;i<SIGNAL_RESPONSE_PREFIX.length;i++) {
+      if (data[i] != SIGNAL_RESPONSE_PREFIX[i])
+        return false;
+    }
+
+    return true;
+  }
 }
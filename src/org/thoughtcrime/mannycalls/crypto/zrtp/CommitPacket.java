@@ -17,6 +17,7 @@
 
 package org.thoughtcrime.mannycalls.crypto.zrtp;
 
+import org.thoughtcrime.mannycalls.crypto.CryptoPrimitives;
 import org.thoughtcrime.mannycalls.network.RtpPacket;
 
 import java.security.MessageDigest;
@@ -26,14 +27,25 @@ import java.util.Arrays;
 /**
  * ZRTP handshake 'Commit' packet.
  *
+ * In preshared mode the hvi is replaced by a nonce and the ID of the
+ * retained secret the initiator intends to use, and the packet is
+ * shorter.  In multistream mode it's replaced by just the nonce.
+ *
+ * http://tools.ietf.org/html/rfc6189#section-5.4
+ *
  * @author Moxie Marlinspike
  *
  */
 
 public class CommitPacket extends HandshakePacket {
 
-  public  static final String TYPE          = "Commit  ";
-  private static final int    COMMIT_LENGTH = 116;
+  public    static final String TYPE                      = "Commit  ";
+  protected static final int    COMMIT_LENGTH             = 116;
+  protected static final int    PRESHARED_COMMIT_LENGTH   = 108;
+  protected static final int    MULTISTREAM_COMMIT_LENGTH = 100;
+
+  public    static final int    NONCE_LENGTH  = 16;
+  public    static final int    KEY_ID_LENGTH = 8;
 
   private static final int _LENGTH_OFFSET    = MESSAGE_BASE + 2;
   private static final int _HASH_OFFSET      = MESSAGE_BASE + 12;
@@ -46,6 +58,12 @@ public class CommitPacket extends HandshakePacket {
   private static final int _HVI_OFFSET       = MESSAGE_BASE + 76;
   private static final int _MAC_OFFSET       = MESSAGE_BASE + 108;
 
+  private static final int _NONCE_OFFSET         = MESSAGE_BASE + 76;
+  private static final int _KEY_ID_OFFSET        = MESSAGE_BASE + 92;
+  private static final int _PRESHARED_MAC_OFFSET = MESSAGE_BASE + 100;
+
+  private static final int _MULTISTREAM_MAC_OFFSET = MESSAGE_BASE + 92;
+
   private int LENGTH_OFFSET    = _LENGTH_OFFSET;
   private int HASH_OFFSET      = _HASH_OFFSET;
   private int ZID_OFFSET       = _ZID_OFFSET;
@@ -57,10 +75,18 @@ public class CommitPacket extends HandshakePacket {
   private int HVI_OFFSET       = _HVI_OFFSET;
   private int MAC_OFFSET       = _MAC_OFFSET;
 
-  private static final byte[] HASH_SPEC      = {'S', '2', '5', '6'};
-  private static final byte[] CIPHER_SPEC    = {'A', 'E', 'S', '1'};
-  private static final byte[] AUTH_SPEC      = {'H', 'S', '8', '0'};
-  private static final byte[] SAS_SPEC       = {'B', '2', '5', '6'};
+  private int NONCE_OFFSET         = _NONCE_OFFSET;
+  private int KEY_ID_OFFSET        = _KEY_ID_OFFSET;
+  private int PRESHARED_MAC_OFFSET = _PRESHARED_MAC_OFFSET;
+
+  private int MULTISTREAM_MAC_OFFSET = _MULTISTREAM_MAC_OFFSET;
+
+  private static final byte[] HASH_SPEC        = {'S', '2', '5', '6'};
+  private static final byte[] CIPHER_SPEC      = {'A', 'E', 'S', '1'};
+  private static final byte[] AUTH_SPEC        = {'H', 'S', '8', '0'};
+  private static final byte[] SAS_SPEC         = {'B', '2', '5', '6'};
+  private static final byte[] PRESHARED_SPEC   = {'P', 'r', 's', 'h'};
+  private static final byte[] MULTISTREAM_SPEC = {'M', 'u', 'l', 't'};
 
   public CommitPacket(RtpPacket packet) {
     super(packet);
@@ -72,7 +98,7 @@ public class CommitPacket extends HandshakePacket {
     fixOffsetsForHeaderBug();
   }
 
-  public CommitPacket(HashChain hashChain, byte[] helloBytes,
+  public CommitPacket(HashChain hashChain, HelloPacket hello,
                       DHPartTwoPacket dhPacket, byte[] zid,
                       boolean includeLegacyHeaderBug)
     throws InvalidPacketException
@@ -82,10 +108,55 @@ public class CommitPacket extends HandshakePacket {
     setHash(hashChain.getH2());
     setZID(zid);
     setSpec(dhPacket.getAgreementSpec());
-    setHvi(calculateHvi(helloBytes, dhPacket.getMessageBytes()));
+    setHvi(calculateHvi(hello, dhPacket));
     setMac(hashChain.getH1(), MAC_OFFSET, COMMIT_LENGTH - 8);
   }
 
+  public CommitPacket(HashChain hashChain, byte[] zid, byte[] nonce, byte[] keyId,
+                      boolean includeLegacyHeaderBug)
+  {
+    super(TYPE, PRESHARED_COMMIT_LENGTH, includeLegacyHeaderBug);
+    fixOffsetsForHeaderBug();
+    setHash(hashChain.getH2());
+    setZID(zid);
+    setSpec(PRESHARED_SPEC);
+    System.arraycopy(nonce, 0, this.data, NONCE_OFFSET, NONCE_LENGTH);
+    System.arraycopy(keyId, 0, this.data, KEY_ID_OFFSET, KEY_ID_LENGTH);
+    setMac(hashChain.getH1(), PRESHARED_MAC_OFFSET, PRESHARED_COMMIT_LENGTH - 8);
+  }
+
+  public CommitPacket(HashChain hashChain, byte[] zid, byte[] nonce,
+                      boolean includeLegacyHeaderBug)
+  {
+    super(TYPE, MULTISTREAM_COMMIT_LENGTH, includeLegacyHeaderBug);
+    fixOffsetsForHeaderBug();
+    setHash(hashChain.getH2());
+    setZID(zid);
+    setSpec(MULTISTREAM_SPEC);
+    System.arraycopy(nonce, 0, this.data, NONCE_OFFSET, NONCE_LENGTH);
+    setMac(hashChain.getH1(), MULTISTREAM_MAC_OFFSET, MULTISTREAM_COMMIT_LENGTH - 8);
+  }
+
+  public void verifyCommitLength() throws InvalidPacketException {
+    if      (isPreshared())   verifyMessageLength(PRESHARED_COMMIT_LENGTH);
+    else if (isMultistream()) verifyMessageLength(MULTISTREAM_COMMIT_LENGTH);
+    else                      verifyMessageLength(COMMIT_LENGTH);
+  }
+
+  public boolean isPreshared() {
+    return Arrays.equals(getKeyAgreementType(), PRESHARED_SPEC);
+  }
+
+  public boolean isMultistream() {
+    return Arrays.equals(getKeyAgreementType(), MULTISTREAM_SPEC);
+  }
+
+  public byte[] getKeyId() {
+    byte[] keyId = new byte[KEY_ID_LENGTH];
+    System.arraycopy(this.data, KEY_ID_OFFSET, keyId, 0, keyId.length);
+    return keyId;
+  }
+
   public byte[] getHvi() {
     byte[] hvi = new byte[32];
     System.arraycopy(this.data, HVI_OFFSET, hvi, 0, hvi.length);
@@ -98,8 +169,8 @@ public class CommitPacket extends HandshakePacket {
     return hash;
   }
 
-  public void verifyHvi(byte[] helloBytes, byte[] dhBytes) throws InvalidPacketException {
-    byte[] calculatedHvi = calculateHvi(helloBytes, dhBytes);
+  public void verifyHvi(HelloPacket hello, DHPartTwoPacket dhPacket) throws InvalidPacketException {
+    byte[] calculatedHvi = calculateHvi(hello, dhPacket);
     byte[] packetHvi     = getHvi();
 
     if (!Arrays.equals(calculatedHvi, packetHvi))
@@ -107,7 +178,9 @@ public class CommitPacket extends HandshakePacket {
   }
 
   public void verifyMac(byte[] key) throws InvalidPacketException {
-    super.verifyMac(key, MAC_OFFSET, COMMIT_LENGTH - 8, getHash());
+    if      (isPreshared())   super.verifyMac(key, PRESHARED_MAC_OFFSET, PRESHARED_COMMIT_LENGTH - 8, getHash());
+    else if (isMultistream()) super.verifyMac(key, MULTISTREAM_MAC_OFFSET, MULTISTREAM_COMMIT_LENGTH - 8, getHash());
+    else                      super.verifyMac(key, MAC_OFFSET, COMMIT_LENGTH - 8, getHash());
   }
 
   private void setHash(byte[] hash) {
@@ -126,11 +199,13 @@ public class CommitPacket extends HandshakePacket {
     System.arraycopy(SAS_SPEC, 0, this.data, SAS_OFFSET, SAS_SPEC.length);
   }
 
-  private byte[] calculateHvi(byte[] helloBytes, byte[] dhBytes) {
+  private byte[] calculateHvi(HelloPacket hello, DHPartTwoPacket dhPacket)
+      throws InvalidPacketException
+  {
     try {
-      MessageDigest md = MessageDigest.getInstance("SHA-256");
-      md.update(dhBytes);
-      md.update(helloBytes);
+      MessageDigest md = CryptoPrimitives.getMessageDigest("SHA-256");
+      md.update(dhPacket.getMessageSlice());
+      md.update(hello.getMessageSlice());
 
       return md.digest();
     } catch (NoSuchAlgorithmException e) {
@@ -162,6 +237,12 @@ public class CommitPacket extends HandshakePacket {
     SAS_OFFSET       += headerBugOffset;
     HVI_OFFSET       += headerBugOffset;
     MAC_OFFSET       += headerBugOffset;
+
+    NONCE_OFFSET         += headerBugOffset;
+    KEY_ID_OFFSET        += headerBugOffset;
+    PRESHARED_MAC_OFFSET += headerBugOffset;
+
+    MULTISTREAM_MAC_OFFSET += headerBugOffset;
   }
 
 }
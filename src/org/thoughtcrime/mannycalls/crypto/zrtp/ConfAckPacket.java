@@ -30,12 +30,14 @@ public class ConfAckPacket extends HandshakePacket {
 
   public static final String TYPE = "Conf2Ack";
 
+  protected static final int CONF_ACK_LENGTH = 12;
+
   public ConfAckPacket(SecureRtpPacket packet) {
     super(packet);
   }
 
   public ConfAckPacket(boolean includeLegacyHeaderBug) {
-    super(TYPE, 12, includeLegacyHeaderBug);
+    super(TYPE, CONF_ACK_LENGTH, includeLegacyHeaderBug);
   }
 
 }
@@ -20,6 +20,7 @@ package org.thoughtcrime.mannycalls.crypto.zrtp;
 import android.util.Log;
 
 import org.thoughtcrime.mannycalls.Release;
+import org.thoughtcrime.mannycalls.crypto.CryptoPrimitives;
 import org.thoughtcrime.mannycalls.network.RtpPacket;
 import org.thoughtcrime.mannycalls.util.Conversions;
 import org.thoughtcrime.mannycalls.util.Hex;
@@ -27,7 +28,6 @@ import org.thoughtcrime.mannycalls.util.Hex;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 import java.util.Arrays;
 
 import javax.crypto.BadPaddingException;
@@ -47,7 +47,8 @@ import javax.crypto.spec.SecretKeySpec;
 
 public class ConfirmPacket extends HandshakePacket {
 
-  private static final int CONFIRM_LENGTH   = 76;
+  protected static final int CONFIRM_LENGTH = 76;
+
   private static final int ENCRYPTED_LENGTH = 40;
 
   private static final int _LENGTH_OFFSET   = MESSAGE_BASE + 2;
@@ -114,7 +115,7 @@ public class ConfirmPacket extends HandshakePacket {
 
   private byte[] calculateMac(byte[] macKey) {
     try {
-      Mac mac = Mac.getInstance("HmacSHA256");
+      Mac mac = CryptoPrimitives.getMac("HmacSHA256");
       mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
       mac.update(this.data, PREIMAGE_OFFSET, ENCRYPTED_LENGTH);
 
@@ -144,15 +145,11 @@ public class ConfirmPacket extends HandshakePacket {
   }
 
   private void setIv() {
-    try {
-      byte[] iv = new byte[16];
-      if (!includeLegacyConfirmPacketBug) { // Temporary implementation bug compatibility issue.  See note in ZRTPSocket.
-        SecureRandom.getInstance("SHA1PRNG").nextBytes(iv);
-      }
-      System.arraycopy(iv, 0, this.data, IV_OFFSET, iv.length);
-    } catch (NoSuchAlgorithmException e) {
-      throw new IllegalArgumentException(e);
+    byte[] iv = new byte[16];
+    if (!includeLegacyConfirmPacketBug) { // Temporary implementation bug compatibility issue.  See note in ZRTPSocket.
+      CryptoPrimitives.getSecureRandom().nextBytes(iv);
     }
+    System.arraycopy(iv, 0, this.data, IV_OFFSET, iv.length);
   }
 
   private void computeCipherOperation(byte[] cipherKey, int mode) {
@@ -17,12 +17,10 @@
 
 package org.thoughtcrime.mannycalls.crypto.zrtp;
 
+import org.thoughtcrime.mannycalls.crypto.CryptoPrimitives;
 import org.thoughtcrime.mannycalls.crypto.zrtp.retained.RetainedSecretsDerivatives;
 import org.thoughtcrime.mannycalls.network.RtpPacket;
 
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
-
 /**
  * Base DH packet, from which DH part one and DH part two derive.
  * http://tools.ietf.org/html/rfc6189#section-5.5
@@ -34,7 +32,7 @@ import java.security.SecureRandom;
 public abstract class DHPacket extends HandshakePacket {
 
   /**
-   * We switch on these two KA types in several places below. This
+   * We switch on these KA types in several places below. This
    * is really unfortunate, particularly because we have distinct
    * sub-classes for the various KA types, so it stands to reason that
    * we should be able to isolate KA functionality to each KA type.
@@ -47,9 +45,14 @@ public abstract class DHPacket extends HandshakePacket {
 
   protected static final int DH3K_AGREEMENT_TYPE = 1;
   protected static final int EC25_AGREEMENT_TYPE = 2;
+  protected static final int X255_AGREEMENT_TYPE = 3;
+
+  protected static final int DH3K_PVR_LENGTH = 384;
+  protected static final int EC25_PVR_LENGTH = 64;
+  protected static final int X255_PVR_LENGTH = 32;
 
-  protected static final int DH3K_DH_LENGTH = 468;
-  protected static final int EC25_DH_LENGTH = 148;
+  // Everything but the public value: the header, hash, secret IDs and MAC.
+  protected static final int DH_BASE_LENGTH = 84;
 
   private static final int _LENGTH_OFFSET   = MESSAGE_BASE + 2;
   private static final int _HASH_OFFSET     = MESSAGE_BASE + 12;
@@ -58,8 +61,6 @@ public abstract class DHPacket extends HandshakePacket {
   private static final int _AUX_OFFSET      = MESSAGE_BASE + 60;
   private static final int _PBX_OFFSET      = MESSAGE_BASE + 68;
   private static final int _PVR_OFFSET      = MESSAGE_BASE + 76;
-  private static final int _DH3K_MAC_OFFSET = _PVR_OFFSET + 384;
-  private static final int _EC25_MAC_OFFSET = _PVR_OFFSET + 64;
 
   private int LENGTH_OFFSET   = _LENGTH_OFFSET;
   private int HASH_OFFSET     = _HASH_OFFSET;
@@ -68,8 +69,6 @@ public abstract class DHPacket extends HandshakePacket {
   private int AUX_OFFSET      = _AUX_OFFSET;
   private int PBX_OFFSET      = _PBX_OFFSET;
   private int PVR_OFFSET      = _PVR_OFFSET;
-  private int DH3K_MAC_OFFSET = _DH3K_MAC_OFFSET;
-  private int EC25_MAC_OFFSET = _EC25_MAC_OFFSET;
 
   private final int agreementType;
 
@@ -89,42 +88,25 @@ public abstract class DHPacket extends HandshakePacket {
                   RetainedSecretsDerivatives retainedSecrets,
                   boolean includeLegacyHeaderBug)
   {
-    super(typeTag,
-          agreementType == DH3K_AGREEMENT_TYPE ? DH3K_DH_LENGTH : EC25_DH_LENGTH,
-          includeLegacyHeaderBug);
+    super(typeTag, DH_BASE_LENGTH + getPvrLength(agreementType), includeLegacyHeaderBug);
     fixOffsetsForHeaderBug();
 
+    this.agreementType = agreementType;
+
     setHash(hashChain.getH1());
     setState(retainedSecrets);
     setPvr(pvr);
+    setMac(hashChain.getH0(), getMacOffset(), getDHLength() - 8);
+  }
 
-    switch (agreementType) {
-    case DH3K_AGREEMENT_TYPE:
-      setMac(hashChain.getH0(), DH3K_MAC_OFFSET, DH3K_DH_LENGTH - 8);
-      break;
-    case EC25_AGREEMENT_TYPE:
-      setMac(hashChain.getH0(), EC25_MAC_OFFSET, EC25_DH_LENGTH - 8);
-      break;
-    default:
-      throw new AssertionError("Bad agreement type: " + agreementType);
-    }
-
-    this.agreementType = agreementType;
+  public void verifyPvrLength() throws InvalidPacketException {
+    verifyMessageLength(getDHLength());
   }
 
   public byte[] getPvr() {
-    switch (agreementType) {
-    case DH3K_AGREEMENT_TYPE:
-      byte[] dh3k_pvr = new byte[384];
-      System.arraycopy(this.data, PVR_OFFSET, dh3k_pvr, 0, dh3k_pvr.length);
-      return dh3k_pvr;
-    case EC25_AGREEMENT_TYPE:
-      byte[] ec25_pvr = new byte[64];
-      System.arraycopy(this.data, PVR_OFFSET, ec25_pvr, 0, ec25_pvr.length);
-      return ec25_pvr;
-    default:
-      throw new AssertionError("Bad agreement type: " + agreementType);
-    }
+    byte[] pvr = new byte[getPvrLength(agreementType)];
+    System.arraycopy(this.data, PVR_OFFSET, pvr, 0, pvr.length);
+    return pvr;
   }
 
   public byte[] getDerivativeSecretOne() {
@@ -146,15 +128,23 @@ public abstract class DHPacket extends HandshakePacket {
   }
 
   public void verifyMac(byte[] key) throws InvalidPacketException {
+    super.verifyMac(key, getMacOffset(), getDHLength() - 8, getHash());
+  }
+
+  private int getDHLength() {
+    return DH_BASE_LENGTH + getPvrLength(agreementType);
+  }
+
+  private int getMacOffset() {
+    return PVR_OFFSET + getPvrLength(agreementType);
+  }
+
+  private static int getPvrLength(int agreementType) {
     switch (agreementType) {
-    case DH3K_AGREEMENT_TYPE:
-      super.verifyMac(key, DH3K_MAC_OFFSET, DH3K_DH_LENGTH-8, getHash());
-      return;
-    case EC25_AGREEMENT_TYPE:
-      super.verifyMac(key, EC25_MAC_OFFSET, EC25_DH_LENGTH-8, getHash());
-      return;
-    default:
-      throw new AssertionError("Bad agreement type: " + agreementType);
+    case DH3K_AGREEMENT_TYPE: return DH3K_PVR_LENGTH;
+    case EC25_AGREEMENT_TYPE: return EC25_PVR_LENGTH;
+    case X255_AGREEMENT_TYPE: return X255_PVR_LENGTH;
+    default:                  throw new AssertionError("Bad agreement type: " + agreementType);
     }
   }
 
@@ -174,18 +164,13 @@ public abstract class DHPacket extends HandshakePacket {
   }
 
   private void setDerivativeSecret(byte[] rs, int rsOffset) {
-    try {
-      if (rs != null) {
-        System.arraycopy(rs, 0, this.data, rsOffset, rs.length);
-      } else {
-        SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
-        byte[] randomBytes  = new byte[8];
-
-        random.nextBytes(randomBytes);
-        System.arraycopy(randomBytes, 0, this.data, rsOffset, randomBytes.length);
-      }
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
+    if (rs != null) {
+      System.arraycopy(rs, 0, this.data, rsOffset, rs.length);
+    } else {
+      byte[] randomBytes = new byte[8];
+
+      CryptoPrimitives.getSecureRandom().nextBytes(randomBytes);
+      System.arraycopy(randomBytes, 0, this.data, rsOffset, randomBytes.length);
     }
   }
 
@@ -199,7 +184,5 @@ public abstract class DHPacket extends HandshakePacket {
     AUX_OFFSET      += headerBugOffset;
     PBX_OFFSET      += headerBugOffset;
     PVR_OFFSET      += headerBugOffset;
-    DH3K_MAC_OFFSET += headerBugOffset;
-    EC25_MAC_OFFSET += headerBugOffset;
   }
 }
@@ -45,7 +45,9 @@ import javax.crypto.KeyAgreement;
 public class EC25SecretCalculator extends SecretCalculator {
 
   @Override
-  public byte[] calculateKeyAgreement(KeyPair localKey, byte[] publicKeyBytes) {
+  public byte[] calculateKeyAgreement(KeyPair localKey, byte[] publicKeyBytes)
+      throws InvalidPacketException
+  {
     Log.w("EC25SecretCalculator", "Calculating EC25 Secret...");
     try {
       byte[] x = new byte[32];
@@ -73,9 +75,9 @@ public class EC25SecretCalculator extends SecretCalculator {
     } catch (NoSuchAlgorithmException e) {
       throw new AssertionError(e);
     } catch (InvalidKeyException e) {
-      throw new IllegalArgumentException(e);
+      throw new InvalidPacketException(e);
     } catch (InvalidKeySpecException e) {
-      throw new IllegalArgumentException(e);
+      throw new InvalidPacketException(e);
     }
   }
 }
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.crypto.zrtp;
+
+import org.thoughtcrime.mannycalls.network.RtpPacket;
+import org.thoughtcrime.mannycalls.util.Conversions;
+
+/**
+ * ZRTP 'Error' handshake packet.
+ *
+ * http://tools.ietf.org/html/rfc6189#section-5.9
+ */
+
+public class ErrorPacket extends HandshakePacket {
+
+  public static final String TYPE = "Error   ";
+
+  public static final int NO_SHARED_SECRET = 0x56;
+
+  protected static final int ERROR_LENGTH = 16;
+
+  private static final int _CODE_OFFSET = MESSAGE_BASE + 12;
+
+  private int CODE_OFFSET = _CODE_OFFSET;
+
+  public ErrorPacket(RtpPacket packet, boolean deepCopy) {
+    super(packet, deepCopy);
+    fixOffsetsForHeaderBug();
+  }
+
+  public ErrorPacket(int errorCode, boolean includeLegacyHeaderBug) {
+    super(TYPE, ERROR_LENGTH, includeLegacyHeaderBug);
+    fixOffsetsForHeaderBug();
+    Conversions.longTo4ByteArray(this.data, CODE_OFFSET, errorCode);
+  }
+
+  public int getErrorCode() throws InvalidPacketException {
+    if (getPacketLength() < CODE_OFFSET + 4)
+      throw new InvalidPacketException("Error packet too short.");
+
+    return (int)Conversions.byteArray4ToLong(this.data, CODE_OFFSET);
+  }
+
+  private void fixOffsetsForHeaderBug() {
+    CODE_OFFSET += getHeaderBugOffset();
+  }
+
+}
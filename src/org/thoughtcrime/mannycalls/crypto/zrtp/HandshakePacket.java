@@ -20,11 +20,12 @@ package org.thoughtcrime.mannycalls.crypto.zrtp;
 import android.util.Log;
 
 import org.thoughtcrime.mannycalls.Release;
+import org.thoughtcrime.mannycalls.crypto.CryptoPrimitives;
 import org.thoughtcrime.mannycalls.network.RtpPacket;
 import org.thoughtcrime.mannycalls.util.Conversions;
 import org.thoughtcrime.mannycalls.util.Hex;
 
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -63,15 +64,22 @@ public class HandshakePacket extends RtpPacket {
   private static final long COOKIE_VALUE                   = 0x5a525450;
 
   private static final int ZRTP_CRC_LENGTH = 4;
+  private static final int TYPE_LENGTH     = 8;
+
+  // Determined once, when the packet is constructed.
+  private int             headerBugOffset;
+  private ZRTPMessageType messageType;
 
   public HandshakePacket(RtpPacket packet) {
     super(packet.getPacket(), packet.getPacketLength());
     fixOffsetsForHeaderBug();
+    this.messageType = parseMessageType();
   }
 
   public HandshakePacket(RtpPacket packet, boolean deepCopy) {
     super(packet.getPacket(), packet.getPacketLength(), deepCopy);
     fixOffsetsForHeaderBug();
+    this.messageType = parseMessageType();
   }
 
   public HandshakePacket(String type, int length, boolean includeLegacyHeaderBug) {
@@ -84,21 +92,61 @@ public class HandshakePacket extends RtpPacket {
     setMagic();
     setLength(length);
     setType(type);
+
+    this.messageType = parseMessageType();
   }
 
   public byte[] getMessageBytes() throws InvalidPacketException {
+    int    messagePacketLength = getMessageLength();
+    byte[] messageBytes        = new byte[messagePacketLength];
+    System.arraycopy(this.data, headerBugOffset + MESSAGE_BASE, messageBytes, 0, messagePacketLength);
+
+    return messageBytes;
+  }
+
+  /**
+   * @return The same bytes as getMessageBytes(), as a view onto this
+   * packet rather than a copy, for hashing.
+   */
+  public ByteBuffer getMessageSlice() throws InvalidPacketException {
+    return ByteBuffer.wrap(this.data, headerBugOffset + MESSAGE_BASE, getMessageLength()).slice();
+  }
+
+  private int getMessageLength() throws InvalidPacketException {
     if (this.getPacketLength() < (LENGTH_OFFSET + 3))
       throw new InvalidPacketException("Packet length shorter than length header.");
 
     int messagePacketLength = this.getLength();
 
-    if (messagePacketLength + 4 > this.getPacketLength())
+    if (headerBugOffset + MESSAGE_BASE + messagePacketLength + ZRTP_CRC_LENGTH > this.getPacketLength())
       throw new InvalidPacketException("Encoded packet length longer than length of packet.");
 
-    byte[] messageBytes = new byte[messagePacketLength];
-    System.arraycopy(this.data, getHeaderBugOffset() + MESSAGE_BASE, messageBytes, 0, messagePacketLength);
+    return messagePacketLength;
+  }
 
-    return messageBytes;
+  /**
+   * Checks that the encoded message length fits within this packet, and
+   * covers at least the fixed fields of its message type.  The packet
+   * accessors read at fixed offsets, so this has to hold before any of
+   * them are called on a received packet.
+   */
+  public boolean verifyLength() {
+    if (getPacketLength() < TYPE_OFFSET + TYPE_LENGTH + ZRTP_CRC_LENGTH)
+      return false;
+
+    int messageLength = getLength();
+
+    return messageLength >= messageType.getMinimumLength() &&
+           headerBugOffset + MESSAGE_BASE + messageLength + ZRTP_CRC_LENGTH <= getPacketLength();
+  }
+
+  /**
+   * For the variable length parts of a message, which verifyLength()
+   * can't know about without parsing it.
+   */
+  protected void verifyMessageLength(int requiredLength) throws InvalidPacketException {
+    if (getMessageLength() < requiredLength)
+      throw new InvalidPacketException("Message too short: " + getLength() + " < " + requiredLength);
   }
 
   private void setPrefix(boolean includeLegacyHeaderBug) {
@@ -111,7 +159,7 @@ public class HandshakePacket extends RtpPacket {
   }
 
   private int getLength() {
-    return Conversions.byteArrayToShort(this.data, LENGTH_OFFSET);
+    return Conversions.byteArrayToShort(this.data, LENGTH_OFFSET) & 0xFFFF;
   }
 
   protected void setLength(int length) {
@@ -120,9 +168,9 @@ public class HandshakePacket extends RtpPacket {
 
   private byte[] calculateMac(byte[] key, int messageLength) {
     try {
-      Mac mac = Mac.getInstance("HmacSHA256");
+      Mac mac = CryptoPrimitives.getMac("HmacSHA256");
       mac.init(new SecretKeySpec(key, "HmacSHA256"));
-      mac.update(this.data, getHeaderBugOffset() + MESSAGE_BASE, messageLength);
+      mac.update(this.data, headerBugOffset + MESSAGE_BASE, messageLength);
       return mac.doFinal();
     } catch (NoSuchAlgorithmException e) {
       throw new IllegalArgumentException(e);
@@ -158,7 +206,7 @@ public class HandshakePacket extends RtpPacket {
 
   private boolean verifySubHash(byte[] key, byte[] subhash) {
     try {
-      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      MessageDigest md = CryptoPrimitives.getMessageDigest("SHA-256");
       byte[] digest    = md.digest(key);
       return Arrays.equals(digest, subhash);
     } catch (NoSuchAlgorithmException e) {
@@ -173,6 +221,9 @@ public class HandshakePacket extends RtpPacket {
   }
 
   public boolean verifyCRC() {
+    if (getPacketLength() < ZRTP_CRC_LENGTH)
+      return false;
+
     long myCRC    = calculateCRC(this.data, getPacketLength());
     long theirCRC = Conversions.byteArray4ToLong(this.data, getPacketLength()-4);
     return myCRC == theirCRC;
@@ -183,16 +234,30 @@ public class HandshakePacket extends RtpPacket {
                                  calculateCRC(this.data, this.getPacketLength()));
   }
 
+  public ZRTPMessageType getMessageType() {
+    return messageType;
+  }
+
   public String getType() {
-    if (this.data[PREFIX_OFFSET] != 0x10 && this.data[PREFIX_OFFSET] != 0x20) {
-      return ConfAckPacket.TYPE;
+    return messageType.getType();
+  }
+
+  private ZRTPMessageType parseMessageType() {
+    if (getPacketLength() <= PREFIX_OFFSET) {
+      return ZRTPMessageType.UNKNOWN;
     }
 
-    try {
-      return new String(data, TYPE_OFFSET, 8, "UTF-8");
-    } catch (UnsupportedEncodingException e) {
-      throw new IllegalArgumentException(e);
+    if (this.data[PREFIX_OFFSET] != PREFIX_VALUE &&
+        this.data[PREFIX_OFFSET] != LEGACY_HEADER_BUG_PREFIX_VALUE)
+    {
+      return ZRTPMessageType.CONF2_ACK;
+    }
+
+    if (getPacketLength() < TYPE_OFFSET + TYPE_LENGTH) {
+      return ZRTPMessageType.UNKNOWN;
     }
+
+    return ZRTPMessageType.fromTag(Conversions.byteArrayToLong(this.data, TYPE_OFFSET));
   }
 
   private void setMagic() {
@@ -221,21 +286,16 @@ public class HandshakePacket extends RtpPacket {
   /// This is a complete mess and it fucks up most of the handshake packet code.  Eventually
   //  we'll phase this out.
   protected int getHeaderBugOffset() {
-    if (isLegacyHeaderBugPresent()) {
-      Log.w("HandshakePacket", "Returning offset for legacy handshake bug...");
-      return RtpPacket.HEADER_LENGTH;
-    } else {
-      Log.w("HandshakePacket", "Not including legacy handshake bug...");
-      return 0;
-    }
+    return headerBugOffset;
   }
 
   public boolean isLegacyHeaderBugPresent() {
-    return data[PREFIX_OFFSET] == LEGACY_HEADER_BUG_PREFIX_VALUE;
+    return getPacketLength() > PREFIX_OFFSET &&
+           data[PREFIX_OFFSET] == LEGACY_HEADER_BUG_PREFIX_VALUE;
   }
 
   private void fixOffsetsForHeaderBug() {
-    int headerBugOffset = getHeaderBugOffset();
+    headerBugOffset = isLegacyHeaderBugPresent() ? RtpPacket.HEADER_LENGTH : 0;
 
     MAGIC_OFFSET  += headerBugOffset;
     LENGTH_OFFSET += headerBugOffset;
@@ -17,9 +17,10 @@
 
 package org.thoughtcrime.mannycalls.crypto.zrtp;
 
+import org.thoughtcrime.mannycalls.crypto.CryptoPrimitives;
+
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 
 /**
  * ZRTP hash commitment chain.
@@ -36,9 +37,9 @@ public class HashChain {
 
   public HashChain() {
     try {
-      SecureRandom.getInstance("SHA1PRNG").nextBytes(h0);
+      CryptoPrimitives.getSecureRandom().nextBytes(h0);
 
-      MessageDigest md = MessageDigest.getInstance("SHA256");
+      MessageDigest md = CryptoPrimitives.getMessageDigest("SHA-256");
       h1               = md.digest(h0);
       h2               = md.digest(h1);
       h3               = md.digest(h2);
@@ -30,11 +30,13 @@ public class HelloAckPacket extends HandshakePacket {
 
   public static final String TYPE = "HelloAck";
 
+  protected static final int HELLO_ACK_LENGTH = 12;
+
   public HelloAckPacket(SecureRtpPacket packet) {
     super(packet);
   }
 
   public HelloAckPacket(boolean includeLegacyHeaderBug) {
-    super(TYPE, 12, includeLegacyHeaderBug);
+    super(TYPE, HELLO_ACK_LENGTH, includeLegacyHeaderBug);
   }
 }
@@ -21,6 +21,7 @@ import org.thoughtcrime.mannycalls.network.RtpPacket;
 import org.thoughtcrime.mannycalls.util.Conversions;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -37,11 +38,15 @@ import java.util.Set;
 public class HelloPacket extends HandshakePacket {
   public  static final String TYPE = "Hello   ";
 
-  private static final List<byte[]> KEY_AGREEMENTS = new ArrayList<byte[]>(1) {{
+  private static final List<byte[]> KEY_AGREEMENTS = new ArrayList<byte[]>(4) {{
+    add(new byte[] {'X', '2', '5', '5'});
     add(new byte[] {'E', 'C', '2', '5'});
+    add(new byte[] {'P', 'r', 's', 'h'});
+    add(new byte[] {'M', 'u', 'l', 't'});
   }};
 
-  private static final int HELLO_MIN_LENGTH       = 88;
+  protected static final int HELLO_MIN_LENGTH = 88;
+
   private static final int OPTIONAL_VALUES_LENGTH = KEY_AGREEMENTS.size() * 4;
 
   private static final int MAGIC_LENGTH   = 2;
@@ -85,6 +90,9 @@ public class HelloPacket extends HandshakePacket {
 
   private int OPTIONS_OFFSET = _OPTIONS_OFFSET;
 
+  // A received Hello's options are read by every KA type check.
+  private Set<String> keyAgreementOptions;
+
   public HelloPacket(RtpPacket packet) {
     super(packet);
     fixOffsetsForHeaderBug();
@@ -135,6 +143,10 @@ public class HelloPacket extends HandshakePacket {
                     getH3());
   }
 
+  public void verifyOptionsLength() throws InvalidPacketException {
+    verifyMessageLength(getMessageLength());
+  }
+
   private int getMessageLength() {
     return HELLO_MIN_LENGTH  + getOptionsLength();
   }
@@ -172,7 +184,11 @@ public class HelloPacket extends HandshakePacket {
   }
 
   public Set<String> getKeyAgreementOptions() {
-    Set<String> keyAgreementOptions = new HashSet<String>();
+    if (keyAgreementOptions != null) {
+      return keyAgreementOptions;
+    }
+
+    Set<String> options = new HashSet<String>();
 
     int keyAgreementOptionsOffset  = OPTIONS_OFFSET                +
                                      (getHashOptionCount()    * 4) +
@@ -181,9 +197,10 @@ public class HelloPacket extends HandshakePacket {
 
     for (int i=0;i<getKeyAgreementOptionCount();i++) {
       int keyAgreementOptionOffset = keyAgreementOptionsOffset + (i * 4);
-      keyAgreementOptions.add(new String(this.data, keyAgreementOptionOffset, 4));
+      options.add(new String(this.data, keyAgreementOptionOffset, 4));
     }
 
+    keyAgreementOptions = Collections.unmodifiableSet(options);
     return keyAgreementOptions;
   }
 
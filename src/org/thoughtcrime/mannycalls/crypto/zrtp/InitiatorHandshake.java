@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2011 Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.crypto.zrtp;
+
+import android.util.Log;
+
+import org.thoughtcrime.mannycalls.Release;
+import org.thoughtcrime.mannycalls.crypto.CryptoPrimitives;
+import org.thoughtcrime.mannycalls.crypto.zrtp.retained.InitiatorRetainedSecretsCalculator;
+import org.thoughtcrime.mannycalls.crypto.zrtp.retained.RetainedSecrets;
+import org.thoughtcrime.mannycalls.crypto.zrtp.retained.RetainedSecretsCalculator;
+import org.thoughtcrime.mannycalls.crypto.zrtp.retained.RetainedSecretsDerivatives;
+import org.thoughtcrime.mannycalls.crypto.zrtp.retained.RetainedSecretsStore;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The "initiator" side of a ZRTP handshake.  This side just hangs out and waits
+ * for the "responder" to send a hello packet, then proceeds through the ZRTP handshake.
+ *
+ * @author Moxie Marlinspike
+ *
+ */
+
+public class InitiatorHandshake extends ZRTPHandshake {
+
+  private HelloPacket foreignHello;
+  private HelloPacket localHello;
+  private CommitPacket commitPacket;
+
+  private DHPartOnePacket foreignDH;
+  private DHPartTwoPacket localDH;
+
+  private ConfirmOnePacket confirmPacket;
+
+  private RetainedSecrets retainedSecrets;
+  private RetainedSecretsCalculator retainedSecretsCalculator;
+  private boolean includeLegacyHeaderBug;
+  private boolean preshared;
+
+  public InitiatorHandshake(byte[] localZid, String foreignNumber,
+                            RetainedSecretsStore retainedSecretsStore)
+  {
+    super(localZid, foreignNumber, retainedSecretsStore);
+    this.includeLegacyHeaderBug = false;
+  }
+
+  /**
+   * Takes a key pair ahead of the responder's Hello, for X255, which any
+   * current responder offers.
+   */
+  public void prepare() {
+    prepareKeyPair(KA_TYPE_X255);
+  }
+
+  @Override
+  protected void handleCommit(HandshakePacket packet) {
+    throw new AssertionError("Invalid state!");
+  }
+
+  @Override
+  protected void handleConfirmAck(HandshakePacket packet) {
+    // A multistream handshake leaves the retained secrets to the call's first.
+    if (multistream) {
+      setState(HANDSHAKE_COMPLETE);
+      return;
+    }
+
+    boolean continuity = preshared ||
+                         retainedSecretsCalculator.hasContinuity(foreignDH.getDerivativeSecretOne(),
+                                                                 foreignDH.getDerivativeSecretTwo());
+    byte[] foreignZid  = foreignHello.getZID();
+    byte[] rs1         = masterSecret.getRetainedSecret();
+    long expiration    = System.currentTimeMillis() + (confirmPacket.getCacheTime() * 1000L);
+
+    cacheRetainedSecret(remoteNumber, foreignZid, rs1, expiration, continuity);
+    setState(HANDSHAKE_COMPLETE);
+  }
+
+  @Override
+  protected void handleConfirmOne(HandshakePacket packet) throws InvalidPacketException {
+    confirmPacket = new ConfirmOnePacket(packet, isLegacyConfirmConnection());
+
+    confirmPacket.verifyMac(masterSecret.getResponderMacKey());
+    confirmPacket.decrypt(masterSecret.getResponderZrtpKey());
+
+    byte[] preimage = confirmPacket.getPreimage();
+
+    if (preshared || multistream) foreignHello.verifyMac(calculateHash(calculateHash(preimage)));
+    else                          foreignDH.verifyMac(preimage);
+
+    setState(EXPECTING_CONFIRM_ACK);
+    sendFreshPacket(new ConfirmTwoPacket(masterSecret.getInitiatorMacKey(),
+                                         masterSecret.getInitiatorZrtpKey(),
+                                         this.hashChain, isLegacyConfirmConnection(),
+                                         includeLegacyHeaderBug));
+  }
+
+  @Override
+  protected void handleConfirmTwo(HandshakePacket packet) throws InvalidPacketException {
+    throw new InvalidPacketException("Initiator received a Confirm2 packet?");
+  }
+
+  @Override
+  protected void handleDH(HandshakePacket packet) throws InvalidPacketException {
+    assert(localDH != null);
+
+    SecretCalculator calculator;
+
+    switch (getKeyAgreementType()) {
+    case KA_TYPE_X255:
+      foreignDH  = new X255DHPartOnePacket(packet, true);
+      calculator = new X255SecretCalculator();
+      break;
+    case KA_TYPE_EC25:
+      foreignDH  = new EC25DHPartOnePacket(packet, true);
+      calculator = new EC25SecretCalculator();
+      break;
+    case KA_TYPE_DH3K:
+      foreignDH  = new DH3KDHPartOnePacket(packet, true);
+      calculator = new DH3KSecretCalculator();
+      break;
+    default:
+      throw new AssertionError("Unknown KA type: " + getKeyAgreementType());
+    }
+
+    foreignDH.verifyPvrLength();
+
+    if (Release.DEBUG)
+      Log.w("InitiatorHandshake", "Got DH part 1...");
+
+    byte[] h1 = foreignDH.getHash();
+    byte[] h2 = calculateHash(h1);
+
+    foreignHello.verifyMac(h2);
+
+    byte[] dhResult     = calculator.calculateKeyAgreement(getKeyPair(), foreignDH.getPvr());
+
+    byte[] totalHash    = calculator.calculateTotalHash(foreignHello, commitPacket,
+                                                        foreignDH, localDH);
+
+    byte[] s1           = retainedSecretsCalculator.getS1(foreignDH.getDerivativeSecretOne(),
+                                                          foreignDH.getDerivativeSecretTwo());
+
+    byte[] sharedSecret = calculator.calculateSharedSecret(dhResult, totalHash, s1,
+                                                           localHello.getZID(),
+                                                           foreignHello.getZID());
+
+    this.masterSecret   = new MasterSecret(sharedSecret, totalHash, localHello.getZID(),
+                                           foreignHello.getZID());
+
+    setState(EXPECTING_CONFIRM_ONE);
+    sendFreshPacket(localDH);
+  }
+
+  @Override
+  protected void handleHelloAck(HandshakePacket packet) throws InvalidPacketException {
+    retainedSecrets = getRetainedSecrets(remoteNumber, foreignHello.getZID());
+
+    if (isMultistreamSessionFor(localZid, foreignHello.getZID()) &&
+        foreignHello.getKeyAgreementOptions().contains("Mult"))
+    {
+      sendMultistreamCommit();
+    } else if (retainedSecrets.getRetainedSecretOne() != null &&
+        foreignHello.getKeyAgreementOptions().contains("Prsh"))
+    {
+      sendPresharedCommit();
+    } else {
+      sendDHCommit();
+    }
+  }
+
+  @Override
+  protected void handleError(ErrorPacket packet) throws InvalidPacketException {
+    if ((preshared || multistream) && getState() == EXPECTING_CONFIRM_ONE &&
+        packet.getErrorCode() == ErrorPacket.NO_SHARED_SECRET)
+    {
+      Log.w("InitiatorHandshake", "Responder has no matching shared secret, falling back to DH...");
+      preshared    = false;
+      multistream  = false;
+      masterSecret = null;
+      sendDHCommit();
+    } else {
+      super.handleError(packet);
+    }
+  }
+
+  private void sendDHCommit() throws InvalidPacketException {
+    retainedSecretsCalculator              = new InitiatorRetainedSecretsCalculator(retainedSecrets);
+    RetainedSecretsDerivatives derivatives = retainedSecretsCalculator.getRetainedSecretsDerivatives();
+
+    switch (getKeyAgreementType()) {
+    case KA_TYPE_X255:
+      localDH = new X255DHPartTwoPacket(hashChain, getPublicKey(), derivatives, includeLegacyHeaderBug);
+      break;
+    case KA_TYPE_EC25:
+      localDH = new EC25DHPartTwoPacket(hashChain, getPublicKey(), derivatives, includeLegacyHeaderBug);
+      break;
+    case KA_TYPE_DH3K:
+      localDH = new DH3KDHPartTwoPacket(hashChain, getPublicKey(), derivatives, includeLegacyHeaderBug);
+      break;
+    }
+
+    commitPacket = new CommitPacket(hashChain, foreignHello, localDH, localZid, includeLegacyHeaderBug);
+
+    setState(EXPECTING_DH_1);
+    sendFreshPacket(commitPacket);
+  }
+
+  // Both sides have a retained secret from an earlier call, so key this
+  // one from it and a fresh nonce, without a DH exchange.  If the
+  // responder's doesn't match, it says so and we fall back to DH.
+  private void sendPresharedCommit() throws InvalidPacketException {
+    PresharedSecretCalculator calculator = new PresharedSecretCalculator();
+
+    byte[] nonce        = new byte[CommitPacket.NONCE_LENGTH];
+    byte[] presharedKey = calculator.calculatePresharedKey(retainedSecrets.getRetainedSecretOne());
+
+    CryptoPrimitives.getSecureRandom().nextBytes(nonce);
+
+    commitPacket = new CommitPacket(hashChain, localZid, nonce,
+                                    calculator.calculateKeyId(presharedKey),
+                                    includeLegacyHeaderBug);
+
+    byte[] totalHash    = calculator.calculateTotalHash(foreignHello, commitPacket);
+    byte[] sharedSecret = calculator.calculateSharedSecret(presharedKey, totalHash,
+                                                           localHello.getZID(),
+                                                           foreignHello.getZID());
+
+    this.masterSecret   = new MasterSecret(sharedSecret, totalHash, localHello.getZID(),
+                                           foreignHello.getZID());
+    this.preshared      = true;
+
+    setState(EXPECTING_CONFIRM_ONE);
+    sendFreshPacket(commitPacket);
+  }
+
+  // This call already has a session key from its first handshake, so key
+  // another stream from it and a fresh nonce.  The responder says so if
+  // it has no such session, and we fall back to DH.
+  private void sendMultistreamCommit() throws InvalidPacketException {
+    MultistreamSecretCalculator calculator = new MultistreamSecretCalculator();
+
+    byte[] nonce = new byte[CommitPacket.NONCE_LENGTH];
+    CryptoPrimitives.getSecureRandom().nextBytes(nonce);
+
+    commitPacket = new CommitPacket(hashChain, localZid, nonce, includeLegacyHeaderBug);
+
+    byte[] totalHash    = calculator.calculateTotalHash(foreignHello, commitPacket);
+    byte[] sharedSecret = calculator.calculateSharedSecret(multistreamSession.getSessionKey(),
+                                                           totalHash, localHello.getZID(),
+                                                           foreignHello.getZID());
+
+    this.masterSecret   = new MasterSecret(sharedSecret, totalHash, localHello.getZID(),
+                                           foreignHello.getZID());
+    this.multistream    = true;
+
+    setState(EXPECTING_CONFIRM_ONE);
+    sendFreshPacket(commitPacket);
+  }
+
+  @Override
+  protected void handleHello(HandshakePacket packet) throws InvalidPacketException {
+    foreignHello           = new HelloPacket(packet, true);
+    foreignHello.verifyOptionsLength();
+
+    includeLegacyHeaderBug = foreignHello.isLegacyHeaderBugPresent();
+    localHello             = new HelloPacket(hashChain, localZid, includeLegacyHeaderBug);
+
+    setState(EXPECTING_HELLO_ACK);
+    sendFreshPacket(localHello);
+  }
+
+  private byte[] calculateHash(byte[] preimage) {
+    try {
+      MessageDigest md = CryptoPrimitives.getMessageDigest("SHA-256");
+      return md.digest(preimage);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  // A responder that exchanges Hellos while ringing answers the Commit
+  // once its user does.
+  @Override
+  public boolean isWaitingForPeer() {
+    int state = getState();
+
+    return super.isWaitingForPeer() || state == EXPECTING_HELLO_ACK || state == EXPECTING_DH_1 ||
+           (state == EXPECTING_CONFIRM_ONE && (preshared || multistream));
+  }
+
+  @Override
+  protected int getKeyAgreementType() {
+    if (foreignHello == null)
+      throw new AssertionError("We can't project agreement type until we've seen a hello!");
+
+    RedPhoneClientId foreignClientId = new RedPhoneClientId(foreignHello.getClientId());
+
+    if (foreignHello.getKeyAgreementOptions().contains("X255")) {
+      return KA_TYPE_X255;
+    } else if (foreignClientId.isImplicitDh3kVersion() ||
+        foreignHello.getKeyAgreementOptions().contains("EC25"))
+    {
+      return KA_TYPE_EC25;
+    } else {
+      return KA_TYPE_DH3K;
+    }
+  }
+
+  @Override
+  public HelloPacket getForeignHello() {
+    return foreignHello;
+  }
+
+}
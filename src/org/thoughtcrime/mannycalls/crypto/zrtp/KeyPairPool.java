@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.crypto.zrtp;
+
+import android.os.Process;
+import android.util.Log;
+
+import org.thoughtcrime.mannycalls.crypto.CryptoPrimitives;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.Security;
+import java.security.spec.ECGenParameterSpec;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.crypto.spec.DHParameterSpec;
+
+/**
+ * Keeps a few ZRTP key pairs of each KA type generated ahead of time, so
+ * that a 3072-bit DH key generation doesn't sit between the user
+ * answering and hearing audio.
+ *
+ * Each key pair is handed out exactly once.  Taking one schedules a
+ * refill on a background-priority thread; if the pool is empty, the
+ * caller generates a key pair itself, exactly as it would without a pool.
+ */
+public class KeyPairPool {
+
+  private static final String TAG = "KeyPairPool";
+
+  private static final int POOL_SIZE = 2;
+
+  private static final KeyPairPool instance = new KeyPairPool();
+
+  static {
+    Security.addProvider(new org.spongycastle.jce.provider.BouncyCastleProvider());
+  }
+
+  public static KeyPairPool getInstance() {
+    return instance;
+  }
+
+  private final LinkedList<KeyPair> dh3kKeyPairs = new LinkedList<KeyPair>();
+  private final LinkedList<KeyPair> x255KeyPairs = new LinkedList<KeyPair>();
+  private final LinkedList<KeyPair> ec25KeyPairs = new LinkedList<KeyPair>();
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "KeyPairPool");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private boolean refillPending;
+
+  private KeyPairPool() {}
+
+  /**
+   * Starts filling the pool in the background, if it isn't already full.
+   */
+  public synchronized void prefill() {
+    if (!refillPending) {
+      refillPending = true;
+      executor.execute(new RefillTask());
+    }
+  }
+
+  /**
+   * @param kaType ZRTPHandshake.KA_TYPE_DH3K, KA_TYPE_EC25 or KA_TYPE_X255.
+   * @return A key pair which no other caller has been or will be given.
+   */
+  public KeyPair take(int kaType) {
+    long    startTime = System.currentTimeMillis();
+    KeyPair keyPair;
+
+    synchronized (this) {
+      keyPair = getKeyPairs(kaType).poll();
+    }
+
+    boolean pooled = keyPair != null;
+
+    if (!pooled) {
+      keyPair = generate(kaType);
+    }
+
+    Log.w(TAG, (pooled ? "Pooled" : "Generated") + " key pair for KA type " + kaType +
+               " in " + (System.currentTimeMillis() - startTime) + "ms");
+
+    prefill();
+    return keyPair;
+  }
+
+  private LinkedList<KeyPair> getKeyPairs(int kaType) {
+    switch (kaType) {
+    case ZRTPHandshake.KA_TYPE_X255: return x255KeyPairs;
+    case ZRTPHandshake.KA_TYPE_EC25: return ec25KeyPairs;
+    case ZRTPHandshake.KA_TYPE_DH3K: return dh3kKeyPairs;
+    default:                         throw new AssertionError("Unknown KA type: " + kaType);
+    }
+  }
+
+  private synchronized boolean isFull(int kaType) {
+    return getKeyPairs(kaType).size() >= POOL_SIZE;
+  }
+
+  private synchronized void add(int kaType, KeyPair keyPair) {
+    getKeyPairs(kaType).add(keyPair);
+  }
+
+  public static KeyPair generate(int kaType) {
+    switch (kaType) {
+    case ZRTPHandshake.KA_TYPE_X255: return X25519.generateKeyPair(CryptoPrimitives.getSecureRandom());
+    case ZRTPHandshake.KA_TYPE_EC25: return generateEC25KeyPair();
+    case ZRTPHandshake.KA_TYPE_DH3K: return generateDH3kKeyPair();
+    default:                         throw new AssertionError("Unknown KA type: " + kaType);
+    }
+  }
+
+  private static KeyPair generateDH3kKeyPair() {
+    try {
+      KeyPairGenerator kg    = KeyPairGenerator.getInstance("DH");
+      DHParameterSpec dhSpec = new DHParameterSpec(DH3KSecretCalculator.PRIME,
+                                                   DH3KSecretCalculator.GENERATOR);
+      kg.initialize(dhSpec);
+
+      return kg.generateKeyPair();
+    } catch (InvalidAlgorithmParameterException e) {
+      throw new IllegalArgumentException(e);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  private static KeyPair generateEC25KeyPair() {
+    try {
+      KeyPairGenerator kg       = KeyPairGenerator.getInstance("ECDH", "SC");
+      ECGenParameterSpec ecSpec = new ECGenParameterSpec("secp256r1");
+      kg.initialize(ecSpec);
+
+      return kg.generateKeyPair();
+    } catch (InvalidAlgorithmParameterException e) {
+      throw new AssertionError(e);
+    } catch (NoSuchAlgorithmException nsae) {
+      throw new AssertionError(nsae);
+    } catch (NoSuchProviderException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private class RefillTask implements Runnable {
+    @Override
+    public void run() {
+      Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+      synchronized (KeyPairPool.this) {
+        refillPending = false;
+      }
+
+      // Cheapest and most likely to be negotiated first.
+      for (int kaType : new int[] {ZRTPHandshake.KA_TYPE_X255, ZRTPHandshake.KA_TYPE_EC25,
+                                   ZRTPHandshake.KA_TYPE_DH3K})
+      {
+        while (!isFull(kaType)) {
+          add(kaType, generate(kaType));
+        }
+      }
+    }
+  }
+
+}
@@ -17,6 +17,7 @@
 
 package org.thoughtcrime.mannycalls.crypto.zrtp;
 
+import org.thoughtcrime.mannycalls.crypto.CryptoPrimitives;
 import org.thoughtcrime.mannycalls.util.Conversions;
 
 import java.security.InvalidKeyException;
@@ -50,6 +51,7 @@ public class MasterSecret {
   private byte[] zrtpKeyR;
   private byte[] sas;
   private byte[] rs1;
+  private byte[] sessionKey;
 
   public MasterSecret(byte[] sharedSecret, byte[] totalHash, byte[] zidi, byte[] zidr) {
     this.zidi         = zidi;
@@ -72,6 +74,8 @@ public class MasterSecret {
     this.sas       = calculateKDF("SAS", 4);
 
     this.rs1       = calculateKDF("retained secret", 32);
+
+    this.sessionKey = calculateKDF("ZRTP Session Key", 32);
   }
 
   public byte[] getSAS() {
@@ -114,9 +118,25 @@ public class MasterSecret {
     return rs1;
   }
 
+  /**
+   * @return ZRTPSess, from which further streams on the same call are
+   * keyed in multistream mode.
+   */
+  public byte[] getSessionKey() {
+    return sessionKey;
+  }
+
+  public byte[] getInitiatorZid() {
+    return zidi;
+  }
+
+  public byte[] getResponderZid() {
+    return zidr;
+  }
+
   private byte[] calculateKDF(String label, int truncatedLength) {
     try {
-      Mac mac = Mac.getInstance("HmacSHA256");
+      Mac mac = CryptoPrimitives.getMac("HmacSHA256");
       mac.init(new SecretKeySpec(this.sharedSecret, "HmacSHA256"));
 
       mac.update(counter);
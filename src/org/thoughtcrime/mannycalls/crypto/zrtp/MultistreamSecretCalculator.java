@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.mannycalls.crypto.zrtp;
+
+import org.thoughtcrime.mannycalls.crypto.CryptoPrimitives;
+import org.thoughtcrime.mannycalls.util.Conversions;
+
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Calculates the shared secret for a multistream mode handshake, which
+ * keys another stream on a call that has already completed a DH or
+ * preshared handshake.  There's no key agreement and no retained secret
+ * involved, just the session key (ZRTPSess) from the first stream and
+ * the fresh nonce in the initiator's Commit.
+ *
+ * http://tools.ietf.org/html/rfc6189#section-4.4.3
+ */
+public class MultistreamSecretCalculator {
+
+  private static final int HASH_LENGTH_BITS = 256;
+
+  public byte[] calculateTotalHash(HelloPacket responderHello, CommitPacket commit)
+    throws InvalidPacketException
+  {
+    try {
+      MessageDigest md = CryptoPrimitives.getMessageDigest("SHA-256");
+      md.update(responderHello.getMessageSlice());
+      md.update(commit.getMessageSlice());
+      return md.digest();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  public byte[] calculateSharedSecret(byte[] sessionKey, byte[] totalHash,
+                                      byte[] zidi, byte[] zidr)
+  {
+    try {
+      Mac mac = CryptoPrimitives.getMac("HmacSHA256");
+      mac.init(new SecretKeySpec(sessionKey, "HmacSHA256"));
+
+      mac.update(Conversions.intToByteArray(1));
+      mac.update("ZRTP MSK".getBytes());
+      mac.update((byte)0x00);
+      mac.update(zidi);
+      mac.update(zidr);
+      mac.update(totalHash);
+      mac.update(Conversions.intToByteArray(HASH_LENGTH_BITS));
+
+      return mac.doFinal();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalArgumentException(e);
+    } catch (InvalidKeyException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+}
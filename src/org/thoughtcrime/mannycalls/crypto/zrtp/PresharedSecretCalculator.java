@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.crypto.zrtp;
+
+import org.thoughtcrime.mannycalls.crypto.CryptoPrimitives;
+import org.thoughtcrime.mannycalls.util.Conversions;
+
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Calculates the shared secret for a preshared mode handshake, in which
+ * the parties skip the DH exchange and key the call from a retained
+ * secret (rs1) and the fresh nonce in the initiator's Commit.
+ *
+ * We have no auxsecret or pbxsecret, so the preshared key is derived
+ * from rs1 alone.
+ *
+ * http://tools.ietf.org/html/rfc6189#section-4.4.1.1
+ */
+public class PresharedSecretCalculator {
+
+  private static final int HASH_LENGTH_BITS = 256;
+
+  public byte[] calculatePresharedKey(byte[] rs1) {
+    try {
+      MessageDigest md = CryptoPrimitives.getMessageDigest("SHA-256");
+      md.update(Conversions.intToByteArray(rs1.length));
+      md.update(rs1);
+      md.update(Conversions.intToByteArray(0));
+      md.update(Conversions.intToByteArray(0));
+
+      return md.digest();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  public byte[] calculateKeyId(byte[] presharedKey) {
+    byte[] keyId = new byte[CommitPacket.KEY_ID_LENGTH];
+    System.arraycopy(calculateMac(presharedKey, "Prsh".getBytes()), 0, keyId, 0, keyId.length);
+
+    return keyId;
+  }
+
+  public byte[] calculateTotalHash(HelloPacket responderHello, CommitPacket commit)
+    throws InvalidPacketException
+  {
+    try {
+      MessageDigest md = CryptoPrimitives.getMessageDigest("SHA-256");
+      md.update(responderHello.getMessageSlice());
+      md.update(commit.getMessageSlice());
+      return md.digest();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  public byte[] calculateSharedSecret(byte[] presharedKey, byte[] totalHash,
+                                      byte[] zidi, byte[] zidr)
+  {
+    try {
+      Mac mac = CryptoPrimitives.getMac("HmacSHA256");
+      mac.init(new SecretKeySpec(presharedKey, "HmacSHA256"));
+
+      mac.update(Conversions.intToByteArray(1));
+      mac.update("ZRTP PSK".getBytes());
+      mac.update((byte)0x00);
+      mac.update(zidi);
+      mac.update(zidr);
+      mac.update(totalHash);
+      mac.update(Conversions.intToByteArray(HASH_LENGTH_BITS));
+
+      return mac.doFinal();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalArgumentException(e);
+    } catch (InvalidKeyException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  private byte[] calculateMac(byte[] key, byte[] input) {
+    try {
+      Mac mac = CryptoPrimitives.getMac("HmacSHA256");
+      mac.init(new SecretKeySpec(key, "HmacSHA256"));
+      return mac.doFinal(input);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalArgumentException(e);
+    } catch (InvalidKeyException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2011 Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.crypto.zrtp;
+
+import android.util.Log;
+
+import org.thoughtcrime.mannycalls.crypto.CryptoPrimitives;
+import org.thoughtcrime.mannycalls.crypto.zrtp.retained.ResponderRetainedSecretsCalculator;
+import org.thoughtcrime.mannycalls.crypto.zrtp.retained.RetainedSecrets;
+import org.thoughtcrime.mannycalls.crypto.zrtp.retained.RetainedSecretsCalculator;
+import org.thoughtcrime.mannycalls.crypto.zrtp.retained.RetainedSecretsDerivatives;
+import org.thoughtcrime.mannycalls.crypto.zrtp.retained.RetainedSecretsStore;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * The "responder" side of a ZRTP handshake.  We've received a signal from the
+ * initiator, and they're waiting for us to kick off the handshake with a hello
+ * message.
+ *
+ * @author Moxie Marlinspike
+ *
+ */
+
+public class ResponderHandshake extends ZRTPHandshake {
+
+  private HelloPacket localHello;
+  private HelloPacket foreignHello;
+  private CommitPacket foreignCommit;
+  private DHPartOnePacket localDH;
+  private DHPartTwoPacket foreignDH;
+
+  private RetainedSecretsCalculator retainedSecretsCalculator;
+  private boolean includeLegacyHeaderBug;
+  private boolean preshared;
+
+  public ResponderHandshake(byte[] localZid, String foreignNumber,
+                            boolean includeLegacyHeaderBug,
+                            RetainedSecretsStore retainedSecretsStore)
+  {
+    super(localZid, foreignNumber, retainedSecretsStore);
+    Log.w("ResponderHandshake", "includeLegacyHeaderBug: " + includeLegacyHeaderBug);
+    this.includeLegacyHeaderBug = includeLegacyHeaderBug;
+    this.localHello             = new HelloPacket(hashChain, localZid, includeLegacyHeaderBug);
+  }
+
+  @Override
+  protected void handleHello(HandshakePacket packet) throws InvalidPacketException {
+    foreignHello = new HelloPacket(packet, true);
+    foreignHello.verifyOptionsLength();
+
+    setState(EXPECTING_COMMIT);
+    sendFreshPacket(new HelloAckPacket(includeLegacyHeaderBug));
+
+    if (!isKeyAgreementSkippable()) {
+      prepareKeyPair(predictKeyAgreementType());
+    }
+  }
+
+  // A multistream or preshared Commit needs no key pair.
+  private boolean isKeyAgreementSkippable() {
+    return multistreamSession != null ||
+           (foreignHello.getKeyAgreementOptions().contains("Prsh") &&
+            getRetainedSecrets(remoteNumber, foreignHello.getZID()).getRetainedSecretOne() != null);
+  }
+
+  @Override
+  protected void handleCommit(HandshakePacket packet) throws InvalidPacketException {
+    foreignCommit = new CommitPacket(packet, true);
+    foreignCommit.verifyCommitLength();
+
+    RetainedSecrets retainedSecrets        = getRetainedSecrets(remoteNumber, foreignHello.getZID());
+
+    if (foreignCommit.isPreshared()) {
+      handlePresharedCommit(retainedSecrets);
+      return;
+    }
+
+    if (foreignCommit.isMultistream()) {
+      handleMultistreamCommit();
+      return;
+    }
+
+    retainedSecretsCalculator              = new ResponderRetainedSecretsCalculator(retainedSecrets);
+    RetainedSecretsDerivatives derivatives = retainedSecretsCalculator.getRetainedSecretsDerivatives();
+
+    switch (getKeyAgreementType()) {
+    case KA_TYPE_X255: localDH = new X255DHPartOnePacket(hashChain, getPublicKey(), derivatives, includeLegacyHeaderBug); break;
+    case KA_TYPE_EC25: localDH = new EC25DHPartOnePacket(hashChain, getPublicKey(), derivatives, includeLegacyHeaderBug); break;
+    case KA_TYPE_DH3K: localDH = new DH3KDHPartOnePacket(hashChain, getPublicKey(), derivatives, includeLegacyHeaderBug); break;
+    }
+
+    foreignHello.verifyMac(foreignCommit.getHash());
+
+    setState(EXPECTING_DH_2);
+    sendFreshPacket(localDH);
+  }
+
+  private void handlePresharedCommit(RetainedSecrets retainedSecrets) throws InvalidPacketException {
+    foreignHello.verifyMac(foreignCommit.getHash());
+
+    PresharedSecretCalculator calculator   = new PresharedSecretCalculator();
+    byte[]                    presharedKey = null;
+
+    // Our rs1 may be a call ahead of the initiator's if its last Conf2Ack
+    // went missing, so rs2 is worth trying too.
+    for (byte[] rs : new byte[][] {retainedSecrets.getRetainedSecretOne(),
+                                   retainedSecrets.getRetainedSecretTwo()})
+    {
+      if (rs == null) continue;
+
+      byte[] candidate = calculator.calculatePresharedKey(rs);
+
+      if (Arrays.equals(calculator.calculateKeyId(candidate), foreignCommit.getKeyId())) {
+        presharedKey = candidate;
+        break;
+      }
+    }
+
+    if (presharedKey == null) {
+      Log.w("ResponderHandshake", "No shared secret for preshared commit, asking for DH...");
+      foreignCommit = null;
+      sendFreshPacket(new ErrorPacket(ErrorPacket.NO_SHARED_SECRET, includeLegacyHeaderBug));
+      return;
+    }
+
+    byte[] totalHash    = calculator.calculateTotalHash(localHello, foreignCommit);
+    byte[] sharedSecret = calculator.calculateSharedSecret(presharedKey, totalHash,
+                                                           foreignHello.getZID(),
+                                                           localHello.getZID());
+
+    this.masterSecret   = new MasterSecret(sharedSecret, totalHash, foreignHello.getZID(),
+                                           localHello.getZID());
+    this.preshared      = true;
+
+    setState(EXPECTING_CONFIRM_TWO);
+    sendFreshPacket(new ConfirmOnePacket(masterSecret.getResponderMacKey(),
+                                         masterSecret.getResponderZrtpKey(),
+                                         this.hashChain, isLegacyConfirmConnection(),
+                                         includeLegacyHeaderBug));
+  }
+
+  private void handleMultistreamCommit() throws InvalidPacketException {
+    foreignHello.verifyMac(foreignCommit.getHash());
+
+    if (!isMultistreamSessionFor(foreignHello.getZID(), localZid)) {
+      Log.w("ResponderHandshake", "No session for multistream commit, asking for DH...");
+      foreignCommit = null;
+      sendFreshPacket(new ErrorPacket(ErrorPacket.NO_SHARED_SECRET, includeLegacyHeaderBug));
+      return;
+    }
+
+    MultistreamSecretCalculator calculator = new MultistreamSecretCalculator();
+
+    byte[] totalHash    = calculator.calculateTotalHash(localHello, foreignCommit);
+    byte[] sharedSecret = calculator.calculateSharedSecret(multistreamSession.getSessionKey(),
+                                                           totalHash, foreignHello.getZID(),
+                                                           localHello.getZID());
+
+    this.masterSecret   = new MasterSecret(sharedSecret, totalHash, foreignHello.getZID(),
+                                           localHello.getZID());
+    this.multistream    = true;
+
+    setState(EXPECTING_CONFIRM_TWO);
+    sendFreshPacket(new ConfirmOnePacket(masterSecret.getResponderMacKey(),
+                                         masterSecret.getResponderZrtpKey(),
+                                         this.hashChain, isLegacyConfirmConnection(),
+                                         includeLegacyHeaderBug));
+  }
+
+  @Override
+  protected void handleDH(HandshakePacket packet) throws InvalidPacketException {
+    SecretCalculator calculator;
+
+    switch (getKeyAgreementType()) {
+    case KA_TYPE_X255:
+      foreignDH  = new X255DHPartTwoPacket(packet, true);
+      calculator = new X255SecretCalculator();
+      break;
+    case KA_TYPE_EC25:
+      foreignDH  = new EC25DHPartTwoPacket(packet, true);
+      calculator = new EC25SecretCalculator();
+      break;
+    case KA_TYPE_DH3K:
+      foreignDH  = new DH3KDHPartTwoPacket(packet, true);
+      calculator = new DH3KSecretCalculator();
+      break;
+    default:
+      throw new AssertionError("Unknown KA type: " + getKeyAgreementType());
+    }
+
+    foreignDH.verifyPvrLength();
+
+    foreignCommit.verifyMac(foreignDH.getHash());
+    foreignCommit.verifyHvi(localHello, foreignDH);
+
+    byte[] dhResult     = calculator.calculateKeyAgreement(getKeyPair(), foreignDH.getPvr());
+
+    byte[] totalHash    = calculator.calculateTotalHash(localHello, foreignCommit,
+                                                        localDH, foreignDH);
+
+    byte[] s1           = retainedSecretsCalculator.getS1(foreignDH.getDerivativeSecretOne(),
+                                                          foreignDH.getDerivativeSecretTwo());
+
+    byte[] sharedSecret = calculator.calculateSharedSecret(dhResult, totalHash, s1,
+                                                           foreignHello.getZID(),
+                                                           localHello.getZID());
+
+    this.masterSecret   = new MasterSecret(sharedSecret, totalHash, foreignHello.getZID(),
+                                           localHello.getZID());
+
+    setState(EXPECTING_CONFIRM_TWO);
+    sendFreshPacket(new ConfirmOnePacket(masterSecret.getResponderMacKey(),
+                                         masterSecret.getResponderZrtpKey(),
+                                         this.hashChain, isLegacyConfirmConnection(),
+                                         includeLegacyHeaderBug));
+  }
+
+  @Override
+  protected void handleConfirmTwo(HandshakePacket packet) throws InvalidPacketException {
+    ConfirmTwoPacket confirmPacket = new ConfirmTwoPacket(packet, isLegacyConfirmConnection());
+
+    confirmPacket.verifyMac(masterSecret.getInitiatorMacKey());
+    confirmPacket.decrypt(masterSecret.getInitiatorZrtpKey());
+
+    byte[] preimage = confirmPacket.getPreimage();
+
+    if (preshared || multistream) foreignCommit.verifyMac(calculateHash(preimage));
+    else                          foreignDH.verifyMac(preimage);
+
+    setState(HANDSHAKE_COMPLETE);
+    sendFreshPacket(new ConfAckPacket(includeLegacyHeaderBug));
+
+    // A multistream handshake leaves the retained secrets to the call's first.
+    if (multistream) return;
+
+    boolean continuity = preshared ||
+                         retainedSecretsCalculator.hasContinuity(foreignDH.getDerivativeSecretOne(),
+                                                                 foreignDH.getDerivativeSecretTwo());
+    byte[] foreignZid  = foreignHello.getZID();
+    byte[] rs1         = masterSecret.getRetainedSecret();
+    long expiration    = System.currentTimeMillis() + (confirmPacket.getCacheTime() * 1000L);
+
+    cacheRetainedSecret(remoteNumber, foreignZid, rs1, expiration, continuity);
+  }
+
+  @Override
+  protected void handleConfirmOne(HandshakePacket packet) throws InvalidPacketException {
+    throw new InvalidPacketException("Responder received a Confirm1 Packet?");
+  }
+
+  @Override
+  protected void handleHelloAck(HandshakePacket packet) {
+    throw new AssertionError("Invalid state!");
+  }
+
+  @Override
+  protected void handleConfirmAck(HandshakePacket packet) {
+    throw new AssertionError("Invalid state!");
+  }
+
+  // Our Conf2ACK can be lost, and the initiator resends Confirm2 until
+  // it has one.
+  @Override
+  protected ZRTPMessageType getLastAnsweredType() {
+    return ZRTPMessageType.CONFIRM_2;
+  }
+
+  @Override
+  public void start(Output output, long nowMillis) {
+    super.start(output, nowMillis);
+    sendFreshPacket(localHello);
+  }
+
+  private byte[] calculateHash(byte[] preimage) {
+    try {
+      MessageDigest md = CryptoPrimitives.getMessageDigest("SHA-256");
+      return md.digest(preimage);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  @Override
+  protected int getKeyAgreementType() {
+    if (foreignCommit == null)
+      throw new AssertionError("Can't determine KA until we've seen foreign commit!");
+
+    String keyAgreementSpec = new String(foreignCommit.getKeyAgreementType());
+
+    if (keyAgreementSpec.equals("X255")) {
+      return KA_TYPE_X255;
+    } else if (keyAgreementSpec.equals("EC25")) {
+      return KA_TYPE_EC25;
+    } else {
+      return KA_TYPE_DH3K;
+    }
+  }
+
+  // The initiator takes the first of X255 and EC25 that it offers, which
+  // is the choice InitiatorHandshake makes from our Hello.
+  private int predictKeyAgreementType() {
+    RedPhoneClientId foreignClientId = new RedPhoneClientId(foreignHello.getClientId());
+
+    if (foreignHello.getKeyAgreementOptions().contains("X255")) {
+      return KA_TYPE_X255;
+    } else if (foreignClientId.isImplicitDh3kVersion() ||
+               foreignHello.getKeyAgreementOptions().contains("EC25"))
+    {
+      return KA_TYPE_EC25;
+    } else {
+      return KA_TYPE_DH3K;
+    }
+  }
+
+  @Override
+  public HelloPacket getForeignHello() {
+    return foreignHello;
+  }
+
+}
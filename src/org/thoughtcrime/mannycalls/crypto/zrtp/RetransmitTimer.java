@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.crypto.zrtp;
+
+/**
+ * The ZRTP handshake retransmit timer.  Round trips are measured from the
+ * handshake's own request/response pairs and smoothed as TCP does (RFC
+ * 6298): SRTT and RTTVAR are updated from each sample, and the timeout
+ * is SRTT + 4 * RTTVAR, doubled on each retransmission of a packet.
+ *
+ * Per Karn's algorithm, a response to a packet that was retransmitted is
+ * not sampled, since it can't be matched to one transmission, and until
+ * there's a sample the backed-off timeout is kept for the next packet.
+ * Without that, a path whose RTT is over 150ms would see every packet
+ * retransmitted and never produce a sample.  Once there is one, each new
+ * packet starts from the measured timeout again.
+ *
+ * The measured timeout isn't held to 150ms, so slow paths stop sending
+ * spurious retransmits, at the cost of waiting longer for a packet that
+ * was really lost; RetransmitSimulation shows both sides of that.
+ *
+ * When constructed as a fixed timer, this behaves exactly as the
+ * handshake used to: 150ms, doubling to 1500ms.
+ *
+ * Times are passed in rather than read from the clock, so the timer can
+ * be driven by a simulation.
+ */
+public class RetransmitTimer {
+
+  public static final int INITIAL_TIMEOUT_MILLIS = 150;
+  public static final int MIN_TIMEOUT_MILLIS     = 50;
+  public static final int MAX_TIMEOUT_MILLIS     = 1500;
+
+  private static final int GRANULARITY_MILLIS = 10;
+
+  private final boolean adaptive;
+
+  private long    smoothedRtt;
+  private long    rttVariance;
+  private boolean hasSample;
+  private int     timeout = INITIAL_TIMEOUT_MILLIS;
+
+  private long    sentAt;
+  private int     interval;
+  private boolean retransmitted;
+
+  public RetransmitTimer() {
+    this(true);
+  }
+
+  /**
+   * @param adaptive false to keep the fixed 150ms initial timeout, for comparison.
+   */
+  public RetransmitTimer(boolean adaptive) {
+    this.adaptive = adaptive;
+    this.interval = timeout;
+  }
+
+  /**
+   * A new packet was sent.
+   */
+  public void sent(long nowMillis) {
+    sentAt        = nowMillis;
+    interval      = timeout;
+    retransmitted = false;
+  }
+
+  /**
+   * The last packet was sent again, after the timer expired.
+   */
+  public void retransmitted(long nowMillis) {
+    sentAt        = nowMillis;
+    interval      = Math.min(interval * 2, MAX_TIMEOUT_MILLIS);
+    retransmitted = true;
+
+    if (adaptive && !hasSample) {
+      timeout = interval;
+    }
+  }
+
+  /**
+   * The response to the last packet arrived.  Only call this for
+   * responses the peer sends straight back, not ones it has to do a key
+   * agreement to produce.
+   */
+  public void acknowledged(long nowMillis) {
+    if (!adaptive || retransmitted || sentAt == 0) {
+      return;
+    }
+
+    long sample = Math.max(nowMillis - sentAt, 0);
+
+    if (!hasSample) {
+      smoothedRtt = sample;
+      rttVariance = sample / 2;
+      hasSample   = true;
+    } else {
+      rttVariance = (3 * rttVariance + Math.abs(smoothedRtt - sample)) / 4;
+      smoothedRtt = (7 * smoothedRtt + sample) / 8;
+    }
+
+    long rto = smoothedRtt + Math.max(GRANULARITY_MILLIS, 4 * rttVariance);
+    timeout  = (int)Math.max(MIN_TIMEOUT_MILLIS, Math.min(MAX_TIMEOUT_MILLIS, rto));
+  }
+
+  public boolean isExpired(long nowMillis) {
+    return nowMillis - sentAt >= interval;
+  }
+
+  /**
+   * @return how long until the timer expires, for use as a receive timeout.
+   */
+  public int getRemaining(long nowMillis) {
+    return (int)Math.max(1, sentAt + interval - nowMillis);
+  }
+
+  /**
+   * @return the time at which the timer expires.
+   */
+  public long getDeadline() {
+    return sentAt + interval;
+  }
+
+  public int getInterval() {
+    return interval;
+  }
+
+  public long getSmoothedRtt() {
+    return smoothedRtt;
+  }
+
+}
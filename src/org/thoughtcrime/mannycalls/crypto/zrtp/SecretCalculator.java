@@ -17,6 +17,7 @@
 
 package org.thoughtcrime.mannycalls.crypto.zrtp;
 
+import org.thoughtcrime.mannycalls.crypto.CryptoPrimitives;
 import org.thoughtcrime.mannycalls.util.Conversions;
 
 import java.security.KeyPair;
@@ -43,7 +44,7 @@ public abstract class SecretCalculator {
       byte[] s2Length = Conversions.intToByteArray(0);
       byte[] s3Length = Conversions.intToByteArray(0);
 
-      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      MessageDigest md = CryptoPrimitives.getMessageDigest("SHA-256");
       md.update(counter);
       md.update(dhResult);
       md.update("ZRTP-HMAC-KDF".getBytes());
@@ -68,17 +69,18 @@ public abstract class SecretCalculator {
     throws InvalidPacketException
   {
     try {
-      MessageDigest md = MessageDigest.getInstance("SHA-256");
-      md.update(responderHello.getMessageBytes());
-      md.update(commit.getMessageBytes());
-      md.update(dhPartOne.getMessageBytes());
-      md.update(dhPartTwo.getMessageBytes());
+      MessageDigest md = CryptoPrimitives.getMessageDigest("SHA-256");
+      md.update(responderHello.getMessageSlice());
+      md.update(commit.getMessageSlice());
+      md.update(dhPartOne.getMessageSlice());
+      md.update(dhPartTwo.getMessageSlice());
       return md.digest();
     } catch (NoSuchAlgorithmException e) {
       throw new IllegalArgumentException(e);
     }
   }
 
-  public abstract byte[] calculateKeyAgreement(KeyPair localKey, byte[] publicKeyBytes);
+  public abstract byte[] calculateKeyAgreement(KeyPair localKey, byte[] publicKeyBytes)
+      throws InvalidPacketException;
 
 }
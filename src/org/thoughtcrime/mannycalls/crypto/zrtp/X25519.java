@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.crypto.zrtp;
+
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+
+/**
+ * X25519 (RFC 7748) Diffie-Hellman, for the X255 KA type.
+ *
+ * This is a port of the ref10 Montgomery ladder from SUPERCOP.  Field
+ * elements are ten int limbs of alternately 26 and 25 bits, so a field
+ * multiplication is 100 native 64-bit multiplies rather than BigInteger
+ * arithmetic, and the ladder does the same work for every scalar.
+ *
+ * Keys are 32 raw bytes, wrapped in a java.security.KeyPair so they can
+ * be pooled and passed around like the DH3K and EC25 keys.
+ */
+public class X25519 {
+
+  public static final int KEY_LENGTH = 32;
+
+  private static final byte[] BASE_POINT = new byte[KEY_LENGTH];
+
+  static {
+    BASE_POINT[0] = 9;
+  }
+
+  public static KeyPair generateKeyPair(SecureRandom random) {
+    byte[] privateKey = new byte[KEY_LENGTH];
+    random.nextBytes(privateKey);
+
+    byte[] publicKey = scalarMult(privateKey, BASE_POINT);
+
+    return new KeyPair(new Key(publicKey), new Key(privateKey));
+  }
+
+  /**
+   * @return the 32-byte shared secret.
+   * @throws IllegalArgumentException if the public key is a low order point.
+   */
+  public static byte[] calculateAgreement(PrivateKey privateKey, byte[] publicKey) {
+    if (publicKey.length != KEY_LENGTH)
+      throw new IllegalArgumentException("Bad public key length: " + publicKey.length);
+
+    byte[] sharedSecret = scalarMult(privateKey.getEncoded(), publicKey);
+    int    accumulator  = 0;
+
+    for (byte b : sharedSecret) {
+      accumulator |= b;
+    }
+
+    if (accumulator == 0)
+      throw new IllegalArgumentException("Low order public key!");
+
+    return sharedSecret;
+  }
+
+  public static byte[] scalarMult(byte[] scalar, byte[] point) {
+    byte[] e = new byte[KEY_LENGTH];
+    System.arraycopy(scalar, 0, e, 0, KEY_LENGTH);
+
+    e[0]  &= 248;
+    e[31] &= 127;
+    e[31] |= 64;
+
+    int[] x1   = new int[10];
+    int[] x2   = new int[10];
+    int[] z2   = new int[10];
+    int[] x3   = new int[10];
+    int[] z3   = new int[10];
+    int[] tmp0 = new int[10];
+    int[] tmp1 = new int[10];
+
+    fromBytes(x1, point);
+
+    x2[0] = 1;
+    System.arraycopy(x1, 0, x3, 0, 10);
+    z3[0] = 1;
+
+    int swap = 0;
+
+    for (int pos=254;pos>=0;--pos) {
+      int b = (e[pos >>> 3] >>> (pos & 7)) & 1;
+
+      swap ^= b;
+      cswap(x2, x3, swap);
+      cswap(z2, z3, swap);
+      swap = b;
+
+      sub(tmp0, x3, z3);
+      sub(tmp1, x2, z2);
+      add(x2, x2, z2);
+      add(z2, x3, z3);
+      mul(z3, tmp0, x2);
+      mul(z2, z2, tmp1);
+      mul(tmp0, tmp1, tmp1);
+      mul(tmp1, x2, x2);
+      add(x3, z3, z2);
+      sub(z2, z3, z2);
+      mul(x2, tmp1, tmp0);
+      sub(tmp1, tmp1, tmp0);
+      mul(z2, z2, z2);
+      mul121666(z3, tmp1);
+      mul(x3, x3, x3);
+      add(tmp0, tmp0, z3);
+      mul(z3, x1, z2);
+      mul(z2, tmp1, tmp0);
+    }
+
+    cswap(x2, x3, swap);
+    cswap(z2, z3, swap);
+
+    invert(z2, z2);
+    mul(x2, x2, z2);
+
+    byte[] result = new byte[KEY_LENGTH];
+    toBytes(result, x2);
+
+    return result;
+  }
+
+  private static void add(int[] h, int[] f, int[] g) {
+    for (int i=0;i<10;i++) h[i] = f[i] + g[i];
+  }
+
+  private static void sub(int[] h, int[] f, int[] g) {
+    for (int i=0;i<10;i++) h[i] = f[i] - g[i];
+  }
+
+  private static void cswap(int[] f, int[] g, int b) {
+    int mask = -b;
+
+    for (int i=0;i<10;i++) {
+      int x = mask & (f[i] ^ g[i]);
+      f[i] ^= x;
+      g[i] ^= x;
+    }
+  }
+
+  private static void mul(int[] h, int[] f, int[] g) {
+    int f0 = f[0], f1 = f[1], f2 = f[2], f3 = f[3], f4 = f[4];
+    int f5 = f[5], f6 = f[6], f7 = f[7], f8 = f[8], f9 = f[9];
+    int g0 = g[0], g1 = g[1], g2 = g[2], g3 = g[3], g4 = g[4];
+    int g5 = g[5], g6 = g[6], g7 = g[7], g8 = g[8], g9 = g[9];
+
+    int g1_19 = 19 * g1, g2_19 = 19 * g2, g3_19 = 19 * g3, g4_19 = 19 * g4, g5_19 = 19 * g5;
+    int g6_19 = 19 * g6, g7_19 = 19 * g7, g8_19 = 19 * g8, g9_19 = 19 * g9;
+    int f1_2  = 2 * f1,  f3_2  = 2 * f3,  f5_2  = 2 * f5,  f7_2  = 2 * f7,  f9_2  = 2 * f9;
+
+    long h0 = f0 * (long)g0 + f1_2 * (long)g9_19 + f2 * (long)g8_19 + f3_2 * (long)g7_19 + f4 * (long)g6_19 +
+              f5_2 * (long)g5_19 + f6 * (long)g4_19 + f7_2 * (long)g3_19 + f8 * (long)g2_19 + f9_2 * (long)g1_19;
+    long h1 = f0 * (long)g1 + f1 * (long)g0 + f2 * (long)g9_19 + f3 * (long)g8_19 + f4 * (long)g7_19 +
+              f5 * (long)g6_19 + f6 * (long)g5_19 + f7 * (long)g4_19 + f8 * (long)g3_19 + f9 * (long)g2_19;
+    long h2 = f0 * (long)g2 + f1_2 * (long)g1 + f2 * (long)g0 + f3_2 * (long)g9_19 + f4 * (long)g8_19 +
+              f5_2 * (long)g7_19 + f6 * (long)g6_19 + f7_2 * (long)g5_19 + f8 * (long)g4_19 + f9_2 * (long)g3_19;
+    long h3 = f0 * (long)g3 + f1 * (long)g2 + f2 * (long)g1 + f3 * (long)g0 + f4 * (long)g9_19 +
+              f5 * (long)g8_19 + f6 * (long)g7_19 + f7 * (long)g6_19 + f8 * (long)g5_19 + f9 * (long)g4_19;
+    long h4 = f0 * (long)g4 + f1_2 * (long)g3 + f2 * (long)g2 + f3_2 * (long)g1 + f4 * (long)g0 +
+              f5_2 * (long)g9_19 + f6 * (long)g8_19 + f7_2 * (long)g7_19 + f8 * (long)g6_19 + f9_2 * (long)g5_19;
+    long h5 = f0 * (long)g5 + f1 * (long)g4 + f2 * (long)g3 + f3 * (long)g2 + f4 * (long)g1 +
+              f5 * (long)g0 + f6 * (long)g9_19 + f7 * (long)g8_19 + f8 * (long)g7_19 + f9 * (long)g6_19;
+    long h6 = f0 * (long)g6 + f1_2 * (long)g5 + f2 * (long)g4 + f3_2 * (long)g3 + f4 * (long)g2 +
+              f5_2 * (long)g1 + f6 * (long)g0 + f7_2 * (long)g9_19 + f8 * (long)g8_19 + f9_2 * (long)g7_19;
+    long h7 = f0 * (long)g7 + f1 * (long)g6 + f2 * (long)g5 + f3 * (long)g4 + f4 * (long)g3 +
+              f5 * (long)g2 + f6 * (long)g1 + f7 * (long)g0 + f8 * (long)g9_19 + f9 * (long)g8_19;
+    long h8 = f0 * (long)g8 + f1_2 * (long)g7 + f2 * (long)g6 + f3_2 * (long)g5 + f4 * (long)g4 +
+              f5_2 * (long)g3 + f6 * (long)g2 + f7_2 * (long)g1 + f8 * (long)g0 + f9_2 * (long)g9_19;
+    long h9 = f0 * (long)g9 + f1 * (long)g8 + f2 * (long)g7 + f3 * (long)g6 + f4 * (long)g5 +
+              f5 * (long)g4 + f6 * (long)g3 + f7 * (long)g2 + f8 * (long)g1 + f9 * (long)g0;
+
+    carry(h, h0, h1, h2, h3, h4, h5, h6, h7, h8, h9);
+  }
+
+  private static void mul121666(int[] h, int[] f) {
+    carry(h, f[0] * 121666L, f[1] * 121666L, f[2] * 121666L, f[3] * 121666L, f[4] * 121666L,
+             f[5] * 121666L, f[6] * 121666L, f[7] * 121666L, f[8] * 121666L, f[9] * 121666L);
+  }
+
+  private static void carry(int[] h, long h0, long h1, long h2, long h3, long h4,
+                            long h5, long h6, long h7, long h8, long h9)
+  {
+    long c;
+
+    c = (h0 + (1L << 25)) >> 26; h1 += c; h0 -= c << 26;
+    c = (h4 + (1L << 25)) >> 26; h5 += c; h4 -= c << 26;
+    c = (h1 + (1L << 24)) >> 25; h2 += c; h1 -= c << 25;
+    c = (h5 + (1L << 24)) >> 25; h6 += c; h5 -= c << 25;
+    c = (h2 + (1L << 25)) >> 26; h3 += c; h2 -= c << 26;
+    c = (h6 + (1L << 25)) >> 26; h7 += c; h6 -= c << 26;
+    c = (h3 + (1L << 24)) >> 25; h4 += c; h3 -= c << 25;
+    c = (h7 + (1L << 24)) >> 25; h8 += c; h7 -= c << 25;
+    c = (h4 + (1L << 25)) >> 26; h5 += c; h4 -= c << 26;
+    c = (h8 + (1L << 25)) >> 26; h9 += c; h8 -= c << 26;
+    c = (h9 + (1L << 24)) >> 25; h0 += c * 19; h9 -= c << 25;
+    c = (h0 + (1L << 25)) >> 26; h1 += c; h0 -= c << 26;
+
+    h[0] = (int)h0; h[1] = (int)h1; h[2] = (int)h2; h[3] = (int)h3; h[4] = (int)h4;
+    h[5] = (int)h5; h[6] = (int)h6; h[7] = (int)h7; h[8] = (int)h8; h[9] = (int)h9;
+  }
+
+  private static void square(int[] h, int[] f, int count) {
+    mul(h, f, f);
+
+    for (int i=1;i<count;i++) {
+      mul(h, h, h);
+    }
+  }
+
+  // z^(p - 2), by the ref10 addition chain.
+  private static void invert(int[] out, int[] z) {
+    int[] t0 = new int[10];
+    int[] t1 = new int[10];
+    int[] t2 = new int[10];
+    int[] t3 = new int[10];
+
+    square(t0, z, 1);
+    square(t1, t0, 2);
+    mul(t1, z, t1);
+    mul(t0, t0, t1);
+    square(t2, t0, 1);
+    mul(t1, t1, t2);
+    square(t2, t1, 5);
+    mul(t1, t2, t1);
+    square(t2, t1, 10);
+    mul(t2, t2, t1);
+    square(t3, t2, 20);
+    mul(t2, t3, t2);
+    square(t2, t2, 10);
+    mul(t1, t2, t1);
+    square(t2, t1, 50);
+    mul(t2, t2, t1);
+    square(t3, t2, 100);
+    mul(t2, t3, t2);
+    square(t2, t2, 50);
+    mul(t1, t2, t1);
+    square(t1, t1, 5);
+    mul(out, t1, t0);
+  }
+
+  private static long load3(byte[] in, int offset) {
+    return (in[offset] & 0xff) | ((in[offset + 1] & 0xff) << 8) | ((long)(in[offset + 2] & 0xff) << 16);
+  }
+
+  private static long load4(byte[] in, int offset) {
+    return load3(in, offset) | ((long)(in[offset + 3] & 0xff) << 24);
+  }
+
+  private static void fromBytes(int[] h, byte[] s) {
+    long h0 = load4(s, 0);
+    long h1 = load3(s, 4) << 6;
+    long h2 = load3(s, 7) << 5;
+    long h3 = load3(s, 10) << 3;
+    long h4 = load3(s, 13) << 2;
+    long h5 = load4(s, 16);
+    long h6 = load3(s, 20) << 7;
+    long h7 = load3(s, 23) << 5;
+    long h8 = load3(s, 26) << 4;
+    long h9 = (load3(s, 29) & 0x7fffff) << 2;
+
+    carry(h, h0, h1, h2, h3, h4, h5, h6, h7, h8, h9);
+  }
+
+  private static void toBytes(byte[] s, int[] h) {
+    int h0 = h[0], h1 = h[1], h2 = h[2], h3 = h[3], h4 = h[4];
+    int h5 = h[5], h6 = h[6], h7 = h[7], h8 = h[8], h9 = h[9];
+    int q, c;
+
+    q = (19 * h9 + (1 << 24)) >> 25;
+    q = (h0 + q) >> 26;
+    q = (h1 + q) >> 25;
+    q = (h2 + q) >> 26;
+    q = (h3 + q) >> 25;
+    q = (h4 + q) >> 26;
+    q = (h5 + q) >> 25;
+    q = (h6 + q) >> 26;
+    q = (h7 + q) >> 25;
+    q = (h8 + q) >> 26;
+    q = (h9 + q) >> 25;
+
+    h0 += 19 * q;
+
+    c = h0 >> 26; h1 += c; h0 -= c << 26;
+    c = h1 >> 25; h2 += c; h1 -= c << 25;
+    c = h2 >> 26; h3 += c; h2 -= c << 26;
+    c = h3 >> 25; h4 += c; h3 -= c << 25;
+    c = h4 >> 26; h5 += c; h4 -= c << 26;
+    c = h5 >> 25; h6 += c; h5 -= c << 25;
+    c = h6 >> 26; h7 += c; h6 -= c << 26;
+    c = h7 >> 25; h8 += c; h7 -= c << 25;
+    c = h8 >> 26; h9 += c; h8 -= c << 26;
+    c = h9 >> 25;             h9 -= c << 25;
+
+    s[0]  = (byte)h0;
+    s[1]  = (byte)(h0 >> 8);
+    s[2]  = (byte)(h0 >> 16);
+    s[3]  = (byte)((h0 >> 24) | (h1 << 2));
+    s[4]  = (byte)(h1 >> 6);
+    s[5]  = (byte)(h1 >> 14);
+    s[6]  = (byte)((h1 >> 22) | (h2 << 3));
+    s[7]  = (byte)(h2 >> 5);
+    s[8]  = (byte)(h2 >> 13);
+    s[9]  = (byte)((h2 >> 21) | (h3 << 5));
+    s[10] = (byte)(h3 >> 3);
+    s[11] = (byte)(h3 >> 11);
+    s[12] = (byte)((h3 >> 19) | (h4 << 6));
+    s[13] = (byte)(h4 >> 2);
+    s[14] = (byte)(h4 >> 10);
+    s[15] = (byte)(h4 >> 18);
+    s[16] = (byte)h5;
+    s[17] = (byte)(h5 >> 8);
+    s[18] = (byte)(h5 >> 16);
+    s[19] = (byte)((h5 >> 24) | (h6 << 1));
+    s[20] = (byte)(h6 >> 7);
+    s[21] = (byte)(h6 >> 15);
+    s[22] = (byte)((h6 >> 23) | (h7 << 3));
+    s[23] = (byte)(h7 >> 5);
+    s[24] = (byte)(h7 >> 13);
+    s[25] = (byte)((h7 >> 21) | (h8 << 4));
+    s[26] = (byte)(h8 >> 4);
+    s[27] = (byte)(h8 >> 12);
+    s[28] = (byte)((h8 >> 20) | (h9 << 6));
+    s[29] = (byte)(h9 >> 2);
+    s[30] = (byte)(h9 >> 10);
+    s[31] = (byte)(h9 >> 18);
+  }
+
+  private static class Key implements PublicKey, PrivateKey {
+    private static final long serialVersionUID = 1L;
+
+    private final byte[] key;
+
+    private Key(byte[] key) {
+      this.key = key;
+    }
+
+    @Override
+    public String getAlgorithm() {
+      return "X25519";
+    }
+
+    @Override
+    public String getFormat() {
+      return "RAW";
+    }
+
+    @Override
+    public byte[] getEncoded() {
+      return key.clone();
+    }
+  }
+
+}
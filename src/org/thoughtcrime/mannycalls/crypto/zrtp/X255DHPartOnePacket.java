@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.crypto.zrtp;
+
+import org.thoughtcrime.mannycalls.crypto.zrtp.retained.RetainedSecretsDerivatives;
+import org.thoughtcrime.mannycalls.network.RtpPacket;
+
+/**
+ * A DHPartOnePacket for the X255 KA type.
+ */
+
+public class X255DHPartOnePacket extends DHPartOnePacket {
+
+  public X255DHPartOnePacket(RtpPacket packet) {
+    super(packet, DHPacket.X255_AGREEMENT_TYPE);
+  }
+
+  public X255DHPartOnePacket(RtpPacket packet, boolean deepCopy) {
+    super(packet, DHPacket.X255_AGREEMENT_TYPE, deepCopy);
+  }
+
+  public X255DHPartOnePacket(HashChain hashChain, byte[] pvr,
+                             RetainedSecretsDerivatives retainedSecrets,
+                             boolean includeLegacyHeaderBug)
+  {
+    super(DHPacket.X255_AGREEMENT_TYPE, hashChain, pvr, retainedSecrets, includeLegacyHeaderBug);
+    assert(pvr.length == 32);
+  }
+
+}
@@ -0,0 +1,438 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.crypto.zrtp;
+
+import android.util.Log;
+
+import org.spongycastle.jce.interfaces.ECPublicKey;
+import org.spongycastle.math.ec.ECPoint;
+import org.thoughtcrime.mannycalls.Release;
+import org.thoughtcrime.mannycalls.crypto.zrtp.retained.RetainedSecrets;
+import org.thoughtcrime.mannycalls.crypto.zrtp.retained.RetainedSecretsStore;
+import org.thoughtcrime.mannycalls.util.Conversions;
+
+import javax.crypto.interfaces.DHPublicKey;
+import java.security.KeyPair;
+import java.security.Security;
+import java.util.Arrays;
+
+/**
+ * The ZRTP handshake as a non-blocking state machine.
+ *
+ * Its inputs are received packets and timer expirations, each passed in
+ * with the current time; its outputs are packets to send and the time at
+ * which it next wants to be woken, delivered to an {@link Output}.  It
+ * does no I/O of its own and never blocks, so a handshake can be driven
+ * by ZRTPSocket's blocking loop, by a selector, or entirely in memory.
+ *
+ * InitiatorHandshake and ResponderHandshake implement their respective
+ * parts of the exchange.
+ */
+public abstract class ZRTPHandshake {
+  static {
+    Security.addProvider(new org.spongycastle.jce.provider.BouncyCastleProvider());
+  }
+
+  public interface Output {
+    public void sendPacket(HandshakePacket packet);
+    public void setTimer(long deadlineMillis);
+    public void cancelTimer();
+  }
+
+  private static final int MAX_RETRANSMIT_COUNT = 45;
+
+  public static final int EXPECTING_HELLO            = 0;
+  public static final int EXPECTING_HELLO_ACK        = 1;
+  public static final int EXPECTING_COMMIT           = 2;
+  public static final int EXPECTING_DH_1             = 3;
+  public static final int EXPECTING_DH_2             = 4;
+  public static final int EXPECTING_CONFIRM_ONE      = 5;
+  public static final int EXPECTING_CONFIRM_TWO      = 9;
+  public static final int HANDSHAKE_COMPLETE         = 6;
+  public static final int EXPECTING_CONFIRM_ACK      = 7;
+  public static final int TERMINATED                 = 8;
+
+  public static final int KA_TYPE_DH3K = 100;
+  public static final int KA_TYPE_EC25 = 200;
+  public static final int KA_TYPE_X255 = 300;
+
+  private final RetransmitTimer      retransmitTimer = new RetransmitTimer();
+  private final RetainedSecretsStore retainedSecretsStore;
+
+  private int  retransmitCount = 0;
+  private int  sequence        = 0;
+  private int  state;
+  private long now;
+
+  protected final byte[] localZid;
+  protected final String remoteNumber;
+
+  private Output          output;
+  private HandshakePacket lastPacket;
+  private KeyPair         keyPair;
+  private int             keyPairType;
+
+  protected HashChain    hashChain;
+  protected MasterSecret masterSecret;
+  protected MasterSecret multistreamSession;
+  protected boolean      multistream;
+
+  public ZRTPHandshake(byte[] localZid, String remoteNumber,
+                       RetainedSecretsStore retainedSecretsStore)
+  {
+    this.localZid             = localZid;
+    this.remoteNumber         = remoteNumber;
+    this.retainedSecretsStore = retainedSecretsStore;
+    this.state                = EXPECTING_HELLO;
+    this.hashChain            = new HashChain();
+  }
+
+  protected abstract void handleHello(HandshakePacket packet) throws InvalidPacketException;
+  protected abstract void handleCommit(HandshakePacket packet) throws InvalidPacketException;
+  protected abstract void handleDH(HandshakePacket packet) throws InvalidPacketException;
+  protected abstract void handleConfirmOne(HandshakePacket packet) throws InvalidPacketException;
+  protected abstract void handleConfirmTwo(HandshakePacket packet) throws InvalidPacketException;
+  protected abstract void handleHelloAck(HandshakePacket packet) throws InvalidPacketException;
+  protected abstract void handleConfirmAck(HandshakePacket packet) throws InvalidPacketException;
+
+  /**
+   * The peer reported an error.  By default the handshake carries on,
+   * and fails on the retransmit limit if the peer has given up.
+   */
+  protected void handleError(ErrorPacket packet) throws InvalidPacketException {
+    Log.w("ZRTPHandshake", "Received error: " + packet.getErrorCode());
+  }
+
+  /**
+   * @return the type of the peer's packet that the last packet we send
+   * answers, if the peer waits for that answer after we're complete, or
+   * null.
+   */
+  protected ZRTPMessageType getLastAnsweredType() {
+    return null;
+  }
+
+  protected abstract int getKeyAgreementType();
+  public abstract HelloPacket getForeignHello();
+
+  /**
+   * Keys this handshake from the master secret of an earlier one on the
+   * same call, in multistream mode, rather than with a key agreement.
+   * Call before start().  A peer without multistream, or without the same
+   * session, gets a DH handshake instead.
+   */
+  public void setMultistreamSession(MasterSecret session) {
+    this.multistreamSession = session;
+  }
+
+  /**
+   * Begins the handshake.  The responder sends its Hello; the initiator
+   * waits for it, retransmitting nothing, until the retransmit limit
+   * tells it the responder is unavailable.
+   */
+  public void start(Output output, long nowMillis) {
+    this.output = output;
+    this.now    = nowMillis;
+    armTimer();
+  }
+
+  /**
+   * Handles a packet from the peer.  Packets that aren't the one the
+   * current state expects (duplicates of earlier packets, typically) are
+   * dropped, though they prompt a retransmit if one is due.  Once
+   * complete, a retransmission of the packet our last one answered gets
+   * that answer again, since the peer is still waiting for it.
+   */
+  public void receive(HandshakePacket packet, long nowMillis) throws NegotiationFailedException {
+    if (isFinished()) {
+      if (isComplete() && isAnsweredByLastPacket(packet)) {
+        Log.w("ZRTPHandshake", "Peer missed our last packet, sending it again...");
+        this.now = nowMillis;
+        sendPacket(lastPacket);
+      }
+
+      return;
+    }
+
+    this.now = nowMillis;
+
+    // Older clients send their Conf2ACK without a valid CRC.
+    if (state != EXPECTING_CONFIRM_ACK && !packet.verifyCRC()) {
+      Log.w("ZRTPHandshake", "Bad CRC!");
+      return;
+    }
+
+    ZRTPMessageType type = packet.getMessageType();
+
+    // An implicit Conf2ACK, the first SRTP packet from an older client, has no length.
+    if (type != ZRTPMessageType.CONF2_ACK && !packet.verifyLength()) {
+      Log.w("ZRTPHandshake", "Bad length!");
+      return;
+    }
+
+    if (type == ZRTPMessageType.ERROR) {
+      try {
+        handleError(new ErrorPacket(packet, true));
+      } catch (InvalidPacketException ipe) {
+        Log.w("ZRTPHandshake", ipe);
+      }
+      return;
+    }
+
+    if (type != getExpectedType()) {
+      timeout(now);
+      return;
+    }
+
+    Log.w("ZRTPHandshake", "Received packet: " + type.getType());
+
+    if (isImmediateResponse()) {
+      retransmitTimer.acknowledged(now);
+    }
+
+    try {
+      switch (state) {
+      case EXPECTING_HELLO:       handleHello(packet);      break;
+      case EXPECTING_HELLO_ACK:   handleHelloAck(packet);   break;
+      case EXPECTING_COMMIT:      handleCommit(packet);     break;
+      case EXPECTING_DH_1:        handleDH(packet);         break;
+      case EXPECTING_DH_2:        handleDH(packet);         break;
+      case EXPECTING_CONFIRM_ONE: handleConfirmOne(packet); break;
+      case EXPECTING_CONFIRM_TWO: handleConfirmTwo(packet); break;
+      case EXPECTING_CONFIRM_ACK: handleConfirmAck(packet); break;
+      }
+    } catch (InvalidPacketException ipe) {
+      Log.w("ZRTPHandshake", ipe);
+      throw new NegotiationFailedException(ipe);
+    }
+
+    if (isFinished()) {
+      output.cancelTimer();
+    }
+  }
+
+  /**
+   * Called when the timer requested through {@link Output#setTimer} fires.
+   * Early or spurious calls are harmless.
+   */
+  public void timeout(long nowMillis) throws NegotiationFailedException {
+    if (isFinished()) return;
+
+    this.now = nowMillis;
+
+    if (retransmitTimer.isExpired(now)) {
+      resendPacket();
+    }
+  }
+
+  public void terminate() {
+    state = TERMINATED;
+  }
+
+  public int getState() {
+    return state;
+  }
+
+  public boolean isComplete() {
+    return state == HANDSHAKE_COMPLETE;
+  }
+
+  public boolean isFinished() {
+    return state == HANDSHAKE_COMPLETE || state == TERMINATED;
+  }
+
+  /**
+   * @return whether the handshake is still waiting for the peer to take
+   * part, rather than under way.  A responder exchanges Hellos while its
+   * phone rings, so the initiator waits for a reply to its Commit too.
+   */
+  public boolean isWaitingForPeer() {
+    return state == EXPECTING_HELLO;
+  }
+
+  public MasterSecret getMasterSecret() {
+    return masterSecret;
+  }
+
+  /**
+   * @return whether the handshake was keyed from the multistream session,
+   * rather than falling back to a key agreement.
+   */
+  public boolean isMultistream() {
+    return multistream;
+  }
+
+  private boolean isAnsweredByLastPacket(HandshakePacket packet) {
+    return lastPacket != null && getLastAnsweredType() != null &&
+           packet.verifyCRC() && packet.verifyLength() &&
+           packet.getMessageType() == getLastAnsweredType();
+  }
+
+  private ZRTPMessageType getExpectedType() {
+    switch (state) {
+    case EXPECTING_HELLO:       return ZRTPMessageType.HELLO;
+    case EXPECTING_HELLO_ACK:   return ZRTPMessageType.HELLO_ACK;
+    case EXPECTING_COMMIT:      return ZRTPMessageType.COMMIT;
+    case EXPECTING_DH_1:        return ZRTPMessageType.DH_PART_1;
+    case EXPECTING_DH_2:        return ZRTPMessageType.DH_PART_2;
+    case EXPECTING_CONFIRM_ONE: return ZRTPMessageType.CONFIRM_1;
+    case EXPECTING_CONFIRM_TWO: return ZRTPMessageType.CONFIRM_2;
+    case EXPECTING_CONFIRM_ACK: return ZRTPMessageType.CONF2_ACK;
+    default:                    throw new AssertionError("No packet expected in state: " + state);
+    }
+  }
+
+  // The expected packets the peer sends straight back on receiving ours.
+  // DH Part 2 and Confirm 1 follow a key agreement on the peer, so they'd
+  // measure its CPU rather than the path.
+  private boolean isImmediateResponse() {
+    return state != EXPECTING_DH_2 && state != EXPECTING_CONFIRM_ONE &&
+           state != EXPECTING_CONFIRM_TWO;
+  }
+
+  protected byte[] getPublicKey() {
+    switch (getKeyAgreementType()) {
+    case KA_TYPE_X255: return getKeyPair().getPublic().getEncoded();
+    case KA_TYPE_EC25: return getPublicEC25Key();
+    case KA_TYPE_DH3K: return getPublicDH3kKey();
+    default:           throw new AssertionError("Unknown KA type: " + getKeyAgreementType());
+    }
+  }
+
+  // Only the negotiated KA type's key pair is needed, so it isn't taken
+  // from the pool until the KA type is known, unless it was prepared.
+  protected KeyPair getKeyPair() {
+    if (keyPair == null || keyPairType != getKeyAgreementType()) {
+      prepareKeyPair(getKeyAgreementType());
+    }
+
+    return keyPair;
+  }
+
+  /**
+   * Takes the key pair for the KA type the peer is expected to choose,
+   * before the packet that says which it chose.  A wrong guess costs a
+   * pooled key pair.
+   */
+  protected void prepareKeyPair(int kaType) {
+    keyPair     = KeyPairPool.getInstance().take(kaType);
+    keyPairType = kaType;
+  }
+
+  private byte[] getPublicDH3kKey() {
+    if (Release.DEBUG)
+      Log.w("ZRTPHandshake", "Sending public key: " + ((DHPublicKey)getKeyPair().getPublic()).getY());
+
+    byte[] temp = new byte[384];
+    Conversions.bigIntegerToByteArray(temp, ((DHPublicKey)getKeyPair().getPublic()).getY());
+    return temp;
+  }
+
+  private byte[] getPublicEC25Key() {
+    if (Release.DEBUG)
+      Log.w("ZRTPHandshake", "Sending public key: " + getKeyPair().getPublic());
+
+    ECPublicKey publicKey = (ECPublicKey)getKeyPair().getPublic();
+    ECPoint q             = publicKey.getQ();
+
+    byte[] x = new byte[32];
+    byte[] y = new byte[32];
+
+    Conversions.bigIntegerToByteArray(x, q.getX().toBigInteger());
+    Conversions.bigIntegerToByteArray(y, q.getY().toBigInteger());
+
+    return Conversions.combine(x, y);
+  }
+
+  protected RetainedSecrets getRetainedSecrets(String number, byte[] zid) {
+    return retainedSecretsStore.getRetainedSecrets(number, zid);
+  }
+
+  protected void cacheRetainedSecret(String number, byte[] zid, byte[] rs1,
+                                     long expiration, boolean continuity)
+  {
+    retainedSecretsStore.setRetainedSecret(number, zid, rs1, expiration, continuity);
+  }
+
+  // NOTE -- There was a bug in older versions of RedPhone in which the
+  // Confirm message IVs were miscalculated.  It didn't seem to be an
+  // immediately exploitable problem, but was definitely wrong.  Fixing it,
+  // however, results in compatibility issues with devices that do not have
+  // the fix.  We're temporarily introducing a backwards compatibility setting
+  // here, where we intentionally do the wrong thing for older devices.  We'll
+  // phase this out after a couple of months.
+  protected boolean isLegacyConfirmConnection() {
+    RedPhoneClientId clientId = new RedPhoneClientId(getForeignHello().getClientId());
+    return clientId.isLegacyConfirmConnectionVersion();
+  }
+
+  // Multistream mode is only for the same peer, on the same call.
+  protected boolean isMultistreamSessionFor(byte[] initiatorZid, byte[] responderZid) {
+    return multistreamSession != null &&
+           Arrays.equals(multistreamSession.getInitiatorZid(), initiatorZid) &&
+           Arrays.equals(multistreamSession.getResponderZid(), responderZid);
+  }
+
+  protected void setState(int state) {
+    this.state = state;
+  }
+
+  protected void sendFreshPacket(HandshakePacket packet) {
+    retransmitCount = 0;
+    retransmitTimer.sent(now);
+    sendPacket(packet);
+  }
+
+  private void sendPacket(HandshakePacket packet) {
+    if (Release.DEBUG)
+      Log.w("ZRTPHandshake", "Sending Packet: " + packet);
+
+    this.lastPacket = packet;
+
+    if (packet != null) {
+      packet.setSequenceNumber(this.sequence++);
+      packet.setCRC();
+      output.sendPacket(packet);
+    }
+
+    armTimer();
+  }
+
+  private void resendPacket() throws NegotiationFailedException {
+    if (retransmitCount++ > MAX_RETRANSMIT_COUNT) {
+      if (this.lastPacket != null) {
+        throw new NegotiationFailedException("Retransmit threshold reached.");
+      } else {
+        throw new RecipientUnavailableException("Recipient unavailable.");
+      }
+    }
+
+    Log.w("ZRTPHandshake", "Retransmitting after: " + retransmitTimer.getInterval() +
+                           ", SRTT: " + retransmitTimer.getSmoothedRtt());
+
+    retransmitTimer.retransmitted(now);
+    sendPacket(lastPacket);
+  }
+
+  private void armTimer() {
+    if (!isFinished()) {
+      output.setTimer(retransmitTimer.getDeadline());
+    }
+  }
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.crypto.zrtp;
+
+import org.thoughtcrime.mannycalls.util.Conversions;
+
+/**
+ * The ZRTP message types, each identified by its 8 byte type block read
+ * as one big-endian long, so that a received packet's type is a single
+ * compare against each tag rather than a string decode and equals().
+ */
+
+public enum ZRTPMessageType {
+
+  HELLO     (HelloPacket.TYPE,      HelloPacket.HELLO_MIN_LENGTH),
+  HELLO_ACK (HelloAckPacket.TYPE,   HelloAckPacket.HELLO_ACK_LENGTH),
+  COMMIT    (CommitPacket.TYPE,     CommitPacket.MULTISTREAM_COMMIT_LENGTH),
+  DH_PART_1 (DHPartOnePacket.TYPE,  DHPacket.DH_BASE_LENGTH + DHPacket.X255_PVR_LENGTH),
+  DH_PART_2 (DHPartTwoPacket.TYPE,  DHPacket.DH_BASE_LENGTH + DHPacket.X255_PVR_LENGTH),
+  CONFIRM_1 (ConfirmOnePacket.TYPE, ConfirmPacket.CONFIRM_LENGTH),
+  CONFIRM_2 (ConfirmTwoPacket.TYPE, ConfirmPacket.CONFIRM_LENGTH),
+  CONF2_ACK (ConfAckPacket.TYPE,    ConfAckPacket.CONF_ACK_LENGTH),
+  ERROR     (ErrorPacket.TYPE,      ErrorPacket.ERROR_LENGTH),
+  UNKNOWN   ("        ",            0);
+
+  private static final ZRTPMessageType[] KNOWN_TYPES = values();
+
+  private final String type;
+  private final long   tag;
+  private final int    minimumLength;
+
+  private ZRTPMessageType(String type, int minimumLength) {
+    this.type          = type;
+    this.tag           = Conversions.byteArrayToLong(Conversions.stringToByteArray(type));
+    this.minimumLength = minimumLength;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public long getTag() {
+    return tag;
+  }
+
+  /**
+   * @return The shortest encoded length a message of this type can have,
+   * before any variable length parts like Hello options or a public value.
+   */
+  public int getMinimumLength() {
+    return minimumLength;
+  }
+
+  public static ZRTPMessageType fromTag(long tag) {
+    for (ZRTPMessageType messageType : KNOWN_TYPES) {
+      if (messageType.tag == tag && messageType != UNKNOWN) {
+        return messageType;
+      }
+    }
+
+    return UNKNOWN;
+  }
+
+}
@@ -17,6 +17,8 @@
 
 package org.thoughtcrime.mannycalls.crypto.zrtp.retained;
 
+import org.thoughtcrime.mannycalls.crypto.CryptoPrimitives;
+
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.UnsupportedEncodingException;
@@ -63,7 +65,7 @@ public abstract class RetainedSecretsCalculator {
 
   private byte[] calculateDerivative(String role, byte[] secret) {
     try {
-      Mac mac  = Mac.getInstance("HmacSHA256");
+      Mac mac  = CryptoPrimitives.getMac("HmacSHA256");
       mac.init(new SecretKeySpec(secret, "HmacSHA256"));
 
       byte[] derivative = mac.doFinal(role.getBytes("UTF-8"));
@@ -0,0 +1,27 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.crypto.zrtp.retained;
+
+/**
+ * Where a ZRTP handshake looks up and caches the retained secrets for a
+ * (phone number, ZID) endpoint.  Normally the RetainedSecretsDatabase.
+ */
+public interface RetainedSecretsStore {
+  public RetainedSecrets getRetainedSecrets(String number, byte[] zid);
+  public void setRetainedSecret(String number, byte[] zid, byte[] rs1, long expiration, boolean continuity);
+}
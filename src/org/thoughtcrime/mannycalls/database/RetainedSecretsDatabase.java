@@ -25,6 +25,7 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
 
 import org.thoughtcrime.mannycalls.crypto.zrtp.retained.RetainedSecrets;
+import org.thoughtcrime.mannycalls.crypto.zrtp.retained.RetainedSecretsStore;
 import org.thoughtcrime.mannycalls.util.Base64;
 import org.thoughtcrime.mannycalls.util.PhoneNumberFormatter;
 import org.thoughtcrime.mannycalls.util.Util;
@@ -35,7 +36,7 @@ import java.io.IOException;
  * Manages the cache of retained secrets (rs1 and rs2) for each
  * (ZID, phone number) endpoint tuple.
  */
-public class RetainedSecretsDatabase {
+public class RetainedSecretsDatabase implements RetainedSecretsStore {
 
   private static final String TABLE_NAME = "retained_secrets";
   private static final String ID         = "_id";
@@ -17,6 +17,7 @@
 
 package org.thoughtcrime.mannycalls.directory;
 
+import org.thoughtcrime.mannycalls.crypto.CryptoPrimitives;
 import org.thoughtcrime.mannycalls.util.Conversions;
 
 import java.security.InvalidKeyException;
@@ -60,7 +61,7 @@ public class BloomFilter {
   public boolean contains(String entity) {
     try {
       for (int i=0;i<this.hashCount;i++) {
-        Mac mac = Mac.getInstance("HmacSHA1");
+        Mac mac = CryptoPrimitives.getMac("HmacSHA1");
         mac.init(new SecretKeySpec((i+"").getBytes(), "HmacSHA1"));
 
         byte[] hashValue = mac.doFinal(entity.getBytes());
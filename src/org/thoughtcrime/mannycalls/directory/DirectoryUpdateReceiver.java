@@ -54,6 +54,7 @@ public class DirectoryUpdateReceiver extends BroadcastReceiver {
           try {
             SignalingSocket signalingSocket = new SignalingSocket(context);
             DirectoryResponse response      = signalingSocket.getNumberFilter();
+            signalingSocket.close();
 
             if (response != null) {
               NumberFilter filter = new NumberFilter(response.getFilter(), response.getHashCount());
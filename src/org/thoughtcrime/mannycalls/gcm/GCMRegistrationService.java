@@ -87,6 +87,8 @@ public class GCMRegistrationService extends Service {
               signalingSocket.unregisterGcm(registrationId);
             }
 
+            signalingSocket.close();
+
             Log.w("GCMRegistrationService", "Success...");
             GCMRegistrar.setRegisteredOnServer(GCMRegistrationService.this, isRegister);
             return null;
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.network;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * What we know about the servers we connect to: each host's addresses,
+ * cached for DNS_TTL_MILLIS, and how long each address took to connect.
+ *
+ * getAllByName() doesn't expose the records' TTLs, so entries live for a
+ * fixed time.  A lookup that finds an entry older than
+ * REFRESH_AFTER_MILLIS still returns it, and resolves the host again in
+ * the background, so a host in regular use, or one that was prefetched,
+ * doesn't wait on DNS.
+ *
+ * sortForConnect() orders addresses as RFC 8305 describes: those that
+ * connected before, fastest first, then those we know nothing about,
+ * then those that failed recently, with the address families
+ * interleaved so that a broken IPv6 or IPv4 path costs one connection
+ * attempt delay rather than a timeout per address.
+ */
+public class AddressCache {
+
+  private static final String TAG = "AddressCache";
+
+  private static final long DNS_TTL_MILLIS        = 5 * 60 * 1000;
+  private static final long REFRESH_AFTER_MILLIS  = 4 * 60 * 1000;
+  private static final long FAILURE_MEMORY_MILLIS = 10 * 60 * 1000;
+
+  private static final AddressCache instance = new AddressCache();
+
+  public static AddressCache getInstance() {
+    return instance;
+  }
+
+  private final Map<String, HostEntry>         hosts      = new HashMap<String, HostEntry>();
+  private final Map<InetAddress, AddressEntry> addresses  = new HashMap<InetAddress, AddressEntry>();
+  private final Set<String>                    refreshing = new HashSet<String>();
+
+  // Bumped by clear(), so lookups started on the old network aren't cached.
+  private int generation;
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "AddressCache");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private AddressCache() {}
+
+  /**
+   * @return host's addresses, from the cache if it has an entry that
+   * hasn't expired, otherwise from DNS.
+   */
+  public InetAddress[] resolve(String host) throws UnknownHostException {
+    synchronized (this) {
+      HostEntry entry = hosts.get(host);
+
+      if (entry != null) {
+        long age = SystemClock.elapsedRealtime() - entry.resolvedTime;
+
+        if (age < DNS_TTL_MILLIS) {
+          if (age >= REFRESH_AFTER_MILLIS) refresh(host);
+          return entry.addresses.clone();
+        }
+      }
+    }
+
+    return lookup(host);
+  }
+
+  /**
+   * Resolves host in the background, so the next resolve() finds it cached.
+   */
+  public synchronized void prefetch(String host) {
+    refresh(host);
+  }
+
+  /**
+   * Drops host's addresses, for when none of them could be reached.
+   */
+  public synchronized void invalidate(String host) {
+    hosts.remove(host);
+  }
+
+  /**
+   * Forgets everything, for when the network changes: both the addresses
+   * DNS gives and the paths to them may be different on the new one.
+   * Lookups still running from before are returned to their callers but
+   * not cached.
+   */
+  public synchronized void clear() {
+    hosts.clear();
+    addresses.clear();
+    refreshing.clear();
+    generation++;
+  }
+
+  public synchronized void recordConnect(InetAddress address, long connectMillis) {
+    AddressEntry entry = getAddressEntry(address);
+
+    // Smoothed like TCP's SRTT, so one slow connect doesn't reorder everything.
+    if (entry.smoothedMillis < 0) entry.smoothedMillis = connectMillis;
+    else                          entry.smoothedMillis = (7 * entry.smoothedMillis + connectMillis) / 8;
+
+    entry.failed = false;
+  }
+
+  public synchronized void recordFailure(InetAddress address) {
+    AddressEntry entry = getAddressEntry(address);
+
+    entry.failed     = true;
+    entry.failedTime = SystemClock.elapsedRealtime();
+  }
+
+  /**
+   * @return candidates in the order connection attempts should start.
+   */
+  public synchronized InetAddress[] sortForConnect(InetAddress[] candidates) {
+    long              now       = SystemClock.elapsedRealtime();
+    List<InetAddress> connected = new ArrayList<InetAddress>();
+    List<InetAddress> unknown   = new ArrayList<InetAddress>();
+    List<InetAddress> failed    = new ArrayList<InetAddress>();
+
+    for (InetAddress address : candidates) {
+      AddressEntry entry = addresses.get(address);
+
+      if      (entry == null)                                                    unknown.add(address);
+      else if (entry.failed && now - entry.failedTime < FAILURE_MEMORY_MILLIS)   failed.add(address);
+      else if (entry.smoothedMillis >= 0)                                        connected.add(address);
+      else                                                                       unknown.add(address);
+    }
+
+    Collections.sort(connected, new Comparator<InetAddress>() {
+      @Override
+      public int compare(InetAddress lhs, InetAddress rhs) {
+        long lhsMillis = addresses.get(lhs).smoothedMillis;
+        long rhsMillis = addresses.get(rhs).smoothedMillis;
+
+        return lhsMillis < rhsMillis ? -1 : (lhsMillis == rhsMillis ? 0 : 1);
+      }
+    });
+
+    List<InetAddress> preferred = new ArrayList<InetAddress>(candidates.length);
+    preferred.addAll(connected);
+    preferred.addAll(unknown);
+    preferred.addAll(failed);
+
+    return interleaveFamilies(preferred);
+  }
+
+  private static InetAddress[] interleaveFamilies(List<InetAddress> preferred) {
+    InetAddress[] ordered = new InetAddress[preferred.size()];
+
+    if (ordered.length == 0)
+      return ordered;
+
+    boolean                 firstIsIpv6 = preferred.get(0) instanceof Inet6Address;
+    LinkedList<InetAddress> first       = new LinkedList<InetAddress>();
+    LinkedList<InetAddress> second      = new LinkedList<InetAddress>();
+
+    for (InetAddress address : preferred) {
+      if ((address instanceof Inet6Address) == firstIsIpv6) first.add(address);
+      else                                                  second.add(address);
+    }
+
+    int index = 0;
+
+    while (!first.isEmpty() || !second.isEmpty()) {
+      if (!first.isEmpty())  ordered[index++] = first.removeFirst();
+      if (!second.isEmpty()) ordered[index++] = second.removeFirst();
+    }
+
+    return ordered;
+  }
+
+  private AddressEntry getAddressEntry(InetAddress address) {
+    AddressEntry entry = addresses.get(address);
+
+    if (entry == null) {
+      entry = new AddressEntry();
+      addresses.put(address, entry);
+    }
+
+    return entry;
+  }
+
+  private void refresh(final String host) {
+    if (!refreshing.add(host))
+      return;
+
+    final int refreshGeneration = generation;
+
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        try {
+          lookup(host);
+        } catch (UnknownHostException uhe) {
+          Log.w(TAG, uhe);
+        } finally {
+          synchronized (AddressCache.this) {
+            if (generation == refreshGeneration) refreshing.remove(host);
+          }
+        }
+      }
+    });
+  }
+
+  private InetAddress[] lookup(String host) throws UnknownHostException {
+    int lookupGeneration;
+
+    synchronized (this) {
+      lookupGeneration = generation;
+    }
+
+    InetAddress[] resolved = InetAddress.getAllByName(host);
+
+    synchronized (this) {
+      if (generation == lookupGeneration) {
+        hosts.put(host, new HostEntry(resolved, SystemClock.elapsedRealtime()));
+      }
+    }
+
+    return resolved.clone();
+  }
+
+  private static class HostEntry {
+    private final InetAddress[] addresses;
+    private final long          resolvedTime;
+
+    public HostEntry(InetAddress[] addresses, long resolvedTime) {
+      this.addresses    = addresses;
+      this.resolvedTime = resolvedTime;
+    }
+  }
+
+  private static class AddressEntry {
+    private long    smoothedMillis = -1;
+    private boolean failed;
+    private long    failedTime;
+  }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.network;
+
+/**
+ * Decides the fate of each packet on a simulated path: whether it is
+ * lost, when it is delivered, and whether it is delivered twice.
+ *
+ * Every packet consumes exactly five draws from a SplitMix64 generator,
+ * whatever happens to it, so a given seed and packet sequence always
+ * produces the same outcome.  jni/host/sim/ImpairmentModel.cpp is a
+ * line-for-line port; keep the two in step.
+ */
+public class ImpairmentModel {
+
+  private static final long[] DROPPED = new long[0];
+
+  private final ImpairmentProfile profile;
+
+  private long    state;
+  private boolean burst;
+  private long    linkFreeAtMicros;
+  private long    lastDeliveryMicros;
+
+  /**
+   * @param profile the path parameters.
+   * @param stream distinguishes independent paths sharing one profile seed.
+   */
+  public ImpairmentModel(ImpairmentProfile profile, int stream) {
+    this.profile = profile;
+    this.state   = profile.getSeed() ^ (stream * 0xD1B54A32D192ED03L);
+  }
+
+  /**
+   * @param sentMicros when the packet entered the path.
+   * @param length the packet length in bytes.
+   * @return the delivery time of each copy of the packet, in microseconds.
+   */
+  public synchronized long[] schedule(long sentMicros, int length) {
+    double transition = nextDouble();
+    double loss       = nextDouble();
+    double jitter     = nextDouble();
+    double reorder    = nextDouble();
+    double duplicate  = nextDouble();
+
+    if (burst) burst = transition >= profile.getBurstExitProbability();
+    else       burst = transition <  profile.getBurstEnterProbability();
+
+    double lossProbability = burst ? profile.getBurstLossProbability() : profile.getLossProbability();
+
+    if (loss < lossProbability) {
+      return DROPPED;
+    }
+
+    long departureMicros = sentMicros;
+
+    if (profile.getKilobitsPerSecond() > 0) {
+      departureMicros  = Math.max(sentMicros, linkFreeAtMicros);
+      departureMicros += (length * 8L * 1000L) / profile.getKilobitsPerSecond();
+      linkFreeAtMicros = departureMicros;
+    }
+
+    long deliveryMicros = departureMicros + profile.getDelayMillis() * 1000L +
+                          (long)(jitter * profile.getJitterMillis() * 1000L);
+
+    if (reorder < profile.getReorderProbability()) {
+      deliveryMicros += (profile.getJitterMillis() + 20) * 1000L;
+    } else {
+      deliveryMicros     = Math.max(deliveryMicros, lastDeliveryMicros);
+      lastDeliveryMicros = deliveryMicros;
+    }
+
+    if (duplicate < profile.getDuplicateProbability()) {
+      return new long[] {deliveryMicros, deliveryMicros + 1000};
+    }
+
+    return new long[] {deliveryMicros};
+  }
+
+  private long nextLong() {
+    long z = (state += 0x9E3779B97F4A7C15L);
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  private double nextDouble() {
+    return (nextLong() >>> 11) * (1.0 / (1L << 53));
+  }
+}
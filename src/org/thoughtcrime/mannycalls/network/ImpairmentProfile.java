@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.network;
+
+/**
+ * The parameters of a simulated network path, parsed from a spec string
+ * such as "seed=7,loss=0.01,burst=0.02/0.4,delay=60,jitter=30,kbps=48".
+ *
+ * Recognized keys:
+ *
+ *   seed      PRNG seed, so runs can be reproduced exactly.
+ *   loss      Random loss probability (in the Gilbert-Elliott "good" state).
+ *   burst     p/r, the good->bad and bad->good transition probabilities.
+ *   burstloss Loss probability in the "bad" state (defaults to 1).
+ *   delay     Fixed one-way delay, in milliseconds.
+ *   jitter    Additional uniformly distributed delay, in milliseconds.
+ *   reorder   Probability a packet is held back past its successors.
+ *   duplicate Probability a packet is delivered twice.
+ *   kbps      Bottleneck bandwidth in kilobits per second (0 is unlimited).
+ *
+ * The same spec format is accepted by the host-side impairment_proxy, so
+ * a scenario can be replayed identically on device and on a workstation.
+ */
+public class ImpairmentProfile {
+
+  public static final ImpairmentProfile NONE = new ImpairmentProfile();
+
+  private long   seed;
+  private double lossProbability;
+  private double burstEnterProbability;
+  private double burstExitProbability = 1;
+  private double burstLossProbability = 1;
+  private int    delayMillis;
+  private int    jitterMillis;
+  private double reorderProbability;
+  private double duplicateProbability;
+  private int    kilobitsPerSecond;
+
+  private ImpairmentProfile() {}
+
+  public static ImpairmentProfile parse(String spec) {
+    ImpairmentProfile profile = new ImpairmentProfile();
+
+    if (spec == null || spec.trim().length() == 0) {
+      return profile;
+    }
+
+    for (String parameter : spec.split(",")) {
+      String[] pair = parameter.trim().split("=");
+
+      if (pair.length != 2) {
+        throw new IllegalArgumentException("Bad impairment parameter: " + parameter);
+      }
+
+      String key   = pair[0].trim();
+      String value = pair[1].trim();
+
+      try {
+        if      (key.equals("seed"))      profile.seed                 = Long.parseLong(value);
+        else if (key.equals("loss"))      profile.lossProbability      = parseProbability(value);
+        else if (key.equals("burstloss")) profile.burstLossProbability = parseProbability(value);
+        else if (key.equals("delay"))     profile.delayMillis          = Integer.parseInt(value);
+        else if (key.equals("jitter"))    profile.jitterMillis         = Integer.parseInt(value);
+        else if (key.equals("reorder"))   profile.reorderProbability   = parseProbability(value);
+        else if (key.equals("duplicate")) profile.duplicateProbability = parseProbability(value);
+        else if (key.equals("kbps"))      profile.kilobitsPerSecond    = Integer.parseInt(value);
+        else if (key.equals("burst")) {
+          String[] transitions = value.split("/");
+
+          if (transitions.length != 2) {
+            throw new IllegalArgumentException("Burst must be p/r: " + value);
+          }
+
+          profile.burstEnterProbability = parseProbability(transitions[0]);
+          profile.burstExitProbability  = parseProbability(transitions[1]);
+        } else {
+          throw new IllegalArgumentException("Unknown impairment parameter: " + key);
+        }
+      } catch (NumberFormatException nfe) {
+        throw new IllegalArgumentException(nfe);
+      }
+    }
+
+    return profile;
+  }
+
+  private static double parseProbability(String value) {
+    double probability = Double.parseDouble(value);
+
+    if (probability < 0 || probability > 1) {
+      throw new IllegalArgumentException("Not a probability: " + value);
+    }
+
+    return probability;
+  }
+
+  public boolean isImpaired() {
+    return lossProbability > 0 || burstEnterProbability > 0 || delayMillis > 0 ||
+           jitterMillis > 0 || reorderProbability > 0 || duplicateProbability > 0 ||
+           kilobitsPerSecond > 0;
+  }
+
+  public long getSeed() {
+    return seed;
+  }
+
+  public double getLossProbability() {
+    return lossProbability;
+  }
+
+  public double getBurstEnterProbability() {
+    return burstEnterProbability;
+  }
+
+  public double getBurstExitProbability() {
+    return burstExitProbability;
+  }
+
+  public double getBurstLossProbability() {
+    return burstLossProbability;
+  }
+
+  public int getDelayMillis() {
+    return delayMillis;
+  }
+
+  public int getJitterMillis() {
+    return jitterMillis;
+  }
+
+  public double getReorderProbability() {
+    return reorderProbability;
+  }
+
+  public double getDuplicateProbability() {
+    return duplicateProbability;
+  }
+
+  public int getKilobitsPerSecond() {
+    return kilobitsPerSecond;
+  }
+
+  @Override
+  public String toString() {
+    return "seed=" + seed + ",loss=" + lossProbability +
+           ",burst=" + burstEnterProbability + "/" + burstExitProbability +
+           ",burstloss=" + burstLossProbability + ",delay=" + delayMillis +
+           ",jitter=" + jitterMillis + ",reorder=" + reorderProbability +
+           ",duplicate=" + duplicateProbability + ",kbps=" + kilobitsPerSecond;
+  }
+}
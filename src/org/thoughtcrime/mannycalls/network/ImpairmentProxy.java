@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.network;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local UDP relay that pushes traffic through an {@link ImpairmentModel}.
+ *
+ * Datagrams arriving from the target are relayed to whoever last sent to
+ * the proxy, and everything else is relayed to the target.  Each direction
+ * gets its own model, seeded from the profile, so the outbound and return
+ * paths are independent but both reproducible.  Pointing the target back
+ * at the sender turns the proxy into an impaired echo, which is how
+ * loopback calls use it.
+ */
+public class ImpairmentProxy {
+
+  private static final String TAG = "ImpairmentProxy";
+
+  private final DatagramSocket            socket;
+  private final InetSocketAddress         target;
+  private final ImpairmentModel           outboundModel;
+  private final ImpairmentModel           returnModel;
+  private final DelayQueue<PendingPacket> pending = new DelayQueue<PendingPacket>();
+  private final long                      epochNanos = System.nanoTime();
+
+  private volatile SocketAddress client;
+  private volatile boolean       running = true;
+
+  private Thread receiver;
+  private Thread sender;
+
+  private final AtomicLong received  = new AtomicLong();
+  private final AtomicLong delivered = new AtomicLong();
+
+  public ImpairmentProxy(InetSocketAddress target, ImpairmentProfile profile)
+      throws SocketException
+  {
+    this.socket        = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+    this.target        = target;
+    this.outboundModel = new ImpairmentModel(profile, 0);
+    this.returnModel   = new ImpairmentModel(profile, 1);
+  }
+
+  public int getLocalPort() {
+    return socket.getLocalPort();
+  }
+
+  public void start() {
+    receiver = new Thread(new ReceiveTask(), "ImpairmentProxy receiver");
+    sender   = new Thread(new SendTask(), "ImpairmentProxy sender");
+
+    receiver.start();
+    sender.start();
+  }
+
+  public void stop() {
+    running = false;
+    socket.close();
+
+    if (sender != null) {
+      sender.interrupt();
+    }
+
+    Log.w(TAG, "Relayed " + delivered.get() + " datagrams for " + received.get() + " received");
+  }
+
+  private long nowMicros() {
+    return (System.nanoTime() - epochNanos) / 1000;
+  }
+
+  private class ReceiveTask implements Runnable {
+    public void run() {
+      byte[] buffer = new byte[4096];
+
+      while (running) {
+        try {
+          DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+          socket.receive(packet);
+
+          SocketAddress source = packet.getSocketAddress();
+          boolean       outbound;
+
+          if (source.equals(target) && client != null) {
+            outbound = false;
+          } else {
+            client   = source;
+            outbound = true;
+          }
+
+          SocketAddress   destination = outbound ? target : client;
+          ImpairmentModel model       = outbound ? outboundModel : returnModel;
+          long[]          deliveries  = model.schedule(nowMicros(), packet.getLength());
+
+          received.incrementAndGet();
+
+          for (long deliveryMicros : deliveries) {
+            pending.add(new PendingPacket(packet.getData(), packet.getLength(),
+                                          destination, deliveryMicros));
+          }
+        } catch (IOException e) {
+          if (running) Log.w(TAG, e);
+        }
+      }
+    }
+  }
+
+  private class SendTask implements Runnable {
+    public void run() {
+      while (running) {
+        try {
+          PendingPacket packet = pending.take();
+          socket.send(new DatagramPacket(packet.data, packet.data.length, packet.destination));
+          delivered.incrementAndGet();
+        } catch (InterruptedException e) {
+          return;
+        } catch (IOException e) {
+          if (running) Log.w(TAG, e);
+        }
+      }
+    }
+  }
+
+  private class PendingPacket implements Delayed {
+    private final byte[]        data;
+    private final SocketAddress destination;
+    private final long          deliveryMicros;
+
+    public PendingPacket(byte[] buffer, int length, SocketAddress destination, long deliveryMicros) {
+      this.data           = new byte[length];
+      this.destination    = destination;
+      this.deliveryMicros = deliveryMicros;
+
+      System.arraycopy(buffer, 0, data, 0, length);
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(deliveryMicros - nowMicros(), TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+      long otherMicros = ((PendingPacket)other).deliveryMicros;
+
+      if (deliveryMicros < otherMicros) return -1;
+      if (deliveryMicros > otherMicros) return 1;
+      return 0;
+    }
+  }
+}
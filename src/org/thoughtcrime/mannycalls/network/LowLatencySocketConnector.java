@@ -17,129 +17,168 @@
 
 package org.thoughtcrime.mannycalls.network;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.Iterator;
 
 /**
- * A multi-connect utility class.  Given a list of addresses, connect
- * to all of them simultaneously, and return the connection that completes
- * first.  Used as a client-centric form of server failover and discovery
- * of low-latency paths.
+ * A multi-connect utility class.  Given a list of addresses, race
+ * connections to them and return the one that completes first.  Used as
+ * a client-centric form of server failover and discovery of low-latency
+ * paths.
+ *
+ * Attempts follow Happy Eyeballs (RFC 8305): the addresses are ordered
+ * by AddressCache, and each attempt starts CONNECTION_ATTEMPT_DELAY_MILLIS
+ * after the last one, or as soon as the last one fails, rather than all
+ * at once.  The usual case is one SYN to the address that was fastest
+ * before.  How long each address takes is fed back to AddressCache.
  *
  * @author Moxie Marlinspike
  *
  */
 public class LowLatencySocketConnector {
 
-  private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+  public  static final int CONNECTION_ATTEMPT_DELAY_MILLIS = 250;
+  private static final int CONNECT_TIMEOUT_MILLIS          = 10000;
+
+  public static Socket connect(String host, int port) throws IOException {
+    return connect(AddressCache.getInstance().resolve(host), port);
+  }
 
   public static Socket connect(InetAddress[] addresses, int port) throws IOException {
-    Selector selector                   = Selector.open();
-    SocketChannel[] channels            = constructSocketChannels(selector, addresses.length);
-    InetSocketAddress[] socketAddresses = constructSocketAddresses(addresses, port);
+    AddressCache  cache    = AddressCache.getInstance();
+    InetAddress[] ordered  = cache.sortForConnect(addresses);
+    Selector      selector = Selector.open();
+
+    try {
+      long          deadline    = SystemClock.elapsedRealtime() + CONNECT_TIMEOUT_MILLIS;
+      long          nextAttempt = 0;
+      int           next        = 0;
+      int           pending     = 0;
+      IOException   failure     = null;
+      SocketChannel connected   = null;
+
+      while (connected == null) {
+        long now = SystemClock.elapsedRealtime();
+
+        if (next < ordered.length && (now >= nextAttempt || pending == 0)) {
+          try {
+            SocketChannel channel = startAttempt(selector, ordered[next], port);
+            pending++;
+
+            if (channel.isConnected()) {
+              cache.recordConnect(ordered[next], SystemClock.elapsedRealtime() - now);
+              connected = channel;
+            }
+          } catch (IOException ioe) {
+            Log.w("LowLatencySocketConnector", ioe);
+            cache.recordFailure(ordered[next]);
+            failure = ioe;
+          }
+
+          next++;
+          nextAttempt = now + CONNECTION_ATTEMPT_DELAY_MILLIS;
+          continue;
+        }
 
-    assert(channels.length == socketAddresses.length);
+        if (pending == 0)
+          throw failure != null ? failure : new IOException("All connections failed!");
 
-    connectChannels(channels, socketAddresses);
+        if (now >= deadline)
+          throw new SocketTimeoutException("Connect timed out!");
 
-    return waitForFirstChannel(selector);
-  }
+        long wakeup = next < ordered.length ? Math.min(nextAttempt, deadline) : deadline;
+        selector.select(Math.max(1, wakeup - now));
 
-  private static Socket waitForFirstChannel(Selector selector) throws IOException {
-    while (hasValidKeys(selector)) {
-      int readyCount = selector.select(CONNECT_TIMEOUT_MILLIS);
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
 
-      if (readyCount == 0)
-        throw new IOException("Connect timed out!");
+        while (connected == null && iterator.hasNext()) {
+          SelectionKey key = iterator.next();
+          iterator.remove();
 
-      Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+          if (!key.isValid()) continue;
 
-      while (iterator.hasNext()) {
-        SelectionKey key = iterator.next();
-        iterator.remove();
+          SocketChannel channel = (SocketChannel)key.channel();
+          Attempt       attempt = (Attempt)key.attachment();
 
-        if (!key.isValid()) continue;
+          try {
+            if (!channel.finishConnect()) continue;
 
-        SocketChannel channel = (SocketChannel)key.channel();
-        boolean connected     = isChannelConnected(channel);
+            cache.recordConnect(attempt.address, SystemClock.elapsedRealtime() - attempt.startTime);
+            connected = channel;
+          } catch (IOException ioe) {
+            Log.w("LowLatencySocketConnector", ioe);
+            cache.recordFailure(attempt.address);
+            key.cancel();
+            channel.close();
 
-        if (connected) {
-          closeAllButChannel(selector, channel);
-          return channel.socket();
-        } else {
-          key.cancel();
+            failure     = ioe;
+            nextAttempt = 0;
+            pending--;
+          }
         }
       }
-    }
 
-    throw new IOException("All connections failed!");
-  }
+      closeAllButChannel(selector, connected);
+      selector.close();
+      connected.configureBlocking(true);
 
-  private static void closeAllButChannel(Selector selector, SocketChannel channel) {
-    for (SelectionKey key : selector.keys()) {
-      if (key.channel() != channel) {
-        try {
-          key.channel().close();
-        } catch (IOException ioe) {}
-      }
+      return connected.socket();
+    } finally {
+      closeAllButChannel(selector, null);
+      selector.close();
     }
   }
 
-  private static boolean hasValidKeys(Selector selector) {
-    for (SelectionKey key : selector.keys())
-      if (key.isValid())
-        return true;
-
-    return false;
-  }
+  private static SocketChannel startAttempt(Selector selector, InetAddress address, int port)
+      throws IOException
+  {
+    SocketChannel channel = SocketChannel.open();
 
-  private static boolean isChannelConnected(SocketChannel channel) {
     try {
-      return channel.finishConnect();
-    } catch (IOException ioe) {
-      Log.w("LowLatencySocketConnector", ioe);
-      return false;
-    }
-  }
+      Attempt attempt = new Attempt(address, SystemClock.elapsedRealtime());
 
-  private static void connectChannels(SocketChannel[] channels, InetSocketAddress[] addresses)
-      throws IOException
-  {
-    for (int i=0;i<channels.length;i++) {
-      channels[i].connect(addresses[i]);
+      channel.configureBlocking(false);
+      channel.connect(new InetSocketAddress(address, port));
+      channel.register(selector, SelectionKey.OP_CONNECT, attempt);
+
+      return channel;
+    } catch (IOException ioe) {
+      channel.close();
+      throw ioe;
     }
   }
 
-  private static InetSocketAddress[] constructSocketAddresses(InetAddress[] addresses, int port) {
-    InetSocketAddress[] socketAddresses = new InetSocketAddress[addresses.length];
+  private static void closeAllButChannel(Selector selector, SocketChannel channel) {
+    if (!selector.isOpen())
+      return;
 
-    for (int i=0;i<socketAddresses.length;i++) {
-      socketAddresses[i] = new InetSocketAddress(addresses[i], port);
+    for (SelectionKey key : selector.keys()) {
+      if (key.channel() != channel) {
+        try {
+          key.channel().close();
+        } catch (IOException ioe) {}
+      }
     }
-
-    return socketAddresses;
   }
 
-  private static SocketChannel[] constructSocketChannels(Selector selector, int count)
-      throws IOException
-  {
-    SocketChannel[] channels = new SocketChannel[count];
+  private static class Attempt {
+    private final InetAddress address;
+    private final long        startTime;
 
-    for (int i=0;i<channels.length;i++) {
-      channels[i] = SocketChannel.open();
-      channels[i].configureBlocking(false);
-      channels[i].register(selector, SelectionKey.OP_CONNECT);
+    public Attempt(InetAddress address, long startTime) {
+      this.address   = address;
+      this.startTime = startTime;
     }
-
-    return channels;
   }
 
 }
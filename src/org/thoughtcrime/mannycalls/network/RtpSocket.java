@@ -41,7 +41,15 @@ public class RtpSocket {
   private final DatagramSocket socket;
 
   public RtpSocket(int localPort, InetSocketAddress remoteAddress) throws SocketException {
-    this.socket     = new DatagramSocket(localPort);
+    this(new DatagramSocket(localPort), remoteAddress);
+  }
+
+  /**
+   * Carries on with a socket that is already open, such as the one
+   * NetworkConnector opened the relay port from, keeping its NAT binding.
+   */
+  public RtpSocket(DatagramSocket socket, InetSocketAddress remoteAddress) throws SocketException {
+    this.socket     = socket;
     this.remoteIp   = remoteAddress.getAddress().getHostAddress();
     this.remotePort = remoteAddress.getPort();
 
@@ -22,6 +22,7 @@ import org.thoughtcrime.mannycalls.gcm.GCMRegistrarHelper;
 import org.thoughtcrime.mannycalls.signaling.AccountCreationException;
 import org.thoughtcrime.mannycalls.signaling.AccountCreationSocket;
 import org.thoughtcrime.mannycalls.signaling.DirectoryResponse;
+import org.thoughtcrime.mannycalls.signaling.OtpCounterProvider;
 import org.thoughtcrime.mannycalls.signaling.RateLimitExceededException;
 import org.thoughtcrime.mannycalls.signaling.SignalingException;
 import org.thoughtcrime.mannycalls.ui.AccountVerificationTimeoutException;
@@ -288,6 +289,8 @@ public class RegistrationService extends Service {
     editor.putString(Constants.KEY_PREFERENCE, key);
     editor.putLong(Constants.PASSWORD_COUNTER_PREFERENCE, 1L);
     editor.commit();
+
+    OtpCounterProvider.getInstance().reset();
   }
 
   private void setState(RegistrationState state) {
@@ -21,15 +21,16 @@ import android.util.Log;
 
 import org.thoughtcrime.mannycalls.signaling.signals.OpenPortSignal;
 import org.thoughtcrime.mannycalls.signaling.signals.Signal;
-import org.thoughtcrime.mannycalls.util.LineReader;
+import org.thoughtcrime.mannycalls.util.CallTrace;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
-import java.util.Map;
+import java.net.SocketTimeoutException;
+import java.util.LinkedList;
+import java.util.List;
 
 /**
  * Responsible for getting the UDP connection flow started.
@@ -38,90 +39,207 @@ import java.util.Map;
  * which the server responds to.  This should effectively punch open a
  * bidirectional UDP flow in any potential NAT devices.
  *
+ * Each socket resends the signal on a doubling timeout.  When a socket's
+ * first signal goes unanswered another socket joins in, up to
+ * SOCKET_COUNT, so a path that only answers some sources still gets
+ * through; a relay that answers in time only ever sees the one socket,
+ * however long the round trip.  The first socket to get a 200 is
+ * returned open and connected, for the RtpSocket to carry the call on, so
+ * media uses the NAT binding the hello signal made.  The other sockets
+ * are closed.
+ *
  * @author Moxie Marlinspke
  *
  */
 
 public class NetworkConnector {
-  private DatagramSocket socket;
-  private final long sessionId;
-  private final String server;
-  private final int port;
+
+  private static final int SOCKET_COUNT         = 3;
+  private static final int FIRST_TIMEOUT_MILLIS = 1000;
+  private static final int MAX_TIMEOUT_MILLIS   = 4000;
+  private static final int OPEN_TIMEOUT_MILLIS  = 25000;
+
+  private final long              sessionId;
+  private final InetSocketAddress address;
+  private final CallTrace         trace;
+
+  private final List<DatagramSocket> sockets = new LinkedList<DatagramSocket>();
+  private final List<Thread>         probers = new LinkedList<Thread>();
+
+  private DatagramSocket opened;
+  private boolean        finished;
+  private int            probing;
 
   public NetworkConnector(long sessionId, String server, int port) {
-    Log.w("NetworkConnector", "Opening up port: " + server + " , " + port);
+    this(sessionId, new InetSocketAddress(server, port), CallTrace.NONE);
+  }
+
+  /**
+   * @param trace records each hello signal sent, and the 200.
+   */
+  public NetworkConnector(long sessionId, InetSocketAddress address, CallTrace trace) {
+    Log.w("NetworkConnector", "Opening up port: " + address);
     this.sessionId = sessionId;
-    this.server    = server;
-    this.port      = port;
+    this.address   = address;
+    this.trace     = trace;
   }
 
-  public int makeConnection() throws SessionInitiationFailureException {
-    int result = -1;
-    int timeout = 1000;
-    for (int attempts = 0; attempts < 5; attempts++) {
-      Log.d("NetworkConnector", "attempting connection");
-      result = attemptConnection( timeout );
-      if (result != -1)
-        break;
-      timeout *= 2;
-      if( timeout > 10000 ) timeout = 10000;
+  /**
+   * @return a socket connected to the relay, whose hello signal it answered.
+   */
+  public DatagramSocket makeConnection() throws SessionInitiationFailureException {
+    startProbe(0);
+
+    synchronized (this) {
+      long deadline = System.currentTimeMillis() + OPEN_TIMEOUT_MILLIS;
+      long remaining;
+
+      try {
+        while (opened == null && probing > 0 &&
+               (remaining = deadline - System.currentTimeMillis()) > 0)
+        {
+          wait(remaining);
+        }
+      } catch (InterruptedException e) {
+        Log.w("NetworkConnector", e);
+      }
+
+      finished = true;
+
+      for (DatagramSocket socket : sockets) {
+        if (socket != opened) socket.close();
+      }
+
+      for (Thread prober : probers) {
+        prober.interrupt();
+      }
     }
 
-    if (result == -1)
+    if (opened == null)
       throw new SessionInitiationFailureException("Could not connect to server.");
 
-    return result;
+    return opened;
   }
 
-  private int attemptConnection( int timeout ) {
-    try {
-      socket = new DatagramSocket();
-      socket.connect(new InetSocketAddress(server, port));
-      socket.setSoTimeout(timeout);
-      sendSignal(new OpenPortSignal(sessionId));
+  private synchronized void startProbe(int index) {
+    if (index >= SOCKET_COUNT || opened != null || finished)
+      return;
 
-      SignalResponse response = readSignalResponse();
-
-      if (response.getStatusCode() != 200) {
-        Log.e("NetworkConnector", "Bad response from server.");
-        socket.close();
-        return -1;
-      }
+    try {
+      DatagramSocket socket = new DatagramSocket();
+      socket.connect(address);
 
-      int localPort = socket.getLocalPort();
-      socket.close();
-      return localPort;
+      Thread prober = new Thread(new ProbeTask(socket, index), "NetworkConnector " + index);
 
+      sockets.add(socket);
+      probers.add(prober);
+      probing++;
+      prober.start();
     } catch (SocketException e) {
       Log.w("NetworkConnector", e);
-    } catch (IOException e) {
-      Log.w("NetworkConnector", e);
-    } catch (SignalingException se) {
-      Log.w("NetworkConnector", se);
     }
-    return -1;
   }
 
-  private void sendSignal(Signal signal) throws IOException {
+  private synchronized boolean isFinished() {
+    return finished;
+  }
+
+  private synchronized void onOpened(DatagramSocket socket) {
+    if (opened == null && !finished) {
+      opened = socket;
+      notifyAll();
+    }
+  }
+
+  private synchronized void onProbeFinished() {
+    probing--;
+    notifyAll();
+  }
+
+  private void sendSignal(DatagramSocket socket, Signal signal) throws IOException {
     byte[] signalBytes    = signal.serialize().getBytes();
     DatagramPacket packet = new DatagramPacket(signalBytes, signalBytes.length);
     socket.send(packet);
   }
 
-  private SignalResponse readSignalResponse() throws SignalingException, IOException {
+  private SignalResponse readSignalResponse(DatagramSocket socket)
+      throws SignalingException, IOException
+  {
     byte[] responseBuffer   = new byte[2048];
     DatagramPacket response = new DatagramPacket(responseBuffer, responseBuffer.length);
 
     socket.receive(response);
 
-    ByteArrayInputStream bais           = new ByteArrayInputStream(responseBuffer);
-    LineReader lineReader               = new LineReader(bais);
-    SignalResponseReader responseReader = new SignalResponseReader(lineReader);
+    SignalParser parser = new SignalParser();
+    parser.write(responseBuffer, 0, response.getLength());
+
+    if (!parser.next() || !parser.isResponse())
+      throw new SignalingException("Failed to read response.");
+
+    return new SignalResponse(parser.getStatusCode(), parser.getHeaders(), parser.getBody());
+  }
+
+  private class ProbeTask implements Runnable {
+    private final DatagramSocket socket;
+    private final int            index;
 
-    int statusCode              = responseReader.readSignalResponseCode();
-    Map<String, String> headers = responseReader.readSignalHeaders();
-    byte[] body                 = responseReader.readSignalBody(headers);
+    private boolean joined;
 
-    return new SignalResponse(statusCode, headers, body);
+    public ProbeTask(DatagramSocket socket, int index) {
+      this.socket = socket;
+      this.index  = index;
+    }
+
+    private void joinNext() {
+      if (!joined) {
+        joined = true;
+        startProbe(index + 1);
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        int     timeout    = FIRST_TIMEOUT_MILLIS;
+        boolean retransmit = false;
+
+        while (!isFinished()) {
+          Log.d("NetworkConnector", "attempting connection");
+          sendSignal(socket, new OpenPortSignal(sessionId));
+          trace.packetSent("OpenPort", retransmit);
+          socket.setSoTimeout(timeout);
+
+          try {
+            SignalResponse response = readSignalResponse(socket);
+
+            if (response.getStatusCode() == 200) {
+              trace.packetReceived("OpenPort 200");
+              onOpened(socket);
+              return;
+            }
+
+            Log.e("NetworkConnector", "Bad response from server.");
+            joinNext();
+            Thread.sleep(timeout);
+          } catch (SocketTimeoutException e) {
+            joinNext();
+          } catch (SignalingException se) {
+            Log.w("NetworkConnector", se);
+            joinNext();
+            Thread.sleep(timeout);
+          }
+
+          timeout    = Math.min(timeout * 2, MAX_TIMEOUT_MILLIS);
+          retransmit = true;
+        }
+      } catch (InterruptedException e) {
+        // Another socket opened the port first.
+      } catch (IOException e) {
+        if (!isFinished()) Log.w("NetworkConnector", e);
+        joinNext();
+      } finally {
+        onProbeFinished();
+      }
+    }
   }
 }
@@ -23,30 +23,117 @@ import android.preference.PreferenceManager;
 
 import org.thoughtcrime.mannycalls.Constants;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * The authentication mechanism uses HOTP, which requires
  * the client to keep track of a monotonically increasing counter.
  * Using this provider guarantees that the counter is incremented once
  * for each use.
  *
+ * Counters are leased from SharedPreferences in blocks: one durable
+ * commit() moves the stored counter past the whole block, and the block
+ * is then handed out from memory.  The stored value is always beyond
+ * every counter handed out, so a crash skips the rest of a block rather
+ * than ever reusing a counter, and a block whose write fails is never
+ * handed out.
+ *
  * @author Moxie Marlinspike
  *
  */
 public class OtpCounterProvider {
 
-  private static final OtpCounterProvider provider = new OtpCounterProvider();
+  private static final int LEASE_SIZE = 64;
+
+  private static final OtpCounterProvider provider = new OtpCounterProvider(LEASE_SIZE);
 
   public static OtpCounterProvider getInstance() {
     return provider;
   }
 
-  public synchronized long getOtpCounter(Context context) {
+  private final int leaseSize;
+
+  private volatile Lease lease = new Lease(0, 0);
+  private boolean        loaded;
+
+  /**
+   * @param leaseSize how many counters each durable write reserves.  A
+   * lease size of one commits on every use.
+   */
+  public OtpCounterProvider(int leaseSize) {
+    this.leaseSize = leaseSize;
+  }
+
+  /**
+   * @throws SignalingException if a new block couldn't be stored, in which
+   * case no counter is handed out past the stored value.
+   */
+  public long getOtpCounter(Context context) throws SignalingException {
+    long counter = lease.take();
+
+    if (counter >= 0) return counter;
+    else              return leaseOtpCounter(context);
+  }
+
+  /**
+   * Forgets the leased block, so the next counter comes from the value
+   * in SharedPreferences, as after registration resets it.  Once this
+   * returns, nothing more is handed out from the old block.
+   */
+  public synchronized void reset() {
+    lease.revoke();
+    lease  = new Lease(0, 0);
+    loaded = false;
+  }
+
+  private synchronized long leaseOtpCounter(Context context) throws SignalingException {
     SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
-    long counter                  = preferences.getLong(Constants.PASSWORD_COUNTER_PREFERENCE, 1L);
 
-    preferences.edit().putLong(Constants.PASSWORD_COUNTER_PREFERENCE, counter+1).commit();
+    while (true) {
+      long counter = lease.take();
+      if (counter >= 0) return counter;
+
+      long start  = loaded ? lease.limit : preferences.getLong(Constants.PASSWORD_COUNTER_PREFERENCE, 1L);
+      long leased = start + leaseSize;
+
+      if (!preferences.edit().putLong(Constants.PASSWORD_COUNTER_PREFERENCE, leased).commit())
+        throw new SignalingException("Couldn't store the OTP counter!");
+
+      lease  = new Lease(start, leased);
+      loaded = true;
+    }
+  }
+
+  /**
+   * A block of counters, handed out from memory up to limit, which is
+   * already stored.
+   */
+  private static class Lease {
+    private final AtomicLong next;
+    private final long       limit;
+
+    public Lease(long start, long limit) {
+      this.next  = new AtomicLong(start);
+      this.limit = limit;
+    }
+
+    /**
+     * @return the next counter in the block, or -1 if it's used up or revoked.
+     */
+    public long take() {
+      long counter;
+
+      while ((counter = next.get()) < limit) {
+        if (next.compareAndSet(counter, counter+1))
+          return counter;
+      }
+
+      return -1;
+    }
 
-    return counter;
+    public void revoke() {
+      next.set(limit);
+    }
   }
 
 }
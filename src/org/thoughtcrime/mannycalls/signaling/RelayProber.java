@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.signaling;
+
+import android.util.Log;
+
+import org.thoughtcrime.mannycalls.Release;
+import org.thoughtcrime.mannycalls.network.AddressCache;
+import org.thoughtcrime.mannycalls.signaling.signals.PingSignal;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ranks the relays a call can go through by how well we reach them.
+ *
+ * Every PROBE_INTERVAL_MILLIS, each relay we know of is sent PROBE_COUNT
+ * ping signals over UDP, one at a time, each given PROBE_TIMEOUT_MILLIS
+ * to be answered.  A round's median round trip time and its loss are
+ * folded into running averages, and a relay's score is its average round
+ * trip time plus LOSS_PENALTY_MILLIS for all of its loss, lower being
+ * better.  Relays that haven't been probed yet rank after those that
+ * answered, and relays that never answered rank last.
+ *
+ * Relays are learned from the sessions our calls use and from any others
+ * the switch lists in a RELAY_CANDIDATES_HEADER.  An initiator asks the
+ * switch for its best ones with a RELAY_PREFERENCE_HEADER, but the switch
+ * still picks the session's relay and gives it to both sides: a relay
+ * pairs the two legs of a call, so neither side can move on its own.
+ */
+public class RelayProber {
+
+  public static final String RELAY_PREFERENCE_HEADER = "X-Relay-Preference";
+  public static final String RELAY_CANDIDATES_HEADER = "X-Relay-Candidates";
+
+  private static final String TAG = "RelayProber";
+
+  private static final long PROBE_INTERVAL_MILLIS = 15 * 60 * 1000;
+  private static final int  PROBE_COUNT           = 5;
+  private static final int  PROBE_TIMEOUT_MILLIS  = 1000;
+  private static final int  LOSS_PENALTY_MILLIS   = 1000;
+  private static final int  MAX_PREFERENCES       = 3;
+  private static final int  MAX_RELAYS            = 16;
+
+  private static final double UNPROBED_SCORE   = Double.MAX_VALUE / 2;
+  private static final double UNANSWERED_SCORE = Double.MAX_VALUE;
+
+  private static final RelayProber instance = new RelayProber();
+
+  public static RelayProber getInstance() {
+    return instance;
+  }
+
+  private final Map<String, RelayScore> relays = new LinkedHashMap<String, RelayScore>();
+
+  private ScheduledExecutorService executor;
+
+  protected RelayProber() {}
+
+  /**
+   * Probes every known relay now and then every PROBE_INTERVAL_MILLIS
+   * after, in the background.
+   */
+  public synchronized void start() {
+    if (executor != null) return;
+
+    executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "RelayProber");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    executor.scheduleWithFixedDelay(new ProbeTask(), 0, PROBE_INTERVAL_MILLIS,
+                                    TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Forgets every relay's scores, which were measured from another
+   * network, and probes again.
+   */
+  public synchronized void reset() {
+    for (RelayScore score : relays.values()) {
+      score.clear();
+    }
+
+    if (executor != null) executor.execute(new ProbeTask());
+  }
+
+  /**
+   * Adds serverName to the relays we probe, probing it soon if it's new.
+   */
+  public synchronized void addRelay(String serverName) {
+    if (serverName == null || serverName.length() == 0 || relays.containsKey(serverName))
+      return;
+
+    if (relays.size() >= MAX_RELAYS) {
+      Iterator<String> eldest = relays.keySet().iterator();
+      eldest.next();
+      eldest.remove();
+    }
+
+    relays.put(serverName, new RelayScore());
+
+    if (executor != null) executor.execute(new ProbeTask());
+  }
+
+  /**
+   * @return every known relay, best first.
+   */
+  public synchronized List<String> getRanking() {
+    List<String> ranking = new ArrayList<String>(relays.keySet());
+    Collections.sort(ranking, new ScoreComparator());
+
+    return ranking;
+  }
+
+  /**
+   * @return up to MAX_PREFERENCES relays that answered their probes, best
+   * first and comma-separated, or null if none have.
+   */
+  public synchronized String getPreference() {
+    StringBuilder preference = new StringBuilder();
+    int           count      = 0;
+
+    for (String serverName : getRanking()) {
+      if (count == MAX_PREFERENCES || !relays.get(serverName).isAnswered())
+        break;
+
+      if (count++ > 0) preference.append(',');
+      preference.append(serverName);
+    }
+
+    return count == 0 ? null : preference.toString();
+  }
+
+  /**
+   * Adds each of serverNames, comma-separated as in a
+   * RELAY_CANDIDATES_HEADER, to the relays we probe.
+   */
+  public synchronized void addRelays(String serverNames) {
+    if (serverNames == null)
+      return;
+
+    for (String serverName : serverNames.split(",")) {
+      addRelay(serverName.trim());
+    }
+  }
+
+  /**
+   * @return serverName's score in milliseconds, lower being better, or -1
+   * if it hasn't answered a probe.
+   */
+  public synchronized double getScore(String serverName) {
+    RelayScore score = relays.get(serverName);
+
+    if (score == null || !score.isAnswered()) return -1;
+    else                                      return score.getScore();
+  }
+
+  /**
+   * Probes every known relay, on the calling thread.
+   */
+  public void probeAll() {
+    List<String> serverNames;
+
+    synchronized (this) {
+      serverNames = new ArrayList<String>(relays.keySet());
+    }
+
+    for (String serverName : serverNames) {
+      try {
+        probe(serverName, getProbeAddress(serverName));
+      } catch (IOException ioe) {
+        Log.w(TAG, "Couldn't probe " + serverName, ioe);
+      }
+    }
+  }
+
+  protected InetSocketAddress getProbeAddress(String serverName) throws IOException {
+    String host = serverName + Release.SERVER_ROOT;
+    return new InetSocketAddress(AddressCache.getInstance().resolve(host)[0],
+                                 Release.RELAY_PROBE_PORT);
+  }
+
+  private void probe(String serverName, InetSocketAddress address) throws IOException {
+    byte[] ping      = new PingSignal().serialize().getBytes();
+    byte[] buffer    = new byte[1024];
+    long[] roundTrip = new long[PROBE_COUNT];
+    int    answered  = 0;
+
+    for (int i=0;i<PROBE_COUNT;i++) {
+      DatagramSocket socket = new DatagramSocket();
+
+      // A fresh socket for each ping, so a late answer to one can't be
+      // taken for the answer to the next.
+      try {
+        socket.connect(address);
+        socket.setSoTimeout(PROBE_TIMEOUT_MILLIS);
+
+        long sentTime = System.nanoTime();
+        socket.send(new DatagramPacket(ping, ping.length));
+
+        DatagramPacket response = new DatagramPacket(buffer, buffer.length);
+        socket.receive(response);
+
+        if (isResponse(response)) {
+          roundTrip[answered++] = (System.nanoTime() - sentTime) / 1000;
+        }
+      } catch (SocketTimeoutException ste) {
+        // Lost, counted below.
+      } catch (PortUnreachableException pue) {
+        // Nothing listening, also counted as lost.
+      } finally {
+        socket.close();
+      }
+    }
+
+    double loss = (PROBE_COUNT - answered) / (double)PROBE_COUNT;
+    double rtt  = -1;
+
+    if (answered > 0) {
+      Arrays.sort(roundTrip, 0, answered);
+      rtt = roundTrip[answered / 2] / 1000.0;
+    }
+
+    Log.w(TAG, serverName + ": " + rtt + "ms, " + (int)(loss * 100) + "% loss");
+
+    synchronized (this) {
+      RelayScore score = relays.get(serverName);
+      if (score != null) score.update(rtt, loss);
+    }
+  }
+
+  private boolean isResponse(DatagramPacket packet) {
+    try {
+      SignalParser parser = new SignalParser();
+      parser.write(packet.getData(), 0, packet.getLength());
+
+      return parser.next() && parser.isResponse();
+    } catch (SignalingException se) {
+      Log.w(TAG, se);
+      return false;
+    }
+  }
+
+  private class ProbeTask implements Runnable {
+    @Override
+    public void run() {
+      probeAll();
+    }
+  }
+
+  private class ScoreComparator implements Comparator<String> {
+    @Override
+    public int compare(String lhs, String rhs) {
+      return Double.compare(getRankScore(lhs), getRankScore(rhs));
+    }
+
+    private double getRankScore(String serverName) {
+      RelayScore score = relays.get(serverName);
+
+      if      (score == null || score.rounds == 0) return UNPROBED_SCORE;
+      else if (!score.isAnswered())                return UNANSWERED_SCORE;
+      else                                         return score.getScore();
+    }
+  }
+
+  private static class RelayScore {
+    private static final double WEIGHT = 0.25;
+
+    private double rtt = -1;
+    private double loss;
+    private int    rounds;
+
+    public void update(double roundRtt, double roundLoss) {
+      if (roundRtt >= 0) {
+        rtt = rtt < 0 ? roundRtt : (1 - WEIGHT) * rtt + WEIGHT * roundRtt;
+      }
+
+      if (rounds++ == 0) loss = roundLoss;
+      else               loss = (1 - WEIGHT) * loss + WEIGHT * roundLoss;
+    }
+
+    public void clear() {
+      rtt    = -1;
+      loss   = 0;
+      rounds = 0;
+    }
+
+    public boolean isAnswered() {
+      return rtt >= 0;
+    }
+
+    public double getScore() {
+      return rtt + LOSS_PENALTY_MILLIS * loss;
+    }
+  }
+}
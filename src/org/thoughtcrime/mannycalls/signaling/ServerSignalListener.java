@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.signaling;
+
+import org.thoughtcrime.mannycalls.signaling.signals.ServerSignal;
+
+import java.io.IOException;
+
+/**
+ * Receives the signals a switch sends on a call's signaling connection.
+ *
+ * Both methods are called on the SignalingTransport's I/O thread, which
+ * serves every signaling connection, so implementations should hand the
+ * work off rather than block.
+ */
+public interface ServerSignalListener {
+
+  /**
+   * The switch sent a signal.  It has already been answered with a 200.
+   */
+  public void onServerSignal(ServerSignal signal);
+
+  /**
+   * The connection failed or the switch closed it.  Not called after the
+   * SignalingSocket is closed locally.
+   */
+  public void onSignalingClosed(IOException reason);
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.signaling;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Encodes signals for the binary signaling protocol: the SignalFrame
+ * message in protocol/SignalFrame.proto, behind a four byte big-endian
+ * length.
+ *
+ * A frame is always shorter than 16MB, so its first byte is zero, and
+ * no text signal starts with a zero.  SignalParser reads either kind
+ * by looking at that byte, so each end can switch to frames as soon as
+ * it knows the other understands them, while text signals that were
+ * already on their way are still read correctly.
+ *
+ * A client offers frames with an OFFER_HEADER on its text requests, and
+ * a switch accepts by answering in frames.
+ */
+public class SignalFrame {
+
+  public static final String OFFER_HEADER = "X-Signaling-Protocol";
+  public static final String OFFER_VALUE  = "protobuf";
+
+  static final int METHOD   = 1;
+  static final int TARGET   = 2;
+  static final int NUMBER   = 3;
+  static final int PASSWORD = 4;
+  static final int OTP      = 5;
+  static final int COUNTER  = 6;
+  static final int STATUS   = 7;
+  static final int HEADER   = 8;
+  static final int BODY     = 9;
+  static final int SESSION  = 10;
+
+  static final int HEADER_NAME  = 1;
+  static final int HEADER_VALUE = 2;
+
+  static final int SESSION_RELAY_PORT  = 1;
+  static final int SESSION_ID          = 2;
+  static final int SESSION_SERVER_NAME = 3;
+  static final int SESSION_VERSION     = 4;
+
+  static final int LENGTH_PREFIX_BYTES = 4;
+  static final int MAX_FRAME_BYTES     = (1 << 24) - 1;
+
+  /**
+   * @param password the account password for Basic authorization, or null.
+   * @param otp the one-time password for OTP authorization, or null.
+   */
+  public static byte[] encodeRequest(String method, String target, String number,
+                                     String password, String otp, long counter,
+                                     byte[] body)
+  {
+    return encodeRequest(method, target, number, password, otp, counter, null, body);
+  }
+
+  /**
+   * @param headers may be null.
+   */
+  public static byte[] encodeRequest(String method, String target, String number,
+                                     String password, String otp, long counter,
+                                     Map<String, String> headers, byte[] body)
+  {
+    int size = CodedOutputStream.computeStringSize(METHOD, method) +
+               CodedOutputStream.computeStringSize(TARGET, target);
+
+    if (number != null)   size += CodedOutputStream.computeStringSize(NUMBER, number);
+    if (password != null) size += CodedOutputStream.computeStringSize(PASSWORD, password);
+    if (otp != null)      size += CodedOutputStream.computeStringSize(OTP, otp) +
+                                  CodedOutputStream.computeUInt64Size(COUNTER, counter);
+
+    if (headers != null) {
+      for (Map.Entry<String, String> header : headers.entrySet()) {
+        size += computeBytesSize(HEADER, getHeaderSize(header));
+      }
+    }
+
+    if (body != null)     size += computeBytesSize(BODY, body.length);
+
+    try {
+      byte[]            frame = allocate(size);
+      CodedOutputStream out   = CodedOutputStream.newInstance(frame, LENGTH_PREFIX_BYTES, size);
+
+      out.writeString(METHOD, method);
+      out.writeString(TARGET, target);
+
+      if (number != null)   out.writeString(NUMBER, number);
+      if (password != null) out.writeString(PASSWORD, password);
+
+      if (otp != null) {
+        out.writeString(OTP, otp);
+        out.writeUInt64(COUNTER, counter);
+      }
+
+      writeHeaders(out, headers);
+
+      if (body != null) writeBytes(out, BODY, body);
+
+      out.checkNoSpaceLeft();
+      return frame;
+    } catch (IOException ioe) {
+      throw new AssertionError(ioe);
+    }
+  }
+
+  /**
+   * @param headers may be null.
+   * @param body may be null.
+   * @param session the session a call was initiated with, or null.
+   */
+  public static byte[] encodeResponse(int status, Map<String, String> headers, byte[] body,
+                                      SessionDescriptor session)
+  {
+    int size = CodedOutputStream.computeUInt32Size(STATUS, status);
+
+    if (headers != null) {
+      for (Map.Entry<String, String> header : headers.entrySet()) {
+        size += computeBytesSize(HEADER, getHeaderSize(header));
+      }
+    }
+
+    if (body != null)    size += computeBytesSize(BODY, body.length);
+    if (session != null) size += computeBytesSize(SESSION, getSessionSize(session));
+
+    try {
+      byte[]            frame = allocate(size);
+      CodedOutputStream out   = CodedOutputStream.newInstance(frame, LENGTH_PREFIX_BYTES, size);
+
+      out.writeUInt32(STATUS, status);
+
+      writeHeaders(out, headers);
+
+      if (body != null) writeBytes(out, BODY, body);
+
+      if (session != null) {
+        out.writeTag(SESSION, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        out.writeRawVarint32(getSessionSize(session));
+        out.writeUInt32(SESSION_RELAY_PORT, session.relayPort);
+        out.writeUInt64(SESSION_ID, session.sessionId);
+        out.writeString(SESSION_SERVER_NAME, session.serverName);
+        out.writeUInt32(SESSION_VERSION, session.version);
+      }
+
+      out.checkNoSpaceLeft();
+      return frame;
+    } catch (IOException ioe) {
+      throw new AssertionError(ioe);
+    }
+  }
+
+  private static void writeHeaders(CodedOutputStream out, Map<String, String> headers)
+      throws IOException
+  {
+    if (headers != null) {
+      for (Map.Entry<String, String> header : headers.entrySet()) {
+        out.writeTag(HEADER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        out.writeRawVarint32(getHeaderSize(header));
+        out.writeString(HEADER_NAME, header.getKey());
+        out.writeString(HEADER_VALUE, header.getValue());
+      }
+    }
+  }
+
+  private static byte[] allocate(int size) {
+    if (size > MAX_FRAME_BYTES)
+      throw new IllegalArgumentException("Signal frame too large: " + size);
+
+    byte[] frame = new byte[LENGTH_PREFIX_BYTES + size];
+
+    frame[0] = (byte)(size >>> 24);
+    frame[1] = (byte)(size >>> 16);
+    frame[2] = (byte)(size >>> 8);
+    frame[3] = (byte)size;
+
+    return frame;
+  }
+
+  // Written by hand rather than through ByteString, which would copy a
+  // directory-sized body once more.
+  private static void writeBytes(CodedOutputStream out, int field, byte[] value) throws IOException {
+    out.writeTag(field, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    out.writeRawVarint32(value.length);
+    out.writeRawBytes(value);
+  }
+
+  private static int computeBytesSize(int field, int length) {
+    return CodedOutputStream.computeTagSize(field) +
+           CodedOutputStream.computeRawVarint32Size(length) +
+           length;
+  }
+
+  private static int getHeaderSize(Map.Entry<String, String> header) {
+    return CodedOutputStream.computeStringSize(HEADER_NAME, header.getKey()) +
+           CodedOutputStream.computeStringSize(HEADER_VALUE, header.getValue());
+  }
+
+  private static int getSessionSize(SessionDescriptor session) {
+    return CodedOutputStream.computeUInt32Size(SESSION_RELAY_PORT, session.relayPort) +
+           CodedOutputStream.computeUInt64Size(SESSION_ID, session.sessionId) +
+           CodedOutputStream.computeStringSize(SESSION_SERVER_NAME, session.serverName) +
+           CodedOutputStream.computeUInt32Size(SESSION_VERSION, session.version);
+  }
+}
@@ -0,0 +1,571 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.signaling;
+
+import com.google.protobuf.WireFormat;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An incremental parser for the HTTP/1.0-style messages of the signaling
+ * protocol: responses to our requests, and signals from the switch.
+ *
+ * Bytes are written in as they arrive, in any size of piece, to a ring
+ * buffer that's reused from message to message.  Each byte is scanned
+ * once.  When next() finds a whole message, its start line, headers and
+ * body are slices of the ring, so reading the status code, checking the
+ * method, or finding the Content-Length allocates nothing.  Strings and
+ * byte arrays are made only for the parts a caller asks for.  The slices
+ * stay valid until the following call to next().
+ *
+ * Frames of the binary protocol, which start with a zero byte, are read
+ * the same way, with their fields as slices of the ring.  See
+ * SignalFrame.
+ */
+public class SignalParser {
+
+  private static final int INITIAL_CAPACITY = 4096;
+
+  private static final byte[] HTTP_VERSION_PREFIX = {'H', 'T', 'T', 'P', '/'};
+
+  private byte[] buffer = new byte[INITIAL_CAPACITY];
+  private int    mask   = INITIAL_CAPACITY - 1;
+  private int    head;
+  private int    size;
+
+  // The message being scanned.  Offsets are relative to head.
+  private int     scanned;
+  private int     lineStart;
+  private int     startLineEnd  = -1;
+  private int     messageLength = -1;
+  private int     bodyStart;
+  private int     contentLength;
+  private boolean frame;
+  private boolean ready;
+
+  private int[] headerNameStart  = new int[8];
+  private int[] headerNameEnd    = new int[8];
+  private int[] headerValueStart = new int[8];
+  private int[] headerValueEnd   = new int[8];
+  private int   headerCount;
+
+  private boolean response;
+  private int     statusCode;
+  private int     methodStart;
+  private int     methodEnd;
+  private int     targetStart;
+  private int     targetEnd;
+
+  private boolean session;
+  private int     relayPort;
+  private long    sessionId;
+  private int     serverNameStart;
+  private int     serverNameEnd;
+  private int     version;
+
+  // Where scanFrame() has read up to.
+  private int cursor;
+
+  public void write(ByteBuffer source) {
+    int length = source.remaining();
+
+    ensureCapacity(size + length);
+
+    while (source.hasRemaining()) {
+      int tail  = (head + size) & mask;
+      int chunk = Math.min(source.remaining(), buffer.length - tail);
+
+      source.get(buffer, tail, chunk);
+      size += chunk;
+    }
+  }
+
+  public void write(byte[] source, int offset, int length) {
+    write(ByteBuffer.wrap(source, offset, length));
+  }
+
+  /**
+   * Moves past the current message, if any, and parses the next one.
+   *
+   * @return true if a whole message is buffered, false if more bytes are
+   * needed first.
+   */
+  public boolean next() throws SignalingException {
+    if (ready) {
+      consume(messageLength);
+    }
+
+    if (messageLength == -1) {
+      boolean found = size > 0 && (byteAt(0) == 0 ? scanFrame() : scanHeaders());
+
+      if (!found) return false;
+    }
+
+    ready = size >= messageLength;
+    return ready;
+  }
+
+  /**
+   * @return true if this message came in the binary protocol.
+   */
+  public boolean isFrame() {
+    return frame;
+  }
+
+  public boolean isResponse() {
+    return response;
+  }
+
+  public int getStatusCode() {
+    return statusCode;
+  }
+
+  /**
+   * @return whether this signal's method is method, which must be ASCII.
+   */
+  public boolean isMethod(String method) {
+    return equalsAscii(methodStart, methodEnd, method, false);
+  }
+
+  public String getMethod() {
+    return getString(methodStart, methodEnd);
+  }
+
+  public String getTarget() {
+    return getString(targetStart, targetEnd);
+  }
+
+  public int getContentLength() {
+    return contentLength;
+  }
+
+  /**
+   * @return the value of the first header called name, ignoring case,
+   * or null.
+   */
+  public String getHeader(String name) {
+    for (int i=0;i<headerCount;i++) {
+      if (equalsAscii(headerNameStart[i], headerNameEnd[i], name, true)) {
+        return getString(headerValueStart[i], headerValueEnd[i]);
+      }
+    }
+
+    return null;
+  }
+
+  public Map<String, String> getHeaders() {
+    Map<String, String> headers = new HashMap<String, String>(headerCount * 2);
+
+    for (int i=0;i<headerCount;i++) {
+      headers.put(getString(headerNameStart[i], headerNameEnd[i]),
+                  getString(headerValueStart[i], headerValueEnd[i]));
+    }
+
+    return headers;
+  }
+
+  public byte[] getBody() {
+    byte[] body = new byte[contentLength];
+    copy(bodyStart, body, 0, contentLength);
+
+    return body;
+  }
+
+  /**
+   * @return the session in a frame answering a call initiation, or null.
+   * Text responses carry it as JSON in the body instead.
+   */
+  public SessionDescriptor getSessionDescriptor() {
+    if (!session)
+      return null;
+
+    return new SessionDescriptor(getString(serverNameStart, serverNameEnd),
+                                 relayPort, sessionId, version);
+  }
+
+  // Picks up scanning where the last call left off, a line at a time.
+  private boolean scanHeaders() throws SignalingException {
+    for (;scanned<size;scanned++) {
+      if (byteAt(scanned) != '\n' || scanned == 0 || byteAt(scanned - 1) != '\r')
+        continue;
+
+      int lineEnd = scanned - 1;
+
+      if (startLineEnd == -1) {
+        startLineEnd = lineEnd;
+        parseStartLine();
+      } else if (lineEnd == lineStart) {
+        bodyStart     = scanned + 1;
+        messageLength = bodyStart + contentLength;
+        return true;
+      } else {
+        parseHeader(lineStart, lineEnd);
+      }
+
+      lineStart = scanned + 1;
+    }
+
+    return false;
+  }
+
+  // Waits for the whole frame, then decodes it in one pass.
+  private boolean scanFrame() throws SignalingException {
+    if (size < SignalFrame.LENGTH_PREFIX_BYTES)
+      return false;
+
+    int length = ((byteAt(1) & 0xff) << 16) | ((byteAt(2) & 0xff) << 8) | (byteAt(3) & 0xff);
+
+    if (size < SignalFrame.LENGTH_PREFIX_BYTES + length)
+      return false;
+
+    this.frame         = true;
+    this.messageLength = SignalFrame.LENGTH_PREFIX_BYTES + length;
+    this.cursor        = SignalFrame.LENGTH_PREFIX_BYTES;
+
+    boolean hasMethod = false;
+    boolean hasTarget = false;
+
+    while (cursor < messageLength) {
+      int tag   = readTag(messageLength);
+      int field = tag >>> 3;
+
+      if ((tag & 7) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+        int fieldLength = readLength(messageLength);
+        int start       = cursor;
+        int end         = start + fieldLength;
+
+        switch (field) {
+          case SignalFrame.METHOD:  methodStart = start; methodEnd = end; hasMethod = true; break;
+          case SignalFrame.TARGET:  targetStart = start; targetEnd = end; hasTarget = true; break;
+          case SignalFrame.HEADER:  decodeHeader(start, end);                               break;
+          case SignalFrame.BODY:    bodyStart   = start; contentLength = end - start;       break;
+          case SignalFrame.SESSION: decodeSession(start, end);                              break;
+        }
+
+        cursor = end;
+      } else if (field == SignalFrame.STATUS && (tag & 7) == WireFormat.WIRETYPE_VARINT) {
+        response   = true;
+        statusCode = (int)readVarint(messageLength);
+      } else {
+        skipField(tag, messageLength);
+      }
+    }
+
+    if (!response && (!hasMethod || !hasTarget))
+      throw new SignalingException("Got strange request frame");
+
+    return true;
+  }
+
+  private void decodeHeader(int start, int end) throws SignalingException {
+    int nameStart  = start;
+    int nameEnd    = start;
+    int valueStart = start;
+    int valueEnd   = start;
+
+    cursor = start;
+
+    while (cursor < end) {
+      int tag = readTag(end);
+
+      if ((tag & 7) != WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+        skipField(tag, end);
+        continue;
+      }
+
+      int fieldLength = readLength(end);
+      int fieldStart  = cursor;
+      int fieldEnd    = cursor += fieldLength;
+
+      if      ((tag >>> 3) == SignalFrame.HEADER_NAME)  { nameStart  = fieldStart; nameEnd  = fieldEnd; }
+      else if ((tag >>> 3) == SignalFrame.HEADER_VALUE) { valueStart = fieldStart; valueEnd = fieldEnd; }
+    }
+
+    addHeader(nameStart, nameEnd, valueStart, valueEnd);
+  }
+
+  private void decodeSession(int start, int end) throws SignalingException {
+    this.session = true;
+    this.cursor  = start;
+
+    while (cursor < end) {
+      int tag   = readTag(end);
+      int field = tag >>> 3;
+
+      if ((tag & 7) == WireFormat.WIRETYPE_VARINT) {
+        long value = readVarint(end);
+
+        switch (field) {
+          case SignalFrame.SESSION_RELAY_PORT: relayPort = (int)value; break;
+          case SignalFrame.SESSION_ID:         sessionId = value;      break;
+          case SignalFrame.SESSION_VERSION:    version   = (int)value; break;
+        }
+      } else if (field == SignalFrame.SESSION_SERVER_NAME &&
+                 (tag & 7) == WireFormat.WIRETYPE_LENGTH_DELIMITED)
+      {
+        int length      = readLength(end);
+        serverNameStart = cursor;
+        serverNameEnd   = cursor += length;
+      } else {
+        skipField(tag, end);
+      }
+    }
+  }
+
+  private int readTag(int end) throws SignalingException {
+    return (int)readVarint(end);
+  }
+
+  private long readVarint(int end) throws SignalingException {
+    long value = 0;
+
+    for (int shift=0;shift<64;shift+=7) {
+      if (cursor >= end)
+        throw new SignalingException("Truncated signal frame");
+
+      byte b = byteAt(cursor++);
+      value |= (long)(b & 0x7f) << shift;
+
+      if ((b & 0x80) == 0) return value;
+    }
+
+    throw new SignalingException("Malformed varint in signal frame");
+  }
+
+  // The length of a length-delimited field, which must fit before end.
+  private int readLength(int end) throws SignalingException {
+    long length = readVarint(end);
+
+    if (length > end - cursor)
+      throw new SignalingException("Truncated signal frame");
+
+    return (int)length;
+  }
+
+  private void skipField(int tag, int end) throws SignalingException {
+    switch (tag & 7) {
+      case WireFormat.WIRETYPE_VARINT:           readVarint(end);           break;
+      case WireFormat.WIRETYPE_FIXED64:          cursor += 8;               break;
+      case WireFormat.WIRETYPE_FIXED32:          cursor += 4;               break;
+      case WireFormat.WIRETYPE_LENGTH_DELIMITED: cursor += readLength(end); break;
+      default: throw new SignalingException("Unsupported wire type in signal frame: " + tag);
+    }
+
+    if (cursor > end)
+      throw new SignalingException("Truncated signal frame");
+  }
+
+  private void parseStartLine() throws SignalingException {
+    if (startLineEnd == 0)
+      throw new SignalingException("Server failure.");
+
+    int firstSpace  = indexOf(' ', 0, startLineEnd);
+    int secondSpace = firstSpace == -1 ? -1 : indexOf(' ', firstSpace + 1, startLineEnd);
+
+    if (firstSpace == -1 || secondSpace == -1)
+      throw new SignalingException("Got strange start line: " + getString(0, startLineEnd));
+
+    this.response = startsWith(HTTP_VERSION_PREFIX);
+
+    if (response) {
+      this.statusCode = parseInt(firstSpace + 1, secondSpace);
+
+      if (statusCode == -1)
+        throw new SignalingException("Failed to parse status code from: " + getString(0, startLineEnd));
+    } else {
+      if (indexOf(' ', secondSpace + 1, startLineEnd) != -1)
+        throw new SignalingException("Got strange request: " + getString(0, startLineEnd));
+
+      this.methodStart = 0;
+      this.methodEnd   = firstSpace;
+      this.targetStart = firstSpace + 1;
+      this.targetEnd   = secondSpace;
+    }
+  }
+
+  private void parseHeader(int start, int end) throws SignalingException {
+    int colon = indexOf(':', start, end);
+
+    if (colon == -1)
+      return;
+
+    int nameStart  = skipSpace(start, colon);
+    int nameEnd    = trimSpace(nameStart, colon);
+    int valueStart = skipSpace(colon + 1, end);
+    int valueEnd   = trimSpace(valueStart, end);
+
+    addHeader(nameStart, nameEnd, valueStart, valueEnd);
+
+    if (equalsAscii(nameStart, nameEnd, "Content-Length", true)) {
+      contentLength = parseInt(valueStart, valueEnd);
+
+      // Reading the body as the next signal would put the stream out of step.
+      if (contentLength < 0)
+        throw new SignalingException("Bad Content-Length: " + getString(valueStart, valueEnd));
+    }
+  }
+
+  private void addHeader(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+    if (headerCount == headerNameStart.length) {
+      headerNameStart  = grow(headerNameStart);
+      headerNameEnd    = grow(headerNameEnd);
+      headerValueStart = grow(headerValueStart);
+      headerValueEnd   = grow(headerValueEnd);
+    }
+
+    headerNameStart[headerCount]  = nameStart;
+    headerNameEnd[headerCount]    = nameEnd;
+    headerValueStart[headerCount] = valueStart;
+    headerValueEnd[headerCount]   = valueEnd;
+    headerCount++;
+  }
+
+  private void consume(int length) {
+    head  = (head + length) & mask;
+    size -= length;
+
+    scanned       = 0;
+    lineStart     = 0;
+    startLineEnd  = -1;
+    messageLength = -1;
+    bodyStart     = 0;
+    contentLength = 0;
+    headerCount   = 0;
+    frame         = false;
+    response      = false;
+    session       = false;
+    ready         = false;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity <= buffer.length)
+      return;
+
+    int newCapacity = buffer.length;
+
+    while (newCapacity < capacity) {
+      newCapacity *= 2;
+    }
+
+    byte[] larger = new byte[newCapacity];
+    copy(0, larger, 0, size);
+
+    this.buffer = larger;
+    this.mask   = newCapacity - 1;
+    this.head   = 0;
+  }
+
+  private byte byteAt(int offset) {
+    return buffer[(head + offset) & mask];
+  }
+
+  private void copy(int offset, byte[] destination, int destinationOffset, int length) {
+    int start = (head + offset) & mask;
+    int first = Math.min(length, buffer.length - start);
+
+    System.arraycopy(buffer, start, destination, destinationOffset, first);
+    System.arraycopy(buffer, 0, destination, destinationOffset + first, length - first);
+  }
+
+  private int indexOf(char c, int start, int end) {
+    for (int i=start;i<end;i++) {
+      if (byteAt(i) == c) return i;
+    }
+
+    return -1;
+  }
+
+  private boolean startsWith(byte[] prefix) {
+    if (startLineEnd < prefix.length)
+      return false;
+
+    for (int i=0;i<prefix.length;i++) {
+      if (byteAt(i) != prefix[i]) return false;
+    }
+
+    return true;
+  }
+
+  private boolean equalsAscii(int start, int end, String value, boolean ignoreCase) {
+    if (end - start != value.length())
+      return false;
+
+    for (int i=0;i<value.length();i++) {
+      int a = byteAt(start + i);
+      int b = value.charAt(i);
+
+      if (ignoreCase) {
+        if (a >= 'A' && a <= 'Z') a += 'a' - 'A';
+        if (b >= 'A' && b <= 'Z') b += 'a' - 'A';
+      }
+
+      if (a != b) return false;
+    }
+
+    return true;
+  }
+
+  // A non-negative decimal, or -1.
+  private int parseInt(int start, int end) {
+    if (start == end || end - start > 9)
+      return -1;
+
+    int value = 0;
+
+    for (int i=start;i<end;i++) {
+      int digit = byteAt(i) - '0';
+
+      if (digit < 0 || digit > 9) return -1;
+
+      value = value * 10 + digit;
+    }
+
+    return value;
+  }
+
+  private int skipSpace(int start, int end) {
+    while (start < end && byteAt(start) == ' ') start++;
+    return start;
+  }
+
+  private int trimSpace(int start, int end) {
+    while (end > start && byteAt(end - 1) == ' ') end--;
+    return end;
+  }
+
+  private String getString(int start, int end) {
+    byte[] bytes = new byte[end - start];
+    copy(start, bytes, 0, bytes.length);
+
+    try {
+      return new String(bytes, "UTF8");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static int[] grow(int[] array) {
+    int[] larger = new int[array.length * 2];
+    System.arraycopy(array, 0, larger, 0, array.length);
+
+    return larger;
+  }
+}
@@ -32,11 +32,19 @@ public class SignalResponse {
   private final int statusCode;
   private final Map<String, String> headers;
   private final byte[] body;
+  private final SessionDescriptor sessionDescriptor;
 
   public SignalResponse(int statusCode, Map<String, String> headers, byte[] body) {
-    this.statusCode = statusCode;
-    this.headers    = headers;
-    this.body       = body;
+    this(statusCode, headers, body, null);
+  }
+
+  public SignalResponse(int statusCode, Map<String, String> headers, byte[] body,
+                        SessionDescriptor sessionDescriptor)
+  {
+    this.statusCode        = statusCode;
+    this.headers           = headers;
+    this.body              = body;
+    this.sessionDescriptor = sessionDescriptor;
   }
 
   public int getStatusCode() {
@@ -51,4 +59,12 @@ public class SignalResponse {
     return body;
   }
 
+  /**
+   * @return the session from a binary protocol response, or null if it's
+   * JSON in the body.
+   */
+  public SessionDescriptor getSessionDescriptor() {
+    return sessionDescriptor;
+  }
+
 }
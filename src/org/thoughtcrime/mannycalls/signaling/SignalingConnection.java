@@ -0,0 +1,774 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.signaling;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.thoughtcrime.mannycalls.Release;
+import org.thoughtcrime.mannycalls.network.AddressCache;
+import org.thoughtcrime.mannycalls.network.LowLatencySocketConnector;
+import org.thoughtcrime.mannycalls.signaling.signals.ServerSignal;
+import org.thoughtcrime.mannycalls.signaling.signals.Signal;
+import org.thoughtcrime.mannycalls.util.CallTrace;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.cert.X509Certificate;
+import java.util.LinkedList;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLSession;
+
+/**
+ * One TLS connection to a switch: an SSLEngine over a non-blocking
+ * SocketChannel, driven by the SignalingTransport's I/O thread.
+ *
+ * Callers only ever block on what they're waiting for: open() until the
+ * TLS handshake completes, and a PendingResponse until the response to
+ * its request arrives.  Responses are matched to requests in order.
+ * Signals the switch sends are answered with a 200 and passed to the
+ * ServerSignalListener.  Without one, as on an idle pooled connection,
+ * nothing would handle them, so they're answered with a 503 and the
+ * switch knows they weren't delivered; only keep-alives still get a 200.
+ *
+ * A connection opened with offerFrames asks for the binary protocol in
+ * an X-Signaling-Protocol header on each text request, and the switch
+ * accepts by answering in frames.  From the first frame it receives, the
+ * connection sends frames too.  Until then requests go as text, so
+ * nothing waits on the negotiation, and a switch that doesn't know the
+ * header just ignores it.
+ *
+ * The pool hands a connection to one SignalingSocket at a time.
+ */
+class SignalingConnection {
+
+  private static final String TAG = "SignalingConnection";
+
+  private static final int CONNECT_TIMEOUT_MILLIS   = 10000;
+  private static final int HANDSHAKE_TIMEOUT_MILLIS = 10000;
+  private static final int RESPONSE_TIMEOUT_MILLIS  = 15000;
+
+  private static final int STATE_CONNECTING  = 0;
+  private static final int STATE_HANDSHAKING = 1;
+  private static final int STATE_OPEN        = 2;
+  private static final int STATE_CLOSED      = 3;
+
+  private static final byte[]     OK_RESPONSE = "HTTP/1.0 200 OK\r\nContent-Length: 0\r\n\r\n".getBytes();
+  private static final byte[]     OK_FRAME    = SignalFrame.encodeResponse(200, null, null, null);
+
+  private static final byte[] UNAVAILABLE_RESPONSE = "HTTP/1.0 503 Service Unavailable\r\nContent-Length: 0\r\n\r\n".getBytes();
+  private static final byte[] UNAVAILABLE_FRAME    = SignalFrame.encodeResponse(503, null, null, null);
+  private static final ByteBuffer EMPTY       = ByteBuffer.allocate(0);
+
+  private final SignalingTransport transport;
+  private final String             host;
+  private final int                port;
+  private final SSLEngine          engine;
+  private final boolean            offerFrames;
+  private final CallTrace          trace;
+
+  // I/O thread only.
+  private final LinkedList<Candidate>       candidates       = new LinkedList<Candidate>();
+  private final LinkedList<ByteBuffer>      pendingWrites    = new LinkedList<ByteBuffer>();
+  private final LinkedList<PendingResponse> pendingResponses = new LinkedList<PendingResponse>();
+  private final SignalParser                parser           = new SignalParser();
+
+  private InetAddress[] addresses;
+  private int           nextAddress;
+  private long          nextAttemptTime;
+  private SocketChannel channel;
+  private SelectionKey  key;
+  private ByteBuffer    netIn;
+  private ByteBuffer    netOut;
+  private ByteBuffer    appIn;
+  private int           state;
+  private long          deadline;
+  private boolean       frames;
+  private boolean       runningTasks;
+
+  // Written on the I/O thread before open() returns.
+  private long    handshakeStartTime;
+  private long    handshakeMillis;
+  private boolean resumed;
+
+  private volatile boolean              closed;
+  private volatile ServerSignalListener listener;
+
+  private boolean     opened;
+  private IOException openFailure;
+  private long        idleSince;
+
+  private SignalingConnection(SSLContext sslContext, String host, int port,
+                              boolean offerFrames, CallTrace trace)
+  {
+    this.transport   = SignalingTransport.getInstance();
+    this.host        = host;
+    this.port        = port;
+    this.offerFrames = offerFrames;
+    this.trace       = trace;
+    this.engine      = sslContext.createSSLEngine(host, port);
+
+    engine.setUseClientMode(true);
+
+    SSLSession session = engine.getSession();
+
+    this.netIn  = ByteBuffer.allocate(session.getPacketBufferSize());
+    this.netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+    this.appIn  = ByteBuffer.allocate(session.getApplicationBufferSize());
+  }
+
+  /**
+   * Connects to whichever of the addresses answers first, starting the
+   * attempts in turn as LowLatencySocketConnector does, and completes a
+   * TLS handshake with it.  The session is resumed if sslContext has one
+   * for this host.
+   *
+   * @param offerFrames whether to ask the switch for the binary protocol.
+   */
+  public static SignalingConnection open(SSLContext sslContext, String host, int port,
+                                         final InetAddress[] addresses, boolean offerFrames,
+                                         CallTrace trace)
+      throws IOException
+  {
+    final SignalingConnection connection = new SignalingConnection(sslContext, host, port,
+                                                                   offerFrames, trace);
+
+    connection.transport.execute(new Runnable() {
+      @Override
+      public void run() {
+        connection.connect(addresses);
+      }
+    });
+
+    connection.waitForOpen();
+    return connection;
+  }
+
+  public String getHost() {
+    return host;
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  public boolean isResumed() {
+    return resumed;
+  }
+
+  public long getHandshakeMillis() {
+    return handshakeMillis;
+  }
+
+  public boolean isOpen() {
+    return !closed;
+  }
+
+  public void setListener(ServerSignalListener listener) {
+    this.listener = listener;
+  }
+
+  public synchronized void setIdle() {
+    this.idleSince = SystemClock.elapsedRealtime();
+  }
+
+  public synchronized long getIdleMillis() {
+    return SystemClock.elapsedRealtime() - idleSince;
+  }
+
+  /**
+   * @return whether this connection has sat in the pool, rather than being
+   * freshly opened for its current request.
+   */
+  public synchronized boolean isReused() {
+    return idleSince != 0;
+  }
+
+  /**
+   * Queues a request.  Its response, or the reason there won't be one,
+   * arrives through the PendingResponse.
+   */
+  public PendingResponse send(final Signal signal) throws IOException {
+    final PendingResponse pending = new PendingResponse();
+
+    transport.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (state != STATE_OPEN) {
+          pending.fail(new IOException("Connection to " + host + " is closed"));
+          return;
+        }
+
+        pending.deadline = SystemClock.elapsedRealtime() + RESPONSE_TIMEOUT_MILLIS;
+        pendingResponses.add(pending);
+        pendingWrites.add(ByteBuffer.wrap(frames ? signal.serializeFrame() :
+                                                   signal.serialize(offerFrames).getBytes()));
+
+        try {
+          pump();
+        } catch (IOException ioe) {
+          fail(ioe);
+        }
+      }
+    });
+
+    return pending;
+  }
+
+  public void close() {
+    this.listener = null;
+
+    try {
+      transport.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (state == STATE_OPEN) {
+            try {
+              engine.closeOutbound();
+              engine.wrap(EMPTY, netOut);
+              flush();
+            } catch (IOException ioe) {
+              Log.w(TAG, ioe);
+            }
+          }
+
+          fail(new IOException("Connection to " + host + " closed"));
+        }
+      });
+    } catch (IOException ioe) {
+      Log.w(TAG, ioe);
+    }
+  }
+
+  private synchronized void waitForOpen() throws IOException {
+    try {
+      while (!opened && openFailure == null) {
+        wait();
+      }
+    } catch (InterruptedException e) {
+      close();
+      throw new InterruptedIOException("Interrupted connecting to " + host);
+    }
+
+    if (!opened) {
+      throw openFailure;
+    }
+  }
+
+  // I/O thread only, from here down.
+
+  long getDeadline() {
+    switch (state) {
+      case STATE_CONNECTING:  return nextAddress < addresses.length ?
+                                     Math.min(deadline, nextAttemptTime) : deadline;
+      case STATE_HANDSHAKING: return deadline;
+      case STATE_OPEN:        return pendingResponses.isEmpty() ? Long.MAX_VALUE :
+                                     pendingResponses.getFirst().deadline;
+      default:                return Long.MAX_VALUE;
+    }
+  }
+
+  void onDeadline() {
+    if (state == STATE_CONNECTING && SystemClock.elapsedRealtime() < deadline) {
+      try {
+        startNextAttempt();
+      } catch (IOException ioe) {
+        fail(ioe);
+      }
+
+      return;
+    }
+
+    if (state == STATE_CONNECTING) {
+      for (Candidate candidate : candidates) {
+        AddressCache.getInstance().recordFailure(candidate.address);
+      }
+    }
+
+    switch (state) {
+      case STATE_CONNECTING:  fail(new SocketTimeoutException("Connect to " + host + " timed out")); break;
+      case STATE_HANDSHAKING: fail(new SocketTimeoutException("TLS handshake with " + host + " timed out")); break;
+      default:                fail(new SocketTimeoutException("No response from " + host));
+    }
+  }
+
+  void onReady(SelectionKey readyKey) {
+    try {
+      if (state == STATE_CONNECTING) {
+        if (readyKey.isConnectable()) finishConnect(readyKey);
+        return;
+      }
+
+      if (readyKey.isReadable()) read();
+
+      pump();
+    } catch (IOException ioe) {
+      fail(ioe);
+    }
+  }
+
+  // Like LowLatencySocketConnector, Happy Eyeballs over the addresses in
+  // AddressCache's order: the next attempt starts after a delay, or as soon
+  // as every attempt so far has failed.
+  private void connect(InetAddress[] addresses) {
+    transport.add(this);
+
+    this.addresses = AddressCache.getInstance().sortForConnect(addresses);
+    this.state     = STATE_CONNECTING;
+    this.deadline  = SystemClock.elapsedRealtime() + CONNECT_TIMEOUT_MILLIS;
+
+    try {
+      startNextAttempt();
+    } catch (IOException ioe) {
+      fail(ioe);
+    }
+  }
+
+  private void startNextAttempt() throws IOException {
+    IOException failure = null;
+
+    while (nextAddress < addresses.length) {
+      InetAddress   address   = addresses[nextAddress++];
+      SocketChannel candidate = SocketChannel.open();
+      SelectionKey  candidateKey;
+      boolean       connected;
+
+      this.nextAttemptTime = SystemClock.elapsedRealtime() +
+                             LowLatencySocketConnector.CONNECTION_ATTEMPT_DELAY_MILLIS;
+
+      try {
+        candidate.configureBlocking(false);
+        connected    = candidate.connect(new InetSocketAddress(address, port));
+        candidateKey = candidate.register(transport.getSelector(), SelectionKey.OP_CONNECT, this);
+      } catch (IOException ioe) {
+        Log.w(TAG, ioe);
+        AddressCache.getInstance().recordFailure(address);
+        candidate.close();
+        failure = ioe;
+        continue;
+      }
+
+      Candidate started = new Candidate(candidate, address);
+      candidates.add(started);
+
+      if (connected) onConnected(started, candidateKey);
+      return;
+    }
+
+    if (candidates.isEmpty()) {
+      throw failure != null ? failure : new IOException("No addresses for " + host);
+    }
+  }
+
+  private void finishConnect(SelectionKey candidateKey) throws IOException {
+    Candidate candidate = getCandidate((SocketChannel)candidateKey.channel());
+
+    if (candidate == null) return;
+
+    try {
+      if (!candidate.channel.finishConnect()) return;
+    } catch (IOException ioe) {
+      Log.w(TAG, ioe);
+      AddressCache.getInstance().recordFailure(candidate.address);
+      candidates.remove(candidate);
+      candidate.channel.close();
+
+      if (nextAddress < addresses.length) startNextAttempt();
+      else if (candidates.isEmpty())      throw ioe;
+
+      return;
+    }
+
+    onConnected(candidate, candidateKey);
+  }
+
+  private Candidate getCandidate(SocketChannel candidateChannel) {
+    for (Candidate candidate : candidates) {
+      if (candidate.channel == candidateChannel)
+        return candidate;
+    }
+
+    return null;
+  }
+
+  private void onConnected(Candidate candidate, SelectionKey candidateKey) throws IOException {
+    AddressCache.getInstance().recordConnect(candidate.address,
+                                             SystemClock.elapsedRealtime() - candidate.startTime);
+
+    candidates.remove(candidate);
+
+    for (Candidate other : candidates) {
+      other.channel.close();
+    }
+
+    candidates.clear();
+
+    this.channel = candidate.channel;
+    this.key     = candidateKey;
+
+    key.interestOps(SelectionKey.OP_READ);
+    trace.mark("signaling TCP connected");
+
+    Log.w(TAG, "Connected to: " + channel.socket().getInetAddress().getHostAddress());
+
+    this.state              = STATE_HANDSHAKING;
+    this.deadline           = SystemClock.elapsedRealtime() + HANDSHAKE_TIMEOUT_MILLIS;
+    this.handshakeStartTime = System.currentTimeMillis();
+
+    engine.beginHandshake();
+    pump();
+  }
+
+  private void onHandshakeComplete() throws IOException {
+    SSLSession session = engine.getSession();
+
+    if (Release.SSL) {
+      SSLSocketFactory.STRICT_HOSTNAME_VERIFIER.verify(host, (X509Certificate)session.getPeerCertificates()[0]);
+    }
+
+    // A resumed session was created by an earlier handshake.
+    this.resumed         = session.getCreationTime() < handshakeStartTime;
+    this.handshakeMillis = System.currentTimeMillis() - handshakeStartTime;
+    this.state           = STATE_OPEN;
+
+    synchronized (this) {
+      opened = true;
+      notifyAll();
+    }
+  }
+
+  private void read() throws IOException {
+    int read;
+
+    while ((read = channel.read(netIn)) > 0);
+
+    if (read == -1) {
+      pump();
+      throw new EOFException(host + " closed the connection");
+    }
+  }
+
+  /**
+   * Moves bytes through the engine until it can't make progress: the
+   * handshake, queued requests out, and whatever has arrived in.
+   */
+  private void pump() throws IOException {
+    boolean progress = true;
+
+    while (progress && state != STATE_CLOSED) {
+      switch (engine.getHandshakeStatus()) {
+        case NEED_TASK:
+          runDelegatedTasks();
+          progress = false;
+          break;
+        case NEED_WRAP:
+          progress = wrap(EMPTY);
+          break;
+        case NEED_UNWRAP:
+          progress = unwrap();
+          break;
+        default:
+          if (state == STATE_HANDSHAKING) onHandshakeComplete();
+          progress = wrapPending() | unwrap();
+      }
+    }
+
+    flush();
+  }
+
+  // The engine stays in NEED_TASK until its tasks are done, and reading
+  // stops meanwhile, so the I/O thread neither waits for them nor spins on
+  // a channel that's readable with nowhere to put the bytes.
+  private void runDelegatedTasks() {
+    if (runningTasks) return;
+
+    final LinkedList<Runnable> delegated = new LinkedList<Runnable>();
+    Runnable                   task;
+
+    while ((task = engine.getDelegatedTask()) != null) {
+      delegated.add(task);
+    }
+
+    runningTasks = true;
+
+    transport.executeDelegated(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          for (Runnable task : delegated) {
+            task.run();
+          }
+        } catch (RuntimeException e) {
+          // The engine keeps the failure and throws it from the next wrap
+          // or unwrap, which fails the connection.
+          Log.w(TAG, e);
+        } finally {
+          onDelegatedTasksFinished();
+        }
+      }
+    });
+  }
+
+  private void onDelegatedTasksFinished() {
+    try {
+      transport.execute(new Runnable() {
+        @Override
+        public void run() {
+          runningTasks = false;
+
+          try {
+            pump();
+          } catch (IOException ioe) {
+            fail(ioe);
+          }
+        }
+      });
+    } catch (IOException ioe) {
+      Log.w(TAG, ioe);
+    }
+  }
+
+  private boolean wrapPending() throws IOException {
+    boolean progress = false;
+
+    while (!pendingWrites.isEmpty()) {
+      ByteBuffer next = pendingWrites.getFirst();
+
+      if (!wrap(next)) break;
+      if (!next.hasRemaining()) pendingWrites.removeFirst();
+
+      progress = true;
+    }
+
+    return progress;
+  }
+
+  private boolean wrap(ByteBuffer source) throws IOException {
+    SSLEngineResult result = engine.wrap(source, netOut);
+
+    switch (result.getStatus()) {
+      case BUFFER_OVERFLOW:
+        flush();
+
+        if (netOut.position() > 0) return false;
+
+        netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+        return true;
+      case CLOSED:
+        throw new EOFException("TLS session with " + host + " is closed");
+      default:
+        return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+    }
+  }
+
+  private boolean unwrap() throws IOException {
+    SSLEngineResult result;
+
+    netIn.flip();
+
+    try {
+      result = engine.unwrap(netIn, appIn);
+    } finally {
+      netIn.compact();
+    }
+
+    switch (result.getStatus()) {
+      case BUFFER_OVERFLOW:
+        appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+        return true;
+      case BUFFER_UNDERFLOW:
+        if (!netIn.hasRemaining()) netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+        return false;
+      case CLOSED:
+        throw new EOFException(host + " closed the TLS session");
+      default:
+        if (appIn.position() > 0) {
+          appIn.flip();
+          receive(appIn);
+          appIn.clear();
+        }
+
+        return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+    }
+  }
+
+  private void flush() throws IOException {
+    if (channel == null || !key.isValid()) return;
+
+    netOut.flip();
+
+    try {
+      channel.write(netOut);
+    } finally {
+      netOut.compact();
+    }
+
+    int interestOps = runningTasks ? 0 : SelectionKey.OP_READ;
+
+    if (netOut.position() > 0) interestOps |= SelectionKey.OP_WRITE;
+
+    key.interestOps(interestOps);
+  }
+
+  private void receive(ByteBuffer plaintext) throws IOException {
+    parser.write(plaintext);
+
+    try {
+      while (parser.next()) {
+        dispatch();
+      }
+    } catch (SignalingException se) {
+      throw new IOException(se);
+    }
+  }
+
+  private void dispatch() throws IOException {
+    if (!frames && offerFrames && parser.isFrame()) {
+      Log.w(TAG, host + " accepted the binary signaling protocol");
+      frames = true;
+    }
+
+    if (parser.isResponse()) {
+      PendingResponse pending = pendingResponses.poll();
+
+      if (pending == null)
+        throw new IOException("Unrequested response from " + host + ": " + parser.getStatusCode());
+
+      pending.set(new SignalResponse(parser.getStatusCode(), parser.getHeaders(), parser.getBody(),
+                                     parser.getSessionDescriptor()));
+    } else {
+      ServerSignalListener listener = this.listener;
+      ServerSignal         signal   = new ServerSignal(parser.getMethod(), parser.getTarget(), parser.getBody());
+
+      if (listener != null || signal.isKeepAlive()) {
+        pendingWrites.add(ByteBuffer.wrap(frames ? OK_FRAME : OK_RESPONSE));
+      } else {
+        Log.w(TAG, "No listener for signal: " + parser.getMethod() + " " + parser.getTarget());
+        pendingWrites.add(ByteBuffer.wrap(frames ? UNAVAILABLE_FRAME : UNAVAILABLE_RESPONSE));
+      }
+
+      if (listener != null)
+        listener.onServerSignal(signal);
+    }
+  }
+
+  private void fail(IOException reason) {
+    if (state == STATE_CLOSED)
+      return;
+
+    boolean wasOpen = state == STATE_OPEN;
+
+    this.state  = STATE_CLOSED;
+    this.closed = true;
+
+    transport.remove(this);
+
+    try {
+      for (Candidate candidate : candidates) {
+        candidate.channel.close();
+      }
+
+      if (channel != null) channel.close();
+    } catch (IOException ioe) {
+      Log.w(TAG, ioe);
+    }
+
+    candidates.clear();
+
+    synchronized (this) {
+      openFailure = reason;
+      notifyAll();
+    }
+
+    for (PendingResponse pending : pendingResponses) {
+      pending.fail(reason);
+    }
+
+    pendingResponses.clear();
+
+    ServerSignalListener listener = this.listener;
+
+    if (wasOpen && listener != null) {
+      listener.onSignalingClosed(reason);
+    }
+  }
+
+  private static ByteBuffer enlarge(ByteBuffer buffer, int minimum) {
+    ByteBuffer larger = ByteBuffer.allocate(Math.max(minimum, buffer.capacity() * 2));
+
+    buffer.flip();
+    larger.put(buffer);
+
+    return larger;
+  }
+
+  private static class Candidate {
+    private final SocketChannel channel;
+    private final InetAddress   address;
+    private final long          startTime;
+
+    public Candidate(SocketChannel channel, InetAddress address) {
+      this.channel   = channel;
+      this.address   = address;
+      this.startTime = SystemClock.elapsedRealtime();
+    }
+  }
+
+  /**
+   * The response to one request, which the caller waits on.
+   */
+  static class PendingResponse {
+    private long           deadline;
+    private SignalResponse response;
+    private IOException    failure;
+
+    private synchronized void set(SignalResponse response) {
+      this.response = response;
+      notifyAll();
+    }
+
+    private synchronized void fail(IOException failure) {
+      this.failure = failure;
+      notifyAll();
+    }
+
+    public synchronized SignalResponse get() throws IOException {
+      try {
+        while (response == null && failure == null) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException("Interrupted waiting for response");
+      }
+
+      if (response != null) return response;
+      else                  throw failure;
+    }
+  }
+}
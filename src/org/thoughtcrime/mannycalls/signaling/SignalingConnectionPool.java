@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.signaling;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.thoughtcrime.mannycalls.Release;
+import org.thoughtcrime.mannycalls.network.AddressCache;
+import org.thoughtcrime.mannycalls.ui.ApplicationPreferencesActivity;
+import org.thoughtcrime.mannycalls.util.CallTrace;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.security.KeyManagementException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Process-wide signaling connections.
+ *
+ * The trust store is read from assets once, into one SSLContext, so every
+ * connection shares its TLS session cache and a reconnect to a switch
+ * resumes the last session instead of doing a full handshake.  Connections
+ * that finish a request cleanly are kept open for IDLE_TIMEOUT_MILLIS, and
+ * the next request to the same switch reuses one the switch hasn't closed,
+ * skipping DNS, TCP and TLS entirely.  Otherwise the switch's addresses
+ * come from AddressCache, usually without a DNS lookup.  Connections do
+ * their I/O on the SignalingTransport's thread, so an idle one costs no
+ * thread.
+ *
+ * Each reuse and resumption is logged with the time it saved, against the
+ * average full connect so far.
+ */
+public class SignalingConnectionPool {
+
+  private static final String TAG = "SignalingConnectionPool";
+
+  private static final long IDLE_TIMEOUT_MILLIS = 30 * 1000;
+  private static final int  MAX_IDLE_PER_HOST   = 2;
+
+  private static final SignalingConnectionPool instance = new SignalingConnectionPool();
+
+  public static SignalingConnectionPool getInstance() {
+    return instance;
+  }
+
+  private final Map<String, LinkedList<SignalingConnection>> idleConnections =
+      new HashMap<String, LinkedList<SignalingConnection>>();
+
+  private SSLContext sslContext;
+
+  private int  fullConnects;
+  private long fullConnectMillis;
+  private int  fullHandshakes;
+  private long fullHandshakeMillis;
+
+  SignalingConnection get(Context context, String host, int port, CallTrace trace)
+      throws IOException
+  {
+    SignalingConnection connection;
+
+    while ((connection = takeIdle(host, port)) != null) {
+      if (connection.isOpen()) {
+        trace.mark("signaling connection reused");
+        Log.w(TAG, "Reusing connection to " + host + ", saved ~" + getAverage(fullConnectMillis, fullConnects) + "ms");
+        return connection;
+      }
+
+      connection.close();
+    }
+
+    return connect(context, host, port, trace);
+  }
+
+  /**
+   * Takes back a connection whose last request got its whole response.
+   */
+  synchronized void recycle(SignalingConnection connection) {
+    String                          key  = getKey(connection.getHost(), connection.getPort());
+    LinkedList<SignalingConnection> idle = idleConnections.get(key);
+
+    if (idle == null) {
+      idle = new LinkedList<SignalingConnection>();
+      idleConnections.put(key, idle);
+    }
+
+    connection.setIdle();
+    idle.addFirst(connection);
+
+    while (idle.size() > MAX_IDLE_PER_HOST) {
+      idle.removeLast().close();
+    }
+  }
+
+  /**
+   * Closes every idle connection, for when the network they were opened
+   * over has gone away.
+   */
+  public synchronized void evictAll() {
+    for (LinkedList<SignalingConnection> idle : idleConnections.values()) {
+      for (SignalingConnection connection : idle) {
+        connection.close();
+      }
+    }
+
+    idleConnections.clear();
+  }
+
+  private synchronized SignalingConnection takeIdle(String host, int port) {
+    LinkedList<SignalingConnection> idle = idleConnections.get(getKey(host, port));
+
+    if (idle == null)
+      return null;
+
+    Iterator<SignalingConnection> iterator = idle.iterator();
+
+    while (iterator.hasNext()) {
+      SignalingConnection connection = iterator.next();
+      iterator.remove();
+
+      if (connection.getIdleMillis() < IDLE_TIMEOUT_MILLIS) return connection;
+      else                                                  connection.close();
+    }
+
+    return null;
+  }
+
+  /**
+   * Opens a new connection, never a pooled one, for a request that failed
+   * on a connection the pool handed out.
+   */
+  SignalingConnection connect(Context context, String host, int port, CallTrace trace)
+      throws IOException
+  {
+    SSLContext    tlsContext   = getSslContext(context);
+    long          connectStart = SystemClock.elapsedRealtime();
+    InetAddress[] addresses    = AddressCache.getInstance().resolve(host);
+    trace.mark("signaling DNS resolved");
+
+    boolean             offerFrames = ApplicationPreferencesActivity.getBinarySignalingEnabled(context);
+    SignalingConnection connection;
+
+    try {
+      connection = SignalingConnection.open(tlsContext, host, port, addresses, offerFrames, trace);
+    } catch (IOException ioe) {
+      // The host may have moved, so don't retry the same addresses.
+      AddressCache.getInstance().invalidate(host);
+      throw ioe;
+    }
+
+    long    handshakeMillis = connection.getHandshakeMillis();
+    long    connectMillis   = SystemClock.elapsedRealtime() - connectStart;
+    boolean resumed         = connection.isResumed();
+
+    trace.mark(resumed ? "signaling TLS handshake (resumed)" : "signaling TLS handshake");
+
+    synchronized (this) {
+      if (resumed) {
+        Log.w(TAG, "Resumed TLS session with " + host + " in " + handshakeMillis + "ms, " +
+                   "full handshakes average " + getAverage(fullHandshakeMillis, fullHandshakes) + "ms");
+      } else {
+        fullConnects++;
+        fullConnectMillis += connectMillis;
+        fullHandshakes++;
+        fullHandshakeMillis += handshakeMillis;
+      }
+    }
+
+    return connection;
+  }
+
+  private synchronized SSLContext getSslContext(Context context) throws IOException {
+    if (sslContext != null)
+      return sslContext;
+
+    try {
+      InputStream keyStoreInputStream = context.getAssets().open("whisper.store");
+      KeyStore    trustStore          = KeyStore.getInstance("BKS");
+
+      try {
+        trustStore.load(keyStoreInputStream, "whisper".toCharArray());
+      } finally {
+        keyStoreInputStream.close();
+      }
+
+      TrustManagerFactory trustManagerFactory =
+          TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+      trustManagerFactory.init(trustStore);
+
+      SSLContext tlsContext = SSLContext.getInstance("TLS");
+      tlsContext.init(null, trustManagerFactory.getTrustManagers(), null);
+
+      if (!Release.SSL) {
+        Log.w(TAG, "Disabling hostname verification...");
+      }
+
+      sslContext = tlsContext;
+      return sslContext;
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalArgumentException(e);
+    } catch (KeyStoreException e) {
+      throw new IllegalArgumentException(e);
+    } catch (CertificateException e) {
+      throw new IllegalArgumentException(e);
+    } catch (KeyManagementException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  private static long getAverage(long totalMillis, int count) {
+    return count == 0 ? 0 : totalMillis / count;
+  }
+
+  private static String getKey(String host, int port) {
+    return host + ":" + port;
+  }
+}
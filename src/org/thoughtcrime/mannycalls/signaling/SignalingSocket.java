@@ -18,16 +18,13 @@
 package org.thoughtcrime.mannycalls.signaling;
 
 import android.content.Context;
-import android.content.res.AssetManager;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
 import com.google.thoughtcrimegson.Gson;
 
-import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.thoughtcrime.mannycalls.Constants;
 import org.thoughtcrime.mannycalls.Release;
-import org.thoughtcrime.mannycalls.network.LowLatencySocketConnector;
 import org.thoughtcrime.mannycalls.signaling.signals.BusySignal;
 import org.thoughtcrime.mannycalls.signaling.signals.C2DMRegistrationSignal;
 import org.thoughtcrime.mannycalls.signaling.signals.C2DMUnregistrationSignal;
@@ -36,26 +33,14 @@ import org.thoughtcrime.mannycalls.signaling.signals.GCMRegistrationSignal;
 import org.thoughtcrime.mannycalls.signaling.signals.GCMUnregistrationSignal;
 import org.thoughtcrime.mannycalls.signaling.signals.HangupSignal;
 import org.thoughtcrime.mannycalls.signaling.signals.InitiateSignal;
+import org.thoughtcrime.mannycalls.signaling.signals.ReconnectSignal;
 import org.thoughtcrime.mannycalls.signaling.signals.RingingSignal;
-import org.thoughtcrime.mannycalls.signaling.signals.ServerSignal;
 import org.thoughtcrime.mannycalls.signaling.signals.Signal;
 import org.thoughtcrime.mannycalls.signaling.signals.SignalPreferenceSignal;
-import org.thoughtcrime.mannycalls.util.LineReader;
+import org.thoughtcrime.mannycalls.util.CallTrace;
 import org.thoughtcrime.mannycalls.util.PhoneNumberFormatter;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.InetAddress;
-import java.net.Socket;
-import java.net.SocketException;
-import java.security.KeyManagementException;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.UnrecoverableKeyException;
-import java.security.cert.CertificateException;
-import java.util.Map;
 
 /**
  * A socket that speaks the signaling protocol with a whisperswitch.
@@ -69,6 +54,12 @@ import java.util.Map;
  *
  * Connections are persistent, and the signaling connection
  * for any ongoing call must remain open, otherwise the call will drop.
+ * Signals the switch sends on a call's connection are delivered to its
+ * ServerSignalListener.  Connections that only carried requests and their
+ * responses go back to the SignalingConnectionPool on close(), for the
+ * next SignalingSocket.  A pooled connection the switch or a NAT dropped
+ * while it sat idle only shows up as a failed request, so a request that
+ * fails on one is sent once more on a new connection.
  *
  * @author Moxie Marlinspike
  *
@@ -77,18 +68,24 @@ import java.util.Map;
 public class SignalingSocket {
   protected static final int    PROTOCOL_VERSION = 1;
 
-  private   final Context context;
-  private   final Socket socket;
-  private   final String signalingHost;
-  private   final int    signalingPort;
+  private   final Context   context;
+  private   final String    host;
+  private   final int       port;
+  private   final CallTrace trace;
+
+  private   SignalingConnection connection;
 
-  protected final LineReader lineReader;
-  protected final OutputStream outputStream;
   protected final String localNumber;
   protected final String password;
   protected final OtpCounterProvider counterProvider;
 
-  private boolean connectionAttemptComplete;
+  private boolean reusable;
+  private boolean closed;
+  private boolean reconnectSupported;
+
+  private SignalingConnection.PendingResponse pendingResponse;
+  private Signal                              pendingSignal;
+  private ServerSignalListener                listener;
 
   public SignalingSocket(Context context) throws SignalingException {
     this(context,
@@ -104,96 +101,53 @@ public class SignalingSocket {
                          OtpCounterProvider counterProvider)
       throws SignalingException
   {
-    try {
-      this.context                   = context.getApplicationContext();
-      this.connectionAttemptComplete = false;
-      this.signalingHost             = host;
-      this.signalingPort             = port;
-      this.socket                    = constructSSLSocket(context, signalingHost, signalingPort);
-      this.outputStream              = this.socket.getOutputStream();
-      this.lineReader                = new LineReader(socket.getInputStream());
-      this.localNumber               = PhoneNumberFormatter.formatNumber(context, localNumber);
-      this.password                  = password;
-      this.counterProvider           = counterProvider;
-    } catch (IOException ioe) {
-      throw new SignalingException(ioe);
-    }
+    this(context, host, port, localNumber, password, counterProvider, CallTrace.NONE);
   }
 
-  private Socket constructSSLSocket(Context context, String host, int port)
+  /**
+   * @param trace records the DNS lookup, TCP connect and TLS handshake,
+   * or the reuse of a pooled connection.
+   */
+  public SignalingSocket(Context context, String host, int port,
+                         String localNumber, String password,
+                         OtpCounterProvider counterProvider, CallTrace trace)
       throws SignalingException
   {
     try {
-      AssetManager assetManager       = context.getAssets();
-      InputStream keyStoreInputStream = assetManager.open("whisper.store");
-      KeyStore trustStore             = KeyStore.getInstance("BKS");
-
-      trustStore.load(keyStoreInputStream, "whisper".toCharArray());
-
-      SSLSocketFactory sslSocketFactory = new SSLSocketFactory(trustStore);
-
-      if (Release.SSL) {
-        sslSocketFactory.setHostnameVerifier(SSLSocketFactory.STRICT_HOSTNAME_VERIFIER);
-      } else {
-        Log.w("SignalingSocket", "Disabling hostname verification...");
-        sslSocketFactory.setHostnameVerifier(SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
-      }
-
-      return timeoutHackConnect(sslSocketFactory, host, port);
+      this.context         = context.getApplicationContext();
+      this.host            = host;
+      this.port            = port;
+      this.trace           = trace;
+      this.connection      = SignalingConnectionPool.getInstance().get(context, host, port, trace);
+      this.localNumber     = PhoneNumberFormatter.formatNumber(context, localNumber);
+      this.password        = password;
+      this.counterProvider = counterProvider;
+      this.reusable        = true;
     } catch (IOException ioe) {
       throw new SignalingException(ioe);
-    } catch (NoSuchAlgorithmException e) {
-      throw new IllegalArgumentException(e);
-    } catch (KeyStoreException e) {
-      throw new IllegalArgumentException(e);
-    } catch (CertificateException e) {
-      throw new IllegalArgumentException(e);
-    } catch (KeyManagementException e) {
-      throw new IllegalArgumentException(e);
-    } catch (UnrecoverableKeyException e) {
-      throw new IllegalArgumentException(e);
     }
   }
 
-  private Socket timeoutHackConnect(SSLSocketFactory sslSocketFactory, String host, int port)
-      throws IOException
-  {
-    InetAddress[] addresses      = InetAddress.getAllByName(host);
-    Socket stagedSocket          = LowLatencySocketConnector.connect(addresses, port);
-
-    Log.w("SignalingSocket", "Connected to: " + stagedSocket.getInetAddress().getHostAddress());
-
-    SocketConnectMonitor monitor = new SocketConnectMonitor(stagedSocket);
-
-    monitor.start();
-
-    Socket result = sslSocketFactory.createSocket(stagedSocket, host, port, true);
-
-    synchronized (this) {
-      this.connectionAttemptComplete = true;
-      notify();
+  public void close() {
+    if (closed) return;
+    closed = true;
 
-      if (result.isConnected()) return result;
-      else                      throw new IOException("Socket timed out before " +
-                                                      "connection completed.");
+    if (reusable && pendingResponse == null) {
+      SignalingConnectionPool.getInstance().recycle(connection);
+    } else {
+      connection.close();
     }
   }
 
-  public void close() {
-    try {
-      this.outputStream.close();
-      this.socket.getInputStream().close();
-      this.socket.close();
-    } catch (IOException ioe) {}
-  }
-
   public SessionDescriptor initiateConnection(String remoteNumber)
       throws ServerMessageException, SignalingException,
              NoSuchUserException, LoginFailedException
   {
+    reusable = false;
     sendSignal(new InitiateSignal(localNumber, password,
                                   counterProvider.getOtpCounter(context),
-                                  remoteNumber));
+                                  remoteNumber,
+                                  RelayProber.getInstance().getPreference()));
 
     SignalResponse response = readSignalResponse();
 
@@ -203,7 +157,17 @@ public class SignalingSocket {
     case 404: throw new NoSuchUserException("No such redphone user.");
     case 402: throw new ServerMessageException(new String(response.getBody()));
     case 401: throw new LoginFailedException("Initiate threw 401");
-    case 200: return gson.fromJson(new String(response.getBody()), SessionDescriptor.class);
+    case 200:
+      SessionDescriptor sessionDescriptor;
+
+      if (response.getSessionDescriptor() != null) sessionDescriptor = response.getSessionDescriptor();
+      else                                         sessionDescriptor = gson.fromJson(new String(response.getBody()), SessionDescriptor.class);
+
+      // The switch's choice stands, since the responder is given the same
+      // relay; other candidates are only learned, to rank for next time.
+      RelayProber.getInstance().addRelays(response.getHeaders().get(RelayProber.RELAY_CANDIDATES_HEADER));
+      readReconnectSupport(response);
+      return sessionDescriptor;
     default:  throw new SignalingException("Unknown response: " + response.getStatusCode());
     }
   }
@@ -211,6 +175,7 @@ public class SignalingSocket {
   public void setRinging(long sessionId)
       throws SignalingException, SessionStaleException, LoginFailedException
   {
+    reusable = false;
     sendSignal(new RingingSignal(localNumber, password,
                                  counterProvider.getOtpCounter(context),
                                  sessionId));
@@ -220,7 +185,7 @@ public class SignalingSocket {
     switch (response.getStatusCode()) {
     case 404: throw new SessionStaleException("No such session: " + sessionId);
     case 401: throw new LoginFailedException("Ringing threw 401");
-    case 200: return;
+    case 200: readReconnectSupport(response); return;
     default:  throw new SignalingException("Unknown response: " + response.getStatusCode());
     }
   }
@@ -242,6 +207,35 @@ public class SignalingSocket {
     readSignalResponse();
   }
 
+  /**
+   * @throws SignalingException if the switch didn't take the signal, in
+   * which case the other party will never reconnect.
+   */
+  public void setReconnect(long sessionId) throws SignalingException {
+    sendSignal(new ReconnectSignal(localNumber, password,
+                                   counterProvider.getOtpCounter(context),
+                                   sessionId));
+
+    SignalResponse response = readSignalResponse();
+
+    switch (response.getStatusCode()) {
+    case 200: return;
+    default:  throw new SignalingException("Reconnect refused: " + response.getStatusCode());
+    }
+  }
+
+  /**
+   * @return whether the switch's answer to the initiate or ringing signal
+   * said it relays reconnect signals for the session.
+   */
+  public boolean isReconnectSupported() {
+    return reconnectSupported;
+  }
+
+  private void readReconnectSupport(SignalResponse response) {
+    reconnectSupported = ReconnectSignal.SUPPORT_VALUE.equals(response.getHeaders().get(ReconnectSignal.SUPPORT_HEADER));
+  }
+
   public void registerSignalingPreference(String preference) throws SignalingException {
     sendSignal(new SignalPreferenceSignal(localNumber, password, preference));
     SignalResponse response = readSignalResponse();
@@ -325,83 +319,61 @@ public class SignalingSocket {
     return null;
   }
 
-  public void sendOkResponse() throws SignalingException {
-    try {
-      this.outputStream.write("HTTP/1.0 200 OK\r\nContent-Length: 0\r\n\r\n".getBytes());
-    } catch (IOException ioe) {
-      throw new SignalingException(ioe);
-    }
-  }
-
-  public boolean waitForSignal() throws SignalingException {
-    try {
-      socket.setSoTimeout(1500);
-      return lineReader.waitForAvailable();
-    } catch (IOException ioe) {
-      throw new SignalingException(ioe);
-    } finally {
-      try {
-        socket.setSoTimeout(0);
-      } catch (SocketException e) {
-        Log.w("SignalingSocket", e);
-      }
-    }
-  }
-
-  public ServerSignal readSignal() throws SignalingException {
-    try {
-      SignalReader signalReader = new SignalReader(lineReader);
-      String[] request            = signalReader.readSignalRequest();
-      Map<String, String> headers = signalReader.readSignalHeaders();
-      byte[] body                 = signalReader.readSignalBody(headers);
-
-      return new ServerSignal(request[0].trim(), request[1].trim(), body);
-    } catch (IOException ioe) {
-      throw new SignalingException(ioe);
-    }
+  /**
+   * Hands the signals the switch sends on this connection to listener,
+   * which keeps the connection for this call.
+   */
+  public void setServerSignalListener(ServerSignalListener listener) {
+    reusable      = false;
+    this.listener = listener;
+    connection.setListener(listener);
   }
 
   protected void sendSignal(Signal signal) throws SignalingException {
     try {
       Log.d("SignalingSocket", "Sending signal...");
-      this.outputStream.write(signal.serialize().getBytes());
+      this.pendingSignal   = signal;
+      this.pendingResponse = connection.send(signal);
     } catch (IOException ioe) {
+      reusable = false;
       throw new SignalingException(ioe);
     }
   }
 
   protected SignalResponse readSignalResponse() throws SignalingException {
-    try {
-      SignalResponseReader responseReader = new SignalResponseReader(lineReader);
-      int responseCode            = responseReader.readSignalResponseCode();
-      Map<String, String> headers = responseReader.readSignalHeaders();
-      byte[] body                 = responseReader.readSignalBody(headers);
+    Signal signal = pendingSignal;
 
-      return new SignalResponse(responseCode, headers, body);
+    try {
+      return pendingResponse.get();
     } catch (IOException ioe) {
-      throw new SignalingException(ioe);
+      if (!connection.isReused()) {
+        reusable = false;
+        throw new SignalingException(ioe);
+      }
+
+      Log.w("SignalingSocket", ioe);
+      Log.w("SignalingSocket", "Pooled connection failed, retrying on a new one...");
+    } finally {
+      pendingResponse = null;
+      pendingSignal   = null;
     }
+
+    // The same signal, so its OTP counter isn't spent twice.
+    reconnect();
+    sendSignal(signal);
+    return readSignalResponse();
   }
 
-  private class SocketConnectMonitor extends Thread {
-    private final Socket socket;
+  private void reconnect() throws SignalingException {
+    connection.close();
 
-    public SocketConnectMonitor(Socket socket) {
-      this.socket           = socket;
+    try {
+      connection = SignalingConnectionPool.getInstance().connect(context, host, port, trace);
+    } catch (IOException ioe) {
+      throw new SignalingException(ioe);
     }
 
-    @Override
-    public void run() {
-      synchronized (SignalingSocket.this) {
-        try {
-          if (!SignalingSocket.this.connectionAttemptComplete) SignalingSocket.this.wait(10000);
-          if (!SignalingSocket.this.connectionAttemptComplete) this.socket.close();
-        } catch (IOException ioe) {
-          Log.w("SignalingSocket", ioe);
-        } catch (InterruptedException e) {
-          throw new AssertionError(e);
-        }
-      }
-    }
+    if (listener != null)
+      connection.setListener(listener);
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.signaling;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * One selector thread that does the I/O for every signaling connection
+ * in the process.
+ *
+ * Connections register their channels here and are called back when a
+ * channel is ready, or when their deadline passes, so connect, handshake
+ * and response timeouts need neither a thread nor a socket timeout each.
+ * With nothing to do the thread sleeps in select() until the next
+ * deadline, or indefinitely.
+ *
+ * Anything that touches a connection's channels or SSLEngine runs on this
+ * thread, by way of execute().  The exception is the SSLEngine's delegated
+ * tasks, the slow part of a handshake, which run on a thread of their own
+ * by way of executeDelegated() so that they don't hold up every other
+ * connection's I/O.
+ */
+public class SignalingTransport {
+
+  private static final String TAG = "SignalingTransport";
+
+  private static final SignalingTransport instance = new SignalingTransport();
+
+  public static SignalingTransport getInstance() {
+    return instance;
+  }
+
+  private final ConcurrentLinkedQueue<Runnable> tasks       = new ConcurrentLinkedQueue<Runnable>();
+  private final Set<SignalingConnection>        connections = new HashSet<SignalingConnection>();
+
+  private final ExecutorService delegatedTasks = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "SignalingTransport Task Thread");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private Selector selector;
+
+  /**
+   * Runs a task on the I/O thread, starting it if this is the first.
+   */
+  public void execute(Runnable task) throws IOException {
+    synchronized (this) {
+      if (selector == null) {
+        selector = Selector.open();
+
+        Thread thread = new Thread(new SelectorLoop(), "SignalingTransport I/O Thread");
+        thread.setDaemon(true);
+        thread.start();
+      }
+    }
+
+    tasks.add(task);
+    selector.wakeup();
+  }
+
+  /**
+   * Runs an SSLEngine's delegated task off the I/O thread.  The connection
+   * hears it's done through execute().
+   */
+  void executeDelegated(Runnable task) {
+    delegatedTasks.execute(task);
+  }
+
+  // I/O thread only, from here down.
+
+  Selector getSelector() {
+    return selector;
+  }
+
+  void add(SignalingConnection connection) {
+    connections.add(connection);
+  }
+
+  void remove(SignalingConnection connection) {
+    connections.remove(connection);
+  }
+
+  private long runExpired() {
+    long                            now     = SystemClock.elapsedRealtime();
+    long                            next    = Long.MAX_VALUE;
+    LinkedList<SignalingConnection> expired = new LinkedList<SignalingConnection>();
+
+    for (SignalingConnection connection : connections) {
+      long deadline = connection.getDeadline();
+
+      if      (deadline <= now) expired.add(connection);
+      else if (deadline < next) next = deadline;
+    }
+
+    for (SignalingConnection connection : expired) {
+      connection.onDeadline();
+    }
+
+    return next == Long.MAX_VALUE ? 0 : Math.max(1, next - now);
+  }
+
+  private class SelectorLoop implements Runnable {
+    @Override
+    public void run() {
+      while (true) {
+        try {
+          Runnable task;
+
+          while ((task = tasks.poll()) != null) {
+            task.run();
+          }
+
+          selector.select(runExpired());
+
+          Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+
+          while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+
+            if (key.isValid()) {
+              ((SignalingConnection)key.attachment()).onReady(key);
+            }
+          }
+        } catch (IOException ioe) {
+          Log.w(TAG, ioe);
+        } catch (RuntimeException e) {
+          Log.w(TAG, e);
+        }
+      }
+    }
+  }
+}
@@ -17,8 +17,12 @@
 
 package org.thoughtcrime.mannycalls.signaling.signals;
 
+import org.thoughtcrime.mannycalls.signaling.RelayProber;
 import org.thoughtcrime.mannycalls.util.PhoneNumberFormatter;
 
+import java.util.Collections;
+import java.util.Map;
+
 /**
  * A signal which initiates a call with the specified remote number.
  *
@@ -29,10 +33,22 @@ import org.thoughtcrime.mannycalls.util.PhoneNumberFormatter;
 public class InitiateSignal extends Signal {
 
   private final String remoteNumber;
+  private final String relayPreference;
 
   public InitiateSignal(String localNumber, String password, long counter, String remoteNumber) {
+    this(localNumber, password, counter, remoteNumber, null);
+  }
+
+  /**
+   * @param relayPreference the relays to ask the switch for, best first
+   * and comma-separated, or null to leave the choice to the switch.
+   */
+  public InitiateSignal(String localNumber, String password, long counter,
+                        String remoteNumber, String relayPreference)
+  {
     super(localNumber, password, counter);
-    this.remoteNumber = PhoneNumberFormatter.formatNumber(remoteNumber);
+    this.remoteNumber    = PhoneNumberFormatter.formatNumber(remoteNumber);
+    this.relayPreference = relayPreference;
   }
 
   @Override
@@ -49,4 +65,11 @@ public class InitiateSignal extends Signal {
   protected String getBody() {
     return null;
   }
+
+  @Override
+  protected Map<String, String> getHeaders() {
+    if (relayPreference == null) return null;
+    else                         return Collections.singletonMap(RelayProber.RELAY_PREFERENCE_HEADER,
+                                                                 relayPreference);
+  }
 }
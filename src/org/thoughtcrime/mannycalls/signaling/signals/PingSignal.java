@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.signaling.signals;
+
+/**
+ * Sent by the RelayProber via UDP to time a relay.  Any response,
+ * whatever its status, counts as the echo.
+ */
+public class PingSignal extends Signal {
+
+  public PingSignal() {
+    super(null, null, -1);
+  }
+
+  @Override
+  protected String getMethod() {
+    return "GET";
+  }
+
+  @Override
+  protected String getLocation() {
+    return "/ping";
+  }
+
+  @Override
+  protected String getBody() {
+    return null;
+  }
+
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.signaling.signals;
+
+/**
+ * A signal which indicates that the endpoint has lost its media path
+ * for the specified session, typically to a network change, and is
+ * reopening it.  The switch relays it to the other party, which
+ * reopens its own and rekeys the new stream with a multistream
+ * handshake.
+ *
+ * Only a switch that says so, with SUPPORT_HEADER on its answer to the
+ * initiate or ringing signal, relays it and accepts a second port open
+ * for a running session, so it's only sent to one of those.
+ */
+
+public class ReconnectSignal extends Signal {
+
+  public static final String SUPPORT_HEADER = "X-Session-Reconnect";
+  public static final String SUPPORT_VALUE  = "multistream";
+
+  private final long sessionId;
+
+  public ReconnectSignal(String localNumber, String password, long counter, long sessionId) {
+    super(localNumber, password, counter);
+    this.sessionId = sessionId;
+  }
+
+  @Override
+  protected String getMethod() {
+    return "RECONNECT";
+  }
+
+  @Override
+  protected String getLocation() {
+    return "/session/" + sessionId;
+  }
+
+  @Override
+  protected String getBody() {
+    return null;
+  }
+}
@@ -62,4 +62,8 @@ public class ServerSignal {
   public boolean isBusy(long sessionId) {
     return verb.equals("BUSY") && this.sessionId != -1 && this.sessionId == sessionId;
   }
+
+  public boolean isReconnect(long sessionId) {
+    return verb.equals("RECONNECT") && this.sessionId != -1 && this.sessionId == sessionId;
+  }
 }
@@ -18,8 +18,11 @@
 package org.thoughtcrime.mannycalls.signaling.signals;
 
 import org.thoughtcrime.mannycalls.crypto.Otp;
+import org.thoughtcrime.mannycalls.signaling.SignalFrame;
 import org.thoughtcrime.mannycalls.util.Base64;
 
+import java.util.Map;
+
 /**
  * Base class for constructing a signal.
  *
@@ -40,15 +43,46 @@ public abstract class Signal {
   }
 
   public String serialize() {
+    return serialize(false);
+  }
+
+  /**
+   * @param offerFrames whether to ask the switch for the binary protocol.
+   */
+  public String serialize(boolean offerFrames) {
     StringBuffer sb = new StringBuffer();
 
     buildRequest(sb, getMethod(), getLocation());
+    buildOffer(sb, offerFrames);
+    buildHeaders(sb, getHeaders());
     buildAuthorization(sb, password, counter);
     buildBody(sb, getBody());
 
     return sb.toString();
   }
 
+  /**
+   * @return this signal as a frame of the binary signaling protocol.
+   */
+  public byte[] serializeFrame() {
+    String body      = getBody();
+    byte[] bodyBytes = body == null || body.length() == 0 ? null : body.getBytes();
+
+    Map<String, String> headers = getHeaders();
+
+    if (password != null && counter == -1) {
+      return SignalFrame.encodeRequest(getMethod(), getLocation(), localNumber,
+                                       password, null, counter, headers, bodyBytes);
+    } else if (password != null) {
+      return SignalFrame.encodeRequest(getMethod(), getLocation(), localNumber,
+                                       null, Otp.calculateOtp(password, counter), counter,
+                                       headers, bodyBytes);
+    } else {
+      return SignalFrame.encodeRequest(getMethod(), getLocation(), null,
+                                       null, null, counter, headers, bodyBytes);
+    }
+  }
+
   private void buildBody(StringBuffer sb, String body) {
     if (body != null && body.length() > 0) {
       sb.append("Content-Length: ");
@@ -63,6 +97,26 @@ public abstract class Signal {
     }
   }
 
+  private void buildOffer(StringBuffer sb, boolean offerFrames) {
+    if (offerFrames) {
+      sb.append(SignalFrame.OFFER_HEADER);
+      sb.append(": ");
+      sb.append(SignalFrame.OFFER_VALUE);
+      sb.append("\r\n");
+    }
+  }
+
+  private void buildHeaders(StringBuffer sb, Map<String, String> headers) {
+    if (headers != null) {
+      for (Map.Entry<String, String> header : headers.entrySet()) {
+        sb.append(header.getKey());
+        sb.append(": ");
+        sb.append(header.getValue());
+        sb.append("\r\n");
+      }
+    }
+  }
+
   private void buildAuthorization(StringBuffer sb, String password, long counter) {
     if (password != null && counter == -1) {
       sb.append("Authorization: Basic ");
@@ -88,4 +142,11 @@ public abstract class Signal {
   protected abstract String getLocation();
   protected abstract String getBody();
 
+  /**
+   * @return any headers beyond authorization and length, or null.
+   */
+  protected Map<String, String> getHeaders() {
+    return null;
+  }
+
 }
@@ -17,6 +17,7 @@
 
 package org.thoughtcrime.mannycalls.sms;
 
+import org.thoughtcrime.mannycalls.crypto.CryptoPrimitives;
 import org.thoughtcrime.mannycalls.util.Base64;
 
 import java.security.MessageDigest;
@@ -65,7 +66,7 @@ public abstract class WirePrefix {
 
   private static String calculatePrefix(byte[] message, int byteCount) {
     try {
-      MessageDigest md     = MessageDigest.getInstance("SHA1");
+      MessageDigest md     = CryptoPrimitives.getMessageDigest("SHA1");
       byte[] runningDigest = message;
 
       for (int i=0;i<HASH_ITERATIONS;i++) {
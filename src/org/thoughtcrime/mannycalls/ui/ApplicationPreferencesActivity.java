@@ -20,12 +20,16 @@ package org.thoughtcrime.mannycalls.ui;
 import android.content.Context;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
+import android.util.Log;
 
 import com.actionbarsherlock.app.SherlockPreferenceActivity;
 import com.actionbarsherlock.view.MenuItem;
 
 import org.thoughtcrime.mannycalls.R;
 import org.thoughtcrime.mannycalls.Release;
+import org.thoughtcrime.mannycalls.network.ImpairmentProfile;
+import org.thoughtcrime.mannycalls.util.CallTrace;
+import org.thoughtcrime.redphone.audio.JitterBufferProfile;
 
 /**
  * Preferences menu Activity.
@@ -40,6 +44,11 @@ public class ApplicationPreferencesActivity extends SherlockPreferenceActivity {
   public static final String LOOPBACK_MODE_PREF         = "pref_loopback";
   public static final String OPPORTUNISTIC_UPGRADE_PREF = "pref_prompt_upgrade";
   public static final String BLUETOOTH_ENABLED          = "pref_bluetooth_enabled";
+  public static final String JITTER_BUFFER_PROFILE      = "pref_jitter_buffer_profile";
+  public static final String LOOPBACK_IMPAIRMENT_PREF   = "pref_loopback_impairment";
+  public static final String LOOPBACK_LATENCY_PREF      = "pref_loopback_latency";
+  public static final String CALL_TRACE_PREF            = "pref_call_trace";
+  public static final String BINARY_SIGNALING_PREF      = "pref_binary_signaling";
 
   @Override
   protected void onCreate(Bundle icicle) {
@@ -51,6 +60,7 @@ public class ApplicationPreferencesActivity extends SherlockPreferenceActivity {
 
     if(Release.DEBUG) {
       addPreferencesFromResource(R.xml.debug);
+      findPreference(CALL_TRACE_PREF).setSummary(CallTrace.getSummary(this));
     }
   }
 
@@ -81,8 +91,41 @@ public class ApplicationPreferencesActivity extends SherlockPreferenceActivity {
            .getDefaultSharedPreferences(context).getBoolean(LOOPBACK_MODE_PREF, false);
   }
 
+  public static boolean getLoopbackLatencyEnabled(Context context) {
+    return PreferenceManager
+           .getDefaultSharedPreferences(context).getBoolean(LOOPBACK_LATENCY_PREF, false);
+  }
+
+  public static boolean getBinarySignalingEnabled(Context context) {
+    return PreferenceManager
+           .getDefaultSharedPreferences(context).getBoolean(BINARY_SIGNALING_PREF, false);
+  }
+
+  public static ImpairmentProfile getLoopbackImpairment(Context context) {
+    String spec = PreferenceManager.getDefaultSharedPreferences(context)
+                                   .getString(LOOPBACK_IMPAIRMENT_PREF, "");
+
+    try {
+      return ImpairmentProfile.parse(spec);
+    } catch (IllegalArgumentException e) {
+      Log.w("ApplicationPreferencesActivity", e);
+      return ImpairmentProfile.NONE;
+    }
+  }
+
   public static boolean getBluetoothEnabled(Context context) {
     return PreferenceManager
       .getDefaultSharedPreferences(context).getBoolean(BLUETOOTH_ENABLED, false);
   }
+
+  public static JitterBufferProfile getJitterBufferProfile(Context context) {
+    String name = PreferenceManager.getDefaultSharedPreferences(context)
+                                   .getString(JITTER_BUFFER_PROFILE, JitterBufferProfile.DEFAULT.getName());
+
+    if (JitterBufferProfile.AUTOMATIC.equals(name)) {
+      return JitterBufferProfile.forActiveNetwork(context);
+    }
+
+    return JitterBufferProfile.forName(name);
+  }
 }
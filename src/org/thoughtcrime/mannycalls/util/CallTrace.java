@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.mannycalls.util;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Records what happens while a call is set up, against a monotonic clock
+ * from when the call was placed or received: each setup phase as it
+ * completes, and each ZRTP packet sent, retransmitted or received, so
+ * that a slow call can be pinned on the step that was slow.
+ *
+ * Phases run concurrently, so a phase's duration is the time between its
+ * mark and the mark of whatever it waited on.
+ *
+ * When the call ends, its trace is appended to call-traces.jsonl in the
+ * app's files, one JSON object per line, and only the last
+ * MAX_SAVED_TRACES are kept.  The file is written on a background
+ * thread, since calls end on whatever thread hangs up.  getSummary() describes the latest, for
+ * the debug settings.
+ */
+public class CallTrace {
+
+  public static final CallTrace NONE = new CallTrace(null);
+
+  public static final String KIND_PHASE      = "phase";
+  public static final String KIND_PACKET     = "packet";
+  public static final String KIND_RETRANSMIT = "retransmit";
+
+  private static final String TRACE_FILE       = "call-traces.jsonl";
+  private static final int    MAX_SAVED_TRACES = 20;
+  private static final int    MAX_EVENTS       = 256;
+
+  private static final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "CallTrace");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private final String    tag;
+  private final long      startTime;
+  private final long      startWallTime;
+  private final JSONArray events = new JSONArray();
+
+  /**
+   * @param tag the log tag for phases, which also names the trace.
+   */
+  public CallTrace(String tag) {
+    this.tag           = tag;
+    this.startTime     = SystemClock.elapsedRealtime();
+    this.startWallTime = System.currentTimeMillis();
+  }
+
+  /**
+   * A setup phase completed.
+   */
+  public void mark(String phase) {
+    if (tag == null) return;
+
+    long elapsed = record(KIND_PHASE, phase);
+    Log.w(tag, "Call setup: " + phase + " at +" + elapsed + "ms");
+  }
+
+  public void packetSent(String type, boolean retransmit) {
+    record(retransmit ? KIND_RETRANSMIT : KIND_PACKET, "sent " + type);
+  }
+
+  public void packetReceived(String type) {
+    record(KIND_PACKET, "received " + type);
+  }
+
+  public long getElapsedMillis() {
+    return SystemClock.elapsedRealtime() - startTime;
+  }
+
+  private synchronized long record(String kind, String name) {
+    long elapsed = getElapsedMillis();
+
+    if (tag == null || events.length() >= MAX_EVENTS) {
+      return elapsed;
+    }
+
+    try {
+      events.put(new JSONObject().put("t", elapsed).put("k", kind).put("e", name));
+    } catch (JSONException e) {
+      throw new AssertionError(e);
+    }
+
+    return elapsed;
+  }
+
+  /**
+   * Appends this trace to the saved ones, in the background.
+   */
+  public void save(final Context context) {
+    if (tag == null) return;
+
+    final String line;
+
+    synchronized (this) {
+      try {
+        line = new JSONObject().put("call", tag)
+                               .put("start", startWallTime)
+                               .put("events", events)
+                               .toString();
+      } catch (JSONException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          writeTrace(context, line);
+        } catch (IOException e) {
+          Log.w("CallTrace", e);
+        }
+      }
+    });
+  }
+
+  private static void writeTrace(Context context, String trace) throws IOException {
+    LinkedList<String> lines = readTraces(context);
+    lines.add(trace);
+
+    while (lines.size() > MAX_SAVED_TRACES) {
+      lines.removeFirst();
+    }
+
+    Writer writer = new OutputStreamWriter(context.openFileOutput(TRACE_FILE, Context.MODE_PRIVATE));
+
+    try {
+      for (String line : lines) {
+        writer.write(line);
+        writer.write('\n');
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * @return the latest saved trace's phases, with the time each
+   * completed, and how many ZRTP packets it retransmitted.
+   */
+  public static String getSummary(Context context) {
+    try {
+      LinkedList<String> lines = readTraces(context);
+
+      if (lines.isEmpty()) {
+        return "No calls traced yet";
+      }
+
+      JSONObject    trace       = new JSONObject(lines.getLast());
+      JSONArray     events      = trace.getJSONArray("events");
+      StringBuilder summary     = new StringBuilder(trace.getString("call") + ", " +
+                                                    new Date(trace.getLong("start")));
+      int           retransmits = 0;
+
+      for (int i=0;i<events.length();i++) {
+        JSONObject event = events.getJSONObject(i);
+        String     kind  = event.getString("k");
+
+        if (KIND_PHASE.equals(kind)) {
+          summary.append('\n').append(event.getString("e")).append(": +")
+                 .append(event.getLong("t")).append("ms");
+        } else if (KIND_RETRANSMIT.equals(kind)) {
+          retransmits++;
+        }
+      }
+
+      return summary.append('\n').append(retransmits).append(" ZRTP retransmits").toString();
+    } catch (JSONException e) {
+      Log.w("CallTrace", e);
+      return "Unreadable trace";
+    } catch (IOException e) {
+      Log.w("CallTrace", e);
+      return "Unreadable trace";
+    }
+  }
+
+  private static LinkedList<String> readTraces(Context context) throws IOException {
+    LinkedList<String> lines = new LinkedList<String>();
+
+    try {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(context.openFileInput(TRACE_FILE)));
+
+      try {
+        String line;
+
+        while ((line = reader.readLine()) != null) {
+          if (line.length() > 0) lines.add(line);
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (FileNotFoundException e) {
+      // No calls traced yet.
+    }
+
+    return lines;
+  }
+
+}
@@ -4,6 +4,8 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.LinkedList;
+import java.util.List;
 
 /**
  * Adapted from: http://stackoverflow.com/questions/3118234/how-to-get-memory-usage-and-cpu-usage-in-android
@@ -192,6 +194,41 @@ public final class LinuxUtils {
     return -1L;
   }
 
+  /**
+   * Return the interfaces of the IPv4 default routes in /proc/net/route,
+   * in the table's order, empty if there are none or failed.
+   */
+  public static List<String> readDefaultRouteInterfaces() {
+
+    RandomAccessFile reader = null;
+    List<String> ifaces = new LinkedList<String>();
+
+    try {
+      reader = new RandomAccessFile("/proc/net/route", "r");
+      reader.readLine();
+
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.trim().split("\\s+");
+
+        // Iface Destination Gateway Flags RefCnt Use Metric Mask ...
+        if (fields.length >= 8 && "00000000".equals(fields[1]) && "00000000".equals(fields[7])) {
+          ifaces.add(fields[0]);
+        }
+      }
+    } catch (IOException ex) {
+      Log.e("LinuxUtils", "Failed to read /proc/net/route", ex);
+    } finally {
+      try {
+        if (reader != null) reader.close();
+      } catch (IOException e) {
+        Log.e("LinuxUtils", "Failed to close stream");
+      }
+    }
+
+    return ifaces;
+  }
+
   /** Return the first line of /proc/pid/stat or null if failed. */
   public static String readProcessStat(int pid) {
 
@@ -18,6 +18,8 @@
 package org.thoughtcrime.mannycalls.util;
 
 import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Environment;
 import android.util.Log;
@@ -26,9 +28,11 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.Date;
 import java.util.zip.GZIPOutputStream;
 
 /**
@@ -65,6 +69,33 @@ public final class LogUtil {
     return Uri.fromFile( new File(logFileName) );
   }
 
+  /**
+   * Append a loopback latency report to redphone-latency.txt on the SD card,
+   * headed with the app version so results can be compared across builds.
+   */
+  public static void appendLatencyReport(Context ctx, String report) {
+    String versionName;
+
+    try {
+      PackageInfo packageInfo = ctx.getPackageManager().getPackageInfo(ctx.getPackageName(), 0);
+      versionName = packageInfo.versionName + " (" + packageInfo.versionCode + ")";
+    } catch (PackageManager.NameNotFoundException e) {
+      versionName = "unknown";
+    }
+
+    try {
+      File       outputFile = new File(Environment.getExternalStorageDirectory(), "redphone-latency.txt");
+      FileWriter writer     = new FileWriter(outputFile, true);
+
+      writer.write("# " + versionName + " " + new Date() + "\n");
+      writer.write(report);
+      writer.write("\n");
+      writer.close();
+    } catch (IOException e) {
+      Log.w("RedPhone", e);
+    }
+  }
+
   public static Uri copyDataToSdCard(Context ctx, String fileName) {
     try {
       File outputFile               = new File(Environment.getExternalStorageDirectory() + "/" +
@@ -23,10 +23,9 @@ import android.text.Editable;
 import android.util.Log;
 
 import org.thoughtcrime.mannycalls.ApplicationContext;
+import org.thoughtcrime.mannycalls.crypto.CryptoPrimitives;
 
 import java.io.UnsupportedEncodingException;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 
 /**
  * Random utility functions.
@@ -62,13 +61,9 @@ public class Util {
   }
 
   public static String getSecret(int size) {
-    try {
-      byte[] secret = new byte[size];
-      SecureRandom.getInstance("SHA1PRNG").nextBytes(secret);
-      return Base64.encodeBytes(secret);
-    } catch (NoSuchAlgorithmException nsae) {
-      throw new AssertionError(nsae);
-    }
+    byte[] secret = new byte[size];
+    CryptoPrimitives.getSecureRandom().nextBytes(secret);
+    return Base64.encodeBytes(secret);
   }
 
   public static boolean isEmpty(String value) {
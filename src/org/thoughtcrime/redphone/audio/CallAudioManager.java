@@ -23,13 +23,15 @@ public class CallAudioManager {
 
   public CallAudioManager(DatagramSocket socket, String remoteHost, int remotePort,
                           byte[] senderCipherKey, byte[] senderMacKey, byte[] senderSalt,
-                          byte[] receiverCipherKey, byte[] receiverMacKey, byte[] receiverSalt)
+                          byte[] receiverCipherKey, byte[] receiverMacKey, byte[] receiverSalt,
+                          JitterBufferProfile jitterBufferProfile)
       throws SocketException, AudioException
   {
     try {
       this.handle = create(Build.VERSION.SDK_INT, getFileDescriptor(socket), remoteHost, remotePort,
                            senderCipherKey, senderMacKey, senderSalt,
                            receiverCipherKey, receiverMacKey, receiverSalt);
+      setJitterBufferProfile(jitterBufferProfile);
     } catch (NativeAudioException e) {
       Log.w(TAG, e);
       throw new AudioException(R.string.CallAudioManager__sorry_there_was_a_problem_initializing_the_audio_on_your_device);
@@ -40,6 +42,25 @@ public class CallAudioManager {
     setMute(handle, enabled);
   }
 
+  public void setJitterBufferProfile(JitterBufferProfile profile) {
+    Log.w(TAG, "Using jitter buffer profile: " + profile);
+    setJitterBufferProfile(handle, profile.getMinDelayMillis(), profile.getMaxDelayMillis(),
+                           profile.getMaxPacketsInBuffer(), profile.getBackgroundNoiseMode(),
+                           profile.getPlayoutMode());
+  }
+
+  /**
+   * Track per-stage latency of our own frames as they come back to us.
+   * Only meaningful on loopback calls, and must be called before start().
+   */
+  public void enableLatencyProbe() {
+    enableLatencyProbe(handle);
+  }
+
+  public String getLatencyReport() {
+    return getLatencyReport(handle);
+  }
+
   public void start() throws AudioException {
     try {
       start(handle);
@@ -88,6 +109,14 @@ public class CallAudioManager {
 
   private native void setMute(long handle, boolean enabled);
 
+  private native void setJitterBufferProfile(long handle, int minDelayMillis, int maxDelayMillis,
+                                             int maxPacketsInBuffer, int backgroundNoiseMode,
+                                             int playoutMode);
+
+  private native void enableLatencyProbe(long handle);
+
+  private native String getLatencyReport(long handle);
+
   private native void stop(long handle);
 
   private native void dispose(long handle);
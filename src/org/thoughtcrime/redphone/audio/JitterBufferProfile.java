@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2014 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.redphone.audio;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+/**
+ * A named set of NetEq jitter buffer parameters.  Profiles are handed
+ * to the native CallAudioManager before the call starts, and can be
+ * swapped while audio is running.
+ *
+ * The noise and playout constants mirror the ordering of NetEq's
+ * BackgroundNoiseMode and NetEqPlayoutMode enums.
+ */
+public class JitterBufferProfile {
+
+  public static final int BACKGROUND_NOISE_ON   = 0;
+  public static final int BACKGROUND_NOISE_FADE = 1;
+  public static final int BACKGROUND_NOISE_OFF  = 2;
+
+  public static final int PLAYOUT_ON        = 0;
+  public static final int PLAYOUT_OFF       = 1;
+  public static final int PLAYOUT_FAX       = 2;
+  public static final int PLAYOUT_STREAMING = 3;
+
+  public static final String AUTOMATIC = "auto";
+
+  public static final JitterBufferProfile DEFAULT =
+      new JitterBufferProfile("default", 0, 2000, 50, BACKGROUND_NOISE_OFF, PLAYOUT_ON);
+
+  public static final JitterBufferProfile WIFI_LOW_LATENCY =
+      new JitterBufferProfile("wifi-low-latency", 0, 200, 20, BACKGROUND_NOISE_OFF, PLAYOUT_ON);
+
+  public static final JitterBufferProfile CELLULAR_ROBUST =
+      new JitterBufferProfile("cellular-robust", 80, 1000, 100, BACKGROUND_NOISE_FADE, PLAYOUT_ON);
+
+  private static final JitterBufferProfile[] PROFILES = {DEFAULT, WIFI_LOW_LATENCY, CELLULAR_ROBUST};
+
+  private final String name;
+  private final int    minDelayMillis;
+  private final int    maxDelayMillis;
+  private final int    maxPacketsInBuffer;
+  private final int    backgroundNoiseMode;
+  private final int    playoutMode;
+
+  public JitterBufferProfile(String name, int minDelayMillis, int maxDelayMillis,
+                             int maxPacketsInBuffer, int backgroundNoiseMode, int playoutMode)
+  {
+    this.name                = name;
+    this.minDelayMillis      = minDelayMillis;
+    this.maxDelayMillis      = maxDelayMillis;
+    this.maxPacketsInBuffer  = maxPacketsInBuffer;
+    this.backgroundNoiseMode = backgroundNoiseMode;
+    this.playoutMode         = playoutMode;
+  }
+
+  public static JitterBufferProfile forName(String name) {
+    for (JitterBufferProfile profile : PROFILES) {
+      if (profile.getName().equals(name)) {
+        return profile;
+      }
+    }
+
+    return DEFAULT;
+  }
+
+  public static JitterBufferProfile forActiveNetwork(Context context) {
+    ConnectivityManager connectivityManager =
+        (ConnectivityManager)context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    NetworkInfo activeNetwork = connectivityManager.getActiveNetworkInfo();
+
+    if (activeNetwork != null &&
+        (activeNetwork.getType() == ConnectivityManager.TYPE_WIFI ||
+         activeNetwork.getType() == ConnectivityManager.TYPE_ETHERNET))
+    {
+      return WIFI_LOW_LATENCY;
+    }
+
+    return CELLULAR_ROBUST;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getMinDelayMillis() {
+    return minDelayMillis;
+  }
+
+  public int getMaxDelayMillis() {
+    return maxDelayMillis;
+  }
+
+  public int getMaxPacketsInBuffer() {
+    return maxPacketsInBuffer;
+  }
+
+  public int getBackgroundNoiseMode() {
+    return backgroundNoiseMode;
+  }
+
+  public int getPlayoutMode() {
+    return playoutMode;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}